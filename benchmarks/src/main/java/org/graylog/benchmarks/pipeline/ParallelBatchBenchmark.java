@@ -0,0 +1,180 @@
+/**
+ * This file is part of Graylog Pipeline Processor.
+ *
+ * Graylog Pipeline Processor is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Graylog Pipeline Processor is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Graylog Pipeline Processor.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.graylog.benchmarks.pipeline;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Lists;
+import com.google.common.eventbus.EventBus;
+
+import com.codahale.metrics.MetricRegistry;
+
+import org.graylog.plugins.pipelineprocessor.ast.functions.Function;
+import org.graylog.plugins.pipelineprocessor.codegen.CodeGenerator;
+import org.graylog.plugins.pipelineprocessor.db.PipelineDao;
+import org.graylog.plugins.pipelineprocessor.db.PipelineService;
+import org.graylog.plugins.pipelineprocessor.db.PipelineStreamConnectionsService;
+import org.graylog.plugins.pipelineprocessor.db.RuleDao;
+import org.graylog.plugins.pipelineprocessor.db.RuleService;
+import org.graylog.plugins.pipelineprocessor.db.memory.InMemoryPipelineService;
+import org.graylog.plugins.pipelineprocessor.db.memory.InMemoryPipelineStreamConnectionsService;
+import org.graylog.plugins.pipelineprocessor.db.memory.InMemoryRuleService;
+import org.graylog.plugins.pipelineprocessor.functions.conversion.StringConversion;
+import org.graylog.plugins.pipelineprocessor.functions.messages.HasField;
+import org.graylog.plugins.pipelineprocessor.functions.messages.SetField;
+import org.graylog.plugins.pipelineprocessor.functions.strings.Lowercase;
+import org.graylog.plugins.pipelineprocessor.functions.strings.RegexMatch;
+import org.graylog.plugins.pipelineprocessor.parser.FunctionRegistry;
+import org.graylog.plugins.pipelineprocessor.parser.PipelineRuleParser;
+import org.graylog.plugins.pipelineprocessor.processors.BlockingStageExecutor;
+import org.graylog.plugins.pipelineprocessor.processors.ConfigurationStateUpdater;
+import org.graylog.plugins.pipelineprocessor.processors.ParallelBatchExecutor;
+import org.graylog.plugins.pipelineprocessor.processors.PipelineInterpreter;
+import org.graylog.plugins.pipelineprocessor.processors.ReloadExecutor;
+import org.graylog.plugins.pipelineprocessor.processors.RuleCompiler;
+import org.graylog.plugins.pipelineprocessor.rest.PipelineConnections;
+import org.graylog2.plugin.Message;
+import org.graylog2.plugin.MessageCollection;
+import org.graylog2.plugin.Messages;
+import org.graylog2.plugin.Tools;
+import org.graylog2.plugin.streams.Stream;
+import org.graylog2.shared.journal.NoopJournal;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * Measures the throughput of a single process buffer thread handing large batches to the interpreter, with the batch
+ * being split across 1 to N pipeline batch workers.
+ */
+public class ParallelBatchBenchmark {
+
+    @State(Scope.Benchmark)
+    public static class InterpreterState {
+
+        @Param({"1", "2", "4", "8"})
+        private int workers;
+
+        @Param({"1000"})
+        private int batchSize;
+
+        private PipelineInterpreter interpreter;
+        private List<Message> batch;
+
+        @Setup
+        public void setup() {
+            final RuleService ruleService = new InMemoryRuleService();
+            ruleService.save(RuleDao.create(null, "normalize", null,
+                    "rule \"normalize\"\n" +
+                            "when has_field(\"source\")\n" +
+                            "then\n" +
+                            "  set_field(\"source_lower\", lowercase(to_string($message.source)));\n" +
+                            "end", null, null));
+            ruleService.save(RuleDao.create(null, "extract", null,
+                    "rule \"extract\"\n" +
+                            "when regex(\"user=(\\\\w+)\", to_string($message.message)).matches == true\n" +
+                            "then\n" +
+                            "  let m = regex(\"user=(\\\\w+) action=(\\\\w+)\", to_string($message.message));\n" +
+                            "  set_field(\"user\", m[\"0\"]);\n" +
+                            "  set_field(\"action\", m[\"1\"]);\n" +
+                            "end", null, null));
+
+            final PipelineService pipelineService = new InMemoryPipelineService();
+            final PipelineDao pipeline = pipelineService.save(PipelineDao.create(null, "pipeline", null,
+                    "pipeline \"pipeline\"\n" +
+                            "stage 0 match either\n" +
+                            "    rule \"normalize\";\n" +
+                            "stage 1 match either\n" +
+                            "    rule \"extract\";\n" +
+                            "end\n",
+                    Tools.nowUTC(),
+                    null));
+
+            final PipelineStreamConnectionsService connectionsService = new InMemoryPipelineStreamConnectionsService();
+            connectionsService.save(PipelineConnections.create(null,
+                    Stream.DEFAULT_STREAM_ID,
+                    Collections.singleton(pipeline.id())));
+
+            final Map<String, Function<?>> functions = ImmutableMap.of(
+                    HasField.NAME, new HasField(),
+                    SetField.NAME, new SetField(),
+                    StringConversion.NAME, new StringConversion(),
+                    Lowercase.NAME, new Lowercase(),
+                    RegexMatch.NAME, new RegexMatch());
+            final FunctionRegistry functionRegistry = new FunctionRegistry(functions);
+            final PipelineRuleParser parser = new PipelineRuleParser(functionRegistry, new CodeGenerator());
+
+            final MetricRegistry metricRegistry = new MetricRegistry();
+            final ConfigurationStateUpdater stateUpdater = new ConfigurationStateUpdater(ruleService,
+                    pipelineService,
+                    connectionsService,
+                    parser,
+                    metricRegistry,
+                    functionRegistry,
+                    Executors.newScheduledThreadPool(1),
+                    mock(EventBus.class),
+                    (currentPipelines, streamPipelineConnections) -> new PipelineInterpreter.State(currentPipelines, streamPipelineConnections, metricRegistry, 1, true),
+                    RuleCompiler.disabled(),
+                    ReloadExecutor.sequential(),
+                    false);
+            interpreter = new PipelineInterpreter(new NoopJournal(),
+                    metricRegistry,
+                    stateUpdater,
+                    new ParallelBatchExecutor(workers, 2, metricRegistry),
+                    BlockingStageExecutor.disabled());
+
+            final Stream defaultStream = mock(Stream.class);
+            when(defaultStream.getId()).thenReturn(Stream.DEFAULT_STREAM_ID);
+            batch = Lists.newArrayListWithCapacity(batchSize);
+            for (int i = 0; i < batchSize; i++) {
+                final Message message = new Message("user=user" + i + " action=login", "HOST-" + (i % 16), Tools.nowUTC());
+                message.addStream(defaultStream);
+                batch.add(message);
+            }
+        }
+    }
+
+    @Benchmark
+    public Messages processBatch(final InterpreterState state) {
+        return state.interpreter.process(new MessageCollection(state.batch));
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        Options opt = new OptionsBuilder()
+                .include(ParallelBatchBenchmark.class.getSimpleName())
+                .warmupIterations(3)
+                .measurementIterations(5)
+                .threads(1)
+                .forks(1)
+                .build();
+
+        new Runner(opt).run();
+    }
+}
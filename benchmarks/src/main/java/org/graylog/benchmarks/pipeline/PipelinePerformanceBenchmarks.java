@@ -177,6 +177,9 @@ public class PipelinePerformanceBenchmarks {
                             bind(MetricRegistry.class).toProvider(MetricRegistryProvider.class);
                             bindConstant().annotatedWith(Names.named("processbuffer_processors")).to(1);
                             bindConstant().annotatedWith(Names.named("cached_stageiterators")).to(Boolean.valueOf(cachedStageIterators));
+                            bindConstant().annotatedWith(Names.named("pipeline_batch_parallelism")).to(1);
+                            bindConstant().annotatedWith(Names.named("pipeline_batch_parallelism_threshold")).to(64);
+                            bindConstant().annotatedWith(Names.named("pipeline_blocking_execution_threads")).to(0);
                             install(new FactoryModuleBuilder().build(PipelineInterpreter.State.Factory.class));
                         }
                     });
@@ -17,8 +17,12 @@
 package org.graylog.plugins.pipelineprocessor;
 
 import com.google.common.collect.Lists;
-import com.google.common.collect.Maps;
+import org.graylog.plugins.pipelineprocessor.ast.expressions.Expression;
+import org.graylog.plugins.pipelineprocessor.ast.functions.FunctionArgs;
 import org.graylog.plugins.pipelineprocessor.ast.functions.FunctionDescriptor;
+import org.graylog.plugins.pipelineprocessor.functions.lookup.BatchLookupCache;
+import org.graylog.plugins.pipelineprocessor.processors.CommonSubexpressions;
+import org.graylog.plugins.pipelineprocessor.processors.FunctionMemo;
 import org.graylog2.plugin.EmptyMessages;
 import org.graylog2.plugin.Message;
 import org.graylog2.plugin.MessageCollection;
@@ -27,9 +31,9 @@ import org.joda.time.DateTime;
 
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
-import java.util.Map;
 
 public class EvaluationContext {
 
@@ -43,16 +47,75 @@ public class EvaluationContext {
         public void define(String identifier, Class type, Object value) {
             // cannot define any variables in empty context
         }
+
+        @Override
+        public void setSlot(int slot, Object value) {
+            // cannot define any variables in empty context
+        }
+
+        @Override
+        public void setBlockingCallObserver(@Nullable BlockingCallObserver observer) {
+            // the empty context is shared, it never observes anything
+        }
+
+        @Override
+        public void setBatchLookupCache(@Nullable BatchLookupCache batchLookupCache) {
+            // the empty context is shared, it never caches lookups
+        }
+
+        @Override
+        public void setCommonSubexpressions(@Nullable CommonSubexpressions commonSubexpressions) {
+            // the empty context is shared, it never caches subexpression values
+        }
+
+        @Override
+        public void setFunctionMemo(@Nullable FunctionMemo functionMemo) {
+            // the empty context is shared, it never remembers function results
+        }
+
+        @Override
+        public void setArgumentValues(@Nullable FunctionArgs args, @Nullable Object[] values) {
+            // the empty context is shared, functions always evaluate their arguments themselves
+        }
     };
 
+    private static final Object[] EMPTY_FRAME = new Object[0];
+
+    // marks subexpression slots which haven't been evaluated yet, null is a legitimate value
+    private static final Object UNEVALUATED = new Object();
+
+    private static final int INITIAL_VARIABLE_CAPACITY = 8;
+
     @Nonnull
-    private final Message message;
+    private Message message;
+    // rule variables are kept in parallel arrays, rules only ever define a handful of them so a linear scan beats hashing
+    @Nullable
+    private String[] varNames;
     @Nullable
-    private Map<String, TypedValue> ruleVars;
+    private TypedValue[] varValues;
+    private int varCount = 0;
+    // values of the variables which the parser has assigned slots to, indexed by slot
+    private Object[] frame = EMPTY_FRAME;
+    // the number of frame slots which might hold a value
+    private int frameSize = 0;
     @Nullable
     private List<Message> createdMessages;
     @Nullable
     private List<EvalError> evalErrors;
+    @Nullable
+    private BlockingCallObserver blockingCallObserver;
+    @Nullable
+    private BatchLookupCache batchLookupCache;
+    @Nullable
+    private CommonSubexpressions commonSubexpressions;
+    private Object[] subexpressionValues = EMPTY_FRAME;
+    @Nullable
+    private FunctionMemo functionMemo;
+    // the already evaluated arguments of the function call being evaluated, in parameter order
+    @Nullable
+    private FunctionArgs argumentValuesOf;
+    @Nullable
+    private Object[] argumentValues;
 
     private EvaluationContext() {
         this(new Message("__dummy", "__dummy", DateTime.parse("2010-07-30T16:03:25Z"))); // first Graylog release
@@ -62,26 +125,112 @@ public class EvaluationContext {
         this.message = message;
     }
 
+    /**
+     * Prepares this context to be reused for evaluating another stage.
+     *
+     * This drops all variables, created messages and evaluation errors, but keeps the allocated storage around.
+     *
+     * @param message the message the context is being used for from now on
+     */
+    public void reset(@Nonnull Message message) {
+        this.message = message;
+        if (varValues != null) {
+            // don't hold on to the values of the previous evaluation
+            Arrays.fill(varValues, 0, varCount, null);
+        }
+        varCount = 0;
+        Arrays.fill(frame, 0, frameSize, null);
+        frameSize = 0;
+        if (createdMessages != null) {
+            createdMessages.clear();
+        }
+        if (evalErrors != null) {
+            evalErrors.clear();
+        }
+        batchLookupCache = null;
+        setCommonSubexpressions(null);
+        functionMemo = null;
+        argumentValuesOf = null;
+        argumentValues = null;
+    }
+
+    /**
+     * Drops the references to the current message and everything computed for it, so that a context which is kept
+     * around for reuse doesn't keep the last processed message alive.
+     */
+    public void release() {
+        reset(EMPTY_CONTEXT.message);
+    }
+
     public void define(String identifier, Class type, Object value) {
-        if (ruleVars == null) {
-            ruleVars = Maps.newHashMap();
+        int index = indexOf(identifier);
+        if (index < 0) {
+            if (varNames == null || varValues == null) {
+                varNames = new String[INITIAL_VARIABLE_CAPACITY];
+                varValues = new TypedValue[INITIAL_VARIABLE_CAPACITY];
+            } else if (varCount == varNames.length) {
+                varNames = Arrays.copyOf(varNames, varCount * 2);
+                varValues = Arrays.copyOf(varValues, varCount * 2);
+            }
+            index = varCount++;
+            varNames[index] = identifier;
+        }
+        varValues[index] = new TypedValue(type, value);
+    }
+
+    /**
+     * Stores the value of a variable in its frame slot, as assigned by the parser.
+     *
+     * @param slot  the variable's slot index
+     * @param value the new value of the variable
+     */
+    public void setSlot(int slot, Object value) {
+        if (slot >= frame.length) {
+            frame = Arrays.copyOf(frame, Math.max(slot + 1, frame.length * 2));
+        }
+        frame[slot] = value;
+        if (slot >= frameSize) {
+            frameSize = slot + 1;
+        }
+    }
+
+    /**
+     * @param slot the variable's slot index
+     * @return the value of the variable in the slot, or null if it hasn't been assigned
+     */
+    @Nullable
+    public Object getSlot(int slot) {
+        return slot < frameSize ? frame[slot] : null;
+    }
+
+    private int indexOf(String identifier) {
+        for (int i = 0; i < varCount; i++) {
+            if (varNames[i].equals(identifier)) {
+                return i;
+            }
         }
-        ruleVars.put(identifier, new TypedValue(type, value));
+        return -1;
     }
 
     public Message currentMessage() {
         return message;
     }
 
+    @Nullable
     public TypedValue get(String identifier) {
-        if (ruleVars == null) {
+        if (varCount == 0) {
             throw new IllegalStateException("Use of undeclared variable " + identifier);
         }
-        return ruleVars.get(identifier);
+        final int index = indexOf(identifier);
+        return index < 0 ? null : varValues[index];
+    }
+
+    public boolean hasCreatedMessages() {
+        return createdMessages != null && !createdMessages.isEmpty();
     }
 
     public Messages createdMessages() {
-        if (createdMessages == null) {
+        if (!hasCreatedMessages()) {
             return new EmptyMessages();
         }
         return new MessageCollection(createdMessages);
@@ -100,6 +249,126 @@ public class EvaluationContext {
         }
     }
 
+    /**
+     * Sets the observer which gets notified about the time spent in functions declared as blocking.
+     *
+     * The observer is kept when the context is reset.
+     *
+     * @param observer the observer to notify, or null to stop observing blocking calls
+     */
+    public void setBlockingCallObserver(@Nullable BlockingCallObserver observer) {
+        this.blockingCallObserver = observer;
+    }
+
+    public boolean isObservingBlockingCalls() {
+        return blockingCallObserver != null;
+    }
+
+    public void observeBlockingCall(FunctionDescriptor descriptor, long durationNanos) {
+        if (blockingCallObserver != null) {
+            blockingCallObserver.blockingCallFinished(descriptor, durationNanos);
+        }
+    }
+
+    /**
+     * @return the lookup results shared by the messages of the batch being processed, null if lookups are not cached
+     */
+    @Nullable
+    public BatchLookupCache batchLookupCache() {
+        return batchLookupCache;
+    }
+
+    public void setBatchLookupCache(@Nullable BatchLookupCache batchLookupCache) {
+        this.batchLookupCache = batchLookupCache;
+    }
+
+    /**
+     * Sets the subexpressions whose values are shared between the conditions about to be evaluated.
+     *
+     * This forgets all previously cached subexpression values.
+     *
+     * @param commonSubexpressions the shared subexpressions of the stage, or null to stop caching their values
+     */
+    public void setCommonSubexpressions(@Nullable CommonSubexpressions commonSubexpressions) {
+        if (this.commonSubexpressions != null) {
+            Arrays.fill(subexpressionValues, 0, this.commonSubexpressions.size(), null);
+        }
+        this.commonSubexpressions = commonSubexpressions;
+        if (commonSubexpressions != null) {
+            if (subexpressionValues.length < commonSubexpressions.size()) {
+                subexpressionValues = new Object[commonSubexpressions.size()];
+            }
+            Arrays.fill(subexpressionValues, 0, commonSubexpressions.size(), UNEVALUATED);
+        }
+    }
+
+    /**
+     * @param expr the expression being evaluated
+     * @return the slot caching the expression's value, or -1 if its value isn't shared
+     */
+    public int subexpressionSlot(Expression expr) {
+        return commonSubexpressions == null ? -1 : commonSubexpressions.slotOf(expr);
+    }
+
+    public boolean hasSubexpressionValue(int slot) {
+        return subexpressionValues[slot] != UNEVALUATED;
+    }
+
+    @Nullable
+    public Object subexpressionValue(int slot) {
+        return subexpressionValues[slot];
+    }
+
+    public void setSubexpressionValue(int slot, @Nullable Object value) {
+        subexpressionValues[slot] = value;
+    }
+
+    /**
+     * @return the results of pure function calls remembered for the current message, null if they aren't remembered
+     */
+    @Nullable
+    public FunctionMemo functionMemo() {
+        return functionMemo;
+    }
+
+    public void setFunctionMemo(@Nullable FunctionMemo functionMemo) {
+        this.functionMemo = functionMemo;
+    }
+
+    /**
+     * @param args the arguments of a function call
+     * @return the values of the arguments in parameter order if the caller has already evaluated them, otherwise null.
+     * Parameters without an argument have the value {@link FunctionMemo#absentArgument()}.
+     */
+    @Nullable
+    public Object[] argumentValues(FunctionArgs args) {
+        return argumentValuesOf == args ? argumentValues : null;
+    }
+
+    /**
+     * @return the arguments whose values are currently available, to restore them once a nested call has been evaluated
+     */
+    @Nullable
+    public FunctionArgs argumentValuesOf() {
+        return argumentValuesOf;
+    }
+
+    @Nullable
+    public Object[] argumentValues() {
+        return argumentValues;
+    }
+
+    /**
+     * Makes the evaluated arguments of a function call available to the function, so that it doesn't evaluate them again.
+     *
+     * @param args   the arguments of the call
+     * @param values the values of the arguments in parameter order, they must not be modified until the call is done
+     */
+    public void setArgumentValues(@Nullable FunctionArgs args, @Nullable Object[] values) {
+        this.argumentValuesOf = args;
+        this.argumentValues = values;
+    }
+
     public static EvaluationContext emptyContext() {
         return EMPTY_CONTEXT;
     }
@@ -112,13 +381,30 @@ public class EvaluationContext {
     }
 
     public boolean hasEvaluationErrors() {
-        return evalErrors != null;
+        return evalErrors != null && !evalErrors.isEmpty();
     }
 
     public List<EvalError> evaluationErrors() {
         return evalErrors == null ? Collections.emptyList() : Collections.unmodifiableList(evalErrors);
     }
 
+    /**
+     * Drops the evaluation errors added after the first {@code keep} ones.
+     *
+     * This is used to hide the errors of expressions which were only evaluated speculatively.
+     *
+     * @param keep the number of errors to keep
+     */
+    public void discardEvaluationErrors(int keep) {
+        if (evalErrors != null && evalErrors.size() > keep) {
+            evalErrors.subList(keep, evalErrors.size()).clear();
+        }
+    }
+
+    public interface BlockingCallObserver {
+        void blockingCallFinished(FunctionDescriptor descriptor, long durationNanos);
+    }
+
     public class TypedValue {
         private final Class type;
         private final Object value;
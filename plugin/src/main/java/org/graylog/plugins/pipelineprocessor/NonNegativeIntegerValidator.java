@@ -1,4 +1,4 @@
-/*
+/**
  * This file is part of Graylog Pipeline Processor.
  *
  * Graylog Pipeline Processor is free software: you can redistribute it and/or modify
@@ -14,25 +14,19 @@
  * You should have received a copy of the GNU General Public License
  * along with Graylog Pipeline Processor.  If not, see <http://www.gnu.org/licenses/>.
  */
-package org.graylog.plugins.pipelineprocessor.codegen.compiler;
+package org.graylog.plugins.pipelineprocessor;
 
-import java.util.List;
-import java.util.Locale;
-import java.util.stream.Collectors;
-
-import javax.tools.Diagnostic;
-
-public class PipelineCompilationException extends RuntimeException {
-    private final List<Diagnostic> errors;
-
-    public PipelineCompilationException(List<Diagnostic> errors) {
-        this.errors = errors;
-    }
+import com.github.joschi.jadconfig.ValidationException;
+import com.github.joschi.jadconfig.Validator;
 
+/**
+ * Accepts zero, for settings where it turns a feature off, and positive values.
+ */
+public class NonNegativeIntegerValidator implements Validator<Integer> {
     @Override
-    public String getMessage() {
-        return errors.stream()
-                .map(diagnostic -> diagnostic.getMessage(Locale.ENGLISH))
-                .collect(Collectors.joining("\n"));
+    public void validate(String name, Integer value) throws ValidationException {
+        if (value != null && value < 0) {
+            throw new ValidationException("Parameter " + name + " should not be negative (found " + value + ")");
+        }
     }
 }
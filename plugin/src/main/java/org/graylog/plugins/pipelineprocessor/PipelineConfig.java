@@ -1,6 +1,7 @@
 package org.graylog.plugins.pipelineprocessor;
 
 import com.github.joschi.jadconfig.Parameter;
+import com.github.joschi.jadconfig.validators.PositiveIntegerValidator;
 
 import org.graylog2.plugin.PluginConfigBean;
 
@@ -10,5 +11,26 @@ public class PipelineConfig implements PluginConfigBean {
     private boolean cachedStageIterators = true;
 
     @Parameter("generate_native_code")
-    private boolean generateNativeCode = false;
+    private boolean generateNativeCode = true;
+
+    // number of condition evaluations after which a rule is compiled to bytecode in the background
+    @Parameter(value = "pipeline_rule_compilation_threshold", validator = PositiveIntegerValidator.class)
+    private int ruleCompilationThreshold = 10000;
+
+    // number of threads parsing rules and pipelines when the configuration is reloaded, 1 parses them in turn
+    @Parameter(value = "pipeline_reload_parallelism", validator = PositiveIntegerValidator.class)
+    private int reloadParallelism = Runtime.getRuntime().availableProcessors();
+
+    // number of worker threads a single message batch may be split across, 1 disables parallel processing
+    @Parameter(value = "pipeline_batch_parallelism", validator = PositiveIntegerValidator.class)
+    private int batchParallelism = 1;
+
+    // batches smaller than this are always processed on the calling thread
+    @Parameter(value = "pipeline_batch_parallelism_threshold", validator = PositiveIntegerValidator.class)
+    private int batchParallelismThreshold = 64;
+
+    // size of the thread pool which evaluates stages calling blocking functions (e.g. lookups) for all messages of a
+    // batch concurrently, 0 evaluates them on the processing thread
+    @Parameter(value = "pipeline_blocking_execution_threads", validator = NonNegativeIntegerValidator.class)
+    private int blockingExecutionThreads = 0;
 }
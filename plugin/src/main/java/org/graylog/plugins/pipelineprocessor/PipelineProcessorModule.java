@@ -16,12 +16,15 @@
  */
 package org.graylog.plugins.pipelineprocessor;
 
+import com.google.inject.Scopes;
 import com.google.inject.assistedinject.FactoryModuleBuilder;
 
 import org.graylog.plugins.pipelineprocessor.audit.PipelineProcessorAuditEventTypes;
 import org.graylog.plugins.pipelineprocessor.functions.ProcessorFunctionsModule;
 import org.graylog.plugins.pipelineprocessor.periodical.LegacyDefaultStreamMigration;
 import org.graylog.plugins.pipelineprocessor.processors.PipelineInterpreter;
+import org.graylog.plugins.pipelineprocessor.processors.RuleCompiler;
+import org.graylog.plugins.pipelineprocessor.rest.OperandOrderResource;
 import org.graylog.plugins.pipelineprocessor.rest.PipelineConnectionsResource;
 import org.graylog.plugins.pipelineprocessor.rest.PipelineResource;
 import org.graylog.plugins.pipelineprocessor.rest.PipelineRestPermissions;
@@ -49,6 +52,7 @@ public class PipelineProcessorModule extends PluginModule {
         addRestResource(PipelineResource.class);
         addRestResource(PipelineConnectionsResource.class);
         addRestResource(SimulatorResource.class);
+        addRestResource(OperandOrderResource.class);
         addPermissions(PipelineRestPermissions.class);
 
         install(new ProcessorFunctionsModule());
@@ -58,6 +62,8 @@ public class PipelineProcessorModule extends PluginModule {
                 PipelineProcessorMessageDecorator.Factory.class);
 
         install(new FactoryModuleBuilder().build(PipelineInterpreter.State.Factory.class));
+        // stops the rule compiler thread on shutdown
+        serviceBinder().addBinding().to(RuleCompiler.class).in(Scopes.SINGLETON);
 
         addAuditEventTypes(PipelineProcessorAuditEventTypes.class);
 
@@ -22,7 +22,6 @@ import com.codahale.metrics.MetricRegistry;
 import com.google.auto.value.AutoValue;
 import com.google.auto.value.extension.memoized.Memoized;
 import com.google.common.collect.Sets;
-import org.graylog2.shared.metrics.MetricUtils;
 
 import javax.annotation.Nullable;
 import java.util.SortedSet;
@@ -31,7 +30,9 @@ import java.util.SortedSet;
 public abstract class Pipeline {
 
     private String metricName;
+    private String skippedDueToDropMetricName;
     private transient Meter executed;
+    private transient Meter stagesSkippedDueToDrop;
 
     @Nullable
     public abstract String id();
@@ -64,6 +65,8 @@ public abstract class Pipeline {
         if (id() != null) {
             metricName = MetricRegistry.name(Pipeline.class, id(), "executed");
             executed = metricRegistry.meter(metricName);
+            skippedDueToDropMetricName = MetricRegistry.name(Pipeline.class, id(), "stages-skipped-due-to-drop");
+            stagesSkippedDueToDrop = metricRegistry.meter(skippedDueToDropMetricName);
         }
     }
 
@@ -77,7 +80,7 @@ public abstract class Pipeline {
         if (id() == null) {
             return (name, metric) -> false;
         }
-        return new MetricUtils.SingleMetricFilter(metricName);
+        return (name, metric) -> name.equals(metricName) || name.equals(skippedDueToDropMetricName);
 
     }
     public void markExecution() {
@@ -86,6 +89,15 @@ public abstract class Pipeline {
         }
     }
 
+    /**
+     * Records that a stage of this pipeline was not evaluated, because the message had already been marked to be dropped.
+     */
+    public void markStageSkippedDueToDrop() {
+        if (stagesSkippedDueToDrop != null) {
+            stagesSkippedDueToDrop.mark();
+        }
+    }
+
     @AutoValue.Builder
     public abstract static class Builder {
         public abstract Pipeline build();
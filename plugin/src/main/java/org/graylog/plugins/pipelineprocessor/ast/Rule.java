@@ -28,6 +28,7 @@ import org.antlr.v4.runtime.CommonToken;
 import org.graylog.plugins.pipelineprocessor.ast.expressions.BooleanExpression;
 import org.graylog.plugins.pipelineprocessor.ast.expressions.LogicalExpression;
 import org.graylog.plugins.pipelineprocessor.ast.statements.Statement;
+import org.graylog.plugins.pipelineprocessor.codegen.ClosureCompiler;
 import org.graylog.plugins.pipelineprocessor.codegen.GeneratedRule;
 import org.graylog.plugins.pipelineprocessor.parser.FunctionRegistry;
 import org.reflections.ReflectionUtils;
@@ -39,6 +40,9 @@ import java.lang.reflect.InvocationTargetException;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
 
 import javax.annotation.Nullable;
 
@@ -57,6 +61,14 @@ public abstract class Rule {
     private transient Meter globalNotMatched;
     private transient Meter localNotMatched;
 
+    // tiered execution: after enough evaluations the rule's code is compiled and replaces its initial generated rule
+    private transient volatile GeneratedRule promotedRule;
+    private final transient AtomicReference<Consumer<Rule>> promotion = new AtomicReference<>();
+    private transient int promotionThreshold;
+    private final transient AtomicInteger evaluations = new AtomicInteger();
+    // the closure compiled form of the rule, it is stateless and shared by all copies of the rule
+    private transient volatile GeneratedRule closure;
+
     @Nullable
     public abstract String id();
 
@@ -66,6 +78,11 @@ public abstract class Rule {
 
     public abstract Collection<Statement> then();
 
+    /**
+     * @return the fields a message must have for the condition to be true, possibly empty
+     */
+    public abstract Set<String> requiredFields();
+
     @Nullable
     public abstract Class<? extends GeneratedRule> generatedRuleClass();
 
@@ -73,7 +90,7 @@ public abstract class Rule {
     public abstract GeneratedRule generatedRule();
 
     public static Builder builder() {
-        return new AutoValue_Rule.Builder();
+        return new AutoValue_Rule.Builder().requiredFields(Collections.emptySet());
     }
 
     public abstract Builder toBuilder();
@@ -147,6 +164,60 @@ public abstract class Rule {
         }
     }
 
+    /**
+     * Counts an evaluation of the rule's condition, requesting its promotion once the rule has become hot.
+     */
+    public void markEvaluation() {
+        final Consumer<Rule> promotion = this.promotion.get();
+        // only the thread clearing the consumer requests the promotion, so it is requested once per enablePromotion
+        if (promotion != null
+                && evaluations.incrementAndGet() >= promotionThreshold
+                && this.promotion.compareAndSet(promotion, null)) {
+            promotion.accept(this);
+        }
+    }
+
+    /**
+     * Requests the rule to be promoted after it has been evaluated the given number of times.
+     *
+     * @param threshold the number of evaluations after which the rule is considered hot
+     * @param promotion called once the rule is hot, usually compiles the rule and {@link #promote(Class, FunctionRegistry) promotes} it
+     */
+    public void enablePromotion(int threshold, Consumer<Rule> promotion) {
+        this.promotionThreshold = threshold;
+        this.evaluations.set(0);
+        // published last, evaluating threads which see the consumer also see the threshold
+        this.promotion.set(promotion);
+    }
+
+    /**
+     * Replaces the code this rule runs with a new instance of the given generated class, without interrupting
+     * evaluations which are in progress.
+     *
+     * @return true if the rule has been promoted
+     */
+    public boolean promote(Class<? extends GeneratedRule> ruleClass, FunctionRegistry functionRegistry) {
+        final GeneratedRule instance = newGeneratedRule(ruleClass, functionRegistry);
+        if (instance == null) {
+            return false;
+        }
+        promotedRule = instance;
+        return true;
+    }
+
+    public boolean isPromoted() {
+        return promotedRule != null;
+    }
+
+    /**
+     * @return the code to run for this rule, the promoted one if present, or null to interpret the syntax tree
+     */
+    @Nullable
+    public GeneratedRule invokable() {
+        final GeneratedRule promoted = promotedRule;
+        return promoted != null ? promoted : generatedRule();
+    }
+
     public void markMatch() {
         if (id() != null) {
             globalMatched.mark();
@@ -175,26 +246,45 @@ public abstract class Rule {
      * Otherwise the generated code would need to be thread safe, adding to the runtime overhead.
      * Instead we buy speed by spending more memory.
      *
+     * Rules without a generated class run their closure compiled form, which is compiled once and shared by all
+     * copies, see {@link ClosureCompiler}.
+     *
      * @param functionRegistry the registered functions of the system
      * @return a copy of this rule with a new instance of its generated code
      */
     public Rule invokableCopy(FunctionRegistry functionRegistry) {
         final Builder builder = toBuilder();
         final Class<? extends GeneratedRule> ruleClass = generatedRuleClass();
-        if (ruleClass != null) {
-            try {
-                //noinspection unchecked
-                final Set<Constructor> constructors = ReflectionUtils.getConstructors(ruleClass);
-                final Constructor onlyElement = Iterables.getOnlyElement(constructors);
-                final GeneratedRule instance = (GeneratedRule) onlyElement.newInstance(functionRegistry);
-                builder.generatedRule(instance);
-            } catch (IllegalAccessException | InstantiationException | InvocationTargetException e) {
-                LOG.warn("Unable to generate code for rule {}: {}", id(), e);
-            }
+        GeneratedRule instance = ruleClass == null ? null : newGeneratedRule(ruleClass, functionRegistry);
+        if (instance == null) {
+            instance = closure();
         }
+        builder.generatedRule(instance);
         return builder.build();
     }
 
+    private GeneratedRule closure() {
+        GeneratedRule compiled = closure;
+        if (compiled == null) {
+            compiled = ClosureCompiler.compile(this);
+            closure = compiled;
+        }
+        return compiled;
+    }
+
+    @Nullable
+    private GeneratedRule newGeneratedRule(Class<? extends GeneratedRule> ruleClass, FunctionRegistry functionRegistry) {
+        try {
+            //noinspection unchecked
+            final Set<Constructor> constructors = ReflectionUtils.getConstructors(ruleClass);
+            final Constructor onlyElement = Iterables.getOnlyElement(constructors);
+            return (GeneratedRule) onlyElement.newInstance(functionRegistry);
+        } catch (IllegalAccessException | InstantiationException | InvocationTargetException e) {
+            LOG.warn("Unable to generate code for rule {}: {}", id(), e);
+            return null;
+        }
+    }
+
     @AutoValue.Builder
     public abstract static class Builder {
 
@@ -202,6 +292,7 @@ public abstract class Rule {
         public abstract Builder name(String name);
         public abstract Builder when(LogicalExpression condition);
         public abstract Builder then(Collection<Statement> actions);
+        public abstract Builder requiredFields(Set<String> fields);
         public abstract Builder generatedRuleClass(@Nullable Class<? extends GeneratedRule> klass);
         public abstract Builder generatedRule(GeneratedRule instance);
 
@@ -15,6 +15,7 @@ import org.graylog.plugins.pipelineprocessor.ast.expressions.FieldAccessExpressi
 import org.graylog.plugins.pipelineprocessor.ast.expressions.FieldRefExpression;
 import org.graylog.plugins.pipelineprocessor.ast.expressions.FunctionExpression;
 import org.graylog.plugins.pipelineprocessor.ast.expressions.IndexedAccessExpression;
+import org.graylog.plugins.pipelineprocessor.ast.expressions.LogicalChainExpression;
 import org.graylog.plugins.pipelineprocessor.ast.expressions.LogicalExpression;
 import org.graylog.plugins.pipelineprocessor.ast.expressions.LongExpression;
 import org.graylog.plugins.pipelineprocessor.ast.expressions.MapLiteralExpression;
@@ -242,6 +243,16 @@ public class RuleAstBaseListener implements RuleAstListener {
 
     }
 
+    @Override
+    public void enterLogicalChain(LogicalChainExpression expr) {
+
+    }
+
+    @Override
+    public void exitLogicalChain(LogicalChainExpression expr) {
+
+    }
+
     @Override
     public void enterLong(LongExpression expr) {
 
@@ -15,6 +15,7 @@ import org.graylog.plugins.pipelineprocessor.ast.expressions.FieldAccessExpressi
 import org.graylog.plugins.pipelineprocessor.ast.expressions.FieldRefExpression;
 import org.graylog.plugins.pipelineprocessor.ast.expressions.FunctionExpression;
 import org.graylog.plugins.pipelineprocessor.ast.expressions.IndexedAccessExpression;
+import org.graylog.plugins.pipelineprocessor.ast.expressions.LogicalChainExpression;
 import org.graylog.plugins.pipelineprocessor.ast.expressions.LogicalExpression;
 import org.graylog.plugins.pipelineprocessor.ast.expressions.LongExpression;
 import org.graylog.plugins.pipelineprocessor.ast.expressions.MapLiteralExpression;
@@ -119,6 +120,10 @@ public interface RuleAstListener {
 
     void exitLogical(LogicalExpression expr);
 
+    void enterLogicalChain(LogicalChainExpression expr);
+
+    void exitLogicalChain(LogicalChainExpression expr);
+
     void enterLong(LongExpression expr);
 
     void exitLong(LongExpression expr);
@@ -15,6 +15,7 @@ import org.graylog.plugins.pipelineprocessor.ast.expressions.FieldAccessExpressi
 import org.graylog.plugins.pipelineprocessor.ast.expressions.FieldRefExpression;
 import org.graylog.plugins.pipelineprocessor.ast.expressions.FunctionExpression;
 import org.graylog.plugins.pipelineprocessor.ast.expressions.IndexedAccessExpression;
+import org.graylog.plugins.pipelineprocessor.ast.expressions.LogicalChainExpression;
 import org.graylog.plugins.pipelineprocessor.ast.expressions.LogicalExpression;
 import org.graylog.plugins.pipelineprocessor.ast.expressions.LongExpression;
 import org.graylog.plugins.pipelineprocessor.ast.expressions.MapLiteralExpression;
@@ -133,6 +134,11 @@ public class RuleAstWalker {
             case LOGICAL:
                 // special, handled as wrapper type in triggerAbstractEnter/Exit
                 break;
+            case LOGICAL_CHAIN:
+                listener.enterLogicalChain((LogicalChainExpression) expr);
+                visitChildren(listener, expr);
+                listener.exitLogicalChain((LogicalChainExpression) expr);
+                break;
             case LONG:
                 listener.enterLong((LongExpression) expr);
                 visitChildren(listener, expr);
@@ -0,0 +1,292 @@
+/**
+ * This file is part of Graylog Pipeline Processor.
+ *
+ * Graylog Pipeline Processor is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Graylog Pipeline Processor is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Graylog Pipeline Processor.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.graylog.plugins.pipelineprocessor.ast.expressions;
+
+import org.graylog.plugins.pipelineprocessor.EvaluationContext;
+
+import javax.annotation.Nullable;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.IntStream;
+
+/**
+ * Chooses the order to evaluate the operands of {@code &&} or {@code ||} in, based on measured cost and outcome.
+ *
+ * Rule authors frequently put an expensive test, like a regular expression or a lookup, before a cheap one which
+ * decides the result much more often. Every {@value #SAMPLE_INTERVAL}th evaluation measures the time and result of
+ * all operands, and after {@value #SAMPLES_PER_DECISION} samples the order with the lowest expected cost is chosen.
+ * Evaluations which aren't sampled neither read the clock nor update the statistics.
+ *
+ * Only operands which merely read the message are reordered: all their function calls must be pure and mustn't block,
+ * so that evaluating them in a different order or speculatively can't be observed, see
+ * {@link Expression#isSideEffectFree(Expression)}. Lookups aren't pure, their results may change between evaluations.
+ * When an operand fails while evaluating in a different order, the evaluation falls back to the written order, so
+ * errors are reported just like they would without reordering.
+ *
+ * Compiled rules evaluate the operands with their own code, but share the order and its statistics with the syntax
+ * tree, see {@link #evaluate(Operands, EvaluationContext)}.
+ */
+public class AdaptiveOperandOrder {
+    static final int SAMPLE_INTERVAL = 64;
+    static final int SAMPLES_PER_DECISION = 32;
+    // the other order needs to be clearly cheaper, to avoid flipping back and forth on noise
+    private static final double SWITCH_THRESHOLD = 0.8;
+
+    private final LogicalExpression[] operands;
+    // evaluates the operands by their syntax tree nodes
+    private final Operands interpreted;
+    private final boolean isAnd;
+    private final OperandStatistics[] statistics;
+    private final int[] writtenOrder;
+    // the operand indexes in evaluation order, only ever replaced as a whole
+    private volatile int[] order;
+    // only used to pick samples, lost updates don't matter
+    private int evaluations = 0;
+
+    private AdaptiveOperandOrder(List<? extends Expression> operands, boolean isAnd) {
+        this.operands = operands.stream().map(LogicalExpression.class::cast).toArray(LogicalExpression[]::new);
+        this.interpreted = (operand, context) -> this.operands[operand].evaluateBool(context);
+        this.isAnd = isAnd;
+        final int operandCount = operands.size();
+        this.statistics = new OperandStatistics[operandCount];
+        for (int i = 0; i < operandCount; i++) {
+            statistics[i] = new OperandStatistics();
+        }
+        this.writtenOrder = IntStream.range(0, operandCount).toArray();
+        this.order = writtenOrder;
+    }
+
+    /**
+     * @return the adaptive order for the operands, or null if they might not be reordered
+     */
+    @Nullable
+    static AdaptiveOperandOrder forOperands(List<? extends Expression> operands, boolean isAnd) {
+        for (Expression operand : operands) {
+            // the type checker reports operands which aren't boolean, the order is resolved before it runs
+            if (!(operand instanceof LogicalExpression) || !Expression.isSideEffectFree(operand)) {
+                return null;
+            }
+        }
+        return new AdaptiveOperandOrder(operands, isAnd);
+    }
+
+    boolean evaluate(EvaluationContext context) {
+        return evaluate(interpreted, context);
+    }
+
+    /**
+     * Evaluates the operands in the current order, with the given code for each operand.
+     *
+     * @param code    evaluates the operands, by their index in the written order
+     * @param context the context of the evaluation in progress
+     * @return the value of the whole {@code &&} or {@code ||}
+     */
+    public boolean evaluate(Operands code, EvaluationContext context) {
+        if (++evaluations % SAMPLE_INTERVAL == 0) {
+            return evaluateSampled(code, context);
+        }
+        final int[] currentOrder = order;
+        return currentOrder == writtenOrder ? evaluateInOrder(code, context) : evaluateReordered(code, currentOrder, context);
+    }
+
+    private boolean evaluateInOrder(Operands code, EvaluationContext context) {
+        // the first false operand decides an AND, the first true one decides an OR
+        for (int i = 0; i < operands.length; i++) {
+            if (code.evaluate(i, context) != isAnd) {
+                return !isAnd;
+            }
+        }
+        return isAnd;
+    }
+
+    private boolean evaluateReordered(Operands code, int[] currentOrder, EvaluationContext context) {
+        final int errors = context.evaluationErrors().size();
+        try {
+            for (int index : currentOrder) {
+                final boolean value = code.evaluate(index, context);
+                if (context.evaluationErrors().size() != errors) {
+                    break;
+                }
+                if (value != isAnd) {
+                    return !isAnd;
+                }
+            }
+            if (context.evaluationErrors().size() == errors) {
+                return isAnd;
+            }
+        } catch (RuntimeException ignored) {
+            // the written order reports the error, if it gets to evaluate the failing operand at all
+        }
+        context.discardEvaluationErrors(errors);
+        return evaluateInOrder(code, context);
+    }
+
+    // evaluates in the written order, but measures all operands even if an earlier one decides the result
+    private boolean evaluateSampled(Operands code, EvaluationContext context) {
+        boolean result = isAnd;
+        boolean decided = false;
+        for (int i = 0; i < operands.length; i++) {
+            if (decided) {
+                sampleSpeculatively(code, i, context);
+                continue;
+            }
+            final long start = System.nanoTime();
+            final boolean value = code.evaluate(i, context);
+            statistics[i].record(value, System.nanoTime() - start);
+            if (value != isAnd) {
+                result = !isAnd;
+                decided = true;
+            }
+        }
+        if (statistics[0].samples() >= SAMPLES_PER_DECISION) {
+            reconsider();
+        }
+        return result;
+    }
+
+    // the operand isn't needed for the result, any errors it raises must not be visible
+    private void sampleSpeculatively(Operands code, int operand, EvaluationContext context) {
+        final int errors = context.evaluationErrors().size();
+        try {
+            final long start = System.nanoTime();
+            final boolean value = code.evaluate(operand, context);
+            if (context.evaluationErrors().size() == errors) {
+                statistics[operand].record(value, System.nanoTime() - start);
+            }
+        } catch (RuntimeException ignored) {
+            // failing operands aren't sampled
+        } finally {
+            context.discardEvaluationErrors(errors);
+        }
+    }
+
+    private synchronized void reconsider() {
+        if (statistics[0].samples() < SAMPLES_PER_DECISION) {
+            // another thread has just decided
+            return;
+        }
+        // operands which always failed when evaluated speculatively keep the current order
+        if (Arrays.stream(statistics).allMatch(s -> s.samples() > 0)) {
+            final int[] cheapest = cheapestOrder();
+            if (expectedCost(cheapest) < expectedCost(order) * SWITCH_THRESHOLD) {
+                order = Arrays.equals(cheapest, writtenOrder) ? writtenOrder : cheapest;
+            }
+        }
+        for (OperandStatistics operandStatistics : statistics) {
+            operandStatistics.reset();
+        }
+    }
+
+    // for independent operands, ordering by cost per chance of deciding the result minimizes the expected cost
+    private int[] cheapestOrder() {
+        return IntStream.range(0, statistics.length)
+                .boxed()
+                .sorted(Comparator.comparingDouble(this::costPerDecision))
+                .mapToInt(Integer::intValue)
+                .toArray();
+    }
+
+    private double costPerDecision(int index) {
+        final double decides = decidingRatio(statistics[index]);
+        return decides == 0.0 ? Double.POSITIVE_INFINITY : statistics[index].averageNanos() / decides;
+    }
+
+    // every operand is evaluated as long as none of the previous ones has decided the result
+    private double expectedCost(int[] evaluationOrder) {
+        double cost = 0.0;
+        double undecided = 1.0;
+        for (int index : evaluationOrder) {
+            cost += undecided * statistics[index].averageNanos();
+            undecided *= 1.0 - decidingRatio(statistics[index]);
+        }
+        return cost;
+    }
+
+    private double decidingRatio(OperandStatistics operandStatistics) {
+        return isAnd ? 1.0 - operandStatistics.trueRatio() : operandStatistics.trueRatio();
+    }
+
+    /**
+     * @return true if the operands are currently evaluated in a different order than written
+     */
+    public boolean isReordered() {
+        return order != writtenOrder;
+    }
+
+    /**
+     * @return the indexes of the operands, in the order they are currently evaluated in
+     */
+    public int[] order() {
+        return order.clone();
+    }
+
+    public OperandStatistics statistics(int operand) {
+        return statistics[operand];
+    }
+
+    /**
+     * Evaluates the operands of one {@code &&} or {@code ||}.
+     */
+    @FunctionalInterface
+    public interface Operands {
+        /**
+         * @param operand the index of the operand in the written order
+         * @param context the context of the evaluation in progress
+         * @return the value of the operand
+         */
+        boolean evaluate(int operand, EvaluationContext context);
+    }
+
+    /**
+     * The samples of one operand since the order has last been decided.
+     */
+    public static class OperandStatistics {
+        private final LongAdder samples = new LongAdder();
+        private final LongAdder trueSamples = new LongAdder();
+        private final LongAdder nanos = new LongAdder();
+
+        private void record(boolean value, long durationNanos) {
+            samples.increment();
+            if (value) {
+                trueSamples.increment();
+            }
+            nanos.add(durationNanos);
+        }
+
+        private void reset() {
+            samples.reset();
+            trueSamples.reset();
+            nanos.reset();
+        }
+
+        public long samples() {
+            return samples.sum();
+        }
+
+        public double trueRatio() {
+            final long count = samples.sum();
+            return count == 0 ? 0.0 : (double) trueSamples.sum() / count;
+        }
+
+        public double averageNanos() {
+            final long count = samples.sum();
+            return count == 0 ? 0.0 : (double) nanos.sum() / count;
+        }
+    }
+}
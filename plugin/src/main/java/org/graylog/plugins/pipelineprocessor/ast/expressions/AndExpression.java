@@ -16,13 +16,21 @@
  */
 package org.graylog.plugins.pipelineprocessor.ast.expressions;
 
+import com.google.common.collect.ImmutableList;
 import org.antlr.v4.runtime.Token;
 import org.graylog.plugins.pipelineprocessor.EvaluationContext;
 
+import javax.annotation.Nullable;
+
 public class AndExpression extends BinaryExpression implements LogicalExpression {
+    // resolved once the operands have been built, they don't change afterwards
+    @Nullable
+    private final AdaptiveOperandOrder operandOrder;
+
     public AndExpression(Token start, Expression left,
                          Expression right) {
         super(start, left, right);
+        this.operandOrder = AdaptiveOperandOrder.forOperands(ImmutableList.of(left, right), true);
     }
 
     @Override
@@ -32,9 +40,31 @@ public class AndExpression extends BinaryExpression implements LogicalExpression
 
     @Override
     public boolean evaluateBool(EvaluationContext context) {
+        final AdaptiveOperandOrder order = operandOrder();
+        if (order != null) {
+            return order.evaluate(context);
+        }
         return ((LogicalExpression)left).evaluateBool(context) && ((LogicalExpression)right).evaluateBool(context);
     }
 
+    @Override
+    public void left(Expression left) {
+        throw new UnsupportedOperationException("The operands are fixed once their evaluation order has been resolved");
+    }
+
+    @Override
+    public void right(Expression right) {
+        throw new UnsupportedOperationException("The operands are fixed once their evaluation order has been resolved");
+    }
+
+    /**
+     * @return the order the operands are evaluated in, null if they are always evaluated as written
+     */
+    @Nullable
+    public AdaptiveOperandOrder operandOrder() {
+        return operandOrder;
+    }
+
     @Override
     public Class getType() {
         return Boolean.class;
@@ -40,9 +40,13 @@ public class ComparisonExpression extends BinaryExpression implements LogicalExp
 
     @Override
     public boolean evaluateBool(EvaluationContext context) {
+        return evaluateBool(this.left.evaluateUnsafe(context), this.right.evaluateUnsafe(context));
+    }
 
-        final Object leftValue = this.left.evaluateUnsafe(context);
-        final Object rightValue = this.right.evaluateUnsafe(context);
+    /**
+     * Compares the values of both operands, which compiled rules evaluate themselves.
+     */
+    public boolean evaluateBool(Object leftValue, Object rightValue) {
         if (leftValue instanceof DateTime && rightValue instanceof DateTime) {
             return compareDateTimes(operator, (DateTime) leftValue, (DateTime) rightValue);
         }
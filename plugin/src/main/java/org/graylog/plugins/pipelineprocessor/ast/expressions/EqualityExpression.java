@@ -44,8 +44,13 @@ public class EqualityExpression extends BinaryExpression implements LogicalExpre
 
     @Override
     public boolean evaluateBool(EvaluationContext context) {
-        final Object left = this.left.evaluateUnsafe(context);
-        final Object right = this.right.evaluateUnsafe(context);
+        return evaluateBool(this.left.evaluateUnsafe(context), this.right.evaluateUnsafe(context));
+    }
+
+    /**
+     * Compares the values of both operands, which compiled rules evaluate themselves.
+     */
+    public boolean evaluateBool(Object left, Object right) {
         if (left == null) {
             log.warn("left expression evaluated to null, returning false: {}", this.left);
             return false;
@@ -67,6 +72,13 @@ public class EqualityExpression extends BinaryExpression implements LogicalExpre
         return !equals;
     }
 
+    /**
+     * @return true if comparisons are traced, generated code then compares through {@link #evaluateBool(Object, Object)}
+     */
+    public static boolean isTraceEnabled() {
+        return log.isTraceEnabled();
+    }
+
     private void traceEquality(Object left,
                                Object right,
                                boolean equals,
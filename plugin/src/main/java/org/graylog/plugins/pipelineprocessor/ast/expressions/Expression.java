@@ -22,6 +22,7 @@ import com.google.common.collect.Maps;
 import org.antlr.v4.runtime.Token;
 import org.graylog.plugins.pipelineprocessor.EvaluationContext;
 import org.graylog.plugins.pipelineprocessor.ast.exceptions.FunctionEvaluationException;
+import org.graylog.plugins.pipelineprocessor.ast.functions.FunctionDescriptor;
 
 import java.util.Map;
 
@@ -39,15 +40,50 @@ public interface Expression {
     default Object evaluate(EvaluationContext context) {
         try {
             return evaluateUnsafe(context);
-        } catch (FunctionEvaluationException fee) {
+        } catch (Exception e) {
+            addEvaluationError(this, context, e);
+        }
+        return null;
+    }
+
+    /**
+     * Records an exception raised while evaluating the expression, like {@link #evaluate(EvaluationContext)} does.
+     * Compiled rules use this to report errors exactly like the interpreter.
+     */
+    static void addEvaluationError(Expression expression, EvaluationContext context, Exception e) {
+        if (e instanceof FunctionEvaluationException) {
+            final FunctionEvaluationException fee = (FunctionEvaluationException) e;
             context.addEvaluationError(fee.getStartToken().getLine(),
                                        fee.getStartToken().getCharPositionInLine(),
                                        fee.getFunctionExpression().getFunction().descriptor(),
                                        getRootCause(fee));
-        } catch (Exception e) {
-            context.addEvaluationError(getStartToken().getLine(), getStartToken().getCharPositionInLine(), null, getRootCause(e));
+        } else {
+            final Token start = expression.getStartToken();
+            context.addEvaluationError(start.getLine(), start.getCharPositionInLine(), null, getRootCause(e));
         }
-        return null;
+    }
+
+    /**
+     * An expression is side effect free if it does not read rule variables and only calls pure, non-blocking functions.
+     * Such expressions only depend on the message, so they can be evaluated early, more than once or in a different
+     * order without anyone noticing.
+     */
+    static boolean isSideEffectFree(Expression expression) {
+        if (expression instanceof VarRefExpression) {
+            return false;
+        }
+        if (expression instanceof FunctionExpression) {
+            final FunctionDescriptor descriptor = ((FunctionExpression) expression).getFunction().descriptor();
+            if (!descriptor.pure() || descriptor.blocking()) {
+                return false;
+            }
+        }
+        for (Expression child : expression.children()) {
+            if (!isSideEffectFree(child)) {
+                return false;
+            }
+        }
+        return true;
     }
 
     Class getType();
@@ -91,6 +127,7 @@ public interface Expression {
         FUNCTION(FunctionExpression.class),
         INDEXED_ACCESS(IndexedAccessExpression.class),
         LOGICAL(LogicalExpression.class),
+        LOGICAL_CHAIN(LogicalChainExpression.class),
         LONG(LongExpression.class),
         MAP_LITERAL(MapLiteralExpression.class),
         MESSAGE(MessageRefExpression.class),
@@ -25,23 +25,71 @@ import org.graylog.plugins.pipelineprocessor.ast.exceptions.LocationAwareEvalExc
 import org.graylog.plugins.pipelineprocessor.ast.functions.Function;
 import org.graylog.plugins.pipelineprocessor.ast.functions.FunctionArgs;
 import org.graylog.plugins.pipelineprocessor.ast.functions.FunctionDescriptor;
+import org.graylog.plugins.pipelineprocessor.ast.functions.ParameterDescriptor;
+import org.graylog.plugins.pipelineprocessor.processors.FunctionMemo;
+import org.graylog2.plugin.Message;
 
+import javax.annotation.Nullable;
+import java.util.List;
 import java.util.Map;
 import java.util.stream.Collectors;
 
 public class FunctionExpression extends BaseExpression {
+    private static final int ARGUMENTS_KEYABLE = 0;
+    private static final int ARGUMENTS_UNKEYABLE = 1;
+    private static final int ARGUMENTS_FAILED = 2;
+
+    // the call in the rule's syntax tree, which identifies the call among the stage's common subexpressions
+    private final FunctionExpression call;
     private final FunctionArgs args;
     private final Function<?> function;
     private final FunctionDescriptor descriptor;
+    // whether the call's result can be remembered for the message, see FunctionMemo
+    private final boolean memoizable;
+    private final boolean readsMessage;
+    // resolved on first use, the memos of all messages share them
+    @Nullable
+    private volatile FunctionMemo.Counters memoCounters;
 
     public FunctionExpression(Token start, FunctionArgs args) {
         super(start);
+        this.call = this;
         this.args = args;
         this.function = args.getFunction();
         this.descriptor = this.function.descriptor();
 
         // precomputes all constant arguments to avoid dynamically recomputing trees on every invocation
         this.function.preprocessArgs(args);
+
+        // the arguments are evaluated to look up the memo, which must not be observable
+        this.memoizable = descriptor.pure() && !descriptor.blocking()
+                && args.getArgs().values().stream().allMatch(Expression::isSideEffectFree);
+        this.readsMessage = ((List<ParameterDescriptor>) descriptor.params()).stream()
+                .anyMatch(param -> Message.class.equals(param.type()));
+    }
+
+    private FunctionExpression(FunctionExpression call, FunctionArgs args) {
+        super(call.getStartToken());
+        this.call = call;
+        this.args = args;
+        this.function = call.function;
+        this.descriptor = call.descriptor;
+        this.memoizable = call.memoizable;
+        this.readsMessage = call.readsMessage;
+    }
+
+    /**
+     * Creates the same call with different argument expressions, used by compiled rules to evaluate their compiled
+     * arguments. The new call shares the common subexpression value and the error location of this one.
+     *
+     * @param args the arguments of the same function, see {@link FunctionArgs#withExpressions(Map)}
+     * @return the call with the given arguments
+     */
+    public FunctionExpression withArgs(FunctionArgs args) {
+        if (args.getFunction() != function) {
+            throw new IllegalArgumentException("Arguments must belong to " + descriptor.name());
+        }
+        return new FunctionExpression(call, args);
     }
 
     public Function<?> getFunction() {
@@ -59,6 +107,113 @@ public class FunctionExpression extends BaseExpression {
 
     @Override
     public Object evaluateUnsafe(EvaluationContext context) {
+        final int slot = context.subexpressionSlot(call);
+        if (slot < 0) {
+            return evaluateMemoized(context);
+        }
+        // the same call occurs elsewhere in the stage's conditions, only evaluate it once per message
+        if (context.hasSubexpressionValue(slot)) {
+            return context.subexpressionValue(slot);
+        }
+        final Object value = evaluateMemoized(context);
+        context.setSubexpressionValue(slot, value);
+        return value;
+    }
+
+    private Object evaluateMemoized(EvaluationContext context) {
+        final FunctionMemo memo = context.functionMemo();
+        if (memo == null) {
+            return evaluateCall(context);
+        }
+        if (!memoizable) {
+            final Object value = evaluateCall(context);
+            if (!descriptor.pure()) {
+                // only functions which aren't pure can change the message
+                memo.messageChanged();
+            }
+            return value;
+        }
+        final FunctionMemo.Counters counters = memoCounters(memo);
+        final int count = descriptor.params().size();
+        final Object[] arguments = memo.acquireArguments(count);
+        try {
+            final int evaluated = evaluateArguments(context, arguments);
+            if (evaluated == ARGUMENTS_FAILED) {
+                return evaluateCall(context);
+            }
+            if (evaluated == ARGUMENTS_UNKEYABLE) {
+                return evaluateCall(context, arguments);
+            }
+            final FunctionMemo.Memoized memoized = memo.lookup(counters, arguments, count);
+            if (memoized != null) {
+                return memoized.value();
+            }
+            final Object value = evaluateCall(context, arguments);
+            memo.remember(counters, arguments, count, value, readsMessage);
+            return value;
+        } finally {
+            memo.releaseArguments(arguments, count);
+        }
+    }
+
+    private FunctionMemo.Counters memoCounters(FunctionMemo memo) {
+        FunctionMemo.Counters counters = memoCounters;
+        if (counters == null || !counters.belongTo(memo)) {
+            counters = memo.counters(descriptor.name());
+            memoCounters = counters;
+        }
+        return counters;
+    }
+
+    // evaluates the arguments in parameter order, to pass them to the function and to look up the memo
+    private int evaluateArguments(EvaluationContext context, Object[] arguments) {
+        final List<ParameterDescriptor> params = descriptor.params();
+        int result = ARGUMENTS_KEYABLE;
+        for (int i = 0; i < params.size(); i++) {
+            final Expression arg = args.expression(i);
+            Object value = FunctionMemo.absentArgument();
+            if (arg != null) {
+                // precomputed values can't be used, functions may have transformed them (e.g. compiled patterns)
+                try {
+                    value = arg.evaluateUnsafe(context);
+                } catch (Exception e) {
+                    // evaluating the call reports the error
+                    return ARGUMENTS_FAILED;
+                }
+            }
+            if (value != FunctionMemo.absentArgument() && !FunctionMemo.isKeyable(value)) {
+                result = ARGUMENTS_UNKEYABLE;
+            }
+            arguments[i] = value;
+        }
+        return result;
+    }
+
+    private Object evaluateCall(EvaluationContext context, Object[] arguments) {
+        // nested calls pass their own arguments, the outer call's are needed again afterwards
+        final FunctionArgs outerArgs = context.argumentValuesOf();
+        final Object[] outerValues = context.argumentValues();
+        context.setArgumentValues(args, arguments);
+        try {
+            return evaluateCall(context);
+        } finally {
+            context.setArgumentValues(outerArgs, outerValues);
+        }
+    }
+
+    private Object evaluateCall(EvaluationContext context) {
+        if (descriptor.blocking() && context.isObservingBlockingCalls()) {
+            final long start = System.nanoTime();
+            try {
+                return evaluateFunction(context);
+            } finally {
+                context.observeBlockingCall(descriptor, System.nanoTime() - start);
+            }
+        }
+        return evaluateFunction(context);
+    }
+
+    private Object evaluateFunction(EvaluationContext context) {
         try {
             return descriptor.returnType().cast(function.evaluate(args, context));
         } catch (LocationAwareEvalException laee) {
@@ -66,7 +221,7 @@ public class FunctionExpression extends BaseExpression {
             throw laee;
         } catch (Exception e) {
             // we need to wrap the original exception to retain the position in the tree where the exception originated
-            throw new FunctionEvaluationException(this, e);
+            throw new FunctionEvaluationException(call, e);
         }
     }
 
@@ -0,0 +1,106 @@
+/**
+ * This file is part of Graylog Pipeline Processor.
+ *
+ * Graylog Pipeline Processor is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Graylog Pipeline Processor is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Graylog Pipeline Processor.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.graylog.plugins.pipelineprocessor.ast.expressions;
+
+import com.google.common.base.Joiner;
+import com.google.common.collect.ImmutableList;
+import org.antlr.v4.runtime.Token;
+import org.graylog.plugins.pipelineprocessor.EvaluationContext;
+
+import javax.annotation.Nullable;
+import java.util.List;
+
+/**
+ * A chain of operands all joined by {@code &&}, or all joined by {@code ||}.
+ *
+ * The parser builds nested binary expressions, which the optimizer flattens into chains of three or more operands.
+ * Evaluating a chain loops over its operands instead of recursing once per operator.
+ */
+public class LogicalChainExpression extends BaseExpression implements LogicalExpression {
+    private final boolean isAnd;
+    private final List<Expression> operands;
+    private final LogicalExpression[] logicalOperands;
+    @Nullable
+    private final AdaptiveOperandOrder operandOrder;
+
+    public LogicalChainExpression(Token start, boolean isAnd, List<Expression> operands) {
+        super(start);
+        this.isAnd = isAnd;
+        this.operands = ImmutableList.copyOf(operands);
+        this.logicalOperands = operands.stream().map(LogicalExpression.class::cast).toArray(LogicalExpression[]::new);
+        this.operandOrder = AdaptiveOperandOrder.forOperands(this.operands, isAnd);
+    }
+
+    /**
+     * @return true if the operands are joined by {@code &&}, false if they are joined by {@code ||}
+     */
+    public boolean isAnd() {
+        return isAnd;
+    }
+
+    public List<Expression> operands() {
+        return operands;
+    }
+
+    @Override
+    public boolean isConstant() {
+        return operands.stream().allMatch(Expression::isConstant);
+    }
+
+    @Override
+    public Object evaluateUnsafe(EvaluationContext context) {
+        return evaluateBool(context);
+    }
+
+    @Override
+    public boolean evaluateBool(EvaluationContext context) {
+        final AdaptiveOperandOrder order = operandOrder();
+        if (order != null) {
+            return order.evaluate(context);
+        }
+        // the first false operand decides an AND, the first true one decides an OR
+        for (LogicalExpression operand : logicalOperands) {
+            if (operand.evaluateBool(context) != isAnd) {
+                return !isAnd;
+            }
+        }
+        return isAnd;
+    }
+
+    /**
+     * @return the order the operands are evaluated in, null if they are always evaluated as written
+     */
+    @Nullable
+    public AdaptiveOperandOrder operandOrder() {
+        return operandOrder;
+    }
+
+    @Override
+    public Class getType() {
+        return Boolean.class;
+    }
+
+    @Override
+    public String toString() {
+        return Joiner.on(isAnd ? " AND " : " OR ").join(operands);
+    }
+
+    @Override
+    public Iterable<Expression> children() {
+        return operands;
+    }
+}
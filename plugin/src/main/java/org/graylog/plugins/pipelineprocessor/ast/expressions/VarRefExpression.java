@@ -27,12 +27,21 @@ public class VarRefExpression extends BaseExpression {
     private static final Logger log = LoggerFactory.getLogger(VarRefExpression.class);
     private final String identifier;
     private final Expression varExpr;
+    private final int slot;
     private Class type = Object.class;
 
     public VarRefExpression(Token start, String identifier, Expression varExpr) {
+        this(start, identifier, varExpr, -1);
+    }
+
+    /**
+     * @param slot the frame slot of the variable, or -1 if the variable should be looked up by name
+     */
+    public VarRefExpression(Token start, String identifier, Expression varExpr, int slot) {
         super(start);
         this.identifier = identifier;
         this.varExpr = varExpr;
+        this.slot = slot;
     }
 
     @Override
@@ -42,6 +51,9 @@ public class VarRefExpression extends BaseExpression {
 
     @Override
     public Object evaluateUnsafe(EvaluationContext context) {
+        if (slot >= 0) {
+            return context.getSlot(slot);
+        }
         final EvaluationContext.TypedValue typedValue = context.get(identifier);
         if (typedValue != null) {
             return typedValue.getValue();
@@ -66,6 +78,10 @@ public class VarRefExpression extends BaseExpression {
 
     public Expression varExpr() { return varExpr; }
 
+    public int slot() {
+        return slot;
+    }
+
     public void setType(Class type) {
         this.type = type;
     }
@@ -22,6 +22,7 @@ import org.graylog.plugins.pipelineprocessor.ast.expressions.Expression;
 import org.graylog.plugins.pipelineprocessor.ast.expressions.VarRefExpression;
 
 import java.util.Collections;
+import java.util.List;
 import java.util.Map;
 import java.util.Objects;
 import java.util.stream.Collectors;
@@ -40,10 +41,23 @@ public class FunctionArgs {
     private final Function function;
     private final FunctionDescriptor descriptor;
 
+    // the arguments bound to the function's parameters, in parameter order, to avoid map lookups on every call
+    private final ParameterDescriptor[] slotParams;
+    private final Expression[] slotExpressions;
+    private final Object[] slotValues;
+
     public FunctionArgs(Function func, Map<String, Expression> args) {
         function = func;
         descriptor = function.descriptor();
         this.args = firstNonNull(args, Collections.<String, Expression>emptyMap());
+
+        final List<ParameterDescriptor> params = descriptor.params();
+        slotParams = params.toArray(new ParameterDescriptor[0]);
+        slotExpressions = new Expression[slotParams.length];
+        slotValues = new Object[slotParams.length];
+        for (int i = 0; i < slotParams.length; i++) {
+            slotExpressions[i] = this.args.get(slotParams[i].name());
+        }
     }
 
     @Nonnull
@@ -75,6 +89,56 @@ public class FunctionArgs {
     public void setPreComputedValue(@Nonnull String name, @Nonnull Object value) {
         Objects.requireNonNull(value);
         constantValues.put(name, value);
+        for (int i = 0; i < slotParams.length; i++) {
+            if (slotParams[i].name().equals(name)) {
+                slotValues[i] = value;
+            }
+        }
+    }
+
+    /**
+     * Finds the slot the given parameter's argument is bound to.
+     *
+     * @param param a parameter of the called function
+     * @return the slot, or -1 if the parameter doesn't belong to the function
+     */
+    public int slot(ParameterDescriptor param) {
+        // functions have few parameters, comparing their descriptors is cheaper than hashing the name
+        for (int i = 0; i < slotParams.length; i++) {
+            if (slotParams[i] == param) {
+                return i;
+            }
+        }
+        for (int i = 0; i < slotParams.length; i++) {
+            if (slotParams[i].name().equals(param.name())) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    @Nullable
+    public Expression expression(int slot) {
+        return slotExpressions[slot];
+    }
+
+    @Nullable
+    public Object getPreComputedValue(int slot) {
+        return slotValues[slot];
+    }
+
+    /**
+     * Creates the arguments of the same call which evaluate the given expressions instead, keeping the precomputed
+     * values of constant arguments.
+     *
+     * @param expressions the replacement for each argument, by parameter name
+     * @return the new arguments
+     */
+    public FunctionArgs withExpressions(Map<String, Expression> expressions) {
+        final FunctionArgs copy = new FunctionArgs(function, expressions);
+        copy.constantValues.putAll(constantValues);
+        System.arraycopy(slotValues, 0, copy.slotValues, 0, slotValues.length);
+        return copy;
     }
 
     public Function<?> getFunction() {
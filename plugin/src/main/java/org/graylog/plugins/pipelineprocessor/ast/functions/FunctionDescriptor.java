@@ -33,9 +33,19 @@ public abstract class FunctionDescriptor<T> {
     @JsonProperty
     public abstract String name();
 
+    /**
+     * @return true if the function has no side effects and its result only depends on its arguments and the current
+     * message, so that calls with the same arguments may be evaluated once per message
+     */
     @JsonProperty
     public abstract boolean pure();
 
+    /**
+     * @return true if the function may wait on I/O, like a lookup table access, instead of only using CPU
+     */
+    @JsonProperty
+    public abstract boolean blocking();
+
     @JsonProperty
     public abstract Class<? extends T> returnType();
 
@@ -56,7 +66,7 @@ public abstract class FunctionDescriptor<T> {
 
     public static <T> Builder<T> builder() {
         //noinspection unchecked
-        return new AutoValue_FunctionDescriptor.Builder().pure(false);
+        return new AutoValue_FunctionDescriptor.Builder().pure(false).blocking(false);
     }
 
     @AutoValue.Builder
@@ -70,6 +80,7 @@ public abstract class FunctionDescriptor<T> {
 
         public abstract Builder<T> name(String name);
         public abstract Builder<T> pure(boolean pure);
+        public abstract Builder<T> blocking(boolean blocking);
         public abstract Builder<T> returnType(Class<? extends T> type);
         public Builder<T> params(ParameterDescriptor... params) {
             return params(ImmutableList.<ParameterDescriptor>builder().add(params).build());
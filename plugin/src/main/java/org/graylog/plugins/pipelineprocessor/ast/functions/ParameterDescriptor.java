@@ -24,6 +24,7 @@ import com.fasterxml.jackson.annotation.JsonProperty;
 
 import org.graylog.plugins.pipelineprocessor.EvaluationContext;
 import org.graylog.plugins.pipelineprocessor.ast.expressions.Expression;
+import org.graylog.plugins.pipelineprocessor.processors.FunctionMemo;
 
 import java.util.Optional;
 
@@ -105,15 +106,26 @@ public abstract class ParameterDescriptor<T, R> {
 
     @Nullable
     public R required(FunctionArgs args, EvaluationContext context) {
-        final Object precomputedValue = args.getPreComputedValue(name());
+        final int slot = args.slot(this);
+        final Object precomputedValue = slot < 0 ? args.getPreComputedValue(name()) : args.getPreComputedValue(slot);
         if (precomputedValue != null) {
             return transformedType().cast(precomputedValue);
         }
-        final Expression valueExpr = args.expression(name());
-        if (valueExpr == null) {
-            return null;
+        final Object[] evaluated = slot < 0 || context == null ? null : context.argumentValues(args);
+        final Object value;
+        if (evaluated != null) {
+            // the caller has evaluated the arguments already, see FunctionExpression
+            value = evaluated[slot];
+            if (value == FunctionMemo.absentArgument()) {
+                return null;
+            }
+        } else {
+            final Expression valueExpr = slot < 0 ? args.expression(name()) : args.expression(slot);
+            if (valueExpr == null) {
+                return null;
+            }
+            value = valueExpr.evaluateUnsafe(context);
         }
-        final Object value = valueExpr.evaluateUnsafe(context);
         return transformedType().cast(transform().apply(type().cast(value)));
     }
 
@@ -22,16 +22,31 @@ import org.graylog.plugins.pipelineprocessor.ast.expressions.Expression;
 public class VarAssignStatement implements Statement {
     private final String name;
     private final Expression expr;
+    private final int slot;
 
     public VarAssignStatement(String name, Expression expr) {
+        this(name, expr, -1);
+    }
+
+    /**
+     * @param name the name of the variable
+     * @param expr the expression computing the value
+     * @param slot the frame slot of the variable, or -1 if the variable should be looked up by name
+     */
+    public VarAssignStatement(String name, Expression expr, int slot) {
         this.name = name;
         this.expr = expr;
+        this.slot = slot;
     }
 
     @Override
     public Void evaluate(EvaluationContext context) {
         final Object result = expr.evaluate(context);
-        context.define(name, expr.getType(), result);
+        if (slot >= 0) {
+            context.setSlot(slot, result);
+        } else {
+            context.define(name, expr.getType(), result);
+        }
         return null;
     }
 
@@ -39,6 +54,10 @@ public class VarAssignStatement implements Statement {
         return name;
     }
 
+    public int getSlot() {
+        return slot;
+    }
+
     public Expression getValueExpression() {
         return expr;
     }
@@ -0,0 +1,298 @@
+package org.graylog.plugins.pipelineprocessor.codegen;
+
+import org.graylog.plugins.pipelineprocessor.EvaluationContext;
+import org.graylog.plugins.pipelineprocessor.ast.Rule;
+import org.graylog.plugins.pipelineprocessor.ast.exceptions.FunctionEvaluationException;
+import org.graylog.plugins.pipelineprocessor.ast.exceptions.LocationAwareEvalException;
+import org.graylog.plugins.pipelineprocessor.ast.expressions.AdaptiveOperandOrder;
+import org.graylog.plugins.pipelineprocessor.ast.expressions.AndExpression;
+import org.graylog.plugins.pipelineprocessor.ast.expressions.BooleanExpression;
+import org.graylog.plugins.pipelineprocessor.ast.expressions.BooleanValuedFunctionWrapper;
+import org.graylog.plugins.pipelineprocessor.ast.expressions.ComparisonExpression;
+import org.graylog.plugins.pipelineprocessor.ast.expressions.ConstantExpression;
+import org.graylog.plugins.pipelineprocessor.ast.expressions.EqualityExpression;
+import org.graylog.plugins.pipelineprocessor.ast.expressions.Expression;
+import org.graylog.plugins.pipelineprocessor.ast.expressions.FieldRefExpression;
+import org.graylog.plugins.pipelineprocessor.ast.expressions.FunctionExpression;
+import org.graylog.plugins.pipelineprocessor.ast.expressions.LogicalChainExpression;
+import org.graylog.plugins.pipelineprocessor.ast.expressions.LogicalExpression;
+import org.graylog.plugins.pipelineprocessor.ast.expressions.MessageRefExpression;
+import org.graylog.plugins.pipelineprocessor.ast.expressions.NotExpression;
+import org.graylog.plugins.pipelineprocessor.ast.expressions.OrExpression;
+import org.graylog.plugins.pipelineprocessor.ast.expressions.VarRefExpression;
+import org.graylog.plugins.pipelineprocessor.ast.functions.FunctionArgs;
+import org.graylog.plugins.pipelineprocessor.ast.functions.FunctionDescriptor;
+import org.graylog.plugins.pipelineprocessor.ast.statements.FunctionStatement;
+import org.graylog.plugins.pipelineprocessor.ast.statements.Statement;
+import org.graylog.plugins.pipelineprocessor.ast.statements.VarAssignStatement;
+import org.graylog.plugins.pipelineprocessor.processors.FunctionMemo;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.Predicate;
+
+import javax.annotation.Nullable;
+
+/**
+ * Compiles a rule into a tree of lambdas, as a cheap alternative to generating a class for it.
+ * <p>
+ * Everything which doesn't depend on the message is resolved once while compiling: the logical structure of the
+ * condition, the values of constants, the field names of message references and the frame slots of variables.
+ * Comparisons compare their compiled operands and function calls get their compiled arguments bound in place of the
+ * syntax tree's, so that functions still read them lazily through their parameters. Functions which aren't pure are
+ * invoked directly, calls of pure or blocking functions keep remembering their results per message, sharing common
+ * subexpressions and observing blocking calls like the interpreter does.
+ * <p>
+ * Operators which adapt their operand order at runtime compile their operands and let their
+ * {@link AdaptiveOperandOrder} pick the order to test them in.
+ * <p>
+ * Expressions which are rare in rules, like arithmetic, indexed access or literal lists, are evaluated by their syntax
+ * tree nodes.
+ * <p>
+ * Compiling needs neither a compiler nor a classloader and takes microseconds, which makes it suitable for every rule
+ * that is loaded. The compiled rules are stateless and can be shared between copies of a rule.
+ */
+public final class ClosureCompiler {
+
+    private ClosureCompiler() {
+    }
+
+    public static GeneratedRule compile(Rule rule) {
+        final List<Consumer<EvaluationContext>> actions = new ArrayList<>(rule.then().size());
+        for (Statement statement : rule.then()) {
+            actions.add(compileStatement(statement));
+        }
+        @SuppressWarnings("unchecked")
+        final Consumer<EvaluationContext>[] compiledActions = actions.toArray(new Consumer[0]);
+        return new CompiledRule(rule.name(), compileCondition(rule.when()), compiledActions);
+    }
+
+    static Predicate<EvaluationContext> compileCondition(Expression expression) {
+        if (expression instanceof BooleanExpression) {
+            return ((BooleanExpression) expression).evaluateBool(null) ? context -> true : context -> false;
+        }
+        if (expression instanceof NotExpression) {
+            return compileCondition(((NotExpression) expression).right()).negate();
+        }
+        if (expression instanceof AndExpression) {
+            final AndExpression and = (AndExpression) expression;
+            if (and.operandOrder() != null) {
+                return compileOrdered(and.operandOrder(), Arrays.asList(and.left(), and.right()));
+            }
+            return compileChain(and.left(), and.right(), true);
+        }
+        if (expression instanceof OrExpression) {
+            final OrExpression or = (OrExpression) expression;
+            if (or.operandOrder() != null) {
+                return compileOrdered(or.operandOrder(), Arrays.asList(or.left(), or.right()));
+            }
+            return compileChain(or.left(), or.right(), false);
+        }
+        if (expression instanceof LogicalChainExpression) {
+            final LogicalChainExpression chain = (LogicalChainExpression) expression;
+            if (chain.operandOrder() != null) {
+                return compileOrdered(chain.operandOrder(), chain.operands());
+            }
+            final List<Predicate<EvaluationContext>> operands = new ArrayList<>(chain.operands().size());
+            for (Expression operand : chain.operands()) {
+                operands.add(compileCondition(operand));
+            }
+            return compileChain(operands, chain.isAnd());
+        }
+        if (expression instanceof EqualityExpression) {
+            final EqualityExpression equality = (EqualityExpression) expression;
+            final Function<EvaluationContext, Object> left = compileValue(equality.left());
+            final Function<EvaluationContext, Object> right = compileValue(equality.right());
+            return context -> equality.evaluateBool(left.apply(context), right.apply(context));
+        }
+        if (expression instanceof ComparisonExpression) {
+            final ComparisonExpression comparison = (ComparisonExpression) expression;
+            final Function<EvaluationContext, Object> left = compileValue(comparison.left());
+            final Function<EvaluationContext, Object> right = compileValue(comparison.right());
+            return context -> comparison.evaluateBool(left.apply(context), right.apply(context));
+        }
+        if (expression instanceof BooleanValuedFunctionWrapper) {
+            final Function<EvaluationContext, Object> value = compileValue(((BooleanValuedFunctionWrapper) expression).expression());
+            return context -> {
+                final Object result = value.apply(context);
+                return result != null && (Boolean) result;
+            };
+        }
+        // operators which adapt their operand order at runtime evaluate themselves
+        final LogicalExpression leaf = (LogicalExpression) expression;
+        return leaf::evaluateBool;
+    }
+
+    static Function<EvaluationContext, Object> compileValue(Expression expression) {
+        if (expression instanceof ConstantExpression || expression instanceof FieldRefExpression) {
+            final Object value = expression.evaluateUnsafe();
+            return context -> value;
+        }
+        if (expression instanceof MessageRefExpression) {
+            final Expression field = ((MessageRefExpression) expression).getFieldExpr();
+            if (field instanceof FieldRefExpression) {
+                final String name = ((FieldRefExpression) field).fieldName();
+                return context -> context.currentMessage().getField(name);
+            }
+        }
+        if (expression instanceof VarRefExpression && ((VarRefExpression) expression).slot() >= 0) {
+            final int slot = ((VarRefExpression) expression).slot();
+            return context -> context.getSlot(slot);
+        }
+        if (expression instanceof FunctionExpression) {
+            return compileCall((FunctionExpression) expression);
+        }
+        if (expression instanceof LogicalExpression) {
+            final Predicate<EvaluationContext> condition = compileCondition(expression);
+            return context -> condition.test(context);
+        }
+        return expression::evaluateUnsafe;
+    }
+
+    private static Function<EvaluationContext, Object> compileCall(FunctionExpression call) {
+        final Map<String, Function<EvaluationContext, Object>> arguments = new HashMap<>();
+        call.getArgs().getArgs().forEach((name, argument) -> {
+            if (argument != null) {
+                arguments.put(name, compileValue(argument));
+            }
+        });
+        final FunctionExpression callSite = callSite(call, arguments);
+        final FunctionDescriptor descriptor = call.getFunction().descriptor();
+        if (descriptor.pure() || descriptor.blocking()) {
+            return callSite::evaluateUnsafe;
+        }
+        // neither remembered nor shared between conditions, nothing to do but calling the function
+        final org.graylog.plugins.pipelineprocessor.ast.functions.Function<?> function = callSite.getFunction();
+        final FunctionArgs args = callSite.getArgs();
+        final Class<?> returnType = descriptor.returnType();
+        return context -> {
+            final Object value;
+            try {
+                value = returnType.cast(function.evaluate(args, context));
+            } catch (LocationAwareEvalException laee) {
+                throw laee;
+            } catch (Exception e) {
+                throw new FunctionEvaluationException(call, e);
+            }
+            // only functions which aren't pure can change the message, see FunctionExpression
+            final FunctionMemo memo = context.functionMemo();
+            if (memo != null) {
+                memo.messageChanged();
+            }
+            return value;
+        };
+    }
+
+    /**
+     * Binds compiled arguments to a copy of the call.
+     *
+     * @param call      the call in the rule's syntax tree
+     * @param arguments the compiled code of each of the call's arguments, by parameter name
+     * @return the call evaluating the compiled arguments
+     */
+    static FunctionExpression callSite(FunctionExpression call, Map<String, Function<EvaluationContext, Object>> arguments) {
+        final Map<String, Expression> expressions = new HashMap<>();
+        call.getArgs().getArgs().forEach((name, argument) -> {
+            final Function<EvaluationContext, Object> code = arguments.get(name);
+            expressions.put(name, argument == null || code == null ? argument : new CompiledExpression(argument, code));
+        });
+        return call.withArgs(call.getArgs().withExpressions(expressions));
+    }
+
+    static Consumer<EvaluationContext> compileStatement(Statement statement) {
+        if (statement instanceof FunctionStatement) {
+            final Expression expression = ((FunctionStatement) statement).getFunctionExpression();
+            final Function<EvaluationContext, Object> value = compileValue(expression);
+            return context -> evaluate(expression, value, context);
+        }
+        if (statement instanceof VarAssignStatement && ((VarAssignStatement) statement).getSlot() >= 0) {
+            final VarAssignStatement assignment = (VarAssignStatement) statement;
+            final Expression expression = assignment.getValueExpression();
+            final Function<EvaluationContext, Object> value = compileValue(expression);
+            final int slot = assignment.getSlot();
+            return context -> context.setSlot(slot, evaluate(expression, value, context));
+        }
+        return statement::evaluate;
+    }
+
+    // like Expression#evaluate, errors are recorded in the context instead of being thrown
+    @Nullable
+    private static Object evaluate(Expression expression, Function<EvaluationContext, Object> value, EvaluationContext context) {
+        try {
+            return value.apply(context);
+        } catch (Exception e) {
+            Expression.addEvaluationError(expression, context, e);
+            return null;
+        }
+    }
+
+    private static Predicate<EvaluationContext> compileChain(Expression left, Expression right, boolean isAnd) {
+        final Predicate<EvaluationContext> first = compileCondition(left);
+        final Predicate<EvaluationContext> second = compileCondition(right);
+        return isAnd ? first.and(second) : first.or(second);
+    }
+
+    private static Predicate<EvaluationContext> compileChain(List<Predicate<EvaluationContext>> operands, boolean isAnd) {
+        @SuppressWarnings("unchecked")
+        final Predicate<EvaluationContext>[] tests = operands.toArray(new Predicate[0]);
+        // the operand value which decides the outcome of the whole chain: false for AND, true for OR
+        final boolean deciding = !isAnd;
+        return context -> {
+            for (Predicate<EvaluationContext> test : tests) {
+                if (test.test(context) == deciding) {
+                    return deciding;
+                }
+            }
+            return !deciding;
+        };
+    }
+
+    private static Predicate<EvaluationContext> compileOrdered(AdaptiveOperandOrder order, List<Expression> operands) {
+        @SuppressWarnings("unchecked")
+        final Predicate<EvaluationContext>[] tests = new Predicate[operands.size()];
+        for (int i = 0; i < tests.length; i++) {
+            tests[i] = compileCondition(operands.get(i));
+        }
+        // the order picks which compiled operand to test next
+        final AdaptiveOperandOrder.Operands code = (operand, context) -> tests[operand].test(context);
+        return context -> order.evaluate(code, context);
+    }
+
+    private static class CompiledRule implements GeneratedRule {
+        private final String name;
+        private final Predicate<EvaluationContext> condition;
+        private final Consumer<EvaluationContext>[] actions;
+
+        CompiledRule(String name, Predicate<EvaluationContext> condition, Consumer<EvaluationContext>[] actions) {
+            this.name = name;
+            this.condition = condition;
+            this.actions = actions;
+        }
+
+        @Override
+        public String name() {
+            return name;
+        }
+
+        @Override
+        public boolean when(EvaluationContext context) {
+            return condition.test(context);
+        }
+
+        @Override
+        public void then(EvaluationContext context) {
+            for (int i = 0; i < actions.length; i++) {
+                actions[i].accept(context);
+                // like the interpreter, stop at the first statement which raised an error
+                if (context.hasEvaluationErrors()) {
+                    throw new IllegalStateException("Statement " + i + " of rule raised an evaluation error");
+                }
+            }
+        }
+    }
+}
@@ -1,720 +1,851 @@
 package org.graylog.plugins.pipelineprocessor.codegen;
 
-import com.google.common.base.Joiner;
-import com.google.common.collect.ImmutableList;
-import com.google.common.collect.ImmutableMap;
-import com.google.common.collect.Iterables;
-import com.google.common.collect.Iterators;
 import com.google.common.collect.Lists;
-import com.google.common.collect.Maps;
-import com.google.common.collect.Sets;
-import com.google.common.primitives.Ints;
-import com.google.common.primitives.Primitives;
-
-import com.squareup.javapoet.AnnotationSpec;
-import com.squareup.javapoet.ClassName;
-import com.squareup.javapoet.CodeBlock;
-import com.squareup.javapoet.FieldSpec;
-import com.squareup.javapoet.JavaFile;
-import com.squareup.javapoet.MethodSpec;
-import com.squareup.javapoet.ParameterizedTypeName;
-import com.squareup.javapoet.TypeName;
-import com.squareup.javapoet.TypeSpec;
-
-import org.apache.commons.beanutils.PropertyUtils;
-import org.apache.commons.lang3.StringUtils;
 import org.graylog.plugins.pipelineprocessor.EvaluationContext;
 import org.graylog.plugins.pipelineprocessor.ast.Rule;
-import org.graylog.plugins.pipelineprocessor.ast.RuleAstBaseListener;
-import org.graylog.plugins.pipelineprocessor.ast.RuleAstWalker;
-import org.graylog.plugins.pipelineprocessor.ast.expressions.AdditionExpression;
+import org.graylog.plugins.pipelineprocessor.ast.exceptions.FunctionEvaluationException;
+import org.graylog.plugins.pipelineprocessor.ast.exceptions.LocationAwareEvalException;
+import org.graylog.plugins.pipelineprocessor.ast.expressions.AdaptiveOperandOrder;
 import org.graylog.plugins.pipelineprocessor.ast.expressions.AndExpression;
-import org.graylog.plugins.pipelineprocessor.ast.expressions.ArrayLiteralExpression;
+import org.graylog.plugins.pipelineprocessor.ast.expressions.BooleanExpression;
 import org.graylog.plugins.pipelineprocessor.ast.expressions.BooleanValuedFunctionWrapper;
 import org.graylog.plugins.pipelineprocessor.ast.expressions.ComparisonExpression;
 import org.graylog.plugins.pipelineprocessor.ast.expressions.ConstantExpression;
-import org.graylog.plugins.pipelineprocessor.ast.expressions.DoubleExpression;
 import org.graylog.plugins.pipelineprocessor.ast.expressions.EqualityExpression;
 import org.graylog.plugins.pipelineprocessor.ast.expressions.Expression;
-import org.graylog.plugins.pipelineprocessor.ast.expressions.FieldAccessExpression;
 import org.graylog.plugins.pipelineprocessor.ast.expressions.FieldRefExpression;
 import org.graylog.plugins.pipelineprocessor.ast.expressions.FunctionExpression;
-import org.graylog.plugins.pipelineprocessor.ast.expressions.IndexedAccessExpression;
-import org.graylog.plugins.pipelineprocessor.ast.expressions.LongExpression;
-import org.graylog.plugins.pipelineprocessor.ast.expressions.MapLiteralExpression;
+import org.graylog.plugins.pipelineprocessor.ast.expressions.LogicalChainExpression;
+import org.graylog.plugins.pipelineprocessor.ast.expressions.LogicalExpression;
 import org.graylog.plugins.pipelineprocessor.ast.expressions.MessageRefExpression;
-import org.graylog.plugins.pipelineprocessor.ast.expressions.MultiplicationExpression;
 import org.graylog.plugins.pipelineprocessor.ast.expressions.NotExpression;
 import org.graylog.plugins.pipelineprocessor.ast.expressions.OrExpression;
-import org.graylog.plugins.pipelineprocessor.ast.expressions.SignedExpression;
-import org.graylog.plugins.pipelineprocessor.ast.expressions.StringExpression;
 import org.graylog.plugins.pipelineprocessor.ast.expressions.VarRefExpression;
+import org.graylog.plugins.pipelineprocessor.ast.functions.Function;
 import org.graylog.plugins.pipelineprocessor.ast.functions.FunctionArgs;
 import org.graylog.plugins.pipelineprocessor.ast.functions.FunctionDescriptor;
+import org.graylog.plugins.pipelineprocessor.ast.statements.FunctionStatement;
+import org.graylog.plugins.pipelineprocessor.ast.statements.Statement;
 import org.graylog.plugins.pipelineprocessor.ast.statements.VarAssignStatement;
-import org.graylog.plugins.pipelineprocessor.codegen.compiler.JavaCompiler;
 import org.graylog.plugins.pipelineprocessor.parser.FunctionRegistry;
+import org.graylog.plugins.pipelineprocessor.processors.FunctionMemo;
+import org.graylog2.plugin.Message;
 import org.joda.time.DateTime;
-import org.joda.time.Duration;
-import org.joda.time.Period;
+import org.joda.time.ReadableInstant;
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.Label;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Type;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.beans.FeatureDescriptor;
-import java.beans.PropertyDescriptor;
+import javax.annotation.Nullable;
+import javax.inject.Inject;
 import java.util.ArrayList;
-import java.util.Collections;
-import java.util.IdentityHashMap;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.Objects;
-import java.util.Set;
-import java.util.function.Function;
-import java.util.stream.Stream;
-
-import javax.annotation.Nonnull;
-import javax.inject.Inject;
-import javax.inject.Provider;
-import javax.lang.model.element.Modifier;
-
-import static com.google.common.base.MoreObjects.firstNonNull;
-
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.objectweb.asm.Opcodes.AALOAD;
+import static org.objectweb.asm.Opcodes.ACC_FINAL;
+import static org.objectweb.asm.Opcodes.ACC_PRIVATE;
+import static org.objectweb.asm.Opcodes.ACC_PUBLIC;
+import static org.objectweb.asm.Opcodes.ACC_STATIC;
+import static org.objectweb.asm.Opcodes.ACC_SUPER;
+import static org.objectweb.asm.Opcodes.ACONST_NULL;
+import static org.objectweb.asm.Opcodes.ALOAD;
+import static org.objectweb.asm.Opcodes.ARETURN;
+import static org.objectweb.asm.Opcodes.ASTORE;
+import static org.objectweb.asm.Opcodes.ATHROW;
+import static org.objectweb.asm.Opcodes.BIPUSH;
+import static org.objectweb.asm.Opcodes.CHECKCAST;
+import static org.objectweb.asm.Opcodes.DCMPG;
+import static org.objectweb.asm.Opcodes.DCMPL;
+import static org.objectweb.asm.Opcodes.DUP;
+import static org.objectweb.asm.Opcodes.GETFIELD;
+import static org.objectweb.asm.Opcodes.GETSTATIC;
+import static org.objectweb.asm.Opcodes.GOTO;
+import static org.objectweb.asm.Opcodes.ICONST_0;
+import static org.objectweb.asm.Opcodes.ICONST_1;
+import static org.objectweb.asm.Opcodes.IFEQ;
+import static org.objectweb.asm.Opcodes.IFGE;
+import static org.objectweb.asm.Opcodes.IFGT;
+import static org.objectweb.asm.Opcodes.IFLE;
+import static org.objectweb.asm.Opcodes.IFLT;
+import static org.objectweb.asm.Opcodes.IFNE;
+import static org.objectweb.asm.Opcodes.IFNULL;
+import static org.objectweb.asm.Opcodes.ILOAD;
+import static org.objectweb.asm.Opcodes.INSTANCEOF;
+import static org.objectweb.asm.Opcodes.INVOKEINTERFACE;
+import static org.objectweb.asm.Opcodes.INVOKESPECIAL;
+import static org.objectweb.asm.Opcodes.INVOKESTATIC;
+import static org.objectweb.asm.Opcodes.INVOKEVIRTUAL;
+import static org.objectweb.asm.Opcodes.IRETURN;
+import static org.objectweb.asm.Opcodes.LCMP;
+import static org.objectweb.asm.Opcodes.NEW;
+import static org.objectweb.asm.Opcodes.POP;
+import static org.objectweb.asm.Opcodes.PUTFIELD;
+import static org.objectweb.asm.Opcodes.RETURN;
+import static org.objectweb.asm.Opcodes.SIPUSH;
+import static org.objectweb.asm.Opcodes.V1_8;
+
+/**
+ * Generates a {@link GeneratedRule} class for a rule by emitting its bytecode directly, without needing a Java compiler.
+ * <p>
+ * The logical structure of the rule condition is compiled into short-circuiting jumps. Comparisons and equality
+ * checks are emitted inline on their operands, reading message fields, variable slots and constants directly. Function
+ * calls evaluate their arguments in methods of the generated class, which the functions call back into lazily through
+ * their parameters, see {@link CompiledCall}. Functions which aren't pure are invoked directly, calls of pure or
+ * blocking functions go through their bound call, which remembers results per message, shares common subexpressions
+ * and observes blocking calls like the interpreter does. Statements are compiled as well and record their errors
+ * exactly like the interpreter.
+ * <p>
+ * Operators which adapt their operand order at runtime compile each operand into a method of its own and let their
+ * {@link AdaptiveOperandOrder} pick the order to call them in, see {@link CompiledConditions}.
+ * <p>
+ * Expressions which are rare in rules, like arithmetic, indexed access or literal lists, are evaluated by their syntax
+ * tree nodes, which are bound to final fields.
+ * <p>
+ * Generated classes only reference the syntax tree of their rule, they are unloaded together with the
+ * {@link PipelineClassloader} they have been defined in.
+ */
 public class CodeGenerator {
     private static final Logger log = LoggerFactory.getLogger(CodeGenerator.class);
-    private final Provider<JavaCompiler> compilerProvider;
 
-    @Inject
-    public CodeGenerator(Provider<JavaCompiler> compilerProvider) {
-        this.compilerProvider = compilerProvider;
-    }
+    private static final String PACKAGE = "org.graylog.plugins.pipelineprocessor.$dynamic.rules.";
+    static final String BINDINGS_FIELD = "bindings";
+    // longer strings are bound instead of being put into the constant pool, which limits their length
+    private static final int MAX_INLINE_STRING = 8192;
+
+    private static final String OBJECT = Type.getInternalName(Object.class);
+    private static final String OBJECT_DESC = Type.getDescriptor(Object.class);
+    private static final String CLASS = Type.getInternalName(Class.class);
+    private static final String EXCEPTION = Type.getInternalName(Exception.class);
+    private static final String EXCEPTION_DESC = Type.getDescriptor(Exception.class);
+    private static final String GENERATED_RULE = Type.getInternalName(GeneratedRule.class);
+    private static final String COMPILED_ARGUMENTS = Type.getInternalName(CompiledArguments.class);
+    private static final String COMPILED_CALL = Type.getInternalName(CompiledCall.class);
+    private static final String COMPILED_CONDITIONS = Type.getInternalName(CompiledConditions.class);
+    private static final String ADAPTIVE_OPERAND_ORDER = Type.getInternalName(AdaptiveOperandOrder.class);
+    private static final String OPERANDS_DESC = Type.getDescriptor(AdaptiveOperandOrder.Operands.class);
+    private static final String EVALUATION_CONTEXT = Type.getInternalName(EvaluationContext.class);
+    private static final String EVALUATION_CONTEXT_DESC = Type.getDescriptor(EvaluationContext.class);
+    private static final String EXPRESSION = Type.getInternalName(Expression.class);
+    private static final String EXPRESSION_DESC = Type.getDescriptor(Expression.class);
+    private static final String LOGICAL_EXPRESSION = Type.getInternalName(LogicalExpression.class);
+    private static final String EQUALITY_EXPRESSION = Type.getInternalName(EqualityExpression.class);
+    private static final String FUNCTION_EXPRESSION = Type.getInternalName(FunctionExpression.class);
+    private static final String FUNCTION_EXPRESSION_DESC = Type.getDescriptor(FunctionExpression.class);
+    private static final String FUNCTION = Type.getInternalName(Function.class);
+    private static final String FUNCTION_DESC = Type.getDescriptor(Function.class);
+    private static final String FUNCTION_ARGS = Type.getInternalName(FunctionArgs.class);
+    private static final String FUNCTION_ARGS_DESC = Type.getDescriptor(FunctionArgs.class);
+    private static final String FUNCTION_MEMO = Type.getInternalName(FunctionMemo.class);
+    private static final String STATEMENT = Type.getInternalName(Statement.class);
+    private static final String MESSAGE = Type.getInternalName(Message.class);
+    private static final String DATE_TIME = Type.getInternalName(DateTime.class);
+    private static final String READABLE_INSTANT_DESC = Type.getDescriptor(ReadableInstant.class);
+    private static final String LOCATION_AWARE_EVAL_EXCEPTION = Type.getInternalName(LocationAwareEvalException.class);
+    private static final String FUNCTION_EVALUATION_EXCEPTION = Type.getInternalName(FunctionEvaluationException.class);
+    private static final String VALUE_DESC = "(" + EVALUATION_CONTEXT_DESC + ")" + OBJECT_DESC;
+    private static final String CONDITION_DESC = "(" + EVALUATION_CONTEXT_DESC + ")Z";
+
+    private static final AtomicLong generatedClasses = new AtomicLong();
 
-    public static String sourceCodeForRule(Rule rule) {
-        final JavaPoetListener javaPoetListener = new JavaPoetListener();
-        new RuleAstWalker().walk(javaPoetListener, rule);
-        return javaPoetListener.getSource();
+    @Inject
+    public CodeGenerator() {
     }
 
+    /**
+     * Generates and loads the class for the given rule.
+     *
+     * @param rule            the parsed rule, must have an id
+     * @param ruleClassloader the classloader to define the class in
+     * @return the generated class, its only constructor takes a {@link FunctionRegistry}
+     */
     @SuppressWarnings("unchecked")
     public Class<? extends GeneratedRule> generateCompiledRule(Rule rule, PipelineClassloader ruleClassloader) {
         if (rule.id() == null) {
             throw new IllegalArgumentException("Rules must have an id to generate code for them");
         }
-        final String sourceCode = sourceCodeForRule(rule);
+        final String className = PACKAGE + "rule$" + rule.id().replaceAll("[^A-Za-z0-9_]", "_") + "$" + generatedClasses.incrementAndGet();
+        final RuleClassWriter writer = new RuleClassWriter(className.replace('.', '/'), rule);
+        final byte[] bytes = writer.generate();
+
+        ruleClassloader.defineClass(className, bytes);
         try {
-            if (log.isTraceEnabled()) {
-                log.trace("Sourcecode:\n{}", sourceCode);
-            }
-            return (Class<GeneratedRule>) compilerProvider.get().loadFromString(ruleClassloader, "org.graylog.plugins.pipelineprocessor.$dynamic.rules.rule$" + rule.id() , sourceCode);
-        } catch (ClassNotFoundException e) {
-            log.error("Unable to compile code\n{}", sourceCode);
+            final Class<? extends GeneratedRule> ruleClass = (Class<? extends GeneratedRule>) ruleClassloader.loadClass(className);
+            // the objects are bound before the first instance is created, each instance copies them into its fields
+            ruleClass.getField(BINDINGS_FIELD).set(null, writer.bindings.toArray());
+            log.trace("Generated class {} ({} bytes) for rule {}", className, bytes.length, rule.name());
+            return ruleClass;
+        } catch (ClassNotFoundException | NoSuchFieldException | IllegalAccessException e) {
+            log.error("Unable to load generated class for rule {}", rule.name(), e);
             return null;
         }
-
     }
 
-    private static class JavaPoetListener extends RuleAstBaseListener {
-        public static final Set<Class<?>> OPERATOR_SAFE_TYPES = Sets.union(Primitives.allPrimitiveTypes(), Primitives.allWrapperTypes());
-        private long counter = 0;
-        private IdentityHashMap<Expression, CodeBlock> codeSnippet = new IdentityHashMap<>();
-
-        private TypeSpec.Builder classFile;
-        private JavaFile generatedFile;
-        private MethodSpec.Builder when;
-        private MethodSpec.Builder then;
-
-        // points to either when or then
-        private MethodSpec.Builder currentMethod;
+    private static class RuleClassWriter {
+        private final String internalName;
+        private final Rule rule;
+        private final ClassWriter classWriter;
+
+        // the objects the generated code refers to, each one is held in a final field of its declared type
+        private final List<Object> bindings = new ArrayList<>();
+        private final List<String> bindingTypes = new ArrayList<>();
+        // the function calls, each one bound to the instance, see CompiledCall
+        private final List<CallSite> callSites = new ArrayList<>();
+        // the expressions evaluated by methods of their own: function arguments and the values of statements
+        private final List<Expression> values = new ArrayList<>();
+        // the operands of operators which adapt their operand order, each one evaluated by a method of its own
+        private final List<Expression> conditions = new ArrayList<>();
+        // the index of the first condition of each such operator, see CompiledConditions#operands
+        private final List<Integer> orderedOperands = new ArrayList<>();
+        // the next unused local variable of the method being generated
+        private int nextLocal;
+
+        RuleClassWriter(String internalName, Rule rule) {
+            this.internalName = internalName;
+            this.rule = rule;
+            this.classWriter = new ClassWriter(ClassWriter.COMPUTE_FRAMES | ClassWriter.COMPUTE_MAXS) {
+                @Override
+                protected String getCommonSuperClass(String type1, String type2) {
+                    // values are cast right before they are used, avoid loading classes here
+                    return OBJECT;
+                }
+            };
+        }
+
+        byte[] generate() {
+            classWriter.visit(V1_8, ACC_PUBLIC | ACC_FINAL | ACC_SUPER, internalName, null, OBJECT,
+                    new String[]{GENERATED_RULE, COMPILED_ARGUMENTS, COMPILED_CONDITIONS});
+            classWriter.visitField(ACC_PUBLIC | ACC_STATIC, BINDINGS_FIELD, "[" + OBJECT_DESC, null, null).visitEnd();
+
+            // the condition and statements collect the bindings, calls and values the other methods need
+            generateWhen();
+            generateThen();
+            // values and conditions can add the arguments of nested calls and the operands of nested operators
+            int generatedValues = 0;
+            int generatedConditions = 0;
+            while (generatedValues < values.size() || generatedConditions < conditions.size()) {
+                if (generatedValues < values.size()) {
+                    generateValue(generatedValues++);
+                } else {
+                    generateCondition(generatedConditions++);
+                }
+            }
+            generateArgument();
+            generateConditionDispatch();
+            generateName();
+            generateConstructor();
 
-        /**
-         * the unique set of function references in this rule
-         */
-        private Set<FieldSpec> functionMembers = Sets.newHashSet();
-        private Set<FieldSpec> hoistedExpressionMembers = Sets.newHashSet();
-        private Set<TypeSpec> functionArgsHolderTypes = Sets.newHashSet();
-        private MethodSpec.Builder constructorBuilder;
-        private CodeBlock.Builder lateConstructorBlock;
-        private CodeBlock.Builder hoistedConstantExpressions;
-        private Set<CodeBlock> functionReferences = Sets.newHashSet();
-
-        public String getSource() {
-            return generatedFile.toString();
-        }
-
-        @Override
-        public void enterRule(Rule rule) {
-            // generates a new ephemeral unique class name for each generated rule. Only valid for the runtime of the jvm
-            classFile = TypeSpec.classBuilder("rule$" + rule.id())
-                    .addSuperinterface(GeneratedRule.class)
-                    .addModifiers(Modifier.FINAL, Modifier.PUBLIC)
-                    .addAnnotation(AnnotationSpec.builder(SuppressWarnings.class)
-                            .addMember("value", "$S", "unchecked")
-                            .build()
-                    )
-                    .addMethod(MethodSpec.methodBuilder("name")
-                            .returns(String.class)
-                            .addAnnotation(Override.class)
-                            .addModifiers(Modifier.PUBLIC)
-                            .addStatement("return $S", rule.name())
-                            .build()
-                    );
-            constructorBuilder = MethodSpec.constructorBuilder()
-                    .addModifiers(Modifier.PUBLIC)
-                    .addParameter(FunctionRegistry.class, "functionRegistry");
-            lateConstructorBlock = CodeBlock.builder();
-            hoistedConstantExpressions = CodeBlock.builder();
-        }
-
-        @Override
-        public void exitRule(Rule rule) {
-            // create fields for each used function
-            classFile.addFields(functionMembers);
-            // create fields for hoisted constant expressions
-            classFile.addFields(hoistedExpressionMembers);
-            // TODO these can be shared and should potentially created by an AnnotationProcessor for each defined function instead of every rule
-            classFile.addTypes(functionArgsHolderTypes);
-
-            // resolve functions (but only do so once for each function)
-            constructorBuilder.addStatement("// resolve used functions");
-            functionReferences.forEach(block -> constructorBuilder.addStatement("$L", block));
-            // add initializers for fields that depend on the functions being set
-            constructorBuilder.addStatement("// function parameters");
-            constructorBuilder.addCode(lateConstructorBlock.build());
-            // all the expressions/statements that are constant at compile time
-            constructorBuilder.addStatement("// constant expressions");
-            constructorBuilder.addCode(hoistedConstantExpressions.build());
-
-
-            classFile.addMethod(constructorBuilder.build());
-
-            generatedFile = JavaFile.builder("org.graylog.plugins.pipelineprocessor.$dynamic.rules", classFile.build())
-                    .build();
-        }
-
-        @Override
-        public void enterWhen(Rule rule) {
-            when = MethodSpec.methodBuilder("when")
-                    .addModifiers(Modifier.PUBLIC)
-                    .addAnnotation(Override.class)
-                    .returns(boolean.class)
-                    .addParameter(EvaluationContext.class, "context", Modifier.FINAL);
-            currentMethod = when;
-        }
-
-        @Override
-        public void exitWhen(Rule rule) {
-            final CodeBlock result = codeSnippet.getOrDefault(rule.when(), CodeBlock.of("$$when"));
-            when.addStatement("return $L", result);
-
-            classFile.addMethod(when.build());
-            // sanity to catch errors earlier
-            currentMethod = null;
-        }
-
-        @Override
-        public void enterThen(Rule rule) {
-            then = MethodSpec.methodBuilder("then")
-                    .addModifiers(Modifier.PUBLIC)
-                    .addAnnotation(Override.class)
-                    .addParameter(EvaluationContext.class, "context", Modifier.FINAL);
-            currentMethod = then;
-        }
-
-        @Override
-        public void exitThen(Rule rule) {
-            classFile.addMethod(then.build());
-            // sanity to catch errors earlier
-            currentMethod = null;
-        }
-
-        @Override
-        public void exitAnd(AndExpression expr) {
-            final CodeBlock left = codeSnippet.get(expr.left());
-            final CodeBlock right = codeSnippet.get(expr.right());
-
-            codeSnippet.put(expr, CodeBlock.of("($L && $L)", blockOrMissing(left, expr.left()), blockOrMissing(right, expr.right())));
-        }
-
-        @Override
-        public void exitOr(OrExpression expr) {
-            final CodeBlock left = codeSnippet.get(expr.left());
-            final CodeBlock right = codeSnippet.get(expr.right());
-
-            codeSnippet.put(expr, CodeBlock.of("($L || $L)", blockOrMissing(left, expr.left()), blockOrMissing(right, expr.right())));
-        }
-
-        @Override
-        public void exitNot(NotExpression expr) {
-            final CodeBlock right = codeSnippet.get(expr.right());
-
-            codeSnippet.put(expr, CodeBlock.of("!$L", blockOrMissing(right, expr.right())));
+            classWriter.visitEnd();
+            return classWriter.toByteArray();
         }
 
-        @Override
-        public void exitFieldRef(FieldRefExpression expr) {
-            codeSnippet.put(expr, CodeBlock.of("$L", expr.fieldName()));
+        private MethodVisitor method(int access, String name, String descriptor, int firstLocal) {
+            nextLocal = firstLocal;
+            final MethodVisitor mv = classWriter.visitMethod(access, name, descriptor, null, null);
+            mv.visitCode();
+            return mv;
         }
 
-        @Override
-        public void exitFieldAccess(FieldAccessExpression expr) {
-            final CodeBlock object = codeSnippet.get(expr.object());
-            final CodeBlock field = codeSnippet.get(expr.field());
-
-            final Object objectRef = blockOrMissing(object, expr.object());
-
-            final Expression o = expr.object();
-            final PropertyDescriptor[] propertyDescriptors = PropertyUtils.getPropertyDescriptors(o.getType());
-            final ImmutableMap<String, PropertyDescriptor> propertyByName = Maps.uniqueIndex(Iterators.forArray(propertyDescriptors), FeatureDescriptor::getName);
-
-            final String fieldName = field.toString();
-            final CodeBlock block;
-            if (propertyByName.containsKey(fieldName)) {
-                // we have the property, resolve the read method name for it
-                final PropertyDescriptor descriptor = propertyByName.get(fieldName);
-                final String methodName = descriptor.getReadMethod().getName();
-                block = CodeBlock.of("$L.$L()", objectRef, methodName);
-            } else if (o instanceof Map) {
-                // there wasn't any property, but the object is a Map, translate into .get() call
-                block = CodeBlock.of("$L.get($S)", objectRef, field);
-            } else {
-                // this is basically an error, because we expected either a property to match or a map lookup.
-                log.warn("Unable to determine field accessor for property {}", field);
-                block = CodeBlock.of("null");
-            }
-
-            codeSnippet.put(expr, block);
+        private static void endMethod(MethodVisitor mv) {
+            mv.visitMaxs(0, 0);
+            mv.visitEnd();
         }
 
-        @Override
-        public void exitFunctionCall(FunctionExpression expr) {
-            final String functionValueVarName = subExpressionName();
-            final FunctionDescriptor<?> function = expr.getFunction().descriptor();
-
-            final String mangledFunctionName = functionReference(function);
-            final String mangledFuncArgsHolder = functionArgsHolder(function);
-
-            // evaluate all the parameters (the parser made sure all required fields are given)
-            final FunctionArgs args = expr.getArgs();
-            final CodeBlock.Builder argAssignment = CodeBlock.builder();
-            args.getArgs().forEach((name, argExpr) -> {
-                final Object varRef = blockOrMissing(codeSnippet.get(argExpr), argExpr);
-                // hoist constant argument evaluation
-                CodeBlock.Builder target = argExpr.isConstant() ? hoistedConstantExpressions : argAssignment;
-                target.addStatement("$L.setAndTransform$$$L($L)",
-                        mangledFuncArgsHolder,
-                        name,
-                        varRef);
-            });
-            currentMethod.addCode(argAssignment.build());
-
-            // actually invoke the function
-            CodeBlock functionInvocation = CodeBlock.of("$L.evaluate($L, context)", mangledFunctionName, mangledFuncArgsHolder);
-
-            // don't create intermediate values for void functions (set_fields et al)
-            if (Void.class.equals(function.returnType())) {
-                currentMethod.addStatement("$L", functionInvocation);
-            } else {
-                currentMethod.addStatement("$T $L = $L", ClassName.get(function.returnType()), functionValueVarName, functionInvocation);
-            }
-            // create a field/initializer block for the function reference
-            functionMembers.add(
-                    FieldSpec.builder(expr.getFunction().getClass(), mangledFunctionName, Modifier.PRIVATE, Modifier.FINAL)
-                            .build());
-            functionReferences.add(CodeBlock.of("$L = ($T) functionRegistry.resolve($S)",
-                    mangledFunctionName,
-                    expr.getFunction().getClass(),
-                    function.name()));
-            codeSnippet.put(expr, CodeBlock.of("$L", functionValueVarName));
-        }
-
-        @Nonnull
-        private String functionArgsHolder(FunctionDescriptor<?> function) {
-            // create the argument holder for the function invocation (and create the holder class if it doesn't exist yet)
-            final String functionArgsClassname = functionArgsHolderClass(function);
-            final String functionArgsMember = functionReference(function) + "$" + subExpressionName();
-            classFile.addField(FieldSpec.builder(
-                    ClassName.bestGuess(functionArgsClassname), functionArgsMember, Modifier.PRIVATE)
-                    .build());
-
-            lateConstructorBlock.addStatement("$L = new $L()", functionArgsMember, functionArgsClassname);
-
-            return functionArgsMember;
-        }
-
-        @Nonnull
-        private String functionArgsHolderClass(FunctionDescriptor<?> functionDescriptor) {
-            final String funcReferenceName = functionReference(functionDescriptor);
-
-            final String functionArgsClassname = StringUtils.capitalize(funcReferenceName + "$args");
-            final TypeSpec.Builder directFunctionArgs = TypeSpec.classBuilder(functionArgsClassname)
-                    .addModifiers(Modifier.PRIVATE)
-                    .superclass(ClassName.get(FunctionArgs.class));
-            final MethodSpec.Builder constructorBuilder = MethodSpec.constructorBuilder()
-                    .addStatement("super($L, $T.emptyMap())", funcReferenceName, ClassName.get(Collections.class));
-
-            final CodeBlock.Builder parameterValues = CodeBlock.builder();
-            functionDescriptor.params().forEach(pd -> {
-                directFunctionArgs.addMethod(MethodSpec.methodBuilder("setAndTransform$" + pd.name())
-                        .returns(TypeName.VOID)
-                        .addParameter(ClassName.get(pd.type()), "arg$" + pd.name())
-                        .addStatement("transformed$$$L = transformer$$$L.apply(arg$$$L)",
-                                pd.name(), pd.name(), pd.name())
-                        .build()
-                );
-                final ParameterizedTypeName transformerType = ParameterizedTypeName.get(Function.class, pd.type(), pd.transformedType());
-                directFunctionArgs.addField(
-                        transformerType,
-                        "transformer$" + pd.name(),
-                        Modifier.PRIVATE, Modifier.FINAL);
-                directFunctionArgs.addField(ClassName.get(pd.transformedType()), "transformed$" + pd.name());
-                constructorBuilder.addStatement("transformer$$$L = ($T) $L.descriptor().param($S).transform()",
-                        pd.name(),
-                        transformerType,
-                        funcReferenceName,
-                        pd.name());
-
-                parameterValues.add(CodeBlock.builder()
-                        .beginControlFlow("case $S:", pd.name())
-                        .addStatement("return transformed$$$L", pd.name())
-                        .endControlFlow().build());
-            });
-
-            directFunctionArgs.addMethod(MethodSpec.methodBuilder("getPreComputedValue")
-                    .returns(TypeName.OBJECT)
-                    .addParameter(String.class, "name")
-                    .addModifiers(Modifier.PUBLIC)
-                    .addAnnotation(Override.class)
-                    .addCode(CodeBlock.builder()
-                            .beginControlFlow("switch (name)")
-                            .add(parameterValues.build())
-                            .endControlFlow()
-                            .addStatement("return null")
-                            .build())
-                    .build());
-
-            directFunctionArgs.addMethod(constructorBuilder.build());
-
-            final TypeSpec holder = directFunctionArgs.build();
-            if (!functionArgsHolderTypes.contains(holder)) {
-                functionArgsHolderTypes.add(holder);
-            }
-            return functionArgsClassname;
+        private int bind(Object value, String type) {
+            bindings.add(value);
+            bindingTypes.add(type);
+            return bindings.size() - 1;
         }
 
-        @Nonnull
-        private String functionReference(FunctionDescriptor<?> function) {
-            return "func$" + function.name();
+        private void loadBinding(MethodVisitor mv, int binding) {
+            mv.visitVarInsn(ALOAD, 0);
+            mv.visitFieldInsn(GETFIELD, internalName, "b" + binding, "L" + bindingTypes.get(binding) + ";");
         }
 
-        @Override
-        public void exitEquality(EqualityExpression expr) {
-            final String intermediateName = subExpressionName();
-
-            // equality is one of the points we generate intermediate values at
-            final CodeBlock leftBlock = codeSnippet.get(expr.left());
-            final CodeBlock rightBlock = codeSnippet.get(expr.right());
-
-            final Class leftType = expr.left().getType();
-            final Class rightType = expr.right().getType();
-            boolean useOperator = false;
-            if (OPERATOR_SAFE_TYPES.contains(leftType) && OPERATOR_SAFE_TYPES.contains(rightType)) {
-                useOperator = true;
+        private void generateConstructor() {
+            for (int i = 0; i < bindings.size(); i++) {
+                classWriter.visitField(ACC_PRIVATE | ACC_FINAL, "b" + i, "L" + bindingTypes.get(i) + ";", null, null).visitEnd();
             }
-            String statement = "boolean $L = ";
-            final boolean checkEquality = expr.isCheckEquality();
-            if (useOperator) {
-                statement += "$L " + (checkEquality ? "==" : "!=") + " $L";
-                currentMethod.addStatement(statement,
-                        intermediateName,
-                        blockOrMissing(leftBlock, expr.left()),
-                        blockOrMissing(rightBlock, expr.right()));
-            } else {
-                // Dates
-                if (DateTime.class.equals(leftType)) {
-                    if (DateTime.class.equals(rightType)) {
-                        codeSnippet.putIfAbsent(expr, CodeBlock.of("$L.isEqual($L)", leftBlock, rightBlock));
-                        return;
-                    }
-                } else if (Period.class.equals(leftType)) {
-                    if (Period.class.equals(rightType)) {
-                        codeSnippet.putIfAbsent(expr,
-                                CodeBlock.of("$L.toDuration().equals($L.toDuration())", leftBlock, rightBlock));
-                        return;
-                    }
-                }
-
-                statement += (checkEquality ? "" : "!") + "$T.equals($L, $L)";
-                currentMethod.addStatement(statement,
-                        intermediateName,
-                        ClassName.get(Objects.class),
-                        blockOrMissing(leftBlock, expr.left()),
-                        blockOrMissing(rightBlock, expr.right()));
+            for (int i = 0; i < orderedOperands.size(); i++) {
+                classWriter.visitField(ACC_PRIVATE | ACC_FINAL, "o" + i, OPERANDS_DESC, null, null).visitEnd();
             }
-
-            codeSnippet.put(expr, CodeBlock.of("$L", intermediateName));
-        }
-
-        @Override
-        public void exitComparison(ComparisonExpression expr) {
-            final CodeBlock left = codeSnippet.get(expr.left());
-            final CodeBlock right = codeSnippet.get(expr.right());
-
-            final Class leftType = expr.left().getType();
-            final Class rightType = expr.right().getType();
-
-            if (DateTime.class.equals(leftType)) {
-                if (DateTime.class.equals(rightType)) {
-                    CodeBlock block;
-                    switch (expr.getOperator()) {
-                        case ">":
-                            block = CodeBlock.of("$L.isAfter($L)", left, right);
-                            break;
-                        case ">=":
-                            block = CodeBlock.of("!$L.isBefore($L)", left, right);
-                            break;
-                        case "<":
-                            block = CodeBlock.of("$L.isBefore($L)", left, right);
-                            break;
-                        case "<=":
-                            block = CodeBlock.of("!$L.isAfter($L)", left, right);
-                            break;
-                        default:
-                            block = null;
-                    }
-                    if (block != null) {
-                        codeSnippet.putIfAbsent(expr, block);
-                        return;
-                    }
+            for (int i = 0; i < callSites.size(); i++) {
+                classWriter.visitField(ACC_PRIVATE | ACC_FINAL, "s" + i, FUNCTION_EXPRESSION_DESC, null, null).visitEnd();
+                if (callSites.get(i).direct) {
+                    classWriter.visitField(ACC_PRIVATE | ACC_FINAL, "f" + i, FUNCTION_DESC, null, null).visitEnd();
+                    classWriter.visitField(ACC_PRIVATE | ACC_FINAL, "p" + i, FUNCTION_ARGS_DESC, null, null).visitEnd();
                 }
-            } else if (Period.class.equals(leftType)) {
-                if (Period.class.equals(rightType)) {
-                    codeSnippet.putIfAbsent(expr,
-                            CodeBlock.of("($L.toDuration().getMillis() " + expr.getOperator() + " $L.toDuration().getMillis())",
-                                    blockOrMissing(left, expr.left()),
-                                    blockOrMissing(right, expr.right())));
-                    return;
-
+            }
+            final MethodVisitor mv = method(ACC_PUBLIC, "<init>", "(" + Type.getDescriptor(FunctionRegistry.class) + ")V", 2);
+            mv.visitVarInsn(ALOAD, 0);
+            mv.visitMethodInsn(INVOKESPECIAL, OBJECT, "<init>", "()V", false);
+            for (int i = 0; i < bindings.size(); i++) {
+                mv.visitVarInsn(ALOAD, 0);
+                mv.visitFieldInsn(GETSTATIC, internalName, BINDINGS_FIELD, "[" + OBJECT_DESC);
+                pushInt(mv, i);
+                mv.visitInsn(AALOAD);
+                mv.visitTypeInsn(CHECKCAST, bindingTypes.get(i));
+                mv.visitFieldInsn(PUTFIELD, internalName, "b" + i, "L" + bindingTypes.get(i) + ";");
+            }
+            for (int i = 0; i < orderedOperands.size(); i++) {
+                mv.visitVarInsn(ALOAD, 0);
+                mv.visitVarInsn(ALOAD, 0);
+                pushInt(mv, orderedOperands.get(i));
+                mv.visitMethodInsn(INVOKEVIRTUAL, internalName, "operands", "(I)" + OPERANDS_DESC, false);
+                mv.visitFieldInsn(PUTFIELD, internalName, "o" + i, OPERANDS_DESC);
+            }
+            for (int i = 0; i < callSites.size(); i++) {
+                // the call evaluates its arguments with the code of this instance
+                mv.visitVarInsn(ALOAD, 0);
+                loadBinding(mv, callSites.get(i).binding);
+                mv.visitVarInsn(ALOAD, 0);
+                mv.visitMethodInsn(INVOKEVIRTUAL, COMPILED_CALL, "bind",
+                        "(L" + COMPILED_ARGUMENTS + ";)" + FUNCTION_EXPRESSION_DESC, false);
+                mv.visitFieldInsn(PUTFIELD, internalName, "s" + i, FUNCTION_EXPRESSION_DESC);
+                if (callSites.get(i).direct) {
+                    mv.visitVarInsn(ALOAD, 0);
+                    loadCallSite(mv, i);
+                    mv.visitMethodInsn(INVOKEVIRTUAL, FUNCTION_EXPRESSION, "getFunction", "()" + FUNCTION_DESC, false);
+                    mv.visitFieldInsn(PUTFIELD, internalName, "f" + i, FUNCTION_DESC);
+                    mv.visitVarInsn(ALOAD, 0);
+                    loadCallSite(mv, i);
+                    mv.visitMethodInsn(INVOKEVIRTUAL, FUNCTION_EXPRESSION, "getArgs", "()" + FUNCTION_ARGS_DESC, false);
+                    mv.visitFieldInsn(PUTFIELD, internalName, "p" + i, FUNCTION_ARGS_DESC);
                 }
             }
-
-            codeSnippet.putIfAbsent(expr, CodeBlock.of("($L " + expr.getOperator() + " $L)",
-                    blockOrMissing(left, expr.left()),
-                    blockOrMissing(right, expr.right())));
+            mv.visitInsn(RETURN);
+            endMethod(mv);
         }
 
-        @Override
-        public void exitBooleanFuncWrapper(BooleanValuedFunctionWrapper expr) {
-            final CodeBlock embeddedExpr = codeSnippet.get(expr.expression());
-
-            // simply forward the other expression's code
-            codeSnippet.put(expr, CodeBlock.of("$L", blockOrMissing(embeddedExpr, expr.expression())));
+        private void loadCallSite(MethodVisitor mv, int callSite) {
+            mv.visitVarInsn(ALOAD, 0);
+            mv.visitFieldInsn(GETFIELD, internalName, "s" + callSite, FUNCTION_EXPRESSION_DESC);
         }
 
-        @Override
-        public void exitConstant(ConstantExpression expr) {
-            codeSnippet.putIfAbsent(expr, CodeBlock.of("$L", expr.evaluateUnsafe()));
+        private void generateName() {
+            final MethodVisitor mv = method(ACC_PUBLIC, "name", "()Ljava/lang/String;", 1);
+            mv.visitLdcInsn(rule.name());
+            mv.visitInsn(ARETURN);
+            endMethod(mv);
         }
 
-        @Override
-        public void exitString(StringExpression expr) {
-            // this overrides what exitConstant would do for strings…
-            codeSnippet.putIfAbsent(expr, CodeBlock.of("$S", expr.evaluateUnsafe()));
+        private void generateWhen() {
+            final MethodVisitor mv = method(ACC_PUBLIC, "when", "(" + EVALUATION_CONTEXT_DESC + ")Z", 2);
+            final Label notMatched = new Label();
+            branch(mv, rule.when(), notMatched, false);
+            mv.visitInsn(ICONST_1);
+            mv.visitInsn(IRETURN);
+            mv.visitLabel(notMatched);
+            mv.visitInsn(ICONST_0);
+            mv.visitInsn(IRETURN);
+            endMethod(mv);
         }
 
-        @Override
-        public void exitLong(LongExpression expr) {
-            // long needs a suffix
-            codeSnippet.putIfAbsent(expr, CodeBlock.of("$LL", expr.evaluateUnsafe()));
+        /**
+         * Emits code which jumps to {@code target} if the expression evaluates to {@code jumpIf} and falls through otherwise.
+         */
+        private void branch(MethodVisitor mv, Expression expression, Label target, boolean jumpIf) {
+            if (expression instanceof BooleanExpression) {
+                if (((BooleanExpression) expression).evaluateBool(null) == jumpIf) {
+                    mv.visitJumpInsn(GOTO, target);
+                }
+            } else if (expression instanceof NotExpression) {
+                branch(mv, ((NotExpression) expression).right(), target, !jumpIf);
+            } else if (expression instanceof AndExpression) {
+                final AndExpression and = (AndExpression) expression;
+                branchChain(mv, and.operandOrder(), Lists.newArrayList(and.left(), and.right()), true, target, jumpIf);
+            } else if (expression instanceof OrExpression) {
+                final OrExpression or = (OrExpression) expression;
+                branchChain(mv, or.operandOrder(), Lists.newArrayList(or.left(), or.right()), false, target, jumpIf);
+            } else if (expression instanceof LogicalChainExpression) {
+                final LogicalChainExpression chain = (LogicalChainExpression) expression;
+                branchChain(mv, chain.operandOrder(), chain.operands(), chain.isAnd(), target, jumpIf);
+            } else if (expression instanceof EqualityExpression) {
+                branchEquality(mv, (EqualityExpression) expression, target, jumpIf);
+            } else if (expression instanceof ComparisonExpression && isComparison(((ComparisonExpression) expression).getOperator())) {
+                branchComparison(mv, (ComparisonExpression) expression, target, jumpIf);
+            } else if (expression instanceof BooleanValuedFunctionWrapper) {
+                // like the wrapper, null counts as false
+                value(mv, ((BooleanValuedFunctionWrapper) expression).expression());
+                final int value = nextLocal++;
+                mv.visitVarInsn(ASTORE, value);
+                final Label isNull = new Label();
+                final Label end = new Label();
+                mv.visitVarInsn(ALOAD, value);
+                mv.visitJumpInsn(IFNULL, isNull);
+                mv.visitVarInsn(ALOAD, value);
+                mv.visitTypeInsn(CHECKCAST, "java/lang/Boolean");
+                mv.visitMethodInsn(INVOKEVIRTUAL, "java/lang/Boolean", "booleanValue", "()Z", false);
+                mv.visitJumpInsn(jumpIf ? IFNE : IFEQ, target);
+                mv.visitJumpInsn(GOTO, end);
+                mv.visitLabel(isNull);
+                if (!jumpIf) {
+                    mv.visitJumpInsn(GOTO, target);
+                }
+                mv.visitLabel(end);
+            } else {
+                loadBinding(mv, bind(expression, LOGICAL_EXPRESSION));
+                mv.visitVarInsn(ALOAD, 1);
+                mv.visitMethodInsn(INVOKEINTERFACE, LOGICAL_EXPRESSION, "evaluateBool", "(" + EVALUATION_CONTEXT_DESC + ")Z", true);
+                mv.visitJumpInsn(jumpIf ? IFNE : IFEQ, target);
+            }
         }
 
-        @Override
-        public void exitDouble(DoubleExpression expr) {
-            // double should have a suffix
-            codeSnippet.putIfAbsent(expr, CodeBlock.of("$Ld", expr.evaluateUnsafe()));
+        private void branchChain(MethodVisitor mv, @Nullable AdaptiveOperandOrder order, List<Expression> operands,
+                                 boolean isAnd, Label target, boolean jumpIf) {
+            if (order != null) {
+                // the operands are compiled, the order decides which one to call next
+                final int ordered = orderedOperands.size();
+                orderedOperands.add(conditions.size());
+                conditions.addAll(operands);
+                loadBinding(mv, bind(order, ADAPTIVE_OPERAND_ORDER));
+                mv.visitVarInsn(ALOAD, 0);
+                mv.visitFieldInsn(GETFIELD, internalName, "o" + ordered, OPERANDS_DESC);
+                mv.visitVarInsn(ALOAD, 1);
+                mv.visitMethodInsn(INVOKEVIRTUAL, ADAPTIVE_OPERAND_ORDER, "evaluate", "(" + OPERANDS_DESC + EVALUATION_CONTEXT_DESC + ")Z", false);
+                mv.visitJumpInsn(jumpIf ? IFNE : IFEQ, target);
+                return;
+            }
+            // the operand value which decides the outcome of the whole chain: false for AND, true for OR
+            final boolean deciding = !isAnd;
+            final int last = operands.size() - 1;
+            if (jumpIf == deciding) {
+                for (Expression operand : operands) {
+                    branch(mv, operand, target, deciding);
+                }
+            } else {
+                final Label decided = new Label();
+                for (int i = 0; i < last; i++) {
+                    branch(mv, operands.get(i), decided, deciding);
+                }
+                branch(mv, operands.get(last), target, jumpIf);
+                mv.visitLabel(decided);
+            }
         }
 
-        @Override
-        public void exitMessageRef(MessageRefExpression expr) {
-            final Object field = blockOrMissing(codeSnippet.get(expr.getFieldExpr()), expr.getFieldExpr());
-
-            codeSnippet.putIfAbsent(expr, CodeBlock.of("context.currentMessage().getField($S)", field));
+        private void branchEquality(MethodVisitor mv, EqualityExpression equality, Label target, boolean jumpIf) {
+            final int left = storeValue(mv, equality.left());
+            final int right = storeValue(mv, equality.right());
+            final Label slowPath = new Label();
+            final Label end = new Label();
+
+            // null operands, dates and tracing are rare, they are left to the syntax tree node
+            mv.visitVarInsn(ALOAD, left);
+            mv.visitJumpInsn(IFNULL, slowPath);
+            mv.visitVarInsn(ALOAD, left);
+            mv.visitTypeInsn(INSTANCEOF, DATE_TIME);
+            mv.visitJumpInsn(IFNE, slowPath);
+            mv.visitMethodInsn(INVOKESTATIC, EQUALITY_EXPRESSION, "isTraceEnabled", "()Z", false);
+            mv.visitJumpInsn(IFNE, slowPath);
+            mv.visitVarInsn(ALOAD, left);
+            mv.visitVarInsn(ALOAD, right);
+            mv.visitMethodInsn(INVOKEVIRTUAL, OBJECT, "equals", "(" + OBJECT_DESC + ")Z", false);
+            // jump if equals is true for == or false for !=
+            mv.visitJumpInsn(jumpIf == equality.isCheckEquality() ? IFNE : IFEQ, target);
+            mv.visitJumpInsn(GOTO, end);
+
+            mv.visitLabel(slowPath);
+            loadBinding(mv, bind(equality, EQUALITY_EXPRESSION));
+            mv.visitVarInsn(ALOAD, left);
+            mv.visitVarInsn(ALOAD, right);
+            mv.visitMethodInsn(INVOKEVIRTUAL, EQUALITY_EXPRESSION, "evaluateBool", "(" + OBJECT_DESC + OBJECT_DESC + ")Z", false);
+            mv.visitJumpInsn(jumpIf ? IFNE : IFEQ, target);
+            mv.visitLabel(end);
+        }
+
+        private static boolean isComparison(String operator) {
+            return ">".equals(operator) || ">=".equals(operator) || "<".equals(operator) || "<=".equals(operator);
+        }
+
+        private void branchComparison(MethodVisitor mv, ComparisonExpression comparison, Label target, boolean jumpIf) {
+            final String operator = comparison.getOperator();
+            final int left = storeValue(mv, comparison.left());
+            final int right = storeValue(mv, comparison.right());
+            final Label doubles = new Label();
+            final Label longs = new Label();
+            final Label end = new Label();
+
+            // operands known to be of the same numeric type skip the type tests, otherwise test like the interpreter
+            final boolean bothLong = Long.class.equals(comparison.left().getType()) && Long.class.equals(comparison.right().getType());
+            final boolean bothDouble = Double.class.equals(comparison.left().getType()) && Double.class.equals(comparison.right().getType());
+            if (bothDouble) {
+                mv.visitJumpInsn(GOTO, doubles);
+            } else if (!bothLong) {
+                final Label notDates = new Label();
+                mv.visitVarInsn(ALOAD, left);
+                mv.visitTypeInsn(INSTANCEOF, DATE_TIME);
+                mv.visitJumpInsn(IFEQ, notDates);
+                mv.visitVarInsn(ALOAD, right);
+                mv.visitTypeInsn(INSTANCEOF, DATE_TIME);
+                mv.visitJumpInsn(IFEQ, notDates);
+                mv.visitVarInsn(ALOAD, left);
+                mv.visitTypeInsn(CHECKCAST, DATE_TIME);
+                mv.visitVarInsn(ALOAD, right);
+                mv.visitTypeInsn(CHECKCAST, DATE_TIME);
+                // > is isAfter, >= is !isBefore, < is isBefore and <= is !isAfter
+                final boolean after = operator.startsWith(">") != operator.endsWith("=");
+                mv.visitMethodInsn(INVOKEVIRTUAL, DATE_TIME, after ? "isAfter" : "isBefore", "(" + READABLE_INSTANT_DESC + ")Z", false);
+                mv.visitJumpInsn(jumpIf != operator.endsWith("=") ? IFNE : IFEQ, target);
+                mv.visitJumpInsn(GOTO, end);
+
+                mv.visitLabel(notDates);
+                mv.visitVarInsn(ALOAD, left);
+                mv.visitTypeInsn(INSTANCEOF, "java/lang/Double");
+                mv.visitJumpInsn(IFNE, doubles);
+                mv.visitVarInsn(ALOAD, right);
+                mv.visitTypeInsn(INSTANCEOF, "java/lang/Double");
+                mv.visitJumpInsn(IFEQ, longs);
+            }
+            if (!bothLong) {
+                mv.visitLabel(doubles);
+                unbox(mv, left, "java/lang/Double", "doubleValue", "()D");
+                unbox(mv, right, "java/lang/Double", "doubleValue", "()D");
+                // NaN compares false with every operator
+                mv.visitInsn(operator.startsWith(">") ? DCMPL : DCMPG);
+                mv.visitJumpInsn(compareJump(operator, jumpIf), target);
+                mv.visitJumpInsn(GOTO, end);
+            }
+            if (!bothDouble) {
+                mv.visitLabel(longs);
+                unbox(mv, left, "java/lang/Long", "longValue", "()J");
+                unbox(mv, right, "java/lang/Long", "longValue", "()J");
+                mv.visitInsn(LCMP);
+                mv.visitJumpInsn(compareJump(operator, jumpIf), target);
+            }
+            mv.visitLabel(end);
+        }
+
+        private static void unbox(MethodVisitor mv, int local, String boxType, String method, String descriptor) {
+            mv.visitVarInsn(ALOAD, local);
+            mv.visitTypeInsn(CHECKCAST, boxType);
+            mv.visitMethodInsn(INVOKEVIRTUAL, boxType, method, descriptor, false);
+        }
+
+        // the jump on the result of comparing both operands which is taken if the comparison is jumpIf
+        private static int compareJump(String operator, boolean jumpIf) {
+            switch (operator) {
+                case ">":
+                    return jumpIf ? IFGT : IFLE;
+                case ">=":
+                    return jumpIf ? IFGE : IFLT;
+                case "<":
+                    return jumpIf ? IFLT : IFGE;
+                default:
+                    return jumpIf ? IFLE : IFGT;
+            }
         }
 
-        @Override
-        public void exitVariableAssignStatement(VarAssignStatement assign) {
-            final Object value = blockOrMissing(codeSnippet.get(assign.getValueExpression()), assign.getValueExpression());
-            final Class type = assign.getValueExpression().getType();
+        private int storeValue(MethodVisitor mv, Expression expression) {
+            value(mv, expression);
+            final int local = nextLocal++;
+            mv.visitVarInsn(ASTORE, local);
+            return local;
+        }
 
-            // always hoist declaration
-            hoistedExpressionMembers.add(FieldSpec.builder(type, "var$" + assign.getName(), Modifier.PRIVATE).build());
-            if (assign.getValueExpression().isConstant()) {
-                // also hoist the assignment
-                hoistedConstantExpressions.addStatement("var$$$L = $L", assign.getName(), value);
+        /**
+         * Emits code which pushes the value of the expression.
+         */
+        private void value(MethodVisitor mv, Expression expression) {
+            if (expression instanceof ConstantExpression || expression instanceof FieldRefExpression) {
+                constant(mv, expression.evaluateUnsafe());
+            } else if (expression instanceof MessageRefExpression
+                    && ((MessageRefExpression) expression).getFieldExpr() instanceof FieldRefExpression) {
+                final FieldRefExpression field = (FieldRefExpression) ((MessageRefExpression) expression).getFieldExpr();
+                mv.visitVarInsn(ALOAD, 1);
+                mv.visitMethodInsn(INVOKEVIRTUAL, EVALUATION_CONTEXT, "currentMessage", "()L" + MESSAGE + ";", false);
+                constant(mv, field.fieldName());
+                mv.visitMethodInsn(INVOKEVIRTUAL, MESSAGE, "getField", "(Ljava/lang/String;)" + OBJECT_DESC, false);
+            } else if (expression instanceof VarRefExpression && ((VarRefExpression) expression).slot() >= 0) {
+                mv.visitVarInsn(ALOAD, 1);
+                pushInt(mv, ((VarRefExpression) expression).slot());
+                mv.visitMethodInsn(INVOKEVIRTUAL, EVALUATION_CONTEXT, "getSlot", "(I)" + OBJECT_DESC, false);
+            } else if (expression instanceof FunctionExpression) {
+                call(mv, (FunctionExpression) expression);
+            } else if (expression instanceof LogicalExpression) {
+                final Label isFalse = new Label();
+                final Label end = new Label();
+                branch(mv, expression, isFalse, false);
+                mv.visitFieldInsn(GETSTATIC, "java/lang/Boolean", "TRUE", "Ljava/lang/Boolean;");
+                mv.visitJumpInsn(GOTO, end);
+                mv.visitLabel(isFalse);
+                mv.visitFieldInsn(GETSTATIC, "java/lang/Boolean", "FALSE", "Ljava/lang/Boolean;");
+                mv.visitLabel(end);
             } else {
-                currentMethod.addStatement("var$$$L = $L", assign.getName(), value);
+                loadBinding(mv, bind(expression, EXPRESSION));
+                mv.visitVarInsn(ALOAD, 1);
+                mv.visitMethodInsn(INVOKEINTERFACE, EXPRESSION, "evaluateUnsafe", VALUE_DESC, true);
             }
         }
 
-        @Override
-        public void exitVariableReference(VarRefExpression expr) {
-            codeSnippet.putIfAbsent(expr, CodeBlock.of("var$$$L", expr.varName()));
-        }
-
-        @Override
-        public void exitMapLiteral(MapLiteralExpression expr) {
-            // we need an intermediate value for creating the map
-            final String mapName = "mapLiteral$" + subExpressionName();
-            final boolean constantMap = expr.isConstant();
-            if (constantMap) {
-                // we can hoist both the declaration, as well as the definition of the map
-                hoistedExpressionMembers.add(FieldSpec.builder(Map.class, mapName, Modifier.PRIVATE, Modifier.FINAL).build());
-                hoistedConstantExpressions.addStatement("$L = $T.newHashMap()", mapName, Maps.class);
+        private void constant(MethodVisitor mv, Object value) {
+            if (value == null) {
+                mv.visitInsn(ACONST_NULL);
+            } else if (value instanceof String && ((String) value).length() <= MAX_INLINE_STRING) {
+                mv.visitLdcInsn(value);
+            } else if (value instanceof Boolean) {
+                mv.visitFieldInsn(GETSTATIC, "java/lang/Boolean", (Boolean) value ? "TRUE" : "FALSE", "Ljava/lang/Boolean;");
             } else {
-                currentMethod.addStatement("$T $L = $T.newHashMap()", Map.class, mapName, Maps.class);
+                // boxed once instead of on every evaluation
+                loadBinding(mv, bind(value, OBJECT));
             }
+        }
 
-            expr.entries().forEach(entry -> {
-                final String code = "$L.put($S, $L)";
-                final Object[] args = {mapName, entry.getKey(), blockOrMissing(codeSnippet.get(entry.getValue()), entry.getValue())};
-                // TODO convert to code block
-                // hoist only completely constant maps (otherwise we would need to regenerate the non-constant ones per evaluation)
-                if (constantMap) {
-                    hoistedConstantExpressions.addStatement(code, args);
-                } else {
-                    currentMethod.addStatement(code, args);
+        private void call(MethodVisitor mv, FunctionExpression call) {
+            final Map<String, Integer> arguments = new HashMap<>();
+            call.getArgs().getArgs().forEach((name, argument) -> {
+                if (argument != null) {
+                    arguments.put(name, valueMethod(argument));
                 }
             });
-            // add the reference to the map we created
-            codeSnippet.putIfAbsent(expr, CodeBlock.of("$L", mapName));
-        }
-
-        @Override
-        public void exitArrayLiteral(ArrayLiteralExpression expr) {
-            final String listName = "arrayLiteral$" + subExpressionName();
-            final boolean constantList = expr.isConstant();
-
-            final ImmutableList.Builder<Object> elementsBuilder = ImmutableList.builder();
-            expr.children().forEach(expression -> elementsBuilder.add(blockOrMissing(codeSnippet.get(expression), expression)));
-            final ImmutableList<Object> elements = elementsBuilder.build();
-
-            // if possible hoist decl to constructor
-            if (constantList) {
-                hoistedExpressionMembers.add(FieldSpec.builder(List.class, listName, Modifier.PRIVATE, Modifier.FINAL).build());
+            final FunctionDescriptor descriptor = call.getFunction().descriptor();
+            final boolean direct = !descriptor.pure() && !descriptor.blocking();
+            final int callSite = callSites.size();
+            callSites.add(new CallSite(bind(new CompiledCall(call, arguments), COMPILED_CALL), direct));
+
+            if (!direct) {
+                // remembering results per message, sharing common subexpressions and observing blocking calls is up to the call
+                loadCallSite(mv, callSite);
+                mv.visitVarInsn(ALOAD, 1);
+                mv.visitMethodInsn(INVOKEVIRTUAL, FUNCTION_EXPRESSION, "evaluateUnsafe", VALUE_DESC, false);
+                return;
             }
-            final String assignmentFormat = "$L = $T.newArrayList("
-                    + Stream.generate(() -> "$L").limit(elements.size()).reduce(Joiner.on(", ")::join).orElseGet(() -> "$")
-                    + ")";
-            // sigh java varargs
-            List<Object> args = Lists.newArrayList(ArrayList.class, listName, Lists.class);
-            args.addAll(elements);
-            // if constant, initialize completely in constructor
-            if (constantList) {
-                hoistedConstantExpressions.addStatement(assignmentFormat, args.subList(1, args.size()).toArray());
-            } else {
-                currentMethod.addStatement("$T " + assignmentFormat, args.toArray());
+
+            // the return type might not be visible to the generated class, cast with the bound class instead
+            final int returnType = bind(descriptor.returnType(), CLASS);
+            final int value = nextLocal++;
+            final Label start = new Label();
+            final Label end = new Label();
+            final Label rethrow = new Label();
+            final Label wrap = new Label();
+            final Label done = new Label();
+            mv.visitTryCatchBlock(start, end, rethrow, LOCATION_AWARE_EVAL_EXCEPTION);
+            mv.visitTryCatchBlock(start, end, wrap, EXCEPTION);
+            mv.visitLabel(start);
+            loadBinding(mv, returnType);
+            mv.visitVarInsn(ALOAD, 0);
+            mv.visitFieldInsn(GETFIELD, internalName, "f" + callSite, FUNCTION_DESC);
+            mv.visitVarInsn(ALOAD, 0);
+            mv.visitFieldInsn(GETFIELD, internalName, "p" + callSite, FUNCTION_ARGS_DESC);
+            mv.visitVarInsn(ALOAD, 1);
+            mv.visitMethodInsn(INVOKEINTERFACE, FUNCTION, "evaluate", "(" + FUNCTION_ARGS_DESC + EVALUATION_CONTEXT_DESC + ")" + OBJECT_DESC, true);
+            mv.visitMethodInsn(INVOKEVIRTUAL, CLASS, "cast", "(" + OBJECT_DESC + ")" + OBJECT_DESC, false);
+            mv.visitVarInsn(ASTORE, value);
+            mv.visitLabel(end);
+            mv.visitJumpInsn(GOTO, done);
+
+            // the exception already has a location from the input source, simply propagate it
+            mv.visitLabel(rethrow);
+            mv.visitInsn(ATHROW);
+
+            // wrap the original exception to retain the position in the tree where the exception originated
+            mv.visitLabel(wrap);
+            final int exception = nextLocal++;
+            mv.visitVarInsn(ASTORE, exception);
+            mv.visitTypeInsn(NEW, FUNCTION_EVALUATION_EXCEPTION);
+            mv.visitInsn(DUP);
+            loadCallSite(mv, callSite);
+            mv.visitVarInsn(ALOAD, exception);
+            mv.visitMethodInsn(INVOKESPECIAL, FUNCTION_EVALUATION_EXCEPTION, "<init>", "(" + FUNCTION_EXPRESSION_DESC + EXCEPTION_DESC + ")V", false);
+            mv.visitInsn(ATHROW);
+
+            // only functions which aren't pure can change the message, see FunctionExpression
+            mv.visitLabel(done);
+            final int memo = nextLocal++;
+            final Label unchanged = new Label();
+            mv.visitVarInsn(ALOAD, 1);
+            mv.visitMethodInsn(INVOKEVIRTUAL, EVALUATION_CONTEXT, "functionMemo", "()L" + FUNCTION_MEMO + ";", false);
+            mv.visitVarInsn(ASTORE, memo);
+            mv.visitVarInsn(ALOAD, memo);
+            mv.visitJumpInsn(IFNULL, unchanged);
+            mv.visitVarInsn(ALOAD, memo);
+            mv.visitMethodInsn(INVOKEVIRTUAL, FUNCTION_MEMO, "messageChanged", "()V", false);
+            mv.visitLabel(unchanged);
+            mv.visitVarInsn(ALOAD, value);
+        }
+
+        private int valueMethod(Expression expression) {
+            values.add(expression);
+            return values.size() - 1;
+        }
+
+        private void generateValue(int index) {
+            final MethodVisitor mv = method(ACC_PRIVATE, "value" + index, VALUE_DESC, 2);
+            value(mv, values.get(index));
+            mv.visitInsn(ARETURN);
+            endMethod(mv);
+        }
+
+        private void generateCondition(int index) {
+            final MethodVisitor mv = method(ACC_PRIVATE, "condition" + index, CONDITION_DESC, 2);
+            final Label isFalse = new Label();
+            branch(mv, conditions.get(index), isFalse, false);
+            mv.visitInsn(ICONST_1);
+            mv.visitInsn(IRETURN);
+            mv.visitLabel(isFalse);
+            mv.visitInsn(ICONST_0);
+            mv.visitInsn(IRETURN);
+            endMethod(mv);
+        }
+
+        private void generateConditionDispatch() {
+            final MethodVisitor mv = method(ACC_PUBLIC, "condition", "(I" + EVALUATION_CONTEXT_DESC + ")Z", 3);
+            final Label unknown = new Label();
+            if (!conditions.isEmpty()) {
+                final Label[] cases = new Label[conditions.size()];
+                for (int i = 0; i < cases.length; i++) {
+                    cases[i] = new Label();
+                }
+                mv.visitVarInsn(ILOAD, 1);
+                mv.visitTableSwitchInsn(0, cases.length - 1, unknown, cases);
+                for (int i = 0; i < cases.length; i++) {
+                    mv.visitLabel(cases[i]);
+                    mv.visitVarInsn(ALOAD, 0);
+                    mv.visitVarInsn(ALOAD, 2);
+                    mv.visitMethodInsn(INVOKESPECIAL, internalName, "condition" + i, CONDITION_DESC, false);
+                    mv.visitInsn(IRETURN);
+                }
             }
-            codeSnippet.putIfAbsent(expr, CodeBlock.of("$L", listName));
-        }
-
-        @Override
-        public void exitAddition(AdditionExpression expr) {
-            final Object leftBlock = blockOrMissing(codeSnippet.get(expr.left()), expr.left());
-            final Object rightBlock = blockOrMissing(codeSnippet.get(expr.right()), expr.right());
-
-            Class leftType = expr.left().getType();
-            Class rightType = expr.right().getType();
-
-            if (DateTime.class.equals(leftType)) {
-                if (DateTime.class.equals(rightType)) {
-                    // calculate duration between two dates (adding two dates is invalid)
-                    if (expr.isPlus()) {
-                        throw new IllegalStateException("Cannot add two dates, this is a parser bug");
-                    }
-                    codeSnippet.putIfAbsent(expr, CodeBlock.of(
-                            "new $T($L, $L)", Duration.class, leftBlock, rightBlock));
-                } else if (Period.class.equals(rightType)) {
-                    // new datetime
-                    codeSnippet.putIfAbsent(expr,
-                            CodeBlock.of("$L." + (expr.isPlus() ? "plus" : "minus") + "($L)", leftBlock, rightBlock));
+            mv.visitLabel(unknown);
+            mv.visitTypeInsn(NEW, "java/lang/IllegalArgumentException");
+            mv.visitInsn(DUP);
+            mv.visitLdcInsn("No condition with this index");
+            mv.visitMethodInsn(INVOKESPECIAL, "java/lang/IllegalArgumentException", "<init>", "(Ljava/lang/String;)V", false);
+            mv.visitInsn(ATHROW);
+            endMethod(mv);
+        }
+
+        private void generateArgument() {
+            final MethodVisitor mv = method(ACC_PUBLIC, "argument", "(I" + EVALUATION_CONTEXT_DESC + ")" + OBJECT_DESC, 3);
+            final Label unknown = new Label();
+            if (!values.isEmpty()) {
+                final Label[] cases = new Label[values.size()];
+                for (int i = 0; i < cases.length; i++) {
+                    cases[i] = new Label();
                 }
-                return;
-            } else if (Period.class.equals(leftType)) {
-                if (DateTime.class.equals(rightType)) {
-                    // invert the arguments, adding the period to the date, yielding a new DateTime
-                    codeSnippet.putIfAbsent(expr,
-                            CodeBlock.of("$L." + (expr.isPlus() ? "plus" : "minus") + "($L)", rightBlock, leftBlock));
-                } else if (Period.class.equals(rightType)) {
-                    // adding two periods yields a new period
-                    codeSnippet.putIfAbsent(expr,
-                            CodeBlock.of("$L." + (expr.isPlus() ? "plus" : "minus") + "($L)", leftBlock, rightBlock));
+                mv.visitVarInsn(ILOAD, 1);
+                mv.visitTableSwitchInsn(0, cases.length - 1, unknown, cases);
+                for (int i = 0; i < cases.length; i++) {
+                    mv.visitLabel(cases[i]);
+                    mv.visitVarInsn(ALOAD, 0);
+                    mv.visitVarInsn(ALOAD, 2);
+                    mv.visitMethodInsn(INVOKESPECIAL, internalName, "value" + i, VALUE_DESC, false);
+                    mv.visitInsn(ARETURN);
                 }
-                return;
             }
-
-            codeSnippet.putIfAbsent(expr,
-                    CodeBlock.of("$L " + (expr.isPlus() ? "+" : "-") + " $L", leftBlock, rightBlock));
-        }
-
-        @Override
-        public void exitMultiplication(MultiplicationExpression expr) {
-            final Object leftBlock = blockOrMissing(codeSnippet.get(expr.left()), expr.left());
-            final Object rightBlock = blockOrMissing(codeSnippet.get(expr.right()), expr.right());
-
-            codeSnippet.putIfAbsent(expr,
-                    CodeBlock.of("$L " + expr.getOperator() + " $L", leftBlock, rightBlock));
-        }
-
-        @Override
-        public void exitSigned(SignedExpression expr) {
-            final Object rightBlock = blockOrMissing(codeSnippet.get(expr.right()), expr.right());
-            codeSnippet.putIfAbsent(expr, CodeBlock.of((expr.isPlus() ? "+" : "-") + "$L", rightBlock));
+            mv.visitLabel(unknown);
+            mv.visitTypeInsn(NEW, "java/lang/IllegalArgumentException");
+            mv.visitInsn(DUP);
+            mv.visitLdcInsn("No argument with this index");
+            mv.visitMethodInsn(INVOKESPECIAL, "java/lang/IllegalArgumentException", "<init>", "(Ljava/lang/String;)V", false);
+            mv.visitInsn(ATHROW);
+            endMethod(mv);
+        }
+
+        private void generateThen() {
+            final MethodVisitor mv = method(ACC_PUBLIC, "then", "(" + EVALUATION_CONTEXT_DESC + ")V", 2);
+            int i = 0;
+            for (Statement statement : rule.then()) {
+                statement(mv, statement);
+
+                // like the interpreter, stop at the first statement which raised an error
+                final Label noErrors = new Label();
+                mv.visitVarInsn(ALOAD, 1);
+                mv.visitMethodInsn(INVOKEVIRTUAL, EVALUATION_CONTEXT, "hasEvaluationErrors", "()Z", false);
+                mv.visitJumpInsn(IFEQ, noErrors);
+                mv.visitTypeInsn(NEW, "java/lang/IllegalStateException");
+                mv.visitInsn(DUP);
+                mv.visitLdcInsn("Statement " + i + " of rule raised an evaluation error");
+                mv.visitMethodInsn(INVOKESPECIAL, "java/lang/IllegalStateException", "<init>", "(Ljava/lang/String;)V", false);
+                mv.visitInsn(ATHROW);
+                mv.visitLabel(noErrors);
+                i++;
+            }
+            mv.visitInsn(RETURN);
+            endMethod(mv);
+        }
+
+        private void statement(MethodVisitor mv, Statement statement) {
+            if (statement instanceof FunctionStatement) {
+                evaluate(mv, ((FunctionStatement) statement).getFunctionExpression());
+            } else if (statement instanceof VarAssignStatement && ((VarAssignStatement) statement).getSlot() >= 0) {
+                final VarAssignStatement assignment = (VarAssignStatement) statement;
+                final int value = evaluate(mv, assignment.getValueExpression());
+                mv.visitVarInsn(ALOAD, 1);
+                pushInt(mv, assignment.getSlot());
+                mv.visitVarInsn(ALOAD, value);
+                mv.visitMethodInsn(INVOKEVIRTUAL, EVALUATION_CONTEXT, "setSlot", "(I" + OBJECT_DESC + ")V", false);
+            } else {
+                loadBinding(mv, bind(statement, STATEMENT));
+                mv.visitVarInsn(ALOAD, 1);
+                mv.visitMethodInsn(INVOKEINTERFACE, STATEMENT, "evaluate", VALUE_DESC, true);
+                mv.visitInsn(POP);
+            }
         }
 
-        @Override
-        public void exitIndexedAccess(IndexedAccessExpression expr) {
-            final Expression indexableObject = expr.getIndexableObject();
-            final Expression index = expr.getIndex();
-
-            final Object objectBlock = blockOrMissing(codeSnippet.get(indexableObject), indexableObject);
-            final Object indexBlock = blockOrMissing(codeSnippet.get(index), index);
-
-            final Class indexType = index.getType();
-            final Class indexableObjectType = indexableObject.getType();
-            CodeBlock block;
-            if (Long.class.equals(indexType)) {
-                // array indexing
-                if (indexableObjectType.isArray()) {
-                    block = CodeBlock.of("Arrays.get($L, $L)", objectBlock, indexBlock);
-                } else if (List.class.isAssignableFrom(indexableObjectType)) {
-                    block = CodeBlock.of("$L.get($T.saturatedCast($L))", objectBlock, ClassName.get(Ints.class), indexBlock);
-                } else if (Iterable.class.isAssignableFrom(indexableObjectType)) {
-                    block = CodeBlock.of("$T.get($L, $L)", ClassName.get(Iterables.class), objectBlock, indexBlock);
-                } else {
-                    log.error("Unhandled indexable object type: {}", indexableObject);
-                    block = null;
-                }
-            } else if (String.class.equals(indexType) && Map.class.isAssignableFrom(indexableObjectType)) {
-                // map indexing
-                block = CodeBlock.of("$L.get($L)", objectBlock, indexBlock);
+        /**
+         * Emits code which evaluates the expression like {@link Expression#evaluate(EvaluationContext)}, recording
+         * errors instead of throwing them.
+         *
+         * @return the local variable holding the value, null if evaluating it failed
+         */
+        private int evaluate(MethodVisitor mv, Expression expression) {
+            // the value is computed in a method of its own, so that the handler doesn't cover the handlers of its calls
+            final int method = valueMethod(expression);
+            final int value = nextLocal++;
+            final Label start = new Label();
+            final Label end = new Label();
+            final Label failed = new Label();
+            final Label done = new Label();
+            mv.visitTryCatchBlock(start, end, failed, EXCEPTION);
+            mv.visitLabel(start);
+            mv.visitVarInsn(ALOAD, 0);
+            mv.visitVarInsn(ALOAD, 1);
+            mv.visitMethodInsn(INVOKESPECIAL, internalName, "value" + method, VALUE_DESC, false);
+            mv.visitVarInsn(ASTORE, value);
+            mv.visitLabel(end);
+            mv.visitJumpInsn(GOTO, done);
+
+            mv.visitLabel(failed);
+            final int exception = nextLocal++;
+            mv.visitVarInsn(ASTORE, exception);
+            loadBinding(mv, bind(expression, EXPRESSION));
+            mv.visitVarInsn(ALOAD, 1);
+            mv.visitVarInsn(ALOAD, exception);
+            mv.visitMethodInsn(INVOKESTATIC, EXPRESSION, "addEvaluationError",
+                    "(" + EXPRESSION_DESC + EVALUATION_CONTEXT_DESC + EXCEPTION_DESC + ")V", true);
+            mv.visitInsn(ACONST_NULL);
+            mv.visitVarInsn(ASTORE, value);
+            mv.visitLabel(done);
+            return value;
+        }
+
+        private static void pushInt(MethodVisitor mv, int value) {
+            if (value <= 5) {
+                mv.visitInsn(ICONST_0 + value);
+            } else if (value <= Byte.MAX_VALUE) {
+                mv.visitIntInsn(BIPUSH, value);
+            } else if (value <= Short.MAX_VALUE) {
+                mv.visitIntInsn(SIPUSH, value);
             } else {
-                // illegal
-                log.error("Invalid index type: {}", index);
-                block = null;
+                mv.visitLdcInsn(value);
             }
-            codeSnippet.putIfAbsent(expr, block);
         }
+    }
 
-        @Nonnull
-        private String subExpressionName() {
-            return "im$" + counter++;
-        }
+    private static class CallSite {
+        // the binding of the call's CompiledCall
+        private final int binding;
+        // whether the generated code invokes the function itself
+        private final boolean direct;
 
-        private Object blockOrMissing(Object block, Expression fallBackExpression) {
-            if (block == null) {
-                log.warn("Missing code snippet for {}: ", fallBackExpression.nodeType(), fallBackExpression);
-            }
-            return firstNonNull(block, fallBackExpression);
+        CallSite(int binding, boolean direct) {
+            this.binding = binding;
+            this.direct = direct;
         }
-
     }
-
 }
@@ -0,0 +1,18 @@
+package org.graylog.plugins.pipelineprocessor.codegen;
+
+import org.graylog.plugins.pipelineprocessor.EvaluationContext;
+
+/**
+ * Implemented by generated rule classes, evaluates the compiled arguments of the rule's function calls.
+ *
+ * @see CompiledCall
+ */
+public interface CompiledArguments {
+
+    /**
+     * @param index   the index the argument's code has been generated for
+     * @param context the context of the evaluation in progress
+     * @return the value of the argument
+     */
+    Object argument(int index, EvaluationContext context);
+}
@@ -0,0 +1,38 @@
+package org.graylog.plugins.pipelineprocessor.codegen;
+
+import org.graylog.plugins.pipelineprocessor.EvaluationContext;
+import org.graylog.plugins.pipelineprocessor.ast.expressions.FunctionExpression;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.Function;
+
+/**
+ * A function call of a generated rule class, whose arguments are evaluated by code of the class.
+ * <p>
+ * Each instance of the class binds the call to itself when it is created, the bound call is what the generated code
+ * invokes. Like in closure compiled rules, functions read their arguments lazily through their parameters.
+ */
+public final class CompiledCall {
+    private final FunctionExpression call;
+    // the index of each argument's code in the generated class, by parameter name
+    private final Map<String, Integer> arguments;
+
+    CompiledCall(FunctionExpression call, Map<String, Integer> arguments) {
+        this.call = call;
+        this.arguments = arguments;
+    }
+
+    /**
+     * @param code the instance of the generated class
+     * @return the call evaluating its arguments with the instance's code
+     */
+    public FunctionExpression bind(CompiledArguments code) {
+        final Map<String, Function<EvaluationContext, Object>> compiled = new HashMap<>();
+        arguments.forEach((name, index) -> {
+            final int argument = index;
+            compiled.put(name, context -> code.argument(argument, context));
+        });
+        return ClosureCompiler.callSite(call, compiled);
+    }
+}
@@ -0,0 +1,28 @@
+package org.graylog.plugins.pipelineprocessor.codegen;
+
+import org.graylog.plugins.pipelineprocessor.EvaluationContext;
+import org.graylog.plugins.pipelineprocessor.ast.expressions.AdaptiveOperandOrder;
+
+/**
+ * Implemented by generated rule classes, evaluates the compiled operands of operators which adapt their operand order
+ * at runtime.
+ *
+ * @see AdaptiveOperandOrder#evaluate(AdaptiveOperandOrder.Operands, EvaluationContext)
+ */
+public interface CompiledConditions {
+
+    /**
+     * @param index   the index the condition's code has been generated for
+     * @param context the context of the evaluation in progress
+     * @return the value of the condition
+     */
+    boolean condition(int index, EvaluationContext context);
+
+    /**
+     * @param first the index of the code of the operator's first operand, the others follow in the written order
+     * @return the operands of one operator
+     */
+    default AdaptiveOperandOrder.Operands operands(int first) {
+        return (operand, context) -> condition(first + operand, context);
+    }
+}
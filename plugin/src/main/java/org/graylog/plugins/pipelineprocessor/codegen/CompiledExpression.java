@@ -0,0 +1,54 @@
+package org.graylog.plugins.pipelineprocessor.codegen;
+
+import org.antlr.v4.runtime.Token;
+import org.graylog.plugins.pipelineprocessor.EvaluationContext;
+import org.graylog.plugins.pipelineprocessor.ast.expressions.Expression;
+
+import java.util.function.Function;
+
+/**
+ * Stands in for an argument expression of a compiled function call, evaluating the argument's compiled code instead
+ * of its syntax tree node.
+ * <p>
+ * Functions still read their arguments through {@link org.graylog.plugins.pipelineprocessor.ast.functions.ParameterDescriptor#required},
+ * so arguments are evaluated lazily and in the order the function asks for them, exactly like in the interpreter.
+ */
+public class CompiledExpression implements Expression {
+    private final Expression source;
+    private final Function<EvaluationContext, Object> code;
+
+    public CompiledExpression(Expression source, Function<EvaluationContext, Object> code) {
+        this.source = source;
+        this.code = code;
+    }
+
+    @Override
+    public boolean isConstant() {
+        return source.isConstant();
+    }
+
+    @Override
+    public Token getStartToken() {
+        return source.getStartToken();
+    }
+
+    @Override
+    public Class getType() {
+        return source.getType();
+    }
+
+    @Override
+    public Object evaluateUnsafe(EvaluationContext context) {
+        return code.apply(context);
+    }
+
+    @Override
+    public Iterable<Expression> children() {
+        return source.children();
+    }
+
+    @Override
+    public String toString() {
+        return source.toString();
+    }
+}
@@ -6,6 +6,11 @@ public class PipelineClassloader extends ClassLoader {
 
     public static AtomicLong loadedClasses = new AtomicLong();
 
+    public PipelineClassloader() {
+        // generated rules reference the plugin's classes, which the system classloader does not know about
+        super(PipelineClassloader.class.getClassLoader());
+    }
+
     @Override
     public Class<?> loadClass(String name) throws ClassNotFoundException {
         loadedClasses.incrementAndGet();
@@ -1,77 +0,0 @@
-/*
- * This file is part of Graylog Pipeline Processor.
- *
- * Graylog Pipeline Processor is free software: you can redistribute it and/or modify
- * it under the terms of the GNU General Public License as published by
- * the Free Software Foundation, either version 3 of the License, or
- * (at your option) any later version.
- *
- * Graylog Pipeline Processor is distributed in the hope that it will be useful,
- * but WITHOUT ANY WARRANTY; without even the implied warranty of
- * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
- * GNU General Public License for more details.
- *
- * You should have received a copy of the GNU General Public License
- * along with Graylog Pipeline Processor.  If not, see <http://www.gnu.org/licenses/>.
- */
-package org.graylog.plugins.pipelineprocessor.codegen.compiler;
-
-import com.google.common.collect.Maps;
-
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
-import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
-import java.net.URI;
-import java.util.Map;
-import java.util.stream.Collectors;
-
-import javax.tools.FileObject;
-import javax.tools.ForwardingJavaFileManager;
-import javax.tools.JavaFileObject;
-import javax.tools.JavaFileObject.Kind;
-import javax.tools.SimpleJavaFileObject;
-import javax.tools.StandardJavaFileManager;
-import javax.tools.StandardLocation;
-import javax.validation.constraints.NotNull;
-
-public class InMemoryFileManager extends ForwardingJavaFileManager<StandardJavaFileManager> {
-    private final Map<String, ByteArrayOutputStream> classBytes = Maps.newLinkedHashMap();
-
-    public InMemoryFileManager(StandardJavaFileManager fileManager) {
-        super(fileManager);
-    }
-
-    public JavaFileObject getJavaFileForInput(Location location, String className, Kind kind) throws IOException {
-        if (location == StandardLocation.CLASS_OUTPUT && classBytes.containsKey(className) && kind == Kind.CLASS) {
-            final byte[] bytes = classBytes.get(className).toByteArray();
-            return new SimpleJavaFileObject(URI.create(className), kind) {
-                @NotNull
-                public InputStream openInputStream() {
-                    return new ByteArrayInputStream(bytes);
-                }
-            };
-        }
-        return fileManager.getJavaFileForInput(location, className, kind);
-    }
-
-    @NotNull
-    public JavaFileObject getJavaFileForOutput(Location location, final String className, Kind kind, FileObject sibling) throws IOException {
-        return new SimpleJavaFileObject(URI.create(className), kind) {
-            @NotNull
-            public OutputStream openOutputStream() {
-                final ByteArrayOutputStream stream = new ByteArrayOutputStream();
-                classBytes.put(className, stream);
-                return stream;
-            }
-        };
-    }
-
-    @NotNull
-    public Map<String, byte[]> getAllClassBytes() {
-        return classBytes.entrySet().stream()
-                .collect(Collectors.toMap(Map.Entry::getKey, e -> e.getValue().toByteArray()));
-    }
-}
-
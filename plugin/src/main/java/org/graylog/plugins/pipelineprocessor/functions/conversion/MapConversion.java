@@ -63,6 +63,7 @@ public class MapConversion extends AbstractFunction<Map> {
     public FunctionDescriptor<Map> descriptor() {
         return FunctionDescriptor.<Map>builder()
                 .name(NAME)
+                .pure(true)
                 .returnType(Map.class)
                 .params(of(valueParam))
                 .description("Converts a map-like value into a map usable by set_fields()")
@@ -65,6 +65,7 @@ public class FormatDate extends AbstractFunction<String> {
     public FunctionDescriptor<String> descriptor() {
         return FunctionDescriptor.<String>builder()
                 .name(NAME)
+                .pure(true)
                 .returnType(String.class)
                 .params(of(value, format, timeZoneParam))
                 .description("Formats a date using the given format string")
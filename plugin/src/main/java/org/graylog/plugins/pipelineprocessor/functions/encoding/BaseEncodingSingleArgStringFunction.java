@@ -57,6 +57,7 @@ abstract class BaseEncodingSingleArgStringFunction extends AbstractFunction<Stri
     public FunctionDescriptor<String> descriptor() {
         return FunctionDescriptor.<String>builder()
                 .name(getName())
+                .pure(true)
                 .returnType(String.class)
                 .params(of(valueParam, omitPaddingParam))
                 .description(description())
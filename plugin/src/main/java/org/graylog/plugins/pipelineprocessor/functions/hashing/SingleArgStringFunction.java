@@ -52,6 +52,7 @@ abstract class SingleArgStringFunction extends AbstractFunction<String> {
     public FunctionDescriptor<String> descriptor() {
         return FunctionDescriptor.<String>builder()
                 .name(getName())
+                .pure(true)
                 .returnType(String.class)
                 .params(of(
                         valueParam)
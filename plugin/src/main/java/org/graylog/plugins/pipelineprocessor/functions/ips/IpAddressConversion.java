@@ -67,6 +67,7 @@ public class IpAddressConversion extends AbstractFunction<IpAddress> {
     public FunctionDescriptor<IpAddress> descriptor() {
         return FunctionDescriptor.<IpAddress>builder()
                 .name(NAME)
+                .pure(true)
                 .returnType(IpAddress.class)
                 .params(of(
                         ipParam,
@@ -61,6 +61,7 @@ public class JsonParse extends AbstractFunction<JsonNode> {
     public FunctionDescriptor<JsonNode> descriptor() {
         return FunctionDescriptor.<JsonNode>builder()
                 .name(NAME)
+                .pure(true)
                 .returnType(JsonNode.class)
                 .params(of(
                         valueParam
@@ -121,6 +121,7 @@ public class SelectJsonPath extends AbstractFunction<Map<String, Object>> {
         //noinspection unchecked
         return FunctionDescriptor.<Map<String, Object>>builder()
                 .name(NAME)
+                .pure(true)
                 .returnType((Class<? extends Map<String, Object>>) new TypeLiteral<Map<String, Object>>() {}.getRawType())
                 .params(of(
                         jsonParam,
@@ -0,0 +1,125 @@
+/**
+ * This file is part of Graylog Pipeline Processor.
+ *
+ * Graylog Pipeline Processor is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Graylog Pipeline Processor is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Graylog Pipeline Processor.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.graylog.plugins.pipelineprocessor.functions.lookup;
+
+import org.graylog2.lookup.LookupTableService;
+import org.graylog2.plugin.lookup.LookupResult;
+
+import javax.annotation.Nullable;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Holds the lookup results for the messages of a single batch, so that each distinct key is only resolved once.
+ *
+ * Tables are compared by identity, which is the precomputed table argument of a lookup function call. The cache can be
+ * used concurrently, two threads resolving the same key at the same time might both hit the lookup table though.
+ */
+public class BatchLookupCache {
+
+    private final ConcurrentMap<Key, Optional<LookupResult>> results = new ConcurrentHashMap<>();
+    private final AtomicLong hits = new AtomicLong();
+
+    /**
+     * @param table the lookup table to use
+     * @param key   the key to look up
+     * @return the result for the key, only resolving it if no message of the batch has looked it up before
+     */
+    @Nullable
+    public LookupResult lookup(LookupTableService.Function table, Object key) {
+        final Key cacheKey = new Key(table, key);
+        final Optional<LookupResult> cached = results.get(cacheKey);
+        if (cached != null) {
+            hits.incrementAndGet();
+            return cached.orElse(null);
+        }
+        return resolve(cacheKey).orElse(null);
+    }
+
+    /**
+     * Resolves the key ahead of its use, unless it already has been resolved.
+     *
+     * @param key the table and key to resolve
+     */
+    public void prefetch(Key key) {
+        if (!results.containsKey(key)) {
+            resolve(key);
+        }
+    }
+
+    private Optional<LookupResult> resolve(Key key) {
+        final Optional<LookupResult> result = Optional.ofNullable(key.table().lookup(key.key()));
+        final Optional<LookupResult> previous = results.putIfAbsent(key, result);
+        return previous != null ? previous : result;
+    }
+
+    /**
+     * @return the number of distinct keys that have been resolved
+     */
+    public int resolvedKeys() {
+        return results.size();
+    }
+
+    /**
+     * @return the number of lookups answered from previously resolved keys
+     */
+    public long hits() {
+        return hits.get();
+    }
+
+    public static Key key(LookupTableService.Function table, Object key) {
+        return new Key(table, key);
+    }
+
+    public static final class Key {
+        private final LookupTableService.Function table;
+        private final Object key;
+
+        private Key(LookupTableService.Function table, Object key) {
+            this.table = table;
+            this.key = key;
+        }
+
+        public LookupTableService.Function table() {
+            return table;
+        }
+
+        public Object key() {
+            return key;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (o == null || getClass() != o.getClass()) {
+                return false;
+            }
+            final Key other = (Key) o;
+            return table == other.table && Objects.equals(key, other.key);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * System.identityHashCode(table) + Objects.hashCode(key);
+        }
+    }
+}
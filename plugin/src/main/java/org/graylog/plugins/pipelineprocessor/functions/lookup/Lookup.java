@@ -17,7 +17,7 @@ import static org.graylog.plugins.pipelineprocessor.ast.functions.ParameterDescr
 import static org.graylog.plugins.pipelineprocessor.ast.functions.ParameterDescriptor.string;
 import static org.graylog2.plugin.lookup.LookupResult.SINGLE_VALUE_KEY;
 
-public class Lookup extends AbstractFunction<Map<Object, Object>> {
+public class Lookup extends AbstractFunction<Map<Object, Object>> implements PrefetchableLookup {
 
     public static final String NAME = "lookup";
 
@@ -27,11 +27,11 @@ public class Lookup extends AbstractFunction<Map<Object, Object>> {
 
     @Inject
     public Lookup(LookupTableService lookupTableService) {
-        lookupTableParam = string("lookup_table", LookupTableService.Function.class)
+        lookupTableParam = string(TABLE_ARG, LookupTableService.Function.class)
                 .description("The existing lookup table to use to lookup the given key")
                 .transform(tableName -> lookupTableService.newBuilder().lookupTable(tableName).build())
                 .build();
-        keyParam = object("key")
+        keyParam = object(KEY_ARG)
                 .description("The key to lookup in the table")
                 .build();
         defaultParam = object("default")
@@ -50,13 +50,24 @@ public class Lookup extends AbstractFunction<Map<Object, Object>> {
         if (table == null) {
             return Collections.singletonMap(SINGLE_VALUE_KEY, defaultParam.optional(args, context).orElse(null));
         }
-        LookupResult result = table.lookup(key);
+        final BatchLookupCache batchLookupCache = context.batchLookupCache();
+        LookupResult result = batchLookupCache == null ? table.lookup(key) : batchLookupCache.lookup(table, key);
         if (result == null || result.isEmpty()) {
             return Collections.singletonMap(SINGLE_VALUE_KEY, defaultParam.optional(args, context).orElse(null));
         }
         return result.multiValue();
     }
 
+    @Override
+    public LookupTableService.Function lookupTable(FunctionArgs args, EvaluationContext context) {
+        return lookupTableParam.required(args, context);
+    }
+
+    @Override
+    public Object lookupKey(FunctionArgs args, EvaluationContext context) {
+        return keyParam.required(args, context);
+    }
+
     @Override
     public FunctionDescriptor<Map<Object, Object>> descriptor() {
         //noinspection unchecked
@@ -64,6 +75,7 @@ public class Lookup extends AbstractFunction<Map<Object, Object>> {
                 .name(NAME)
                 .description("Looks up a multi value in the named lookup table.")
                 .params(lookupTableParam, keyParam, defaultParam)
+                .blocking(true)
                 .returnType((Class<? extends Map<Object, Object>>) new TypeLiteral<Map<Object, Object>>() {}.getRawType())
                 .build();
     }
@@ -12,7 +12,7 @@ import org.graylog2.plugin.lookup.LookupResult;
 import static org.graylog.plugins.pipelineprocessor.ast.functions.ParameterDescriptor.object;
 import static org.graylog.plugins.pipelineprocessor.ast.functions.ParameterDescriptor.string;
 
-public class LookupValue extends AbstractFunction<Object> {
+public class LookupValue extends AbstractFunction<Object> implements PrefetchableLookup {
 
     public static final String NAME = "lookup_value";
 
@@ -22,11 +22,11 @@ public class LookupValue extends AbstractFunction<Object> {
 
     @Inject
     public LookupValue(LookupTableService lookupTableService) {
-        lookupTableParam = string("lookup_table", LookupTableService.Function.class)
+        lookupTableParam = string(TABLE_ARG, LookupTableService.Function.class)
                 .description("The existing lookup table to use to lookup the given key")
                 .transform(tableName -> lookupTableService.newBuilder().lookupTable(tableName).build())
                 .build();
-        keyParam = object("key")
+        keyParam = object(KEY_ARG)
                 .description("The key to lookup in the table")
                 .build();
         defaultParam = object("default")
@@ -45,13 +45,24 @@ public class LookupValue extends AbstractFunction<Object> {
         if (table == null) {
             return defaultParam.optional(args, context).orElse(null);
         }
-        LookupResult result = table.lookup(key);
+        final BatchLookupCache batchLookupCache = context.batchLookupCache();
+        LookupResult result = batchLookupCache == null ? table.lookup(key) : batchLookupCache.lookup(table, key);
         if (result == null || result.isEmpty()) {
             return defaultParam.optional(args, context).orElse(null);
         }
         return result.singleValue();
     }
 
+    @Override
+    public LookupTableService.Function lookupTable(FunctionArgs args, EvaluationContext context) {
+        return lookupTableParam.required(args, context);
+    }
+
+    @Override
+    public Object lookupKey(FunctionArgs args, EvaluationContext context) {
+        return keyParam.required(args, context);
+    }
+
     @Override
     public FunctionDescriptor<Object> descriptor() {
         //noinspection unchecked
@@ -59,6 +70,7 @@ public class LookupValue extends AbstractFunction<Object> {
                 .name(NAME)
                 .description("Looks up a single value in the named lookup table.")
                 .params(lookupTableParam, keyParam, defaultParam)
+                .blocking(true)
                 .returnType(Object.class)
                 .build();
     }
@@ -1,4 +1,4 @@
-/*
+/**
  * This file is part of Graylog Pipeline Processor.
  *
  * Graylog Pipeline Processor is free software: you can redistribute it and/or modify
@@ -14,26 +14,24 @@
  * You should have received a copy of the GNU General Public License
  * along with Graylog Pipeline Processor.  If not, see <http://www.gnu.org/licenses/>.
  */
-package org.graylog.plugins.pipelineprocessor.codegen.compiler;
+package org.graylog.plugins.pipelineprocessor.functions.lookup;
 
-import java.net.URI;
+import org.graylog.plugins.pipelineprocessor.EvaluationContext;
+import org.graylog.plugins.pipelineprocessor.ast.functions.FunctionArgs;
+import org.graylog2.lookup.LookupTableService;
 
-import javax.tools.SimpleJavaFileObject;
-import javax.validation.constraints.NotNull;
+import javax.annotation.Nullable;
 
-import static javax.tools.JavaFileObject.Kind.SOURCE;
-
-public class JavaSourceFromString extends SimpleJavaFileObject {
-
-    private final String sourceCode;
+/**
+ * Lookup functions whose keys can be resolved for a whole batch before the stage calling them is evaluated.
+ */
+public interface PrefetchableLookup {
+    String TABLE_ARG = "lookup_table";
+    String KEY_ARG = "key";
 
-    public JavaSourceFromString(@NotNull String name, String sourceCode) {
-        super(URI.create("string:///" + name.replace('.', '/') + SOURCE.extension), SOURCE);
-        this.sourceCode = sourceCode;
-    }
+    @Nullable
+    LookupTableService.Function lookupTable(FunctionArgs args, EvaluationContext context);
 
-    @Override
-    public CharSequence getCharContent(boolean ignoreEncodingErrors) {
-        return sourceCode;
-    }
+    @Nullable
+    Object lookupKey(FunctionArgs args, EvaluationContext context);
 }
@@ -29,6 +29,8 @@ import org.graylog2.plugin.streams.Stream;
 import javax.inject.Provider;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.Set;
+import java.util.stream.Collectors;
 
 import static com.google.common.collect.ImmutableList.of;
 import static org.graylog.plugins.pipelineprocessor.ast.functions.ParameterDescriptor.bool;
@@ -38,8 +40,8 @@ import static org.graylog.plugins.pipelineprocessor.ast.functions.ParameterDescr
 public class RouteToStream extends AbstractFunction<Void> {
 
     public static final String NAME = "route_to_stream";
-    private static final String ID_ARG = "id";
-    private static final String NAME_ARG = "name";
+    public static final String ID_ARG = "id";
+    public static final String NAME_ARG = "name";
     private static final String REMOVE_FROM_DEFAULT = "remove_from_default";
     private final StreamCacheService streamCacheService;
     private final Provider<Stream> defaultStreamProvider;
@@ -93,6 +95,18 @@ public class RouteToStream extends AbstractFunction<Void> {
         return null;
     }
 
+    /**
+     * Resolves a stream name the way routing to it would, at the time of the call.
+     *
+     * @param name the name of the streams
+     * @return the ids of the currently known streams with that name
+     */
+    public Set<String> streamIdsByName(String name) {
+        return streamCacheService.getByName(name).stream()
+                .map(Stream::getId)
+                .collect(Collectors.toSet());
+    }
+
     @Override
     public FunctionDescriptor<Void> descriptor() {
         return FunctionDescriptor.<Void>builder()
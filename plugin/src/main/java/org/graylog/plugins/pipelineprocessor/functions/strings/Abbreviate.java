@@ -58,6 +58,7 @@ public class Abbreviate extends AbstractFunction<String> {
 
         return FunctionDescriptor.<String>builder()
                 .name(NAME)
+                .pure(true)
                 .returnType(String.class)
                 .params(ImmutableList.of(
                         valueParam,
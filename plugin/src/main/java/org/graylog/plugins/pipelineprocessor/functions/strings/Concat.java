@@ -47,6 +47,7 @@ public class Concat extends AbstractFunction<String> {
     public FunctionDescriptor<String> descriptor() {
         return FunctionDescriptor.<String>builder()
                 .name(NAME)
+                .pure(true)
                 .returnType(String.class)
                 .params(of(firstParam, secondParam))
                 .description("Concatenates two strings")
@@ -71,6 +71,7 @@ public class GrokMatch extends AbstractFunction<GrokMatch.GrokResult> {
     public FunctionDescriptor<GrokResult> descriptor() {
         return FunctionDescriptor.<GrokResult>builder()
                 .name(NAME)
+                .pure(true)
                 .returnType(GrokResult.class)
                 .params(of(patternParam, valueParam, namedOnly))
                 .description("Applies a Grok pattern to a string")
@@ -98,6 +98,7 @@ public class KeyValue extends AbstractFunction<Map<String, String>> {
         //noinspection unchecked
         return FunctionDescriptor.<Map<String, String>>builder()
                 .name(NAME)
+                .pure(true)
                 .returnType((Class<? extends Map<String, String>>) new TypeLiteral<Map<String, String>>() {}.getRawType())
                 .params(valueParam,
                         splitParam,
@@ -60,6 +60,7 @@ public abstract class StringUtilsFunction extends AbstractFunction<String> {
         }
         return FunctionDescriptor.<String>builder()
                 .name(getName())
+                .pure(true)
                 .returnType(String.class)
                 .params(params.build())
                 .description(description())
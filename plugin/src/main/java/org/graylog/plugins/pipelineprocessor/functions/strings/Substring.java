@@ -56,6 +56,7 @@ public class Substring extends AbstractFunction<String> {
     public FunctionDescriptor<String> descriptor() {
         return FunctionDescriptor.<String>builder()
                 .name(NAME)
+                .pure(true)
                 .returnType(String.class)
                 .params(of(
                         valueParam,
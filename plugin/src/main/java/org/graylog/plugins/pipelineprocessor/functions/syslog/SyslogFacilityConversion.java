@@ -43,6 +43,7 @@ public class SyslogFacilityConversion extends AbstractFunction<String> {
     public FunctionDescriptor<String> descriptor() {
         return FunctionDescriptor.<String>builder()
                 .name(NAME)
+                .pure(true)
                 .returnType(String.class)
                 .params(valueParam)
                 .description("Converts a syslog facility number to its string representation")
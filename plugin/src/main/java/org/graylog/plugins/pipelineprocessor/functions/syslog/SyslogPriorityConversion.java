@@ -43,6 +43,7 @@ public class SyslogPriorityConversion extends AbstractFunction<SyslogPriority> {
     public FunctionDescriptor<SyslogPriority> descriptor() {
         return FunctionDescriptor.<SyslogPriority>builder()
                 .name(NAME)
+                .pure(true)
                 .returnType(SyslogPriority.class)
                 .params(valueParam)
                 .description("Converts a syslog priority number to its level and facility")
@@ -45,6 +45,7 @@ public class SyslogPriorityToStringConversion extends AbstractFunction<SyslogPri
     public FunctionDescriptor<SyslogPriorityAsString> descriptor() {
         return FunctionDescriptor.<SyslogPriorityAsString>builder()
                 .name(NAME)
+                .pure(true)
                 .returnType(SyslogPriorityAsString.class)
                 .params(valueParam)
                 .description("Converts a syslog priority number to its level and facility string representations")
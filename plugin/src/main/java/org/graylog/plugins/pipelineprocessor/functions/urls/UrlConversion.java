@@ -58,6 +58,7 @@ public class UrlConversion extends AbstractFunction<URL> {
     public FunctionDescriptor<URL> descriptor() {
         return FunctionDescriptor.<URL>builder()
                 .name(NAME)
+                .pure(true)
                 .returnType(URL.class)
                 .params(urlParam,
                         defaultParam)
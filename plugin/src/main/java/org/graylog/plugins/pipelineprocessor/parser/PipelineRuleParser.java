@@ -111,13 +111,22 @@ public class PipelineRuleParser {
 
     private final FunctionRegistry functionRegistry;
     private final CodeGenerator codeGenerator;
+    private final boolean optimize;
 
     private static AtomicLong uniqueId = new AtomicLong(0);
 
     @Inject
     public PipelineRuleParser(FunctionRegistry functionRegistry, CodeGenerator codeGenerator) {
+        this(functionRegistry, codeGenerator, true);
+    }
+
+    /**
+     * @param optimize false to keep the rules' syntax trees exactly as written, mostly useful to inspect the parser's output
+     */
+    public PipelineRuleParser(FunctionRegistry functionRegistry, CodeGenerator codeGenerator, boolean optimize) {
         this.functionRegistry = functionRegistry;
         this.codeGenerator = codeGenerator;
+        this.optimize = optimize;
     }
 
     private static final Logger log = LoggerFactory.getLogger(PipelineRuleParser.class);
@@ -165,7 +174,8 @@ public class PipelineRuleParser {
         // 1. build AST nodes, checks for invalid var, function refs
         // 2. type annotator: infer type information from var refs, func refs
         // 3. checker: static type check w/ coercion nodes
-        // 4. optimizer: TODO
+        // 4. optimizer: fold constants and simplify boolean logic, for both interpreting and generating code
+        // 5. required fields: the fields a message needs to have for the condition to be true
 
         WALKER.walk(new RuleAstBuilder(parseContext), ruleDeclaration);
         WALKER.walk(new RuleTypeAnnotator(parseContext), ruleDeclaration);
@@ -173,6 +183,10 @@ public class PipelineRuleParser {
 
         if (parseContext.getErrors().isEmpty()) {
             Rule parsedRule = parseContext.getRules().get(0).withId(id);
+            if (optimize) {
+                parsedRule = new RuleOptimizer().optimize(parsedRule);
+            }
+            parsedRule = parsedRule.toBuilder().requiredFields(RequiredFields.of(parsedRule.when())).build();
             if (ruleClassLoader != null && ConfigurationStateUpdater.isAllowCodeGeneration()) {
                 try {
                     final Class<? extends GeneratedRule> generatedClass = codeGenerator.generateCompiledRule(parsedRule, ruleClassLoader);
@@ -321,7 +335,7 @@ public class PipelineRuleParser {
             final Expression expr = exprs.get(ctx.expression());
             parseContext.defineVar(name, expr);
             definedVars.add(name);
-            parseContext.statements.add(new VarAssignStatement(name, expr));
+            parseContext.statements.add(new VarAssignStatement(name, expr, parseContext.varSlot(name)));
         }
 
         @Override
@@ -639,7 +653,10 @@ public class PipelineRuleParser {
                 expr = new FieldRefExpression(ctx.getStart(), identifierName, parseContext.getDefinedVar(identifierName));
                 type = "FIELDREF";
             } else {
-                expr = new VarRefExpression(ctx.getStart(), identifierName, parseContext.getDefinedVar(identifierName));
+                expr = new VarRefExpression(ctx.getStart(),
+                        identifierName,
+                        parseContext.getDefinedVar(identifierName),
+                        definedVars.contains(identifierName) ? parseContext.varSlot(identifierName) : -1);
                 type = "VARREF";
             }
             log.trace("{}: ctx {} => {}", type, ctx, expr);
@@ -890,6 +907,8 @@ public class PipelineRuleParser {
         public List<Statement> statements = Lists.newArrayList();
         public List<Rule> rules = Lists.newArrayList();
         private Map<String, Expression> varDecls = Maps.newHashMap();
+        // frame slots of the declared vars, redefinitions of a var reuse its slot
+        private Map<String, Integer> varSlots = Maps.newHashMap();
         public List<Pipeline> pipelines = Lists.newArrayList();
 
         public ParseContext(boolean silent) {
@@ -950,6 +969,16 @@ public class PipelineRuleParser {
             return varDecls.get(name);
         }
 
+        /**
+         * Returns the frame slot of the var, assigning the next free slot if it doesn't have one yet.
+         *
+         * @param name var name
+         * @return the slot index of the var
+         */
+        public int varSlot(String name) {
+            return varSlots.computeIfAbsent(name, ignored -> varSlots.size());
+        }
+
         public ParseTreeProperty<List<Expression>> argumentLists() {
             return argsLists;
         }
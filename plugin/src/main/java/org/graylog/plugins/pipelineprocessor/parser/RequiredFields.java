@@ -0,0 +1,120 @@
+/**
+ * This file is part of Graylog Pipeline Processor.
+ *
+ * Graylog Pipeline Processor is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Graylog Pipeline Processor is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Graylog Pipeline Processor.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.graylog.plugins.pipelineprocessor.parser;
+
+import com.google.common.collect.ImmutableSet;
+import org.graylog.plugins.pipelineprocessor.ast.expressions.AndExpression;
+import org.graylog.plugins.pipelineprocessor.ast.expressions.BooleanValuedFunctionWrapper;
+import org.graylog.plugins.pipelineprocessor.ast.expressions.ConstantExpression;
+import org.graylog.plugins.pipelineprocessor.ast.expressions.EqualityExpression;
+import org.graylog.plugins.pipelineprocessor.ast.expressions.Expression;
+import org.graylog.plugins.pipelineprocessor.ast.expressions.FieldRefExpression;
+import org.graylog.plugins.pipelineprocessor.ast.expressions.FunctionExpression;
+import org.graylog.plugins.pipelineprocessor.ast.expressions.LogicalChainExpression;
+import org.graylog.plugins.pipelineprocessor.ast.expressions.MessageRefExpression;
+import org.graylog.plugins.pipelineprocessor.ast.expressions.StringExpression;
+import org.graylog.plugins.pipelineprocessor.ast.functions.FunctionArgs;
+import org.graylog.plugins.pipelineprocessor.functions.messages.HasField;
+
+import javax.annotation.Nullable;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Derives the fields a message needs to have for a rule condition to be true.
+ *
+ * A field is required if one of the top-level conjuncts of the condition is {@code has_field("field")} or an equality
+ * test {@code $message.field == <constant>}, both of which are false without the field. Only conjuncts preceded by side
+ * effect free conjuncts count, so that not evaluating the condition of a message lacking the field is not observable.
+ */
+final class RequiredFields {
+    private RequiredFields() {
+    }
+
+    static Set<String> of(Expression condition) {
+        final List<Expression> conjuncts = new ArrayList<>();
+        collectConjuncts(condition, conjuncts);
+
+        final ImmutableSet.Builder<String> fields = ImmutableSet.builder();
+        for (Expression conjunct : conjuncts) {
+            final String field = requiredField(conjunct);
+            if (field != null) {
+                fields.add(field);
+            }
+            if (!Expression.isSideEffectFree(conjunct)) {
+                // skipping the condition would also skip the side effects of this conjunct
+                break;
+            }
+        }
+        return fields.build();
+    }
+
+    private static void collectConjuncts(Expression expression, List<Expression> conjuncts) {
+        if (expression instanceof AndExpression) {
+            final AndExpression and = (AndExpression) expression;
+            collectConjuncts(and.left(), conjuncts);
+            collectConjuncts(and.right(), conjuncts);
+        } else if (expression instanceof LogicalChainExpression && ((LogicalChainExpression) expression).isAnd()) {
+            for (Expression operand : ((LogicalChainExpression) expression).operands()) {
+                collectConjuncts(operand, conjuncts);
+            }
+        } else {
+            conjuncts.add(expression);
+        }
+    }
+
+    @Nullable
+    private static String requiredField(Expression conjunct) {
+        if (conjunct instanceof BooleanValuedFunctionWrapper) {
+            return testedField(((BooleanValuedFunctionWrapper) conjunct).expression());
+        }
+        if (conjunct instanceof EqualityExpression) {
+            final EqualityExpression equality = (EqualityExpression) conjunct;
+            // comparing a missing field to anything is false, but being unequal is true
+            if (!equality.isCheckEquality() || !(equality.left() instanceof MessageRefExpression)
+                    || !(equality.right() instanceof ConstantExpression)) {
+                return null;
+            }
+            return constantName(((MessageRefExpression) equality.left()).getFieldExpr());
+        }
+        return null;
+    }
+
+    // has_field("field") on the current message
+    @Nullable
+    private static String testedField(Expression expr) {
+        if (!(expr instanceof FunctionExpression)) {
+            return null;
+        }
+        final FunctionArgs args = ((FunctionExpression) expr).getArgs();
+        if (!HasField.NAME.equals(args.getFunction().descriptor().name()) || args.isPresent("message")) {
+            return null;
+        }
+        final Expression field = args.expression(HasField.FIELD);
+        return field instanceof StringExpression ? constantName(field) : null;
+    }
+
+    @Nullable
+    private static String constantName(Expression fieldExpr) {
+        if (!(fieldExpr instanceof FieldRefExpression || fieldExpr instanceof StringExpression)) {
+            return null;
+        }
+        final Object field = fieldExpr.evaluateUnsafe();
+        return field == null ? null : field.toString();
+    }
+}
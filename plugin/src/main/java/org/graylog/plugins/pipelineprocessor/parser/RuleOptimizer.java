@@ -0,0 +1,395 @@
+/**
+ * This file is part of Graylog Pipeline Processor.
+ *
+ * Graylog Pipeline Processor is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Graylog Pipeline Processor is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Graylog Pipeline Processor.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.graylog.plugins.pipelineprocessor.parser;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import org.antlr.v4.runtime.Token;
+import org.graylog.plugins.pipelineprocessor.EvaluationContext;
+import org.graylog.plugins.pipelineprocessor.ast.Rule;
+import org.graylog.plugins.pipelineprocessor.ast.expressions.AdditionExpression;
+import org.graylog.plugins.pipelineprocessor.ast.expressions.AndExpression;
+import org.graylog.plugins.pipelineprocessor.ast.expressions.ArrayLiteralExpression;
+import org.graylog.plugins.pipelineprocessor.ast.expressions.BinaryExpression;
+import org.graylog.plugins.pipelineprocessor.ast.expressions.BooleanExpression;
+import org.graylog.plugins.pipelineprocessor.ast.expressions.BooleanValuedFunctionWrapper;
+import org.graylog.plugins.pipelineprocessor.ast.expressions.ComparisonExpression;
+import org.graylog.plugins.pipelineprocessor.ast.expressions.ConstantExpression;
+import org.graylog.plugins.pipelineprocessor.ast.expressions.DoubleExpression;
+import org.graylog.plugins.pipelineprocessor.ast.expressions.EqualityExpression;
+import org.graylog.plugins.pipelineprocessor.ast.expressions.Expression;
+import org.graylog.plugins.pipelineprocessor.ast.expressions.FieldAccessExpression;
+import org.graylog.plugins.pipelineprocessor.ast.expressions.FunctionExpression;
+import org.graylog.plugins.pipelineprocessor.ast.expressions.IndexedAccessExpression;
+import org.graylog.plugins.pipelineprocessor.ast.expressions.LogicalChainExpression;
+import org.graylog.plugins.pipelineprocessor.ast.expressions.LogicalExpression;
+import org.graylog.plugins.pipelineprocessor.ast.expressions.LongExpression;
+import org.graylog.plugins.pipelineprocessor.ast.expressions.MapLiteralExpression;
+import org.graylog.plugins.pipelineprocessor.ast.expressions.MessageRefExpression;
+import org.graylog.plugins.pipelineprocessor.ast.expressions.MultiplicationExpression;
+import org.graylog.plugins.pipelineprocessor.ast.expressions.NotExpression;
+import org.graylog.plugins.pipelineprocessor.ast.expressions.OrExpression;
+import org.graylog.plugins.pipelineprocessor.ast.expressions.SignedExpression;
+import org.graylog.plugins.pipelineprocessor.ast.expressions.UnaryExpression;
+import org.graylog.plugins.pipelineprocessor.ast.expressions.VarRefExpression;
+import org.graylog.plugins.pipelineprocessor.ast.functions.FunctionArgs;
+import org.graylog.plugins.pipelineprocessor.ast.statements.FunctionStatement;
+import org.graylog.plugins.pipelineprocessor.ast.statements.Statement;
+import org.graylog.plugins.pipelineprocessor.ast.statements.VarAssignStatement;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.ListIterator;
+import java.util.Map;
+
+/**
+ * Simplifies the AST of a type checked rule, before it is interpreted, compiled to closures or turned into bytecode.
+ *
+ * <ul>
+ *     <li>operators whose operands are all constants are evaluated once and replaced by their result</li>
+ *     <li>{@code true && x}, {@code x && true}, {@code false || x} and {@code x || false} become {@code x}</li>
+ *     <li>{@code false && x} and {@code true || x} become constants, {@code x} could never be evaluated</li>
+ *     <li>{@code !!x} becomes {@code x}</li>
+ *     <li>chains of three or more {@code &&}, or of three or more {@code ||}, become a single {@link LogicalChainExpression}</li>
+ *     <li>the actions of a rule whose condition is always false are dropped</li>
+ * </ul>
+ *
+ * Function calls are never folded, even with constant arguments, because their results may depend on the message.
+ * Their arguments are optimized like any other expression, the functions then precompute the ones which have become
+ * constant.
+ */
+class RuleOptimizer {
+    private static final Logger log = LoggerFactory.getLogger(RuleOptimizer.class);
+
+    Rule optimize(Rule rule) {
+        final Expression optimizedCondition = optimize(rule.when());
+        final LogicalExpression condition = optimizedCondition instanceof LogicalExpression
+                ? (LogicalExpression) optimizedCondition
+                : rule.when();
+
+        final List<Statement> actions;
+        if (isConstant(condition, false)) {
+            log.debug("Condition of rule {} is always false, dropping its actions", rule.name());
+            actions = ImmutableList.of();
+        } else {
+            actions = new ArrayList<>(rule.then().size());
+            for (Statement statement : rule.then()) {
+                actions.add(optimize(statement));
+            }
+        }
+        return rule.toBuilder().when(condition).then(actions).build();
+    }
+
+    private Statement optimize(Statement statement) {
+        if (statement instanceof VarAssignStatement) {
+            final VarAssignStatement assignment = (VarAssignStatement) statement;
+            final Expression value = optimize(assignment.getValueExpression());
+            if (value != assignment.getValueExpression()) {
+                return new VarAssignStatement(assignment.getName(), value, assignment.getSlot());
+            }
+        } else if (statement instanceof FunctionStatement) {
+            final Expression call = ((FunctionStatement) statement).getFunctionExpression();
+            final Expression optimizedCall = optimize(call);
+            if (optimizedCall != call) {
+                return new FunctionStatement(optimizedCall);
+            }
+        }
+        return statement;
+    }
+
+    /**
+     * Optimizes the expression tree bottom up.
+     *
+     * Nodes are rebuilt if one of their children changes, trees which are already in use elsewhere stay untouched.
+     *
+     * @return the replacement for the expression, or the expression itself
+     */
+    Expression optimize(Expression expr) {
+        if (expr instanceof VarRefExpression) {
+            // the variable's value expression belongs to its assignment
+            return expr;
+        }
+        if (!(expr instanceof UnaryExpression)) {
+            return optimizeChildren(expr);
+        }
+        final Expression operator = optimizeOperands((UnaryExpression) expr);
+
+        final Expression folded = fold(operator);
+        if (folded != null) {
+            return folded;
+        }
+        return flatten(simplify(operator));
+    }
+
+    /**
+     * Rebuilds the operator if one of its operands changes, the syntax tree is never modified in place.
+     */
+    private Expression optimizeOperands(UnaryExpression expr) {
+        final Token start = expr.getStartToken();
+        if (!(expr instanceof BinaryExpression)) {
+            final Expression right = optimize(expr.right());
+            if (right == expr.right()) {
+                return expr;
+            }
+            if (expr instanceof NotExpression) {
+                return new NotExpression(start, right);
+            }
+            if (expr instanceof SignedExpression) {
+                return new SignedExpression(start, right, ((SignedExpression) expr).isPlus());
+            }
+            // an operator this class doesn't know keeps its original operands, which are still valid
+            return expr;
+        }
+        final BinaryExpression binary = (BinaryExpression) expr;
+        final Expression left = optimize(binary.left());
+        final Expression right = optimize(binary.right());
+        if (left == binary.left() && right == binary.right()) {
+            return expr;
+        }
+        if (expr instanceof AndExpression) {
+            return new AndExpression(start, left, right);
+        }
+        if (expr instanceof OrExpression) {
+            return new OrExpression(start, left, right);
+        }
+        if (expr instanceof EqualityExpression) {
+            return new EqualityExpression(start, left, right, ((EqualityExpression) expr).isCheckEquality());
+        }
+        if (expr instanceof ComparisonExpression) {
+            return new ComparisonExpression(start, left, right, ((ComparisonExpression) expr).getOperator());
+        }
+        if (expr instanceof AdditionExpression) {
+            final AdditionExpression addition = new AdditionExpression(start, left, right, ((AdditionExpression) expr).isPlus());
+            addition.setType(expr.getType());
+            return addition;
+        }
+        if (expr instanceof MultiplicationExpression) {
+            final MultiplicationExpression multiplication = new MultiplicationExpression(start, left, right,
+                    ((MultiplicationExpression) expr).getOperator());
+            multiplication.setType(expr.getType());
+            return multiplication;
+        }
+        return expr;
+    }
+
+    private Expression optimizeChildren(Expression expr) {
+        final Token start = expr.getStartToken();
+        if (expr instanceof FunctionExpression) {
+            final FunctionExpression call = (FunctionExpression) expr;
+            final Map<String, Expression> args = new LinkedHashMap<>(call.getArgs().getArgs());
+            if (!optimizeAll(args)) {
+                return expr;
+            }
+            try {
+                // the function precomputes the arguments which have become constant
+                return new FunctionExpression(start, new FunctionArgs(call.getFunction(), args));
+            } catch (Exception e) {
+                log.debug("Unable to precompute optimized arguments of {}: {}", expr, e.getMessage());
+                return expr;
+            }
+        }
+        if (expr instanceof BooleanValuedFunctionWrapper) {
+            final Expression call = ((BooleanValuedFunctionWrapper) expr).expression();
+            final Expression optimizedCall = optimize(call);
+            return optimizedCall == call ? expr : new BooleanValuedFunctionWrapper(start, optimizedCall);
+        }
+        if (expr instanceof MessageRefExpression) {
+            final Expression field = ((MessageRefExpression) expr).getFieldExpr();
+            final Expression optimizedField = optimize(field);
+            return optimizedField == field ? expr : new MessageRefExpression(start, optimizedField);
+        }
+        if (expr instanceof FieldAccessExpression) {
+            final FieldAccessExpression access = (FieldAccessExpression) expr;
+            final Expression object = optimize(access.object());
+            final Expression field = optimize(access.field());
+            return object == access.object() && field == access.field()
+                    ? expr
+                    : new FieldAccessExpression(start, object, field);
+        }
+        if (expr instanceof IndexedAccessExpression) {
+            final IndexedAccessExpression access = (IndexedAccessExpression) expr;
+            final Expression indexable = optimize(access.getIndexableObject());
+            final Expression index = optimize(access.getIndex());
+            return indexable == access.getIndexableObject() && index == access.getIndex()
+                    ? expr
+                    : new IndexedAccessExpression(start, indexable, index);
+        }
+        if (expr instanceof ArrayLiteralExpression) {
+            final List<Expression> elements = Lists.newArrayList(expr.children());
+            return optimizeAll(elements) ? new ArrayLiteralExpression(start, elements) : expr;
+        }
+        if (expr instanceof MapLiteralExpression) {
+            final HashMap<String, Expression> entries = new HashMap<>();
+            ((MapLiteralExpression) expr).entries().forEach(entry -> entries.put(entry.getKey(), entry.getValue()));
+            return optimizeAll(entries) ? new MapLiteralExpression(start, entries) : expr;
+        }
+        if (expr instanceof LogicalChainExpression) {
+            final LogicalChainExpression chain = (LogicalChainExpression) expr;
+            final List<Expression> operands = new ArrayList<>(chain.operands());
+            return optimizeAll(operands) ? new LogicalChainExpression(start, chain.isAnd(), operands) : expr;
+        }
+        // constants, field and variable references have no children worth optimizing
+        return expr;
+    }
+
+    /**
+     * Optimizes all values of the map and writes the replacements back.
+     *
+     * @return true if any value was replaced
+     */
+    private boolean optimizeAll(Map<String, Expression> exprs) {
+        boolean changed = false;
+        for (Map.Entry<String, Expression> entry : exprs.entrySet()) {
+            final Expression optimized = optimize(entry.getValue());
+            if (optimized != entry.getValue()) {
+                entry.setValue(optimized);
+                changed = true;
+            }
+        }
+        return changed;
+    }
+
+    /**
+     * Optimizes all elements of the list and writes the replacements back.
+     *
+     * @return true if any element was replaced
+     */
+    private boolean optimizeAll(List<Expression> exprs) {
+        boolean changed = false;
+        for (ListIterator<Expression> it = exprs.listIterator(); it.hasNext(); ) {
+            final Expression expr = it.next();
+            final Expression optimized = optimize(expr);
+            if (optimized != expr) {
+                it.set(optimized);
+                changed = true;
+            }
+        }
+        return changed;
+    }
+
+    @Nullable
+    private static Expression fold(Expression expr) {
+        if (!isFoldableOperator(expr)) {
+            return null;
+        }
+        for (Expression operand : expr.children()) {
+            if (!(operand instanceof ConstantExpression)) {
+                return null;
+            }
+        }
+        final Object value;
+        try {
+            value = expr.evaluateUnsafe(EvaluationContext.emptyContext());
+        } catch (Exception e) {
+            // leave it to the evaluation to report the error for every message, like it would without folding
+            log.debug("Unable to fold constant expression {}: {}", expr, e.getMessage());
+            return null;
+        }
+        if (value instanceof Boolean) {
+            return new BooleanExpression(expr.getStartToken(), (Boolean) value);
+        } else if (value instanceof Long) {
+            return new LongExpression(expr.getStartToken(), (Long) value);
+        } else if (value instanceof Double && Double.isFinite((Double) value)) {
+            return new DoubleExpression(expr.getStartToken(), (Double) value);
+        }
+        // dates, periods and the like have no literal representation
+        return null;
+    }
+
+    private static boolean isFoldableOperator(Expression expr) {
+        return expr instanceof AdditionExpression
+                || expr instanceof MultiplicationExpression
+                || expr instanceof SignedExpression
+                || expr instanceof ComparisonExpression
+                || expr instanceof EqualityExpression
+                || expr instanceof AndExpression
+                || expr instanceof OrExpression
+                || expr instanceof NotExpression;
+    }
+
+    private static Expression simplify(Expression expr) {
+        if (expr instanceof AndExpression) {
+            final AndExpression and = (AndExpression) expr;
+            if (isConstant(and.left(), true)) {
+                return and.right();
+            }
+            if (isConstant(and.left(), false)) {
+                return and.left();
+            }
+            if (isConstant(and.right(), true)) {
+                return and.left();
+            }
+        } else if (expr instanceof OrExpression) {
+            final OrExpression or = (OrExpression) expr;
+            if (isConstant(or.left(), false)) {
+                return or.right();
+            }
+            if (isConstant(or.left(), true)) {
+                return or.left();
+            }
+            if (isConstant(or.right(), false)) {
+                return or.left();
+            }
+        } else if (expr instanceof NotExpression) {
+            final Expression operand = ((NotExpression) expr).right();
+            if (operand instanceof NotExpression) {
+                return ((NotExpression) operand).right();
+            }
+        }
+        return expr;
+    }
+
+    // operands are optimized bottom up, so nested chains have already been flattened
+    private static Expression flatten(Expression expr) {
+        final boolean isAnd;
+        if (expr instanceof AndExpression) {
+            isAnd = true;
+        } else if (expr instanceof OrExpression) {
+            isAnd = false;
+        } else {
+            return expr;
+        }
+        final BinaryExpression binary = (BinaryExpression) expr;
+        final List<Expression> operands = new ArrayList<>();
+        addChainOperands(binary.left(), isAnd, operands);
+        addChainOperands(binary.right(), isAnd, operands);
+        if (operands.size() < 3) {
+            return expr;
+        }
+        return new LogicalChainExpression(expr.getStartToken(), isAnd, operands);
+    }
+
+    private static void addChainOperands(Expression operand, boolean isAnd, List<Expression> operands) {
+        if (operand instanceof LogicalChainExpression && ((LogicalChainExpression) operand).isAnd() == isAnd) {
+            operands.addAll(((LogicalChainExpression) operand).operands());
+        } else if (isAnd ? operand instanceof AndExpression : operand instanceof OrExpression) {
+            operands.add(((BinaryExpression) operand).left());
+            operands.add(((BinaryExpression) operand).right());
+        } else {
+            operands.add(operand);
+        }
+    }
+
+    private static boolean isConstant(Expression expr, boolean value) {
+        return expr instanceof BooleanExpression && ((BooleanExpression) expr).evaluateBool(null) == value;
+    }
+}
@@ -0,0 +1,108 @@
+/**
+ * This file is part of Graylog Pipeline Processor.
+ *
+ * Graylog Pipeline Processor is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Graylog Pipeline Processor is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Graylog Pipeline Processor.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.graylog.plugins.pipelineprocessor.processors;
+
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.graylog.plugins.pipelineprocessor.EvaluationContext;
+import org.graylog.plugins.pipelineprocessor.ast.functions.FunctionDescriptor;
+
+import javax.annotation.Nullable;
+import javax.inject.Inject;
+import javax.inject.Named;
+import javax.inject.Singleton;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+import static com.codahale.metrics.MetricRegistry.name;
+
+/**
+ * Evaluates stages which call blocking functions, like lookup table accesses, for all messages of a batch concurrently.
+ *
+ * While the evaluation for one message waits on I/O, the other messages of the batch make progress on the remaining
+ * threads of the pool, instead of the processing thread waiting for each lookup in turn. The pool is shared by all
+ * interpreter instances of the node.
+ *
+ * Independently of the execution mode, the time spent in blocking functions is recorded per function name.
+ */
+@Singleton
+public class BlockingStageExecutor implements EvaluationContext.BlockingCallObserver {
+
+    private final MetricRegistry metricRegistry;
+    @Nullable
+    private final ExecutorService executor;
+    private final Meter concurrentEvaluations;
+    private final ConcurrentMap<String, Timer> blockingCallTimers = new ConcurrentHashMap<>();
+
+    @Inject
+    public BlockingStageExecutor(@Named("pipeline_blocking_execution_threads") int threads,
+                                 MetricRegistry metricRegistry) {
+        this.metricRegistry = metricRegistry;
+        this.executor = threads > 0 ? Executors.newFixedThreadPool(threads, new ThreadFactoryBuilder()
+                .setNameFormat("pipeline-blocking-worker-%d")
+                .setDaemon(true)
+                .build()) : null;
+        this.concurrentEvaluations = metricRegistry.meter(name(PipelineInterpreter.class, "blocking-stages", "concurrent-evaluations"));
+    }
+
+    /**
+     * @return an executor which evaluates every stage on the calling thread
+     */
+    public static BlockingStageExecutor disabled() {
+        return new BlockingStageExecutor(0, new MetricRegistry());
+    }
+
+    public boolean isEnabled() {
+        return executor != null;
+    }
+
+    /**
+     * Runs the task for all items and waits until all of them have completed.
+     *
+     * If the executor is enabled, the tasks run concurrently on the pool, otherwise they are run in order on the calling
+     * thread. The first exception thrown by a task is rethrown after all tasks have finished.
+     *
+     * @param items the items to process, usually the messages of a batch
+     * @param task  the task to run for each item, must be safe to call concurrently for different items
+     */
+    public <T> void forEach(List<T> items, Consumer<T> task) {
+        if (executor == null || items.size() < 2) {
+            items.forEach(task);
+            return;
+        }
+        concurrentEvaluations.mark(items.size());
+        // the items must not be modified after we've returned, so this waits for all tasks even if one failed
+        ConcurrentTasks.invokeAll(executor, items, item -> {
+            task.accept(item);
+            return null;
+        });
+    }
+
+    @Override
+    public void blockingCallFinished(FunctionDescriptor descriptor, long durationNanos) {
+        blockingCallTimers.computeIfAbsent(descriptor.name(),
+                functionName -> metricRegistry.timer(name(PipelineInterpreter.class, "blocking-calls", functionName)))
+                .update(durationNanos, TimeUnit.NANOSECONDS);
+    }
+}
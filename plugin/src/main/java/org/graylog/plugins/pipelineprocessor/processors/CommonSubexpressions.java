@@ -0,0 +1,177 @@
+/**
+ * This file is part of Graylog Pipeline Processor.
+ *
+ * Graylog Pipeline Processor is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Graylog Pipeline Processor is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Graylog Pipeline Processor.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.graylog.plugins.pipelineprocessor.processors;
+
+import org.graylog.plugins.pipelineprocessor.ast.Rule;
+import org.graylog.plugins.pipelineprocessor.ast.RuleAstBaseListener;
+import org.graylog.plugins.pipelineprocessor.ast.RuleAstWalker;
+import org.graylog.plugins.pipelineprocessor.ast.expressions.ConstantExpression;
+import org.graylog.plugins.pipelineprocessor.ast.expressions.Expression;
+import org.graylog.plugins.pipelineprocessor.ast.expressions.FieldRefExpression;
+import org.graylog.plugins.pipelineprocessor.ast.expressions.FunctionExpression;
+import org.graylog.plugins.pipelineprocessor.ast.expressions.MessageRefExpression;
+import org.graylog.plugins.pipelineprocessor.ast.functions.FunctionDescriptor;
+
+import javax.annotation.Nullable;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * The function calls which occur more than once in the conditions of a stage's rules.
+ *
+ * Rules of the same stage frequently test the same thing, like several rules each parsing the same field with
+ * {@code to_ip($message.src)} or checking {@code has_field("action")}. Calls to pure functions whose arguments only
+ * consist of constants and message fields are identified by their structure, and every call which occurs at least
+ * twice is assigned a slot. While the conditions of the stage are evaluated for a message, the first evaluation of such
+ * a call stores its value in the slot and all others reuse it.
+ *
+ * Only conditions take part: all of a stage's conditions are evaluated before any of its actions can change the message,
+ * so the message fields are stable for their whole evaluation. That no longer holds once a condition calls a function
+ * which isn't pure, such stages don't share any values.
+ */
+public class CommonSubexpressions {
+    private final IdentityHashMap<Expression, Integer> slots;
+    private final int size;
+
+    private CommonSubexpressions(IdentityHashMap<Expression, Integer> slots, int size) {
+        this.slots = slots;
+        this.size = size;
+    }
+
+    /**
+     * @param rules the rules of the stage
+     * @return the shared subexpressions of the rules' conditions, or null if there are none or a condition calls a
+     * function which isn't pure
+     */
+    @Nullable
+    static CommonSubexpressions analyze(List<Rule> rules) {
+        final CallCollector collector = new CallCollector();
+        for (Rule rule : rules) {
+            new RuleAstWalker().walk(collector, rule);
+        }
+        if (collector.hasSideEffects) {
+            return null;
+        }
+
+        final IdentityHashMap<Expression, Integer> slots = new IdentityHashMap<>();
+        int size = 0;
+        for (List<Expression> calls : collector.occurrences.values()) {
+            if (calls.size() < 2) {
+                continue;
+            }
+            final int slot = size++;
+            for (Expression call : calls) {
+                slots.put(call, slot);
+            }
+        }
+        return size == 0 ? null : new CommonSubexpressions(slots, size);
+    }
+
+    /**
+     * Groups the function calls of the conditions by their {@link #keyOf(Expression) key}.
+     */
+    private static class CallCollector extends RuleAstBaseListener {
+        private final Map<String, List<Expression>> occurrences = new LinkedHashMap<>();
+        private boolean inCondition = false;
+        // true if a condition calls a function which isn't pure, it might change the message or the context
+        private boolean hasSideEffects = false;
+
+        @Override
+        public void enterWhen(Rule rule) {
+            inCondition = true;
+        }
+
+        @Override
+        public void exitWhen(Rule rule) {
+            inCondition = false;
+        }
+
+        @Override
+        public void enterFunctionCall(FunctionExpression expr) {
+            if (!inCondition) {
+                return;
+            }
+            // whatever such a call returns, it may have changed what later calls see, so no value may be reused
+            if (!expr.getFunction().descriptor().pure()) {
+                hasSideEffects = true;
+            }
+            final String key = keyOf(expr);
+            if (key != null) {
+                occurrences.computeIfAbsent(key, k -> new ArrayList<>()).add(expr);
+            }
+        }
+    }
+
+    /**
+     * Computes a key which is equal for two expressions if they always evaluate to the same value for the same message.
+     *
+     * @return the expression's key, or null if its value might depend on more than its structure and the message
+     */
+    @Nullable
+    static String keyOf(Expression expr) {
+        if (expr instanceof ConstantExpression) {
+            final String value = String.valueOf(expr.evaluateUnsafe());
+            // the length prefix keeps values containing separators apart
+            return expr.getType().getSimpleName() + value.length() + ":" + value;
+        }
+        if (expr instanceof FieldRefExpression) {
+            final String fieldName = ((FieldRefExpression) expr).fieldName();
+            return "." + fieldName.length() + ":" + fieldName;
+        }
+        if (expr instanceof MessageRefExpression) {
+            final String fieldKey = keyOf(((MessageRefExpression) expr).getFieldExpr());
+            return fieldKey == null ? null : "$message[" + fieldKey + "]";
+        }
+        if (expr instanceof FunctionExpression) {
+            final FunctionExpression call = (FunctionExpression) expr;
+            final FunctionDescriptor descriptor = call.getFunction().descriptor();
+            if (!descriptor.pure() || descriptor.blocking()) {
+                return null;
+            }
+            final StringBuilder key = new StringBuilder(descriptor.name()).append('(');
+            for (Map.Entry<String, Expression> arg : new TreeMap<>(call.getArgs().getArgs()).entrySet()) {
+                final String argKey = keyOf(arg.getValue());
+                if (argKey == null) {
+                    return null;
+                }
+                key.append(arg.getKey()).append('=').append(argKey).append(',');
+            }
+            return key.append(')').toString();
+        }
+        return null;
+    }
+
+    /**
+     * @param expr an expression of one of the stage's conditions
+     * @return the slot holding the expression's value, or -1 if the expression is not shared
+     */
+    public int slotOf(Expression expr) {
+        final Integer slot = slots.get(expr);
+        return slot == null ? -1 : slot;
+    }
+
+    /**
+     * @return the number of distinct shared subexpressions
+     */
+    public int size() {
+        return size;
+    }
+}
@@ -0,0 +1,68 @@
+/**
+ * This file is part of Graylog Pipeline Processor.
+ *
+ * Graylog Pipeline Processor is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Graylog Pipeline Processor is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Graylog Pipeline Processor.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.graylog.plugins.pipelineprocessor.processors;
+
+import com.google.common.base.Throwables;
+import com.google.common.util.concurrent.Uninterruptibles;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.function.Function;
+
+/**
+ * Runs a task for each item of a list on an executor and waits for all of them.
+ */
+final class ConcurrentTasks {
+
+    private ConcurrentTasks() {
+    }
+
+    /**
+     * Submits the task for every item and waits until all of them have completed, even if some of them fail, so that
+     * no task is still running once this returns. The first exception thrown by a task is then rethrown.
+     *
+     * @param executor the executor to run the tasks on
+     * @param items    the items to process
+     * @param task     the task to run for each item, must be safe to call concurrently for different items
+     * @return the results of the tasks, in the order of the items
+     */
+    static <T, R> List<R> invokeAll(ExecutorService executor, List<T> items, Function<T, R> task) {
+        final List<Future<R>> futures = new ArrayList<>(items.size());
+        for (T item : items) {
+            futures.add(executor.submit(() -> task.apply(item)));
+        }
+        final List<R> results = new ArrayList<>(items.size());
+        Throwable failure = null;
+        for (Future<R> future : futures) {
+            try {
+                results.add(Uninterruptibles.getUninterruptibly(future));
+            } catch (ExecutionException e) {
+                if (failure == null) {
+                    failure = e.getCause();
+                }
+            }
+        }
+        if (failure != null) {
+            Throwables.throwIfUnchecked(failure);
+            throw new RuntimeException(failure);
+        }
+        return results;
+    }
+}
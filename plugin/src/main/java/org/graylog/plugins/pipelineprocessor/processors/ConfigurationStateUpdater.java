@@ -1,18 +1,26 @@
 package org.graylog.plugins.pipelineprocessor.processors;
 
+import com.codahale.metrics.Meter;
 import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.collect.HashMultimap;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableListMultimap;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSetMultimap;
 import com.google.common.collect.Maps;
 import com.google.common.eventbus.EventBus;
 import com.google.common.eventbus.Subscribe;
+import com.google.common.hash.HashCode;
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
 import org.graylog.plugins.pipelineprocessor.ast.Pipeline;
 import org.graylog.plugins.pipelineprocessor.ast.Rule;
-import org.graylog.plugins.pipelineprocessor.codegen.PipelineClassloader;
+import org.graylog.plugins.pipelineprocessor.db.PipelineDao;
 import org.graylog.plugins.pipelineprocessor.db.PipelineService;
 import org.graylog.plugins.pipelineprocessor.db.PipelineStreamConnectionsService;
+import org.graylog.plugins.pipelineprocessor.db.RuleDao;
 import org.graylog.plugins.pipelineprocessor.db.RuleService;
 import org.graylog.plugins.pipelineprocessor.events.PipelineConnectionsChangedEvent;
 import org.graylog.plugins.pipelineprocessor.events.PipelinesChangedEvent;
@@ -21,6 +29,7 @@ import org.graylog.plugins.pipelineprocessor.parser.FunctionRegistry;
 import org.graylog.plugins.pipelineprocessor.parser.ParseException;
 import org.graylog.plugins.pipelineprocessor.parser.PipelineRuleParser;
 import org.graylog.plugins.pipelineprocessor.rest.PipelineConnections;
+import org.graylog.plugins.pipelineprocessor.rest.PrunedElement;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -28,12 +37,19 @@ import javax.annotation.Nonnull;
 import javax.inject.Inject;
 import javax.inject.Named;
 import javax.inject.Singleton;
-import javax.tools.ToolProvider;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicReference;
 import java.util.stream.Collectors;
 
@@ -42,6 +58,7 @@ import static com.codahale.metrics.MetricRegistry.name;
 @Singleton
 public class ConfigurationStateUpdater {
     private static final Logger log = LoggerFactory.getLogger(ConfigurationStateUpdater.class);
+    private static final HashFunction SOURCE_HASH = Hashing.murmur3_128();
 
     private final RuleService ruleService;
     private final PipelineService pipelineService;
@@ -52,10 +69,36 @@ public class ConfigurationStateUpdater {
     private final ScheduledExecutorService scheduler;
     private final EventBus serverEventBus;
     private final PipelineInterpreter.State.Factory stateFactory;
+    private final RuleCompiler ruleCompiler;
+    private final ReloadExecutor reloadExecutor;
+    private final Timer reloadTime;
+    private final Timer parseRulesTime;
+    private final Timer resolvePipelinesTime;
+    private final Timer buildStateTime;
+    private final Meter coalescedReloads;
+    private final Meter parsedRules;
+    private final Meter resolvedPipelines;
+    /**
+     * parsed rules by rule id, reused by later reloads as long as the source of the rule does not change
+     */
+    private final ConcurrentMap<String, CachedRule> ruleCache = new ConcurrentHashMap<>();
+    /**
+     * resolved pipelines by pipeline id, reused as long as neither their source nor the rules they reference change
+     */
+    private final ConcurrentMap<String, CachedPipeline> pipelineCache = new ConcurrentHashMap<>();
+    /**
+     * true while a reload has been scheduled but has not started loading the configuration yet
+     */
+    private final AtomicBoolean reloadScheduled = new AtomicBoolean(false);
     /**
      * non-null if the update has successfully loaded a state
      */
     private final AtomicReference<PipelineInterpreter.State> latestState = new AtomicReference<>();
+    /**
+     * rules and stages removed from the pipelines of the latest state, keyed by pipeline id
+     */
+    private final AtomicReference<ImmutableListMultimap<String, PrunedElement>> prunedElements =
+            new AtomicReference<>(ImmutableListMultimap.of());
     private static boolean allowCodeGeneration = false;
 
     @Inject
@@ -68,6 +111,8 @@ public class ConfigurationStateUpdater {
                                      @Named("daemonScheduler") ScheduledExecutorService scheduler,
                                      EventBus serverEventBus,
                                      PipelineInterpreter.State.Factory stateFactory,
+                                     RuleCompiler ruleCompiler,
+                                     ReloadExecutor reloadExecutor,
                                      @Named("generate_native_code") boolean allowCodeGeneration) {
         this.ruleService = ruleService;
         this.pipelineService = pipelineService;
@@ -78,8 +123,16 @@ public class ConfigurationStateUpdater {
         this.scheduler = scheduler;
         this.serverEventBus = serverEventBus;
         this.stateFactory = stateFactory;
-        // ignore global config, never allow generating code
-        setAllowCodeGeneration(false);
+        this.ruleCompiler = ruleCompiler;
+        this.reloadExecutor = reloadExecutor;
+        this.reloadTime = metricRegistry.timer(name(ConfigurationStateUpdater.class, "reload", "time"));
+        this.parseRulesTime = metricRegistry.timer(name(ConfigurationStateUpdater.class, "reload", "parse-rules"));
+        this.resolvePipelinesTime = metricRegistry.timer(name(ConfigurationStateUpdater.class, "reload", "resolve-pipelines"));
+        this.buildStateTime = metricRegistry.timer(name(ConfigurationStateUpdater.class, "reload", "build-state"));
+        this.coalescedReloads = metricRegistry.meter(name(ConfigurationStateUpdater.class, "reload", "coalesced"));
+        this.parsedRules = metricRegistry.meter(name(ConfigurationStateUpdater.class, "reload", "parsed-rules"));
+        this.resolvedPipelines = metricRegistry.meter(name(ConfigurationStateUpdater.class, "reload", "resolved-pipelines"));
+        setAllowCodeGeneration(allowCodeGeneration);
 
         // listens to cluster wide Rule, Pipeline and pipeline stream connection changes
         serverEventBus.register(this);
@@ -88,12 +141,6 @@ public class ConfigurationStateUpdater {
     }
 
     private static void setAllowCodeGeneration(Boolean allowCodeGeneration) {
-        if (allowCodeGeneration && ToolProvider.getSystemJavaCompiler() == null) {
-            log.warn("Your Java runtime does not have a compiler available, turning off dynamic " +
-                    "code generation. Please consider running Graylog in a JDK, not a JRE, to " +
-                    "avoid a performance penalty in pipeline processing.");
-            allowCodeGeneration = false;
-        }
         ConfigurationStateUpdater.allowCodeGeneration = allowCodeGeneration;
     }
 
@@ -104,51 +151,134 @@ public class ConfigurationStateUpdater {
     // only the singleton instance should mutate itself, others are welcome to reload a new state, but we don't
     // currently allow direct global state updates from external sources (if you need to, send an event on the bus instead)
     private synchronized PipelineInterpreter.State reloadAndSave() {
-        // this classloader will hold all generated rule classes
-        PipelineClassloader commonClassLoader = allowCodeGeneration ? new PipelineClassloader() : null;
-
-        // read all rules and parse them
-        Map<String, Rule> ruleNameMap = Maps.newHashMap();
-        ruleService.loadAll().forEach(ruleDao -> {
-            Rule rule;
-            try {
-                rule = pipelineRuleParser.parseRule(ruleDao.id(), ruleDao.source(), false, commonClassLoader);
-            } catch (ParseException e) {
-                rule = Rule.alwaysFalse("Failed to parse rule: " + ruleDao.id());
+        // changes arriving from now on need another reload, the ones before are covered by this one
+        reloadScheduled.set(false);
+        // the new state is built off to the side, the interpreter keeps using the latest one until it is published below
+        try (Timer.Context ignored = reloadTime.time()) {
+            // read all rules and parse the ones which have changed since the last reload
+            final Map<String, Rule> ruleNameMap = Maps.newHashMap();
+            // rules start out as closures, hot ones are compiled in the background, once per rule source
+            final Map<String, HashCode> ruleSources = Maps.newHashMap();
+            try (Timer.Context ignored1 = parseRulesTime.time()) {
+                final List<RuleDao> ruleDaos = ImmutableList.copyOf(ruleService.loadAll());
+                // the results are in load order, so later rules with the same name still replace earlier ones
+                reloadExecutor.map(ruleDaos, this::cachedRule).forEach(cached -> {
+                    ruleNameMap.put(cached.rule.name(), cached.rule);
+                    if (cached.rule.id() != null) {
+                        ruleSources.put(cached.rule.id(), cached.sourceHash);
+                    }
+                });
+                ruleCache.keySet().retainAll(ruleDaos.stream().map(RuleDao::id).collect(Collectors.toSet()));
+                ruleCompiler.retainRules(ruleSources);
             }
-            ruleNameMap.put(rule.name(), rule);
-        });
 
-        // read all pipelines and parse them
-        ImmutableMap.Builder<String, Pipeline> pipelineIdMap = ImmutableMap.builder();
-        pipelineService.loadAll().forEach(pipelineDao -> {
-            Pipeline pipeline;
-            try {
-                pipeline = pipelineRuleParser.parsePipeline(pipelineDao.id(), pipelineDao.source());
-            } catch (ParseException e) {
-                pipeline = Pipeline.empty("Failed to parse pipeline" + pipelineDao.id());
+            // read all pipelines, parse them and resolve their rules
+            final ImmutableMap<String, Pipeline> currentPipelines;
+            final ImmutableListMultimap.Builder<String, PrunedElement> prunedElementMap = ImmutableListMultimap.builder();
+            try (Timer.Context ignored1 = resolvePipelinesTime.time()) {
+                final List<PipelineDao> pipelineDaos = ImmutableList.copyOf(pipelineService.loadAll());
+                final Map<String, List<PrunedElement>> prunedByPipelineId = new ConcurrentHashMap<>();
+                final List<Pipeline> pipelines = reloadExecutor.map(pipelineDaos, pipelineDao -> {
+                    final CachedPipeline cached = cachedPipeline(pipelineDao, ruleNameMap, ruleSources);
+                    if (!cached.pruned.isEmpty()) {
+                        prunedByPipelineId.put(pipelineDao.id(), cached.pruned);
+                    }
+                    return cached.pipeline;
+                });
+                pipelineCache.keySet().retainAll(pipelineDaos.stream().map(PipelineDao::id).collect(Collectors.toSet()));
+
+                final ImmutableMap.Builder<String, Pipeline> pipelineIdMap = ImmutableMap.builder();
+                for (int i = 0; i < pipelineDaos.size(); i++) {
+                    final String pipelineId = pipelineDaos.get(i).id();
+                    pipelineIdMap.put(pipelineId, pipelines.get(i));
+                    prunedElementMap.putAll(pipelineId, prunedByPipelineId.getOrDefault(pipelineId, Collections.emptyList()));
+                }
+                currentPipelines = pipelineIdMap.build();
             }
-            //noinspection ConstantConditions
-            pipelineIdMap.put(pipelineDao.id(), resolvePipeline(pipeline, ruleNameMap));
-        });
 
-        final ImmutableMap<String, Pipeline> currentPipelines = pipelineIdMap.build();
+            final PipelineInterpreter.State newState;
+            try (Timer.Context ignored1 = buildStateTime.time()) {
+                // read all stream connections of those pipelines to allow processing messages through them
+                final HashMultimap<String, Pipeline> connections = HashMultimap.create();
+                for (PipelineConnections streamConnection : pipelineStreamConnectionsService.loadAll()) {
+                    streamConnection.pipelineIds().stream()
+                            .map(currentPipelines::get)
+                            .filter(Objects::nonNull)
+                            .forEach(pipeline -> connections.put(streamConnection.streamId(), pipeline));
+                }
+                ImmutableSetMultimap<String, Pipeline> streamPipelineConnections = ImmutableSetMultimap.copyOf(connections);
+
+                newState = stateFactory.newState(currentPipelines, streamPipelineConnections);
+            }
+            for (Set<String> cycle : newState.getStreamRouting().cycles()) {
+                log.warn("Pipelines route messages in a cycle between the streams {}, each message is only processed once per stream", cycle);
+            }
+            prunedElements.set(prunedElementMap.build());
+            latestState.set(newState);
+            return newState;
+        }
+    }
+
+    /**
+     * @return the parsed rule of the last reload if its source is unchanged, otherwise the freshly parsed rule
+     */
+    private CachedRule cachedRule(RuleDao ruleDao) {
+        final HashCode sourceHash = SOURCE_HASH.hashString(ruleDao.source(), StandardCharsets.UTF_8);
+        final CachedRule cached = ruleCache.get(ruleDao.id());
+        if (cached != null && cached.sourceHash.equals(sourceHash)) {
+            return cached;
+        }
+        final CachedRule parsed = new CachedRule(sourceHash, parseRule(ruleDao));
+        parsedRules.mark();
+        ruleCache.put(ruleDao.id(), parsed);
+        return parsed;
+    }
+
+    private Rule parseRule(RuleDao ruleDao) {
+        try {
+            return pipelineRuleParser.parseRule(ruleDao.id(), ruleDao.source(), false);
+        } catch (ParseException e) {
+            return Rule.alwaysFalse("Failed to parse rule: " + ruleDao.id());
+        }
+    }
 
-        // read all stream connections of those pipelines to allow processing messages through them
-        final HashMultimap<String, Pipeline> connections = HashMultimap.create();
-        for (PipelineConnections streamConnection : pipelineStreamConnectionsService.loadAll()) {
-            streamConnection.pipelineIds().stream()
-                    .map(currentPipelines::get)
-                    .filter(Objects::nonNull)
-                    .forEach(pipeline -> connections.put(streamConnection.streamId(), pipeline));
+    /**
+     * Reuses the resolved pipeline of the last reload, including its stages, rule copies and their metrics, if neither
+     * its source nor any of the rules it references have changed. Otherwise the pipeline is parsed and resolved again.
+     */
+    private CachedPipeline cachedPipeline(PipelineDao pipelineDao,
+                                          Map<String, Rule> ruleNameMap,
+                                          Map<String, HashCode> ruleSources) {
+        final HashCode sourceHash = SOURCE_HASH.hashString(pipelineDao.source(), StandardCharsets.UTF_8);
+        final CachedPipeline cached = pipelineCache.get(pipelineDao.id());
+        if (cached != null && cached.isCurrent(sourceHash, ruleNameMap)) {
+            return cached;
         }
-        ImmutableSetMultimap<String, Pipeline> streamPipelineConnections = ImmutableSetMultimap.copyOf(connections);
 
-        final PipelineInterpreter.State newState = stateFactory.newState(currentPipelines, streamPipelineConnections);
-        latestState.set(newState);
-        return newState;
+        final Pipeline parsedPipeline = parsePipeline(pipelineDao);
+        // remember which parsed rule each reference resolved to, null for unresolved references
+        final Map<String, Rule> referencedRules = new HashMap<>();
+        parsedPipeline.stages().forEach(stage -> stage.ruleReferences()
+                .forEach(ref -> referencedRules.put(ref, ruleNameMap.get(ref))));
+
+        final List<PrunedElement> pruned = new ArrayList<>();
+        final Pipeline pipeline = resolvePipeline(parsedPipeline, ruleNameMap, ruleSources, pruned);
+        if (!pruned.isEmpty()) {
+            log.debug("Pruned from pipeline {}: {}", pipelineDao.id(), pruned);
+        }
+        resolvedPipelines.mark();
+        final CachedPipeline resolved = new CachedPipeline(sourceHash, pipeline, referencedRules, pruned);
+        pipelineCache.put(pipelineDao.id(), resolved);
+        return resolved;
     }
 
+    private Pipeline parsePipeline(PipelineDao pipelineDao) {
+        try {
+            return pipelineRuleParser.parsePipeline(pipelineDao.id(), pipelineDao.source());
+        } catch (ParseException e) {
+            return Pipeline.empty("Failed to parse pipeline" + pipelineDao.id());
+        }
+    }
 
     /**
      * Can be used to inspect or use the current state of the pipeline system.
@@ -159,11 +289,25 @@ public class ConfigurationStateUpdater {
         return latestState.get();
     }
 
+    /**
+     * The rules and stages of a pipeline which have been removed from the latest state because they can never have an
+     * effect on messages, for example because they reference rules which do not exist.
+     *
+     * @param pipelineId the id of the pipeline
+     * @return the pruned elements, empty if the pipeline was not pruned or is unknown
+     */
+    public List<PrunedElement> getPrunedElements(String pipelineId) {
+        return prunedElements.get().get(pipelineId);
+    }
+
     @Nonnull
-    private Pipeline resolvePipeline(Pipeline pipeline, Map<String, Rule> ruleNameMap) {
-        log.debug("Resolving pipeline {}", pipeline.name());
+    private Pipeline resolvePipeline(Pipeline parsedPipeline,
+                                     Map<String, Rule> ruleNameMap,
+                                     Map<String, HashCode> ruleSources,
+                                     List<PrunedElement> pruned) {
+        log.debug("Resolving pipeline {}", parsedPipeline.name());
 
-        pipeline.stages().forEach(stage -> {
+        parsedPipeline.stages().forEach(stage -> {
             final List<Rule> resolvedRules = stage.ruleReferences().stream()
                     .map(ref -> {
                         Rule rule = ruleNameMap.get(ref);
@@ -175,11 +319,17 @@ public class ConfigurationStateUpdater {
                         rule = rule.invokableCopy(functionRegistry);
                         log.debug("Resolved rule `{}` to {}", ref, rule);
                         // include back reference to stage
-                        rule.registerMetrics(metricRegistry, pipeline.id(), String.valueOf(stage.stage()));
+                        rule.registerMetrics(metricRegistry, parsedPipeline.id(), String.valueOf(stage.stage()));
+                        ruleCompiler.enablePromotion(rule, ruleSources.get(rule.id()));
                         return rule;
                     })
                     .collect(Collectors.toList());
             stage.setRules(resolvedRules);
+        });
+
+        // drop rules which can never match and the stages they make unreachable, they would still be evaluated otherwise
+        final Pipeline pipeline = PipelinePruner.prune(parsedPipeline, pruned);
+        pipeline.stages().forEach(stage -> {
             stage.setPipeline(pipeline);
             stage.registerMetrics(metricRegistry, pipeline.id());
         });
@@ -188,31 +338,49 @@ public class ConfigurationStateUpdater {
         return pipeline;
     }
 
-    // TODO avoid reloading everything on every change, certain changes can get away with doing less work
+    // the reload only parses rules and resolves pipelines whose sources have changed, everything else is reused
     @Subscribe
     public void handleRuleChanges(RulesChangedEvent event) {
         event.deletedRuleIds().forEach(id -> {
             log.debug("Invalidated rule {}", id);
+            ruleCache.remove(id);
             metricRegistry.removeMatching((name, metric) -> name.startsWith(name(Rule.class, id)));
         });
+        // updated sources are detected by their hash during the reload, which keeps using the cached entry until then
         event.updatedRuleIds().forEach(id -> log.debug("Refreshing rule {}", id));
-        scheduler.schedule(() -> serverEventBus.post(reloadAndSave()), 0, TimeUnit.SECONDS);
+        scheduleReload();
     }
 
     @Subscribe
     public void handlePipelineChanges(PipelinesChangedEvent event) {
         event.deletedPipelineIds().forEach(id -> {
             log.debug("Invalidated pipeline {}", id);
+            pipelineCache.remove(id);
             metricRegistry.removeMatching((name, metric) -> name.startsWith(name(Pipeline.class, id)));
         });
+        // updated sources are detected by their hash during the reload, which keeps using the cached entry until then
         event.updatedPipelineIds().forEach(id -> log.debug("Refreshing pipeline {}", id));
-        scheduler.schedule(() -> serverEventBus.post(reloadAndSave()), 0, TimeUnit.SECONDS);
+        scheduleReload();
     }
 
     @Subscribe
     public void handlePipelineConnectionChanges(PipelineConnectionsChangedEvent event) {
         log.debug("Pipeline stream connection changed: {}", event);
-        scheduler.schedule(() -> serverEventBus.post(reloadAndSave()), 0, TimeUnit.SECONDS);
+        scheduleReload();
+    }
+
+    /**
+     * Reloads the configuration on the scheduler, unless a reload is already waiting to start.
+     *
+     * A reload which has not started yet reads all changes made until then, so it is enough to run one reload for all
+     * the change events arriving while the previous reload is still busy.
+     */
+    private void scheduleReload() {
+        if (reloadScheduled.compareAndSet(false, true)) {
+            scheduler.schedule(() -> serverEventBus.post(reloadAndSave()), 0, TimeUnit.SECONDS);
+        } else {
+            coalescedReloads.mark();
+        }
     }
 
     @Subscribe
@@ -224,4 +392,44 @@ public class ConfigurationStateUpdater {
     PipelineInterpreter.State reload() {
         return reloadAndSave();
     }
+
+    private static class CachedRule {
+        private final HashCode sourceHash;
+        private final Rule rule;
+
+        CachedRule(HashCode sourceHash, Rule rule) {
+            this.sourceHash = sourceHash;
+            this.rule = rule;
+        }
+    }
+
+    private static class CachedPipeline {
+        private final HashCode sourceHash;
+        private final Pipeline pipeline;
+        private final Map<String, Rule> referencedRules;
+        private final List<PrunedElement> pruned;
+
+        CachedPipeline(HashCode sourceHash, Pipeline pipeline, Map<String, Rule> referencedRules, List<PrunedElement> pruned) {
+            this.sourceHash = sourceHash;
+            this.pipeline = pipeline;
+            this.referencedRules = referencedRules;
+            this.pruned = pruned;
+        }
+
+        /**
+         * @return true if the pipeline's source is unchanged and all of its rule references resolve to the same rules
+         */
+        boolean isCurrent(HashCode sourceHash, Map<String, Rule> ruleNameMap) {
+            if (!this.sourceHash.equals(sourceHash)) {
+                return false;
+            }
+            for (Map.Entry<String, Rule> reference : referencedRules.entrySet()) {
+                // parsed rules are only replaced when their source changes, so identity tells whether a rule changed
+                if (ruleNameMap.get(reference.getKey()) != reference.getValue()) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
 }
@@ -0,0 +1,279 @@
+/**
+ * This file is part of Graylog Pipeline Processor.
+ *
+ * Graylog Pipeline Processor is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Graylog Pipeline Processor is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Graylog Pipeline Processor.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.graylog.plugins.pipelineprocessor.processors;
+
+import com.google.common.collect.HashMultiset;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMultiset;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Multiset;
+import org.graylog.plugins.pipelineprocessor.ast.Pipeline;
+import org.graylog.plugins.pipelineprocessor.ast.Rule;
+import org.graylog.plugins.pipelineprocessor.ast.RuleAstBaseListener;
+import org.graylog.plugins.pipelineprocessor.ast.RuleAstWalker;
+import org.graylog.plugins.pipelineprocessor.ast.Stage;
+import org.graylog.plugins.pipelineprocessor.ast.expressions.Expression;
+import org.graylog.plugins.pipelineprocessor.ast.expressions.FunctionExpression;
+import org.graylog.plugins.pipelineprocessor.functions.lookup.PrefetchableLookup;
+
+import javax.annotation.Nullable;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The precomputed order of stages to evaluate for a set of pipelines.
+ *
+ * All stages of all pipelines are flattened into a single array, ordered by stage number, so that running a message
+ * through its pipelines is a simple walk over that array. Each entry refers to its pipeline by index, which allows
+ * tracking the pipelines to skip in a bit set.
+ */
+public class ExecutionPlan {
+    private static final ExecutionPlan EMPTY = new ExecutionPlan(ImmutableSet.of(), ImmutableSet.of());
+
+    private final ImmutableSet<String> streamIds;
+    private final ImmutableSet<Pipeline> pipelines;
+    private final StageSlice[] stageSlices;
+    private final boolean hasLookups;
+    private final boolean mayRouteToConnectedStreams;
+
+    public ExecutionPlan(ImmutableSet<String> streamIds, ImmutableSet<Pipeline> pipelines) {
+        this(streamIds, pipelines, true);
+    }
+
+    /**
+     * @param streamIds                  the ids of the streams the plan is created for
+     * @param pipelines                  the pipelines to run
+     * @param mayRouteToConnectedStreams false if the pipelines are known not to route messages to any stream with
+     *                                   pipelines connected to it
+     */
+    ExecutionPlan(ImmutableSet<String> streamIds, ImmutableSet<Pipeline> pipelines, boolean mayRouteToConnectedStreams) {
+        this.streamIds = streamIds;
+        this.pipelines = pipelines;
+        this.mayRouteToConnectedStreams = mayRouteToConnectedStreams;
+
+        // how often each rule is referenced by the stages with the same number
+        final Map<Integer, Multiset<String>> ruleReferences = new HashMap<>();
+        for (Pipeline pipeline : pipelines) {
+            for (Stage stage : pipeline.stages()) {
+                if (stage.getRules() == null) {
+                    continue;
+                }
+                for (Rule rule : stage.getRules()) {
+                    if (rule.id() != null) {
+                        ruleReferences.computeIfAbsent(stage.stage(), number -> HashMultiset.create()).add(rule.id());
+                    }
+                }
+            }
+        }
+
+        final List<StageSlice> slices = new ArrayList<>();
+        int pipelineIndex = 0;
+        for (Pipeline pipeline : pipelines) {
+            for (Stage stage : pipeline.stages()) {
+                slices.add(new StageSlice(stage, pipeline, pipelineIndex,
+                        ruleReferences.getOrDefault(stage.stage(), ImmutableMultiset.of())));
+            }
+            pipelineIndex++;
+        }
+        // the sort is stable, stages with the same number keep the order of their pipelines, like in StageIterator
+        slices.sort(Comparator.comparingInt(slice -> slice.stage().stage()));
+        this.stageSlices = slices.toArray(new StageSlice[0]);
+        this.hasLookups = slices.stream().anyMatch(StageSlice::hasLookups);
+    }
+
+    public static ExecutionPlan empty() {
+        return EMPTY;
+    }
+
+    /**
+     * @return the ids of the streams this plan was created for, empty if it wasn't created for streams
+     */
+    public ImmutableSet<String> streamIds() {
+        return streamIds;
+    }
+
+    public ImmutableSet<Pipeline> pipelines() {
+        return pipelines;
+    }
+
+    public boolean isEmpty() {
+        return pipelines.isEmpty();
+    }
+
+    /**
+     * @return true if the messages may need to be run again for the streams the plan's pipelines route them to
+     */
+    public boolean mayRouteToConnectedStreams() {
+        return mayRouteToConnectedStreams;
+    }
+
+    /**
+     * @return true if any stage of the plan looks up values in a lookup table
+     */
+    public boolean hasLookups() {
+        return hasLookups;
+    }
+
+    // the array is not copied, callers must not modify it
+    StageSlice[] stageSlices() {
+        return stageSlices;
+    }
+
+    /**
+     * A single stage of one of the plan's pipelines.
+     */
+    public static class StageSlice {
+        private final Stage stage;
+        private final Pipeline pipeline;
+        private final int pipelineIndex;
+        private final ImmutableList<Rule> rules;
+        private final boolean blocking;
+        private final boolean lookups;
+        private final ImmutableList<FunctionExpression> prefetchableLookups;
+        @Nullable
+        private final StageConditionIndex conditionIndex;
+        @Nullable
+        private final FieldPresenceFilter fieldPresenceFilter;
+        @Nullable
+        private final CommonSubexpressions commonSubexpressions;
+        private final ImmutableSet<String> sharedRuleIds;
+
+        StageSlice(Stage stage, Pipeline pipeline, int pipelineIndex, Multiset<String> stageRuleReferences) {
+            this.stage = stage;
+            this.pipeline = pipeline;
+            this.pipelineIndex = pipelineIndex;
+            this.rules = stage.getRules() == null ? ImmutableList.of() : ImmutableList.copyOf(stage.getRules());
+
+            final boolean[] flags = {false, false};
+            final ImmutableList.Builder<FunctionExpression> prefetchable = ImmutableList.builder();
+            final RuleAstBaseListener listener = new RuleAstBaseListener() {
+                @Override
+                public void enterFunctionCall(FunctionExpression expr) {
+                    flags[0] |= expr.getFunction().descriptor().blocking();
+                    if (expr.getFunction() instanceof PrefetchableLookup) {
+                        flags[1] = true;
+                        if (isPrefetchable(expr)) {
+                            prefetchable.add(expr);
+                        }
+                    }
+                }
+            };
+            for (Rule rule : rules) {
+                new RuleAstWalker().walk(listener, rule);
+            }
+            this.blocking = flags[0];
+            this.lookups = flags[1];
+            this.prefetchableLookups = prefetchable.build();
+            this.conditionIndex = StageConditionIndex.build(rules);
+            this.fieldPresenceFilter = FieldPresenceFilter.build(rules);
+            this.commonSubexpressions = CommonSubexpressions.analyze(rules);
+            // a rule referenced several times yields the same outcome for an unchanged message, as long as its
+            // condition only depends on the message
+            this.sharedRuleIds = rules.stream()
+                    .filter(rule -> rule.id() != null && stageRuleReferences.count(rule.id()) > 1)
+                    .filter(rule -> Expression.isSideEffectFree(rule.when()))
+                    .map(Rule::id)
+                    .collect(ImmutableSet.toImmutableSet());
+        }
+
+        // the key of a lookup can be computed ahead of the stage if the table is fixed and evaluating the key doesn't
+        // depend on rule variables or change anything
+        private static boolean isPrefetchable(FunctionExpression lookup) {
+            final Expression table = lookup.getArgs().expression(PrefetchableLookup.TABLE_ARG);
+            final Expression key = lookup.getArgs().expression(PrefetchableLookup.KEY_ARG);
+            return table != null && table.isConstant() && key != null && Expression.isSideEffectFree(key);
+        }
+
+        public Stage stage() {
+            return stage;
+        }
+
+        public Pipeline pipeline() {
+            return pipeline;
+        }
+
+        /**
+         * @return the index of the slice's pipeline in the plan's pipelines
+         */
+        public int pipelineIndex() {
+            return pipelineIndex;
+        }
+
+        public ImmutableList<Rule> rules() {
+            return rules;
+        }
+
+        public boolean matchAll() {
+            return stage.matchAll();
+        }
+
+        /**
+         * @return true if any of the stage's rules calls a function which may block on I/O
+         */
+        public boolean isBlocking() {
+            return blocking;
+        }
+
+        /**
+         * @return true if any of the stage's rules looks up values in a lookup table
+         */
+        public boolean hasLookups() {
+            return lookups;
+        }
+
+        /**
+         * @return the lookup calls of the stage whose keys can be computed before the stage is evaluated
+         */
+        public ImmutableList<FunctionExpression> prefetchableLookups() {
+            return prefetchableLookups;
+        }
+
+        /**
+         * @return the index selecting the candidate rules by their equality tests, null if the stage has none worth indexing
+         */
+        @Nullable
+        StageConditionIndex conditionIndex() {
+            return conditionIndex;
+        }
+
+        /**
+         * @return the filter selecting the candidate rules by their required fields, null if no rule requires any
+         */
+        @Nullable
+        FieldPresenceFilter fieldPresenceFilter() {
+            return fieldPresenceFilter;
+        }
+
+        /**
+         * @return the function calls occurring in several of the stage's conditions, null if there are none
+         */
+        @Nullable
+        public CommonSubexpressions commonSubexpressions() {
+            return commonSubexpressions;
+        }
+
+        /**
+         * @return the ids of the stage's rules which are also referenced by other stages with the same number
+         */
+        public ImmutableSet<String> sharedRuleIds() {
+            return sharedRuleIds;
+        }
+    }
+}
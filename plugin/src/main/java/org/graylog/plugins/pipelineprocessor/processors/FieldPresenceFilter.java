@@ -0,0 +1,95 @@
+/**
+ * This file is part of Graylog Pipeline Processor.
+ *
+ * Graylog Pipeline Processor is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Graylog Pipeline Processor is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Graylog Pipeline Processor.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.graylog.plugins.pipelineprocessor.processors;
+
+import org.graylog.plugins.pipelineprocessor.ast.Rule;
+import org.graylog2.plugin.Message;
+
+import javax.annotation.Nullable;
+import java.util.BitSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Selects the rules of a stage which cannot match a message because it lacks fields their conditions require.
+ *
+ * Streams carrying many log formats typically have stages with one rule per format, each testing for its own fields.
+ * Checking the presence of all required fields of a stage once per message and intersecting the result with the
+ * fields required by each rule is much cheaper than evaluating the conditions.
+ *
+ * @see Rule#requiredFields()
+ */
+class FieldPresenceFilter {
+    private final String[] fields;
+    // indexed by rule, the bits are the indices of the fields the rule requires, null if it doesn't require any
+    private final BitSet[] requiredFields;
+
+    private FieldPresenceFilter(String[] fields, BitSet[] requiredFields) {
+        this.fields = fields;
+        this.requiredFields = requiredFields;
+    }
+
+    /**
+     * @param rules the rules of the stage, in evaluation order
+     * @return the filter for the rules, or null if none of them require any fields
+     */
+    @Nullable
+    static FieldPresenceFilter build(List<Rule> rules) {
+        final Map<String, Integer> fieldIndices = new LinkedHashMap<>();
+        final BitSet[] requiredFields = new BitSet[rules.size()];
+        for (int i = 0; i < rules.size(); i++) {
+            for (String field : rules.get(i).requiredFields()) {
+                if (requiredFields[i] == null) {
+                    requiredFields[i] = new BitSet();
+                }
+                requiredFields[i].set(fieldIndices.computeIfAbsent(field, f -> fieldIndices.size()));
+            }
+        }
+        if (fieldIndices.isEmpty()) {
+            return null;
+        }
+        return new FieldPresenceFilter(fieldIndices.keySet().toArray(new String[0]), requiredFields);
+    }
+
+    /**
+     * @param message the message to evaluate the stage for
+     * @return the indices of the rules which cannot match the message
+     */
+    BitSet nonMatchingRules(Message message) {
+        final BitSet missingFields = new BitSet(fields.length);
+        for (int i = 0; i < fields.length; i++) {
+            if (!message.hasField(fields[i])) {
+                missingFields.set(i);
+            }
+        }
+        final BitSet nonMatching = new BitSet(requiredFields.length);
+        if (missingFields.isEmpty()) {
+            return nonMatching;
+        }
+        for (int i = 0; i < requiredFields.length; i++) {
+            if (requiredFields[i] != null && requiredFields[i].intersects(missingFields)) {
+                nonMatching.set(i);
+            }
+        }
+        return nonMatching;
+    }
+
+    int fieldCount() {
+        return fields.length;
+    }
+}
@@ -0,0 +1,309 @@
+/**
+ * This file is part of Graylog Pipeline Processor.
+ *
+ * Graylog Pipeline Processor is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Graylog Pipeline Processor is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Graylog Pipeline Processor.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.graylog.plugins.pipelineprocessor.processors;
+
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.google.common.collect.ImmutableSet;
+import org.joda.time.DateTime;
+import org.joda.time.Duration;
+import org.joda.time.Period;
+
+import javax.annotation.Nullable;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import static com.codahale.metrics.MetricRegistry.name;
+
+/**
+ * Remembers the results of pure function calls for a single message, across all stages and pipelines it runs through.
+ *
+ * Pipelines connected to different streams often parse the same fields of a message with the same functions. Results
+ * are keyed by the function's name and its evaluated arguments, so arguments reading message fields lead to a new
+ * entry once those fields have been written. Only immutable argument values are used as keys.
+ *
+ * Functions which take a message parameter may read the current message beyond their arguments, like
+ * {@code has_field}. Their results are forgotten whenever a function which isn't pure has been called, as only those
+ * may change the message.
+ *
+ * The memo is bounded, the least recently used results are evicted first. It is used by one thread at a time, and
+ * reused for other messages once a message has been processed, so that looking up results doesn't allocate.
+ */
+public class FunctionMemo {
+    static final int MAX_ENTRIES = 64;
+
+    private static final ImmutableSet<Class<?>> KEY_TYPES = ImmutableSet.of(
+            String.class, Boolean.class, Long.class, Integer.class, Double.class,
+            DateTime.class, Period.class, Duration.class);
+
+    // stands in for optional arguments which haven't been passed
+    private static final Object ABSENT = new Object() {
+        @Override
+        public String toString() {
+            return "<absent>";
+        }
+    };
+
+    private final Statistics statistics;
+    @Nullable
+    private Map<Key, Memoized> entries;
+    private int messageReadingEntries = 0;
+    // counts the calls which might have changed the message
+    private long epoch = 0;
+    // looks up entries without copying the arguments
+    private final Key probe = new Key();
+    // the arguments of the calls being evaluated, by nesting depth, reused for all calls of the message
+    private Object[][] argumentBuffers = new Object[2][];
+    private int argumentDepth = 0;
+
+    FunctionMemo(Statistics statistics) {
+        this.statistics = statistics;
+    }
+
+    /**
+     * @param value an evaluated argument
+     * @return true if the value can be part of a memo key
+     */
+    public static boolean isKeyable(@Nullable Object value) {
+        return value == null || KEY_TYPES.contains(value.getClass());
+    }
+
+    /**
+     * @return the placeholder to use as the value of an optional argument which hasn't been passed
+     */
+    public static Object absentArgument() {
+        return ABSENT;
+    }
+
+    /**
+     * Resolves the hit and miss counters of a function, callers are expected to keep them for all their calls.
+     *
+     * @param function the name of the function
+     * @return the counters of the function
+     */
+    public Counters counters(String function) {
+        return statistics.counters(function);
+    }
+
+    /**
+     * Provides storage for the evaluated arguments of a call, which must be given back with
+     * {@link #releaseArguments(Object[], int)} once the call has been evaluated. Calls may nest.
+     *
+     * @param count the number of arguments
+     * @return an array of at least {@code count} elements
+     */
+    public Object[] acquireArguments(int count) {
+        if (argumentDepth == argumentBuffers.length) {
+            argumentBuffers = Arrays.copyOf(argumentBuffers, argumentDepth * 2);
+        }
+        Object[] buffer = argumentBuffers[argumentDepth];
+        if (buffer == null || buffer.length < count) {
+            buffer = new Object[Math.max(count, 4)];
+            argumentBuffers[argumentDepth] = buffer;
+        }
+        argumentDepth++;
+        return buffer;
+    }
+
+    public void releaseArguments(Object[] arguments, int count) {
+        // don't keep the values alive
+        Arrays.fill(arguments, 0, count, null);
+        argumentDepth--;
+    }
+
+    /**
+     * @param counters  the counters of the function, see {@link #counters(String)}
+     * @param arguments the evaluated arguments, in the order of the function's parameters
+     * @param count     the number of arguments
+     * @return the remembered result, or null if the call hasn't been evaluated for the message yet
+     */
+    @Nullable
+    public Memoized lookup(Counters counters, Object[] arguments, int count) {
+        final Memoized memoized = entries == null ? null : entries.get(probe.set(counters.function, arguments, count));
+        probe.set(null, null, 0);
+        (memoized != null ? counters.hits : counters.misses).mark();
+        return memoized;
+    }
+
+    /**
+     * @param arguments    the evaluated arguments, they are copied
+     * @param readsMessage true if the function may read the message beyond its arguments
+     */
+    public void remember(Counters counters, Object[] arguments, int count, @Nullable Object value, boolean readsMessage) {
+        if (entries == null) {
+            entries = new LinkedHashMap<Key, Memoized>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<Key, Memoized> eldest) {
+                    final boolean evict = size() > MAX_ENTRIES;
+                    if (evict && eldest.getValue().readsMessage) {
+                        messageReadingEntries--;
+                    }
+                    return evict;
+                }
+            };
+        }
+        final Key key = new Key().set(counters.function, Arrays.copyOf(arguments, count), count);
+        final Memoized previous = entries.put(key, new Memoized(value, readsMessage));
+        if (previous != null && previous.readsMessage) {
+            messageReadingEntries--;
+        }
+        if (readsMessage) {
+            messageReadingEntries++;
+        }
+    }
+
+    /**
+     * Forgets the results which might depend on the message beyond the functions' arguments.
+     */
+    public void messageChanged() {
+        epoch++;
+        if (messageReadingEntries > 0 && entries != null) {
+            entries.values().removeIf(memoized -> memoized.readsMessage);
+            messageReadingEntries = 0;
+        }
+    }
+
+    /**
+     * @return a number which changes whenever the message might have been changed
+     */
+    public long epoch() {
+        return epoch;
+    }
+
+    /**
+     * Forgets everything, to reuse the memo's storage for another message.
+     */
+    void clear() {
+        if (entries != null) {
+            entries.clear();
+        }
+        messageReadingEntries = 0;
+        epoch = 0;
+    }
+
+    int size() {
+        return entries == null ? 0 : entries.size();
+    }
+
+    public static class Memoized {
+        @Nullable
+        private final Object value;
+        private final boolean readsMessage;
+
+        private Memoized(@Nullable Object value, boolean readsMessage) {
+            this.value = value;
+            this.readsMessage = readsMessage;
+        }
+
+        @Nullable
+        public Object value() {
+            return value;
+        }
+    }
+
+    private static class Key {
+        private String function;
+        private Object[] arguments;
+        private int count;
+        private int hashCode;
+
+        private Key set(String function, Object[] arguments, int count) {
+            this.function = function;
+            this.arguments = arguments;
+            this.count = count;
+            if (function != null) {
+                int hash = function.hashCode();
+                for (int i = 0; i < count; i++) {
+                    hash = 31 * hash + Objects.hashCode(arguments[i]);
+                }
+                this.hashCode = hash;
+            }
+            return this;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            final Key key = (Key) o;
+            if (hashCode != key.hashCode || count != key.count || !function.equals(key.function)) {
+                return false;
+            }
+            for (int i = 0; i < count; i++) {
+                if (!Objects.equals(arguments[i], key.arguments[i])) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        @Override
+        public int hashCode() {
+            return hashCode;
+        }
+    }
+
+    /**
+     * The memo hits and misses of one function.
+     */
+    public static class Counters {
+        private final Statistics statistics;
+        private final String function;
+        private final Meter hits;
+        private final Meter misses;
+
+        private Counters(Statistics statistics, String function, Meter hits, Meter misses) {
+            this.statistics = statistics;
+            this.function = function;
+            this.hits = hits;
+            this.misses = misses;
+        }
+
+        /**
+         * @return true if the counters can be used with the given memo
+         */
+        public boolean belongTo(FunctionMemo memo) {
+            return statistics == memo.statistics;
+        }
+    }
+
+    /**
+     * The memo hit and miss rates per function, shared by the memos of all messages.
+     */
+    static class Statistics {
+        private final MetricRegistry metricRegistry;
+        private final ConcurrentMap<String, Counters> counters = new ConcurrentHashMap<>();
+
+        Statistics(MetricRegistry metricRegistry) {
+            this.metricRegistry = metricRegistry;
+        }
+
+        private Counters counters(String function) {
+            return counters.computeIfAbsent(function, fn -> new Counters(this, fn,
+                    metricRegistry.meter(name(PipelineInterpreter.class, "memo", fn, "hits")),
+                    metricRegistry.meter(name(PipelineInterpreter.class, "memo", fn, "misses"))));
+        }
+    }
+}
@@ -0,0 +1,138 @@
+/**
+ * This file is part of Graylog Pipeline Processor.
+ *
+ * Graylog Pipeline Processor is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Graylog Pipeline Processor is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Graylog Pipeline Processor.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.graylog.plugins.pipelineprocessor.processors;
+
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.google.common.collect.Lists;
+
+import javax.inject.Inject;
+import javax.inject.Named;
+import javax.inject.Singleton;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.RecursiveTask;
+import java.util.function.Function;
+
+import static com.codahale.metrics.MetricRegistry.name;
+
+/**
+ * Splits large message batches into contiguous chunks which are processed on a bounded {@link ForkJoinPool}.
+ *
+ * The pool is shared by all interpreter instances, so the configured parallelism is an upper bound for the whole node,
+ * not for each process buffer processor. The results of the chunks are concatenated in the order of the input.
+ */
+@Singleton
+public class ParallelBatchExecutor {
+
+    private final int parallelism;
+    private final int threshold;
+    private final ForkJoinPool pool;
+    private final Meter parallelBatches;
+
+    @Inject
+    public ParallelBatchExecutor(@Named("pipeline_batch_parallelism") int parallelism,
+                                 @Named("pipeline_batch_parallelism_threshold") int threshold,
+                                 MetricRegistry metricRegistry) {
+        this.parallelism = parallelism;
+        this.threshold = Math.max(threshold, 1);
+        this.pool = parallelism > 1 ? new ForkJoinPool(parallelism, ParallelBatchExecutor::newWorkerThread, null, false) : null;
+        this.parallelBatches = metricRegistry.meter(name(PipelineInterpreter.class, "parallelBatches"));
+    }
+
+    /**
+     * @return an executor which processes every batch on the calling thread
+     */
+    public static ParallelBatchExecutor sequential() {
+        return new ParallelBatchExecutor(1, 1, new MetricRegistry());
+    }
+
+    private static ForkJoinWorkerThread newWorkerThread(ForkJoinPool pool) {
+        final ForkJoinWorkerThread thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool);
+        thread.setName("pipeline-batch-worker-" + thread.getPoolIndex());
+        thread.setDaemon(true);
+        return thread;
+    }
+
+    public boolean isEnabled() {
+        return pool != null;
+    }
+
+    /**
+     * @param batchSize number of messages in the batch
+     * @return true if a batch of the given size would be split across the worker pool
+     */
+    public boolean shouldSplit(int batchSize) {
+        return pool != null && batchSize >= threshold && batchSize > 1;
+    }
+
+    /**
+     * Runs the chunk processor for contiguous slices of the input and returns the concatenated results, in input order.
+     *
+     * Exceptions thrown by the processor are rethrown on the calling thread.
+     *
+     * @param items          the batch to split
+     * @param chunkProcessor processes a contiguous slice of the batch, must be safe to call concurrently
+     * @return the results of all chunks, in the order of the chunks
+     */
+    public <T, R> List<R> process(List<T> items, Function<List<T>, List<R>> chunkProcessor) {
+        if (!shouldSplit(items.size())) {
+            return chunkProcessor.apply(items);
+        }
+        parallelBatches.mark();
+        // ceil(size / parallelism), but never split below a single message
+        final int chunkSize = Math.max(1, (items.size() + parallelism - 1) / parallelism);
+        return pool.invoke(new ChunkTask<>(items, 0, items.size(), chunkSize, chunkProcessor));
+    }
+
+    private static class ChunkTask<T, R> extends RecursiveTask<List<R>> {
+        private final List<T> items;
+        private final int from;
+        private final int to;
+        private final int chunkSize;
+        private final Function<List<T>, List<R>> chunkProcessor;
+
+        ChunkTask(List<T> items, int from, int to, int chunkSize, Function<List<T>, List<R>> chunkProcessor) {
+            this.items = items;
+            this.from = from;
+            this.to = to;
+            this.chunkSize = chunkSize;
+            this.chunkProcessor = chunkProcessor;
+        }
+
+        @Override
+        protected List<R> compute() {
+            if (to - from <= chunkSize) {
+                return chunkProcessor.apply(items.subList(from, to));
+            }
+            // split on a chunk boundary so that the chunks don't depend on the recursion depth
+            final int chunks = (to - from + chunkSize - 1) / chunkSize;
+            final int middle = from + (chunks / 2) * chunkSize;
+            final ChunkTask<T, R> left = new ChunkTask<>(items, from, middle, chunkSize, chunkProcessor);
+            final ChunkTask<T, R> right = new ChunkTask<>(items, middle, to, chunkSize, chunkProcessor);
+            left.fork();
+            final List<R> rightResult = right.compute();
+            final List<R> leftResult = left.join();
+
+            final List<R> result = Lists.newArrayListWithExpectedSize(leftResult.size() + rightResult.size());
+            result.addAll(leftResult);
+            result.addAll(rightResult);
+            return result;
+        }
+    }
+}
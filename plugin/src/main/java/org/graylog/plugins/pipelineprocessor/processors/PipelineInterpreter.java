@@ -16,28 +16,33 @@
  */
 package org.graylog.plugins.pipelineprocessor.processors;
 
+import com.codahale.metrics.Gauge;
 import com.codahale.metrics.Meter;
 import com.codahale.metrics.MetricRegistry;
 import com.codahale.metrics.Timer;
 import com.google.common.cache.CacheBuilder;
 import com.google.common.cache.CacheLoader;
 import com.google.common.cache.LoadingCache;
+import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.ImmutableSetMultimap;
 import com.google.common.collect.Iterables;
 import com.google.common.collect.Lists;
-import com.google.common.collect.Sets;
 import com.google.inject.assistedinject.Assisted;
 import com.google.inject.assistedinject.AssistedInject;
 import org.graylog.plugins.pipelineprocessor.EvaluationContext;
 import org.graylog.plugins.pipelineprocessor.ast.Pipeline;
 import org.graylog.plugins.pipelineprocessor.ast.Rule;
 import org.graylog.plugins.pipelineprocessor.ast.Stage;
+import org.graylog.plugins.pipelineprocessor.ast.expressions.FunctionExpression;
 import org.graylog.plugins.pipelineprocessor.ast.statements.Statement;
 import org.graylog.plugins.pipelineprocessor.codegen.GeneratedRule;
+import org.graylog.plugins.pipelineprocessor.functions.lookup.BatchLookupCache;
+import org.graylog.plugins.pipelineprocessor.functions.lookup.PrefetchableLookup;
 import org.graylog.plugins.pipelineprocessor.processors.listeners.InterpreterListener;
 import org.graylog.plugins.pipelineprocessor.processors.listeners.NoopInterpreterListener;
+import org.graylog2.lookup.LookupTableService;
 import org.graylog2.metrics.CacheStatsSet;
 import org.graylog2.plugin.Message;
 import org.graylog2.plugin.MessageCollection;
@@ -48,7 +53,6 @@ import org.graylog2.shared.buffers.processors.ProcessBufferProcessor;
 import org.graylog2.shared.journal.Journal;
 import org.graylog2.shared.metrics.MetricUtils;
 import org.graylog2.shared.utilities.ExceptionUtils;
-import org.jooq.lambda.tuple.Tuple2;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -56,36 +60,61 @@ import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
 import javax.inject.Inject;
 import javax.inject.Named;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
 import java.util.Set;
 import java.util.concurrent.ExecutionException;
-import java.util.stream.Collectors;
 
 import static com.codahale.metrics.MetricRegistry.name;
-import static org.jooq.lambda.tuple.Tuple.tuple;
 
 public class PipelineInterpreter implements MessageProcessor {
     private static final Logger log = LoggerFactory.getLogger(PipelineInterpreter.class);
 
     public static final String GL2_PROCESSING_ERROR = "gl2_processing_error";
 
+    // bounds the memos kept per thread, batches larger than this allocate the remaining ones
+    private static final int MAX_POOLED_FUNCTION_MEMOS = 256;
+
     private final Journal journal;
     private final Meter filteredOutMessages;
+    private final Meter passThroughMessages;
+    private final Meter batchLookupsResolved;
+    private final Meter batchLookupsCached;
+    private final FunctionMemo.Statistics functionMemoStatistics;
     private final Timer executionTime;
     private final ConfigurationStateUpdater stateUpdater;
+    private final ParallelBatchExecutor batchExecutor;
+    private final BlockingStageExecutor blockingStageExecutor;
+    private final ThreadLocal<EvaluationContext> evaluationContexts = new ThreadLocal<>();
+    // function memos are reused for the messages processed by the same thread, which keeps their storage allocated
+    private final ThreadLocal<ArrayDeque<FunctionMemo>> functionMemos = ThreadLocal.withInitial(ArrayDeque::new);
 
     @Inject
     public PipelineInterpreter(Journal journal,
                                MetricRegistry metricRegistry,
-                               ConfigurationStateUpdater stateUpdater) {
+                               ConfigurationStateUpdater stateUpdater,
+                               ParallelBatchExecutor batchExecutor,
+                               BlockingStageExecutor blockingStageExecutor) {
 
         this.journal = journal;
         this.filteredOutMessages = metricRegistry.meter(name(ProcessBufferProcessor.class, "filteredOutMessages"));
+        this.passThroughMessages = metricRegistry.meter(name(PipelineInterpreter.class, "passThroughMessages"));
+        this.batchLookupsResolved = metricRegistry.meter(name(PipelineInterpreter.class, "batch-lookups", "resolved"));
+        this.batchLookupsCached = metricRegistry.meter(name(PipelineInterpreter.class, "batch-lookups", "cached"));
+        this.functionMemoStatistics = new FunctionMemo.Statistics(metricRegistry);
         this.executionTime = metricRegistry.timer(name(PipelineInterpreter.class, "executionTime"));
         this.stateUpdater = stateUpdater;
+        this.batchExecutor = batchExecutor;
+        this.blockingStageExecutor = blockingStageExecutor;
     }
 
     /**
@@ -96,16 +125,43 @@ public class PipelineInterpreter implements MessageProcessor {
     public Messages process(Messages messages) {
         try (Timer.Context ignored = executionTime.time()) {
             final State latestState = stateUpdater.getLatestState();
+            if (batchExecutor.isEnabled() && latestState.hasConnectedStreams(messages)) {
+                final List<Message> batch = Lists.newArrayList(messages);
+                if (batchExecutor.shouldSplit(batch.size())) {
+                    return processInParallel(batch, latestState);
+                }
+                return process(new MessageCollection(batch), new NoopInterpreterListener(), latestState);
+            }
             return process(messages, new NoopInterpreterListener(), latestState);
         }
     }
 
+    /**
+     * Processes contiguous chunks of the batch concurrently. Messages are independent of each other during
+     * processing, and each worker thread uses its own evaluation context and function memos. The pipeline state is
+     * shared, the parts of it that change while messages are processed must be thread safe: the rule, stage and
+     * pipeline metrics, the operand order statistics of AND and OR expressions and the rules' evaluation counts.
+     * Messages created during processing stay in the chunk of the message which created them.
+     */
+    private Messages processInParallel(List<Message> batch, State state) {
+        final List<Message> processed = batchExecutor.process(batch, chunk -> {
+            final InterpreterListener listener = new NoopInterpreterListener();
+            final Messages result = process(new MessageCollection(chunk), listener, state);
+            return Lists.newArrayList(result);
+        });
+        return new MessageCollection(processed);
+    }
+
     /**
      * Evaluates all pipelines that apply to the given messages, based on the current stream routing
      * of the messages.
      *
      * The processing loops on each single message (passed in or created by pipelines) until the set
-     * of streams does not change anymore. No cycle detection is performed.
+     * of streams does not change anymore. Each message is processed at most once per stream, so routing cycles
+     * terminate, they are reported when the state is loaded.
+     *
+     * Messages which are not on any stream with pipeline connections are passed on as they are. If that is
+     * true for all messages, the passed messages are returned without further work.
      *
      * @param messages            the messages to process through the pipelines
      * @param interpreterListener a listener which gets called for each processing stage (e.g. to
@@ -116,38 +172,81 @@ public class PipelineInterpreter implements MessageProcessor {
      */
     public Messages process(Messages messages, InterpreterListener interpreterListener, State state) {
         interpreterListener.startProcessing();
-        // message id + stream id
-        final Set<Tuple2<String, String>> processingBlacklist = Sets.newHashSet();
+        if (!state.hasConnectedStreams(messages)) {
+            // none of the messages are on a stream with pipeline connections, hand them on unchanged
+            long passedThrough = 0;
+            for (Message message : messages) {
+                potentiallyDropFilteredMessage(message);
+                passedThrough++;
+            }
+            passThroughMessages.mark(passedThrough);
+            interpreterListener.finishProcessing();
+            return messages;
+        }
+
+        // stream ordinals each message has already been processed for, only tracked for messages that are run again
+        final Map<Message, BitSet> processingBlacklist = new IdentityHashMap<>();
 
-        final List<Message> toProcess = Lists.newArrayList(messages);
+        List<Message> toProcess = Lists.newArrayList(messages);
         final List<Message> fullyProcessed = Lists.newArrayListWithExpectedSize(toProcess.size());
 
         while (!toProcess.isEmpty()) {
-            final MessageCollection currentSet = new MessageCollection(toProcess);
+            final List<Message> currentSet = toProcess;
             // we'll add them back below
-            toProcess.clear();
+            toProcess = new ArrayList<>();
+
+            // null for messages which are passed through because they aren't on any connected stream
+            final MessageBatchEntry[] entries = new MessageBatchEntry[currentSet.size()];
+            // messages on the same (unprocessed) streams share their execution plan and are evaluated together,
+            // stage by stage
+            final Map<BitSet, List<MessageBatchEntry>> batches = new LinkedHashMap<>();
+
+            for (int i = 0; i < currentSet.size(); i++) {
+                final Message message = currentSet.get(i);
+                final BitSet processedStreams = processingBlacklist.isEmpty() ? null : processingBlacklist.remove(message);
+                if (processedStreams == null && !state.hasConnectedStreams(message)) {
+                    continue;
+                }
+                final MessageBatchEntry entry = new MessageBatchEntry(message,
+                        connectedStreams(message, state),
+                        processedStreams);
+                // the stage might be evaluated on another thread, the memo is taken from the processing thread's pool
+                entry.functionMemo = acquireFunctionMemo();
+
+                entries[i] = entry;
+                batches.computeIfAbsent(streamsToRun(entry), streams -> new ArrayList<>()).add(entry);
+            }
 
-            for (Message message : currentSet) {
+            batches.forEach((streams, batch) -> {
+                final ExecutionPlan plan = state.getExecutionPlan(streams);
+                for (MessageBatchEntry entry : batch) {
+                    entry.mayRouteToConnectedStreams = plan.mayRouteToConnectedStreams();
+                    interpreterListener.processStreams(entry.message, plan.pipelines(), plan.streamIds());
+                    log.debug("[{}] running pipelines {} for streams {}", entry.message.getId(), plan.pipelines(), plan.streamIds());
+                }
+                processForPlan(batch, plan, interpreterListener);
+            });
+
+            // keep the original message order when collecting the results
+            for (int i = 0; i < entries.length; i++) {
+                final MessageBatchEntry entry = entries[i];
+                if (entry == null) {
+                    final Message message = currentSet.get(i);
+                    passThroughMessages.mark();
+                    potentiallyDropFilteredMessage(message);
+                    fullyProcessed.add(message);
+                    continue;
+                }
+                final Message message = entry.message;
                 final String msgId = message.getId();
+                toProcess.addAll(entry.createdMessages);
+                releaseFunctionMemo(entry);
 
-                // this makes a copy of the list, which is mutated later in updateStreamBlacklist
-                // it serves as a worklist, to keep track of which <msg, stream> tuples need to be re-run again
-                final Set<String> initialStreamIds = message.getStreams().stream().map(Stream::getId).collect(Collectors.toSet());
-
-                final ImmutableSet<Pipeline> pipelinesToRun = selectPipelines(interpreterListener,
-                        processingBlacklist,
-                        message,
-                        initialStreamIds,
-                        state.getStreamPipelineConnections());
-
-                toProcess.addAll(processForResolvedPipelines(message, msgId, pipelinesToRun, interpreterListener, state));
-
-                // add each processed message-stream combination to the blacklist set and figure out if the processing
+                // add each processed message-stream combination to the blacklist and figure out if the processing
                 // has added a stream to the message, in which case we need to cycle and determine whether to process
                 // its pipeline connections, too
-                boolean addedStreams = updateStreamBlacklist(processingBlacklist,
-                        message,
-                        initialStreamIds);
+                // pipelines which cannot route to connected streams never require running again
+                boolean addedStreams = entry.mayRouteToConnectedStreams && updateStreamBlacklist(entry, state);
                 potentiallyDropFilteredMessage(message);
 
                 // go to 1 and iterate over all messages again until no more streams are being assigned
@@ -157,6 +256,7 @@ public class PipelineInterpreter implements MessageProcessor {
                 } else {
                     // process again, we've added a stream
                     log.debug("[{}] new streams assigned, running again for those streams", msgId);
+                    processingBlacklist.put(message, entry.processedStreams);
                     toProcess.add(message);
                 }
             }
@@ -167,6 +267,24 @@ public class PipelineInterpreter implements MessageProcessor {
         return new MessageCollection(fullyProcessed);
     }
 
+    private FunctionMemo acquireFunctionMemo() {
+        final FunctionMemo functionMemo = functionMemos.get().poll();
+        return functionMemo != null ? functionMemo : new FunctionMemo(functionMemoStatistics);
+    }
+
+    private void releaseFunctionMemo(MessageBatchEntry entry) {
+        final FunctionMemo functionMemo = entry.functionMemo;
+        if (functionMemo == null) {
+            return;
+        }
+        entry.functionMemo = null;
+        final ArrayDeque<FunctionMemo> pool = functionMemos.get();
+        if (pool.size() < MAX_POOLED_FUNCTION_MEMOS) {
+            functionMemo.clear();
+            pool.push(functionMemo);
+        }
+    }
+
     private void potentiallyDropFilteredMessage(Message message) {
         if (message.getFilterOut()) {
             log.debug("[{}] marked message to be discarded. Dropping message.", message.getId());
@@ -175,44 +293,58 @@ public class PipelineInterpreter implements MessageProcessor {
         }
     }
 
+    // the ordinals of all streams of the message that have pipelines connected to them
+    private BitSet connectedStreams(Message message, State state) {
+        final BitSet streams = new BitSet(state.getConnectedStreamCount());
+        for (Stream stream : message.getStreams()) {
+            final int ordinal = state.getStreamOrdinal(stream.getId());
+            if (ordinal >= 0) {
+                streams.set(ordinal);
+            }
+        }
+        return streams;
+    }
+
     // given the initial streams the message was on before the processing and its current state, update the set of
-    // <msgid, stream> that should not be run again (which prevents re-running pipelines over and over again)
-    private boolean updateStreamBlacklist(Set<Tuple2<String, String>> processingBlacklist,
-                                          Message message,
-                                          Set<String> initialStreamIds) {
+    // stream ordinals that should not be run again (which prevents re-running pipelines over and over again)
+    private boolean updateStreamBlacklist(MessageBatchEntry entry, State state) {
         boolean addedStreams = false;
-        for (Stream stream : message.getStreams()) {
-            if (!initialStreamIds.remove(stream.getId())) {
+        for (Stream stream : entry.message.getStreams()) {
+            final int ordinal = state.getStreamOrdinal(stream.getId());
+            // streams without connections never select any pipelines, there's no need to run again for them
+            if (ordinal >= 0 && !entry.initialStreams.get(ordinal)) {
                 addedStreams = true;
-            } else {
-                // only add pre-existing streams to blacklist, this has the effect of only adding already processed streams,
-                // not newly added ones.
-                processingBlacklist.add(tuple(message.getId(), stream.getId()));
+                break;
             }
         }
-        return addedStreams;
+        if (!addedStreams) {
+            // the message won't be run again, no need to remember anything about it
+            return false;
+        }
+        if (entry.processedStreams == null) {
+            entry.processedStreams = new BitSet(state.getConnectedStreamCount());
+        }
+        for (Stream stream : entry.message.getStreams()) {
+            final int ordinal = state.getStreamOrdinal(stream.getId());
+            // only add pre-existing streams to blacklist, this has the effect of only adding already processed streams,
+            // not newly added ones.
+            if (ordinal >= 0 && entry.initialStreams.get(ordinal)) {
+                entry.processedStreams.set(ordinal);
+            }
+        }
+        return true;
     }
 
-    // determine which pipelines should be executed give the stream-pipeline connections and the current message
-    // the initialStreamIds are not mutated, but are begin passed for efficiency, as they are being used later in #process()
-    private ImmutableSet<Pipeline> selectPipelines(InterpreterListener interpreterListener,
-                                                   Set<Tuple2<String, String>> processingBlacklist,
-                                                   Message message,
-                                                   Set<String> initialStreamIds,
-                                                   ImmutableSetMultimap<String, Pipeline> streamConnection) {
-        final String msgId = message.getId();
-
-        // if a message-stream combination has already been processed (is in the set), skip that execution
-        final Set<String> streamsIds = initialStreamIds.stream()
-                .filter(streamId -> !processingBlacklist.contains(tuple(msgId, streamId)))
-                .filter(streamConnection::containsKey)
-                .collect(Collectors.toSet());
-        final ImmutableSet<Pipeline> pipelinesToRun = streamsIds.stream()
-                .flatMap(streamId -> streamConnection.get(streamId).stream())
-                .collect(ImmutableSet.toImmutableSet());
-        interpreterListener.processStreams(message, pipelinesToRun, streamsIds);
-        log.debug("[{}] running pipelines {} for streams {}", msgId, pipelinesToRun, streamsIds);
-        return pipelinesToRun;
+    // determine which streams the message needs to be processed for, the pipelines connected to them are executed
+    // the returned set must not be modified, it is used as the key to look up the execution plan
+    private BitSet streamsToRun(MessageBatchEntry entry) {
+        // if a message-stream combination has already been processed (is in the blacklist), skip that execution
+        if (entry.processedStreams == null) {
+            return entry.initialStreams;
+        }
+        final BitSet streamsToRun = (BitSet) entry.initialStreams.clone();
+        streamsToRun.andNot(entry.processedStreams);
+        return streamsToRun;
     }
 
     /**
@@ -240,101 +372,231 @@ public class PipelineInterpreter implements MessageProcessor {
                 .filter(Objects::nonNull)
                 .collect(ImmutableSet.toImmutableSet());
 
-        return processForResolvedPipelines(message, message.getId(), pipelinesToRun, interpreterListener, state);
+        final MessageBatchEntry entry = new MessageBatchEntry(message, new BitSet(), null);
+        processForPlan(Collections.singletonList(entry), state.getExecutionPlan(pipelinesToRun), interpreterListener);
+        return entry.createdMessages;
     }
 
-    private List<Message> processForResolvedPipelines(Message message,
-                                                      String msgId,
-                                                      Set<Pipeline> pipelines,
-                                                      InterpreterListener interpreterListener,
-                                                      State state) {
-        final List<Message> result = new ArrayList<>();
+    // runs all messages of the batch through the plan's pipelines. instead of running each message through all stages
+    // separately, every stage is evaluated for the entire batch before moving on to the next one, which keeps the
+    // stage's rules hot while they are being applied
+    private void processForPlan(List<MessageBatchEntry> batch,
+                                ExecutionPlan plan,
+                                InterpreterListener interpreterListener) {
+        if (plan.isEmpty()) {
+            return;
+        }
         // record execution of pipeline in metrics
-        pipelines.forEach(Pipeline::markExecution);
+        for (Pipeline pipeline : plan.pipelines()) {
+            for (int i = 0; i < batch.size(); i++) {
+                pipeline.markExecution();
+            }
+        }
 
-        final StageIterator stages = state.getStageIterator(pipelines);
-        final Set<Pipeline> pipelinesToSkip = Sets.newHashSet();
+        // messages of a batch often look up the same keys, only resolve each of them once
+        final BatchLookupCache lookupCache = plan.hasLookups() ? new BatchLookupCache() : null;
 
         // iterate through all stages for all matching pipelines, per "stage slice" instead of per pipeline.
         // pipeline execution ordering is not guaranteed
-        while (stages.hasNext()) {
-            final List<Stage> stageSet = stages.next();
-            for (final Stage stage : stageSet)
-                evaluateStage(stage, message, msgId, result, pipelinesToSkip, interpreterListener);
+        for (final ExecutionPlan.StageSlice slice : plan.stageSlices()) {
+            if (lookupCache != null && batch.size() > 1 && !slice.prefetchableLookups().isEmpty()) {
+                prefetchLookups(slice, batch, lookupCache);
+            }
+            // stages waiting on lookups evaluate all messages concurrently, unless the listener needs to see the
+            // evaluation in order (e.g. the simulator's tracer)
+            if (slice.isBlocking() && blockingStageExecutor.isEnabled()
+                    && interpreterListener instanceof NoopInterpreterListener) {
+                blockingStageExecutor.forEach(batch, entry -> evaluateStage(slice, entry, lookupCache, interpreterListener));
+                continue;
+            }
+            for (final MessageBatchEntry entry : batch) {
+                evaluateStage(slice, entry, lookupCache, interpreterListener);
+            }
         }
 
-        // 7. return the processed messages
-        return result;
+        if (lookupCache != null) {
+            batchLookupsResolved.mark(lookupCache.resolvedKeys());
+            batchLookupsCached.mark(lookupCache.hits());
+        }
     }
 
-    private void evaluateStage(Stage stage,
-                               Message message,
-                               String msgId,
-                               List<Message> result,
-                               Set<Pipeline> pipelinesToSkip,
+    // computes the keys of the slice's prefetchable lookups for all messages which are going to evaluate the stage and
+    // resolves each distinct key once, before any of the rules run. the rules then find the results in the cache.
+    private void prefetchLookups(ExecutionPlan.StageSlice slice,
+                                 List<MessageBatchEntry> batch,
+                                 BatchLookupCache lookupCache) {
+        final Set<BatchLookupCache.Key> keys = new LinkedHashSet<>();
+        for (MessageBatchEntry entry : batch) {
+            if (entry.isSkipped(slice.pipelineIndex()) || entry.message.getFilterOut()) {
+                continue;
+            }
+            final EvaluationContext context = evaluationContextFor(entry.message);
+            for (FunctionExpression lookup : slice.prefetchableLookups()) {
+                final PrefetchableLookup function = (PrefetchableLookup) lookup.getFunction();
+                try {
+                    final LookupTableService.Function table = function.lookupTable(lookup.getArgs(), context);
+                    final Object key = function.lookupKey(lookup.getArgs(), context);
+                    if (table != null && key != null) {
+                        keys.add(BatchLookupCache.key(table, key));
+                    }
+                } catch (Exception e) {
+                    // the rule will run into the same problem and report it, we simply don't prefetch the key
+                    log.debug("[{}] unable to compute lookup key of {}: {}", entry.message.getId(), lookup, e.getMessage());
+                }
+            }
+            context.release();
+        }
+        blockingStageExecutor.forEach(new ArrayList<>(keys), lookupCache::prefetch);
+    }
+
+    private void evaluateStage(ExecutionPlan.StageSlice slice,
+                               MessageBatchEntry entry,
+                               @Nullable BatchLookupCache lookupCache,
                                InterpreterListener interpreterListener) {
-        final Pipeline pipeline = stage.getPipeline();
-        if (pipelinesToSkip.contains(pipeline)) {
+        final Stage stage = slice.stage();
+        final Pipeline pipeline = slice.pipeline();
+        final Message message = entry.message;
+        final String msgId = message.getId();
+        if (entry.isSkipped(slice.pipelineIndex())) {
             log.debug("[{}] previous stage result prevents further processing of pipeline `{}`",
                     msgId,
                     pipeline.name());
             return;
         }
+        if (message.getFilterOut()) {
+            // the message is going to be discarded, evaluating the remaining stages would only be wasted effort
+            log.debug("[{}] message is marked to be dropped, skipping stage {} of pipeline `{}`",
+                    msgId,
+                    stage.stage(),
+                    pipeline.name());
+            pipeline.markStageSkippedDueToDrop();
+            return;
+        }
         stage.markExecution();
         interpreterListener.enterStage(stage);
         log.debug("[{}] evaluating rule conditions in stage {}: match {}",
                 msgId,
                 stage.stage(),
-                stage.matchAll() ? "all" : "either");
+                slice.matchAll() ? "all" : "either");
 
         // TODO the message should be decorated to allow layering changes and isolate stages
-        final EvaluationContext context = new EvaluationContext(message);
+        final EvaluationContext context = evaluationContextFor(message);
+        context.setBatchLookupCache(lookupCache);
+        // pure function results are shared by all stages and pipelines the message runs through
+        final FunctionMemo functionMemo = entry.functionMemo(functionMemoStatistics);
+        context.setFunctionMemo(functionMemo);
+        // calls shared by several conditions of the stage are only evaluated once for the message
+        context.setCommonSubexpressions(slice.commonSubexpressions());
 
         // 3. iterate over all the stages in these pipelines and execute them in order
-        final List<Rule> stageRules = stage.getRules();
+        final List<Rule> stageRules = slice.rules();
         final List<Rule> rulesToRun = new ArrayList<>(stageRules.size());
         boolean anyRulesMatched = stageRules.isEmpty(); // If there are no rules, we can simply continue to the next stage
         boolean allRulesMatched = true;
-        for (Rule rule : stageRules) {
-            final boolean ruleCondition = evaluateRuleCondition(rule, message, msgId, pipeline, context, rulesToRun, interpreterListener);
+        // rules whose equality tests already rule out the message don't need to have their conditions evaluated,
+        // neither do rules requiring fields the message doesn't have
+        final StageConditionIndex conditionIndex = slice.conditionIndex();
+        BitSet nonMatchingRules = conditionIndex == null ? null : conditionIndex.nonMatchingRules(message);
+        final FieldPresenceFilter fieldPresenceFilter = slice.fieldPresenceFilter();
+        if (fieldPresenceFilter != null) {
+            final BitSet missingFields = fieldPresenceFilter.nonMatchingRules(message);
+            if (nonMatchingRules == null) {
+                nonMatchingRules = missingFields;
+            } else {
+                nonMatchingRules.or(missingFields);
+            }
+        }
+        // rules referenced by other pipelines in this stage number are only evaluated once while the message doesn't
+        // change, unless the listener needs to see every evaluation
+        final Set<String> sharedRuleIds = interpreterListener instanceof NoopInterpreterListener
+                ? slice.sharedRuleIds()
+                : Collections.emptySet();
+        // outcomes are only valid for the message they have been evaluated for, see recordSharedRuleOutcome
+        final long stageEpoch = functionMemo.epoch();
+        for (int i = 0; i < stageRules.size(); i++) {
+            final Rule rule = stageRules.get(i);
+            final boolean shared = !sharedRuleIds.isEmpty() && sharedRuleIds.contains(rule.id());
+            final SharedRuleOutcome outcome = shared
+                    ? entry.sharedRuleOutcome(rule.id(), stage.stage(), functionMemo.epoch())
+                    : null;
+            final boolean ruleCondition;
+            if (outcome != null) {
+                ruleCondition = reuseRuleOutcome(rule, outcome, msgId);
+            } else if (nonMatchingRules != null && nonMatchingRules.get(i)) {
+                ruleCondition = dismissRule(rule, msgId, pipeline, interpreterListener);
+            } else {
+                final int errors = context.evaluationErrors().size();
+                final long epoch = functionMemo.epoch();
+                ruleCondition = evaluateRuleCondition(rule, message, msgId, pipeline, context, rulesToRun, interpreterListener);
+                // a condition which changed the message might evaluate differently the next time
+                if (shared && !ruleCondition && context.evaluationErrors().size() == errors
+                        && functionMemo.epoch() == epoch) {
+                    entry.recordSharedRuleOutcome(rule.id(), stage.stage(), false, epoch);
+                }
+            }
             anyRulesMatched |= ruleCondition;
             allRulesMatched &= ruleCondition;
         }
+        // actions may change the message, which invalidates the shared values
+        context.setCommonSubexpressions(null);
 
         for (Rule rule : rulesToRun) {
-            if (!executeRuleActions(rule, message, msgId, pipeline, context, interpreterListener)) {
+            final boolean executed = executeRuleActions(rule, message, msgId, pipeline, context, interpreterListener);
+            if (!executed) {
                 // if any of the rules raise an error, skip the rest of the rules
                 break;
             }
+            // actions which changed the message might have invalidated their own condition (e.g. setting the field the
+            // condition tests for), the rule has to be evaluated again. the epoch is only ever incremented, so it being
+            // unchanged means that neither the conditions nor any of the actions so far changed the message.
+            if (!sharedRuleIds.isEmpty() && sharedRuleIds.contains(rule.id()) && functionMemo.epoch() == stageEpoch) {
+                entry.recordSharedRuleOutcome(rule.id(), stage.stage(), true, stageEpoch);
+            }
         }
         // stage needed to match all rule conditions to enable the next stage,
         // record that it is ok to proceed with this pipeline
         // OR
         // any rule could match, but at least one had to,
         // record that it is ok to proceed with the pipeline
-        final boolean matchAllSuccess = stage.matchAll() && allRulesMatched;
-        final boolean matchEitherSuccess = !stage.matchAll() && anyRulesMatched;
+        final boolean matchAllSuccess = slice.matchAll() && allRulesMatched;
+        final boolean matchEitherSuccess = !slice.matchAll() && anyRulesMatched;
         if (matchAllSuccess || matchEitherSuccess) {
             interpreterListener.continuePipelineExecution(pipeline, stage);
             log.debug("[{}] stage {} for pipeline `{}` required match: {}, ok to proceed with next stage",
-                    msgId, stage.stage(), pipeline.name(), stage.matchAll() ? "all" : "either");
+                    msgId, stage.stage(), pipeline.name(), slice.matchAll() ? "all" : "either");
         } else {
             // no longer execute stages from this pipeline, the guard prevents it
             interpreterListener.stopPipelineExecution(pipeline, stage);
             log.debug("[{}] stage {} for pipeline `{}` required match: {}, NOT ok to proceed with next stage",
-                    msgId, stage.stage(), pipeline.name(), stage.matchAll() ? "all" : "either");
-            pipelinesToSkip.add(pipeline);
+                    msgId, stage.stage(), pipeline.name(), slice.matchAll() ? "all" : "either");
+            entry.skipPipeline(slice.pipelineIndex());
         }
 
         // 4. after each complete stage run, merge the processing changes, stages are isolated from each other
         // TODO message changes become visible immediately for now
 
         // 4a. also add all new messages from the context to the toProcess work list
-        Iterables.addAll(result, context.createdMessages());
-        context.clearCreatedMessages();
+        if (context.hasCreatedMessages()) {
+            Iterables.addAll(entry.createdMessages, context.createdMessages());
+            context.clearCreatedMessages();
+        }
+        context.release();
         interpreterListener.exitStage(stage);
     }
 
+    // each processing thread reuses a single context, which is reset before evaluating a stage and released afterwards
+    private EvaluationContext evaluationContextFor(Message message) {
+        EvaluationContext context = evaluationContexts.get();
+        if (context == null) {
+            context = new EvaluationContext(message);
+            context.setBlockingCallObserver(blockingStageExecutor);
+            evaluationContexts.set(context);
+        } else {
+            context.reset(message);
+        }
+        return context;
+    }
+
     private boolean executeRuleActions(Rule rule,
                                        Message message,
                                        String msgId,
@@ -344,7 +606,7 @@ public class PipelineInterpreter implements MessageProcessor {
         rule.markExecution();
         interpreterListener.executeRule(rule, pipeline);
         log.debug("[{}] rule `{}` matched running actions", msgId, rule.name());
-        final GeneratedRule generatedRule = rule.generatedRule();
+        final GeneratedRule generatedRule = rule.invokable();
         if (generatedRule != null) {
             try {
                 generatedRule.then(context);
@@ -352,14 +614,13 @@ public class PipelineInterpreter implements MessageProcessor {
             } catch (Exception ignored) {
                 final EvaluationContext.EvalError lastError = Iterables.getLast(context.evaluationErrors());
                 appendProcessingError(rule, message, lastError.toString());
+                interpreterListener.failExecuteRule(rule, pipeline);
                 log.debug("Encountered evaluation error, skipping rest of the rule: {}", lastError);
                 rule.markFailure();
                 return false;
             }
         } else {
-            if (ConfigurationStateUpdater.isAllowCodeGeneration()) {
-                throw new IllegalStateException("Should have generated code and not interpreted the tree");
-            }
+            // rules without generated code, e.g. because generating it failed, are interpreted
             for (Statement statement : rule.then()) {
                 if (!evaluateStatement(message, interpreterListener, pipeline, context, rule, statement)) {
                     // statement raised an error, skip the rest of the rule
@@ -388,6 +649,28 @@ public class PipelineInterpreter implements MessageProcessor {
         return true;
     }
 
+    // records the outcome of a rule which has already been evaluated for the unchanged message by another pipeline.
+    // if it matched, its actions have been executed and must not be executed again
+    private boolean reuseRuleOutcome(Rule rule, SharedRuleOutcome outcome, String msgId) {
+        log.debug("[{}] rule `{}` has already been evaluated for the message, reusing its outcome", msgId, rule.name());
+        if (outcome.matched) {
+            rule.markMatch();
+            rule.markExecution();
+        } else {
+            rule.markNonMatch();
+        }
+        return outcome.matched;
+    }
+
+    // records a rule as not matching without evaluating its condition, just like a condition evaluating to false
+    private boolean dismissRule(Rule rule, String msgId, Pipeline pipeline, InterpreterListener interpreterListener) {
+        interpreterListener.evaluateRule(rule, pipeline);
+        rule.markNonMatch();
+        interpreterListener.dissatisfyRule(rule, pipeline);
+        log.debug("[{}] rule `{}` does not match", msgId, rule.name());
+        return false;
+    }
+
     private boolean evaluateRuleCondition(Rule rule,
                                           Message message,
                                           String msgId,
@@ -395,7 +678,8 @@ public class PipelineInterpreter implements MessageProcessor {
                                           EvaluationContext context,
                                           List<Rule> rulesToRun, InterpreterListener interpreterListener) {
         interpreterListener.evaluateRule(rule, pipeline);
-        final GeneratedRule generatedRule = rule.generatedRule();
+        rule.markEvaluation();
+        final GeneratedRule generatedRule = rule.invokable();
         boolean matched = generatedRule != null ? generatedRule.when(context) : rule.when().evaluateBool(context);
         if (matched) {
             rule.markMatch();
@@ -429,6 +713,87 @@ public class PipelineInterpreter implements MessageProcessor {
         }
     }
 
+    /**
+     * Per message bookkeeping while a batch of messages is being run through its pipelines.
+     */
+    private static class MessageBatchEntry {
+        private final Message message;
+        // ordinals of the connected streams the message was on before processing it
+        private final BitSet initialStreams;
+        private final List<Message> createdMessages = new ArrayList<>();
+        // indices of the plan's pipelines which must not be run any further, null if there are none yet
+        @Nullable
+        private BitSet pipelinesToSkip;
+        // ordinals of the streams the message has already been processed for, null if there are none yet
+        @Nullable
+        private BitSet processedStreams;
+        private boolean mayRouteToConnectedStreams = true;
+        @Nullable
+        private FunctionMemo functionMemo;
+        // outcomes of the shared rules evaluated in the current stage number, by rule id
+        @Nullable
+        private Map<String, SharedRuleOutcome> sharedRuleOutcomes;
+        private int sharedRuleOutcomesStage;
+
+        private MessageBatchEntry(Message message, BitSet initialStreams, @Nullable BitSet processedStreams) {
+            this.message = message;
+            this.initialStreams = initialStreams;
+            this.processedStreams = processedStreams;
+        }
+
+        private boolean isSkipped(int pipelineIndex) {
+            return pipelinesToSkip != null && pipelinesToSkip.get(pipelineIndex);
+        }
+
+        private void skipPipeline(int pipelineIndex) {
+            if (pipelinesToSkip == null) {
+                pipelinesToSkip = new BitSet();
+            }
+            pipelinesToSkip.set(pipelineIndex);
+        }
+
+        private FunctionMemo functionMemo(FunctionMemo.Statistics statistics) {
+            if (functionMemo == null) {
+                functionMemo = new FunctionMemo(statistics);
+            }
+            return functionMemo;
+        }
+
+        /**
+         * @return the outcome of the rule in the stage number, or null if it hasn't been evaluated or the message might
+         * have been changed since
+         */
+        @Nullable
+        private SharedRuleOutcome sharedRuleOutcome(String ruleId, int stage, long epoch) {
+            if (sharedRuleOutcomes == null || sharedRuleOutcomesStage != stage) {
+                return null;
+            }
+            final SharedRuleOutcome outcome = sharedRuleOutcomes.get(ruleId);
+            return outcome != null && outcome.epoch == epoch ? outcome : null;
+        }
+
+        private void recordSharedRuleOutcome(String ruleId, int stage, boolean matched, long epoch) {
+            if (sharedRuleOutcomes == null) {
+                sharedRuleOutcomes = new HashMap<>();
+            } else if (sharedRuleOutcomesStage != stage) {
+                sharedRuleOutcomes.clear();
+            }
+            sharedRuleOutcomesStage = stage;
+            sharedRuleOutcomes.put(ruleId, new SharedRuleOutcome(matched, epoch));
+        }
+    }
+
+    private static class SharedRuleOutcome {
+        private final boolean matched;
+        // the epoch of the message's function memo the rule has been evaluated for, its actions didn't change it
+        private final long epoch;
+
+        private SharedRuleOutcome(boolean matched, long epoch) {
+            this.matched = matched;
+            this.epoch = epoch;
+        }
+    }
+
     public static class Descriptor implements MessageProcessor.Descriptor {
         @Override
         public String name() {
@@ -446,8 +811,14 @@ public class PipelineInterpreter implements MessageProcessor {
 
         private final ImmutableMap<String, Pipeline> currentPipelines;
         private final ImmutableSetMultimap<String, Pipeline> streamPipelineConnections;
-        private final LoadingCache<Set<Pipeline>, StageIterator.Configuration> cache;
+        // dense ordinals for all streams which have pipelines connected to them
+        private final ImmutableMap<String, Integer> streamOrdinals;
+        private final ImmutableList<String> streamIdsByOrdinal;
+        private final ImmutableList<ImmutableSet<Pipeline>> pipelinesByOrdinal;
+        // execution plans by the ordinals of the streams the messages are processed for
+        private final LoadingCache<BitSet, ExecutionPlan> cache;
         private final boolean cachedIterators;
+        private final StreamRouting streamRouting;
 
         @AssistedInject
         public State(@Assisted ImmutableMap<String, Pipeline> currentPipelines,
@@ -459,19 +830,36 @@ public class PipelineInterpreter implements MessageProcessor {
             this.streamPipelineConnections = streamPipelineConnections;
             this.cachedIterators = cachedIterators;
 
+            final ImmutableMap.Builder<String, Integer> ordinals = ImmutableMap.builder();
+            final ImmutableList.Builder<String> streamIds = ImmutableList.builder();
+            final ImmutableList.Builder<ImmutableSet<Pipeline>> pipelines = ImmutableList.builder();
+            int ordinal = 0;
+            for (String streamId : streamPipelineConnections.keySet()) {
+                ordinals.put(streamId, ordinal++);
+                streamIds.add(streamId);
+                pipelines.add(streamPipelineConnections.get(streamId));
+            }
+            streamOrdinals = ordinals.build();
+            streamIdsByOrdinal = streamIds.build();
+            pipelinesByOrdinal = pipelines.build();
+            streamRouting = StreamRouting.analyze(streamPipelineConnections);
+
             cache = CacheBuilder.newBuilder()
                     .concurrencyLevel(processorCount)
                     .recordStats()
-                    .build(new CacheLoader<Set<Pipeline>, StageIterator.Configuration>() {
+                    .build(new CacheLoader<BitSet, ExecutionPlan>() {
                         @Override
-                        public StageIterator.Configuration load(@Nonnull Set<Pipeline> pipelines) throws Exception {
-                            return new StageIterator.Configuration(pipelines);
+                        public ExecutionPlan load(@Nonnull BitSet streams) throws Exception {
+                            return buildExecutionPlan(streams);
                         }
                     });
 
             // we have to remove the metrics, because otherwise we leak references to the cache (and the register call with throw)
+            // the plan cache keeps the name of the stage iterator cache it replaces
             metricRegistry.removeMatching((name, metric) -> name.startsWith(name(PipelineInterpreter.class, "stage-cache")));
             MetricUtils.safelyRegisterAll(metricRegistry, new CacheStatsSet(name(PipelineInterpreter.class, "stage-cache"), cache));
+            // the number of distinct stream signatures seen so far
+            MetricUtils.safelyRegister(metricRegistry, name(PipelineInterpreter.class, "stage-cache", "plans"), (Gauge<Long>) cache::size);
         }
 
         public ImmutableMap<String, Pipeline> getCurrentPipelines() {
@@ -482,19 +870,108 @@ public class PipelineInterpreter implements MessageProcessor {
             return streamPipelineConnections;
         }
 
-        public StageIterator getStageIterator(Set<Pipeline> pipelines) {
+        StreamRouting getStreamRouting() {
+            return streamRouting;
+        }
+
+        /**
+         * @param streamId the id of the stream
+         * @return the ordinal of the stream, or -1 if there are no pipelines connected to it
+         */
+        public int getStreamOrdinal(String streamId) {
+            final Integer ordinal = streamOrdinals.get(streamId);
+            return ordinal == null ? -1 : ordinal;
+        }
+
+        /**
+         * @param message the message to check
+         * @return true if the message is on at least one stream with connected pipelines
+         */
+        public boolean hasConnectedStreams(Message message) {
+            if (streamOrdinals.isEmpty()) {
+                return false;
+            }
+            for (Stream stream : message.getStreams()) {
+                if (streamOrdinals.containsKey(stream.getId())) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        /**
+         * @param messages the messages to check
+         * @return true if at least one of the messages is on a stream with connected pipelines
+         */
+        public boolean hasConnectedStreams(Messages messages) {
+            if (streamOrdinals.isEmpty()) {
+                return false;
+            }
+            for (Message message : messages) {
+                if (hasConnectedStreams(message)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        public int getConnectedStreamCount() {
+            return streamIdsByOrdinal.size();
+        }
+
+        public String getStreamId(int ordinal) {
+            return streamIdsByOrdinal.get(ordinal);
+        }
+
+        public ImmutableSet<Pipeline> getPipelinesForStream(int ordinal) {
+            return pipelinesByOrdinal.get(ordinal);
+        }
+
+        /**
+         * Returns the execution plan for messages which need to be processed for the given streams.
+         *
+         * The plans are cached per distinct set of streams, the passed bit set is used as the cache key and must
+         * not be modified afterwards.
+         *
+         * @param streams the ordinals of the streams to run the connected pipelines for
+         * @return the execution plan for the pipelines connected to the streams
+         */
+        public ExecutionPlan getExecutionPlan(BitSet streams) {
+            if (streams.isEmpty()) {
+                return ExecutionPlan.empty();
+            }
             try {
                 if (cachedIterators) {
-                    return new StageIterator(cache.get(pipelines));
+                    return cache.get(streams);
                 } else {
-                    return new StageIterator(pipelines);
+                    return buildExecutionPlan(streams);
                 }
             } catch (ExecutionException e) {
-                LOG.error("Unable to get StageIterator from cache, this should not happen.", ExceptionUtils.getRootCause(e));
-                return new StageIterator(pipelines);
+                LOG.error("Unable to get execution plan from cache, this should not happen.", ExceptionUtils.getRootCause(e));
+                return buildExecutionPlan(streams);
             }
         }
 
+        /**
+         * Returns an uncached execution plan for the given pipelines, which is useful to simulate pipelines.
+         *
+         * @param pipelines the pipelines to run
+         * @return the execution plan for the pipelines
+         */
+        public ExecutionPlan getExecutionPlan(Set<Pipeline> pipelines) {
+            return new ExecutionPlan(ImmutableSet.of(), ImmutableSet.copyOf(pipelines));
+        }
+
+        private ExecutionPlan buildExecutionPlan(BitSet streams) {
+            final ImmutableSet.Builder<String> streamIds = ImmutableSet.builder();
+            final ImmutableSet.Builder<Pipeline> pipelines = ImmutableSet.builder();
+            for (int ordinal = streams.nextSetBit(0); ordinal >= 0; ordinal = streams.nextSetBit(ordinal + 1)) {
+                streamIds.add(getStreamId(ordinal));
+                pipelines.addAll(getPipelinesForStream(ordinal));
+            }
+            final ImmutableSet<Pipeline> plannedPipelines = pipelines.build();
+            return new ExecutionPlan(streamIds.build(), plannedPipelines, streamRouting.mayRouteToConnectedStreams(plannedPipelines));
+        }
 
         public interface Factory {
             State newState(ImmutableMap<String, Pipeline> currentPipelines,
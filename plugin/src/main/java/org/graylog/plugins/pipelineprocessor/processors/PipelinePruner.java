@@ -0,0 +1,88 @@
+/**
+ * This file is part of Graylog Pipeline Processor.
+ *
+ * Graylog Pipeline Processor is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Graylog Pipeline Processor is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Graylog Pipeline Processor.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.graylog.plugins.pipelineprocessor.processors;
+
+import com.google.common.collect.ImmutableSortedSet;
+import org.graylog.plugins.pipelineprocessor.ast.Pipeline;
+import org.graylog.plugins.pipelineprocessor.ast.Rule;
+import org.graylog.plugins.pipelineprocessor.ast.Stage;
+import org.graylog.plugins.pipelineprocessor.ast.expressions.BooleanExpression;
+import org.graylog.plugins.pipelineprocessor.rest.PrunedElement;
+
+import java.util.List;
+import java.util.stream.Collectors;
+
+/**
+ * Removes the parts of a resolved pipeline which can never have an effect on a message.
+ * <p>
+ * Rules whose condition is the constant {@code false} (this includes unresolved rule references and rules that failed
+ * to parse) can never match and never run any actions, so they are dropped from their stage. A stage which can then no
+ * longer let a message proceed, either because it is {@code match all} and lost a rule or because none of its rules
+ * are left, makes every later stage of the pipeline unreachable, those are dropped as well.
+ * Stages without rules references are left alone, they always let messages proceed.
+ */
+final class PipelinePruner {
+
+    private PipelinePruner() {
+    }
+
+    /**
+     * Prunes the given pipeline, its stages must have been resolved already.
+     *
+     * @param pipeline the resolved pipeline
+     * @param pruned   receives one entry for every rule and stage that has been removed
+     * @return the pipeline itself if nothing could be pruned, otherwise a copy containing only the remaining stages
+     */
+    static Pipeline prune(Pipeline pipeline, List<PrunedElement> pruned) {
+        final int prunedBefore = pruned.size();
+        final ImmutableSortedSet.Builder<Stage> remaining = ImmutableSortedSet.naturalOrder();
+        boolean unreachable = false;
+        for (Stage stage : pipeline.stages()) {
+            if (unreachable) {
+                pruned.add(PrunedElement.stage(stage.stage(), "Unreachable, an earlier stage never lets messages proceed"));
+                continue;
+            }
+            final List<Rule> rules = stage.getRules();
+            final List<Rule> liveRules = rules.stream()
+                    .filter(rule -> !isAlwaysFalse(rule))
+                    .collect(Collectors.toList());
+            if (liveRules.size() == rules.size()) {
+                remaining.add(stage);
+                continue;
+            }
+            rules.stream()
+                    .filter(PipelinePruner::isAlwaysFalse)
+                    .forEach(rule -> pruned.add(PrunedElement.rule(stage.stage(), rule.name(), "Condition is always false")));
+            // a match all stage cannot succeed without the dropped rule, a match either stage needs at least one rule
+            unreachable = stage.matchAll() || liveRules.isEmpty();
+            if (liveRules.isEmpty()) {
+                pruned.add(PrunedElement.stage(stage.stage(), "None of its rules can match"));
+            } else {
+                stage.setRules(liveRules);
+                remaining.add(stage);
+            }
+        }
+        if (pruned.size() == prunedBefore) {
+            return pipeline;
+        }
+        return pipeline.toBuilder().stages(remaining.build()).build();
+    }
+
+    static boolean isAlwaysFalse(Rule rule) {
+        return rule.when() instanceof BooleanExpression && !((BooleanExpression) rule.when()).evaluateBool(null);
+    }
+}
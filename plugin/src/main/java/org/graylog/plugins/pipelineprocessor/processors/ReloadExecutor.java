@@ -0,0 +1,78 @@
+/**
+ * This file is part of Graylog Pipeline Processor.
+ *
+ * Graylog Pipeline Processor is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Graylog Pipeline Processor is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Graylog Pipeline Processor.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.graylog.plugins.pipelineprocessor.processors;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import javax.annotation.Nullable;
+import javax.inject.Inject;
+import javax.inject.Named;
+import javax.inject.Singleton;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
+/**
+ * Parses and resolves rules and pipelines on a bounded pool while the configuration is reloaded.
+ *
+ * The pool is only used by the {@link ConfigurationStateUpdater}, message processing never waits for it, so a reload
+ * of many rules neither blocks nor competes with the process buffer threads beyond the configured parallelism.
+ */
+@Singleton
+public class ReloadExecutor {
+
+    @Nullable
+    private final ExecutorService executor;
+
+    @Inject
+    public ReloadExecutor(@Named("pipeline_reload_parallelism") int parallelism) {
+        this.executor = parallelism > 1 ? Executors.newFixedThreadPool(parallelism, new ThreadFactoryBuilder()
+                .setNameFormat("pipeline-reload-worker-%d")
+                .setDaemon(true)
+                .build()) : null;
+    }
+
+    /**
+     * @return an executor which runs every task on the calling thread
+     */
+    public static ReloadExecutor sequential() {
+        return new ReloadExecutor(1);
+    }
+
+    public boolean isEnabled() {
+        return executor != null;
+    }
+
+    /**
+     * Applies the task to all items and returns the results in the order of the items.
+     *
+     * If the executor is enabled, the tasks run concurrently on the pool, otherwise they are run in order on the calling
+     * thread. The first exception thrown by a task is rethrown after all tasks have finished.
+     *
+     * @param items the items to process, e.g. the rules loaded from the database
+     * @param task  the task to run for each item, must be safe to call concurrently for different items
+     */
+    public <T, R> List<R> map(List<T> items, Function<T, R> task) {
+        if (executor == null || items.size() < 2) {
+            return items.stream().map(task).collect(Collectors.toList());
+        }
+        // no task of this reload may still be running once we've returned, even if one of them failed
+        return ConcurrentTasks.invokeAll(executor, items, task);
+    }
+}
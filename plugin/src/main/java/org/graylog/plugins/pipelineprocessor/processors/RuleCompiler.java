@@ -0,0 +1,193 @@
+/**
+ * This file is part of Graylog Pipeline Processor.
+ *
+ * Graylog Pipeline Processor is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Graylog Pipeline Processor is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Graylog Pipeline Processor.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.graylog.plugins.pipelineprocessor.processors;
+
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
+import com.google.common.util.concurrent.AbstractIdleService;
+import com.google.common.hash.HashCode;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.graylog.plugins.pipelineprocessor.ast.Rule;
+import org.graylog.plugins.pipelineprocessor.codegen.CodeGenerator;
+import org.graylog.plugins.pipelineprocessor.codegen.GeneratedRule;
+import org.graylog.plugins.pipelineprocessor.codegen.PipelineClassloader;
+import org.graylog.plugins.pipelineprocessor.parser.FunctionRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import javax.inject.Inject;
+import javax.inject.Named;
+import javax.inject.Singleton;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+
+import static com.codahale.metrics.MetricRegistry.name;
+
+/**
+ * Compiles hot rules in the background.
+ *
+ * Rules are loaded with their closure compiled form, which is available immediately. Once a rule has been evaluated
+ * often enough, its class is generated on the compiler thread and swapped into the live rule, so that reloading the
+ * configuration never waits for code generation and only rules which actually see traffic are compiled.
+ *
+ * The compiler thread is stopped when the service shuts down, rules becoming hot afterwards keep their closures.
+ */
+@Singleton
+public class RuleCompiler extends AbstractIdleService {
+    private static final Logger log = LoggerFactory.getLogger(RuleCompiler.class);
+
+    private final CodeGenerator codeGenerator;
+    private final FunctionRegistry functionRegistry;
+    private final int threshold;
+    @Nullable
+    private final ExecutorService executor;
+    private final Meter promotedRules;
+    private final Timer compilationTime;
+    // the generated class of each rule source, shared by all copies of the rule, empty if generating it failed
+    private final ConcurrentMap<RuleSource, Optional<Class<? extends GeneratedRule>>> ruleClasses = new ConcurrentHashMap<>();
+
+    @Inject
+    public RuleCompiler(CodeGenerator codeGenerator,
+                        FunctionRegistry functionRegistry,
+                        @Named("generate_native_code") boolean enabled,
+                        @Named("pipeline_rule_compilation_threshold") int threshold,
+                        MetricRegistry metricRegistry) {
+        this.codeGenerator = codeGenerator;
+        this.functionRegistry = functionRegistry;
+        this.threshold = threshold;
+        this.executor = enabled ? Executors.newSingleThreadExecutor(new ThreadFactoryBuilder()
+                .setNameFormat("pipeline-rule-compiler-%d")
+                .setDaemon(true)
+                .build()) : null;
+        this.promotedRules = metricRegistry.meter(name(PipelineInterpreter.class, "rule-compilation", "promoted"));
+        this.compilationTime = metricRegistry.timer(name(PipelineInterpreter.class, "rule-compilation", "time"));
+    }
+
+    /**
+     * @return a compiler which never compiles rules, they keep running their closures
+     */
+    public static RuleCompiler disabled() {
+        return new RuleCompiler(new CodeGenerator(), new FunctionRegistry(Collections.emptyMap()), false, 1, new MetricRegistry());
+    }
+
+    public boolean isEnabled() {
+        return executor != null;
+    }
+
+    @Override
+    protected void startUp() throws Exception {
+    }
+
+    @Override
+    protected void shutDown() throws Exception {
+        if (executor != null) {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Lets the rule be compiled once it becomes hot, does nothing if compilation is disabled.
+     *
+     * All copies of a rule with the same source share its generated class, across reloads of the configuration.
+     *
+     * @param rule       the rule copy which is evaluated by the interpreter
+     * @param sourceHash the hash of the rule's source, null if unknown, which keeps the rule from being compiled
+     */
+    public void enablePromotion(Rule rule, @Nullable HashCode sourceHash) {
+        if (executor != null && rule.id() != null && sourceHash != null) {
+            final RuleSource source = new RuleSource(rule.id(), sourceHash);
+            rule.enablePromotion(threshold, hot -> promote(hot, source));
+        }
+    }
+
+    /**
+     * Drops the generated classes of all rules which have been changed or deleted, they are unloaded once no rule
+     * copy uses them anymore.
+     *
+     * @param ruleSources the source hash of each current rule, by rule id
+     */
+    public void retainRules(Map<String, HashCode> ruleSources) {
+        ruleClasses.keySet().removeIf(source -> !source.sourceHash.equals(ruleSources.get(source.ruleId)));
+    }
+
+    private void promote(Rule rule, RuleSource source) {
+        try {
+            //noinspection ConstantConditions
+            executor.execute(() -> {
+                if (rule.isPromoted()) {
+                    return;
+                }
+                final Optional<Class<? extends GeneratedRule>> ruleClass = ruleClasses.computeIfAbsent(source,
+                        ignored -> Optional.ofNullable(compile(rule)));
+                if (ruleClass.isPresent() && rule.promote(ruleClass.get(), functionRegistry)) {
+                    log.debug("Promoted hot rule {} to generated code", rule.name());
+                    promotedRules.mark();
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // called on a processing thread, the compiler has been shut down and the rule keeps its closure
+            log.debug("Not compiling rule {}, the rule compiler has been shut down", rule.name());
+        }
+    }
+
+    @Nullable
+    private Class<? extends GeneratedRule> compile(Rule rule) {
+        try (Timer.Context ignored = compilationTime.time()) {
+            // each class gets a classloader of its own, so it can be unloaded as soon as its rule is gone
+            return codeGenerator.generateCompiledRule(rule, new PipelineClassloader());
+        } catch (Exception e) {
+            log.warn("Unable to compile rule {}, it keeps running without generated code: {}", rule.name(), e.getMessage());
+            return null;
+        }
+    }
+
+    private static class RuleSource {
+        private final String ruleId;
+        private final HashCode sourceHash;
+
+        RuleSource(String ruleId, HashCode sourceHash) {
+            this.ruleId = ruleId;
+            this.sourceHash = sourceHash;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (o == null || getClass() != o.getClass()) {
+                return false;
+            }
+            final RuleSource that = (RuleSource) o;
+            return ruleId.equals(that.ruleId) && sourceHash.equals(that.sourceHash);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(ruleId, sourceHash);
+        }
+    }
+}
@@ -0,0 +1,185 @@
+/**
+ * This file is part of Graylog Pipeline Processor.
+ *
+ * Graylog Pipeline Processor is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Graylog Pipeline Processor is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Graylog Pipeline Processor.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.graylog.plugins.pipelineprocessor.processors;
+
+import com.google.common.collect.ImmutableList;
+import org.graylog.plugins.pipelineprocessor.ast.Rule;
+import org.graylog.plugins.pipelineprocessor.ast.expressions.AndExpression;
+import org.graylog.plugins.pipelineprocessor.ast.expressions.ConstantExpression;
+import org.graylog.plugins.pipelineprocessor.ast.expressions.EqualityExpression;
+import org.graylog.plugins.pipelineprocessor.ast.expressions.Expression;
+import org.graylog.plugins.pipelineprocessor.ast.expressions.FieldRefExpression;
+import org.graylog.plugins.pipelineprocessor.ast.expressions.LogicalChainExpression;
+import org.graylog.plugins.pipelineprocessor.ast.expressions.MessageRefExpression;
+import org.graylog.plugins.pipelineprocessor.ast.expressions.StringExpression;
+import org.graylog2.plugin.Message;
+
+import javax.annotation.Nullable;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Selects the rules of a stage whose conditions can still match a message, based on equality tests against constants.
+ *
+ * Routing stages often consist of many rules which only differ in the constant a field is compared to, like
+ * {@code $message.source == "fw01"}. For each such field, the rules are indexed by their constant, so that reading the
+ * field once and a single hash lookup determine which of those rules can match at all. All other rules testing that
+ * field are known not to match without evaluating their conditions.
+ *
+ * A rule is only indexed by a test which is one of the top-level conjuncts of its condition, and which is only preceded
+ * by side effect free conjuncts, so skipping the evaluation of its condition is not observable.
+ */
+class StageConditionIndex {
+    // indexing a field only pays off if there are a few rules to skip
+    static final int MIN_RULES_PER_FIELD = 4;
+
+    private final ImmutableList<FieldTest> fieldTests;
+
+    private StageConditionIndex(ImmutableList<FieldTest> fieldTests) {
+        this.fieldTests = fieldTests;
+    }
+
+    /**
+     * @param rules the rules of the stage, in evaluation order
+     * @return the index for the rules, or null if not enough rules share an equality test to make an index worthwhile
+     */
+    @Nullable
+    static StageConditionIndex build(List<Rule> rules) {
+        final Map<String, FieldTest> testsByField = new LinkedHashMap<>();
+        for (int i = 0; i < rules.size(); i++) {
+            final Discriminator discriminator = discriminatorOf(rules.get(i));
+            if (discriminator != null) {
+                testsByField.computeIfAbsent(discriminator.field, FieldTest::new).add(discriminator.value, i);
+            }
+        }
+        final ImmutableList.Builder<FieldTest> fieldTests = ImmutableList.builder();
+        for (FieldTest fieldTest : testsByField.values()) {
+            if (fieldTest.testedRules.cardinality() >= MIN_RULES_PER_FIELD) {
+                fieldTests.add(fieldTest);
+            }
+        }
+        final ImmutableList<FieldTest> indexed = fieldTests.build();
+        return indexed.isEmpty() ? null : new StageConditionIndex(indexed);
+    }
+
+    /**
+     * @param message the message to evaluate the stage for
+     * @return the indices of the rules which cannot match the message
+     */
+    BitSet nonMatchingRules(Message message) {
+        final BitSet nonMatching = new BitSet();
+        // every rule is indexed by a single field, so the tested rules of the fields don't overlap
+        for (FieldTest fieldTest : fieldTests) {
+            nonMatching.or(fieldTest.testedRules);
+            final Object value = message.getField(fieldTest.field);
+            final BitSet candidates = value == null ? null : fieldTest.rulesByValue.get(value);
+            if (candidates != null) {
+                nonMatching.andNot(candidates);
+            }
+        }
+        return nonMatching;
+    }
+
+    int indexedFieldCount() {
+        return fieldTests.size();
+    }
+
+    // the first equality test of a field against a constant that is a top-level conjunct of the rule's condition
+    @Nullable
+    private static Discriminator discriminatorOf(Rule rule) {
+        final List<Expression> conjuncts = new ArrayList<>();
+        collectConjuncts(rule.when(), conjuncts);
+        for (Expression conjunct : conjuncts) {
+            final Discriminator discriminator = asDiscriminator(conjunct);
+            if (discriminator != null) {
+                return discriminator;
+            }
+            if (!Expression.isSideEffectFree(conjunct)) {
+                // skipping the condition would also skip the side effects of this conjunct
+                return null;
+            }
+        }
+        return null;
+    }
+
+    private static void collectConjuncts(Expression expression, List<Expression> conjuncts) {
+        if (expression instanceof AndExpression) {
+            final AndExpression and = (AndExpression) expression;
+            collectConjuncts(and.left(), conjuncts);
+            collectConjuncts(and.right(), conjuncts);
+        } else if (expression instanceof LogicalChainExpression && ((LogicalChainExpression) expression).isAnd()) {
+            for (Expression operand : ((LogicalChainExpression) expression).operands()) {
+                collectConjuncts(operand, conjuncts);
+            }
+        } else {
+            conjuncts.add(expression);
+        }
+    }
+
+    @Nullable
+    private static Discriminator asDiscriminator(Expression expression) {
+        if (!(expression instanceof EqualityExpression)) {
+            return null;
+        }
+        final EqualityExpression equality = (EqualityExpression) expression;
+        // the evaluation calls equals on the field value, which is what a hash lookup by field value does, too
+        if (!equality.isCheckEquality() || !(equality.left() instanceof MessageRefExpression)
+                || !(equality.right() instanceof ConstantExpression)) {
+            return null;
+        }
+        final Expression fieldExpr = ((MessageRefExpression) equality.left()).getFieldExpr();
+        if (!(fieldExpr instanceof FieldRefExpression || fieldExpr instanceof StringExpression)) {
+            return null;
+        }
+        final Object field = fieldExpr.evaluateUnsafe();
+        final Object value = equality.right().evaluateUnsafe();
+        if (field == null || value == null) {
+            return null;
+        }
+        return new Discriminator(field.toString(), value);
+    }
+
+    private static class Discriminator {
+        private final String field;
+        private final Object value;
+
+        private Discriminator(String field, Object value) {
+            this.field = field;
+            this.value = value;
+        }
+    }
+
+    private static class FieldTest {
+        private final String field;
+        // all rules which are indexed by a test on this field
+        private final BitSet testedRules = new BitSet();
+        private final Map<Object, BitSet> rulesByValue = new HashMap<>();
+
+        private FieldTest(String field) {
+            this.field = field;
+        }
+
+        private void add(Object value, int ruleIndex) {
+            testedRules.set(ruleIndex);
+            rulesByValue.computeIfAbsent(value, v -> new BitSet()).set(ruleIndex);
+        }
+    }
+}
@@ -0,0 +1,232 @@
+/**
+ * This file is part of Graylog Pipeline Processor.
+ *
+ * Graylog Pipeline Processor is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Graylog Pipeline Processor is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Graylog Pipeline Processor.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.graylog.plugins.pipelineprocessor.processors;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.ImmutableSetMultimap;
+import org.graylog.plugins.pipelineprocessor.ast.Pipeline;
+import org.graylog.plugins.pipelineprocessor.ast.Rule;
+import org.graylog.plugins.pipelineprocessor.ast.RuleAstBaseListener;
+import org.graylog.plugins.pipelineprocessor.ast.RuleAstWalker;
+import org.graylog.plugins.pipelineprocessor.ast.Stage;
+import org.graylog.plugins.pipelineprocessor.ast.expressions.Expression;
+import org.graylog.plugins.pipelineprocessor.ast.expressions.FunctionExpression;
+import org.graylog.plugins.pipelineprocessor.ast.functions.Function;
+import org.graylog.plugins.pipelineprocessor.functions.FromInput;
+import org.graylog.plugins.pipelineprocessor.functions.dates.DateConversion;
+import org.graylog.plugins.pipelineprocessor.functions.dates.FlexParseDate;
+import org.graylog.plugins.pipelineprocessor.functions.dates.Now;
+import org.graylog.plugins.pipelineprocessor.functions.dates.ParseDate;
+import org.graylog.plugins.pipelineprocessor.functions.dates.ParseUnixMilliseconds;
+import org.graylog.plugins.pipelineprocessor.functions.debug.Debug;
+import org.graylog.plugins.pipelineprocessor.functions.lookup.Lookup;
+import org.graylog.plugins.pipelineprocessor.functions.lookup.LookupValue;
+import org.graylog.plugins.pipelineprocessor.functions.messages.CloneMessage;
+import org.graylog.plugins.pipelineprocessor.functions.messages.CreateMessage;
+import org.graylog.plugins.pipelineprocessor.functions.messages.DropMessage;
+import org.graylog.plugins.pipelineprocessor.functions.messages.RemoveField;
+import org.graylog.plugins.pipelineprocessor.functions.messages.RemoveFromStream;
+import org.graylog.plugins.pipelineprocessor.functions.messages.RenameField;
+import org.graylog.plugins.pipelineprocessor.functions.messages.RouteToStream;
+import org.graylog.plugins.pipelineprocessor.functions.messages.SetField;
+import org.graylog.plugins.pipelineprocessor.functions.messages.SetFields;
+
+import java.util.ArrayDeque;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The streams the pipelines connected to each stream may route messages to, as far as it is known before processing.
+ *
+ * Routing to a constant stream id or name with {@code route_to_stream} is resolved up front. The interpreter uses this
+ * to avoid checking whether processing added streams to a message, for pipelines which cannot route to any stream
+ * with pipelines connected to it. Pipelines are considered to route dynamically, to any stream, if they route by
+ * name, by a computed id, or call functions which aren't pure and aren't known to leave the message's streams alone.
+ *
+ * Streams routing to each other are processed only once per message, so cycles terminate, but they usually are
+ * unintended and are reported as the state is loaded.
+ */
+class StreamRouting {
+    // the functions coming with this plugin which aren't pure, but never change the streams of the message
+    private static final ImmutableSet<Class<? extends Function>> NON_ROUTING_FUNCTIONS = ImmutableSet.of(
+            SetField.class, SetFields.class, RemoveField.class, RenameField.class, DropMessage.class,
+            CreateMessage.class, CloneMessage.class, Debug.class, FromInput.class, Lookup.class, LookupValue.class,
+            Now.class, ParseDate.class, FlexParseDate.class, DateConversion.class, ParseUnixMilliseconds.class);
+
+    private final ImmutableSetMultimap<String, Pipeline> streamPipelineConnections;
+    private final Map<Pipeline, Routes> routesByPipeline;
+    private final ImmutableSetMultimap<String, String> streamRoutes;
+
+    private StreamRouting(ImmutableSetMultimap<String, Pipeline> streamPipelineConnections,
+                          Map<Pipeline, Routes> routesByPipeline) {
+        this.streamPipelineConnections = streamPipelineConnections;
+        this.routesByPipeline = routesByPipeline;
+
+        final ImmutableSetMultimap.Builder<String, String> streamRoutes = ImmutableSetMultimap.builder();
+        streamPipelineConnections.forEach((streamId, pipeline) ->
+                streamRoutes.putAll(streamId, routesByPipeline.get(pipeline).targetStreamIds));
+        this.streamRoutes = streamRoutes.build();
+    }
+
+    static StreamRouting analyze(ImmutableSetMultimap<String, Pipeline> streamPipelineConnections) {
+        final Map<Pipeline, Routes> routesByPipeline = new IdentityHashMap<>();
+        for (Pipeline pipeline : streamPipelineConnections.values()) {
+            routesByPipeline.computeIfAbsent(pipeline, StreamRouting::routesOf);
+        }
+        return new StreamRouting(streamPipelineConnections, routesByPipeline);
+    }
+
+    private static Routes routesOf(Pipeline pipeline) {
+        final Routes routes = new Routes();
+        final RuleAstWalker walker = new RuleAstWalker();
+        final RuleAstBaseListener listener = new RuleAstBaseListener() {
+            @Override
+            public void enterFunctionCall(FunctionExpression expr) {
+                routes.add(expr);
+            }
+        };
+        for (Stage stage : pipeline.stages()) {
+            if (stage.getRules() == null) {
+                continue;
+            }
+            for (Rule rule : stage.getRules()) {
+                walker.walk(listener, rule);
+            }
+        }
+        return routes;
+    }
+
+    /**
+     * @param pipelines the pipelines to run
+     * @return true if running the pipelines may put a message on a stream with connected pipelines
+     */
+    boolean mayRouteToConnectedStreams(Collection<Pipeline> pipelines) {
+        for (Pipeline pipeline : pipelines) {
+            final Routes routes = routesByPipeline.get(pipeline);
+            if (routes == null || routes.dynamic) {
+                return true;
+            }
+            for (String streamId : routes.targetStreamIds) {
+                if (streamPipelineConnections.containsKey(streamId)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return the groups of streams which route messages to each other, in a cycle
+     */
+    ImmutableList<ImmutableSet<String>> cycles() {
+        return new CycleFinder().find();
+    }
+
+    // the statically known stream ids a pipeline routes to, and whether it may route elsewhere
+    private static class Routes {
+        private final Set<String> targetStreamIds = new HashSet<>();
+        private boolean dynamic = false;
+
+        private void add(FunctionExpression call) {
+            final Function<?> function = call.getFunction();
+            if (function instanceof RouteToStream) {
+                addRoute((RouteToStream) function, call);
+            } else if (function instanceof RemoveFromStream) {
+                // puts the message back on the default stream when removing its last stream
+                dynamic = true;
+            } else if (!function.descriptor().pure() && !NON_ROUTING_FUNCTIONS.contains(function.getClass())) {
+                // functions of other plugins, or ones added later, might add streams to the message
+                dynamic = true;
+            }
+        }
+
+        private void addRoute(RouteToStream routeToStream, FunctionExpression call) {
+            final Expression id = call.getArgs().expression(RouteToStream.ID_ARG);
+            final Expression name = call.getArgs().expression(RouteToStream.NAME_ARG);
+            if (id != null && id.isConstant()) {
+                final Object value = id.evaluateUnsafe();
+                if (value != null && !"".equals(value)) {
+                    targetStreamIds.add(value.toString());
+                    return;
+                }
+            }
+            // names are resolved when routing, the stream they refer to might change until then
+            dynamic = true;
+            if (id == null && name != null && name.isConstant()) {
+                final Object value = name.evaluateUnsafe();
+                if (value != null) {
+                    targetStreamIds.addAll(routeToStream.streamIdsByName(value.toString()));
+                }
+            }
+        }
+    }
+
+    // Tarjan's algorithm for the strongly connected components of the routing graph
+    private class CycleFinder {
+        private final Map<String, Integer> indices = new HashMap<>();
+        private final Map<String, Integer> lowLinks = new HashMap<>();
+        private final Deque<String> stack = new ArrayDeque<>();
+        private final Set<String> onStack = new HashSet<>();
+        private final ImmutableList.Builder<ImmutableSet<String>> cycles = ImmutableList.builder();
+
+        private ImmutableList<ImmutableSet<String>> find() {
+            for (String streamId : streamRoutes.keySet()) {
+                if (!indices.containsKey(streamId)) {
+                    visit(streamId);
+                }
+            }
+            return cycles.build();
+        }
+
+        private void visit(String streamId) {
+            final int index = indices.size();
+            indices.put(streamId, index);
+            lowLinks.put(streamId, index);
+            stack.push(streamId);
+            onStack.add(streamId);
+
+            for (String target : streamRoutes.get(streamId)) {
+                if (!indices.containsKey(target)) {
+                    visit(target);
+                    lowLinks.put(streamId, Math.min(lowLinks.get(streamId), lowLinks.get(target)));
+                } else if (onStack.contains(target)) {
+                    lowLinks.put(streamId, Math.min(lowLinks.get(streamId), indices.get(target)));
+                }
+            }
+
+            if (lowLinks.get(streamId) == index) {
+                final ImmutableSet.Builder<String> component = ImmutableSet.builder();
+                String member;
+                do {
+                    member = stack.pop();
+                    onStack.remove(member);
+                    component.add(member);
+                } while (!member.equals(streamId));
+                final ImmutableSet<String> streams = component.build();
+                if (streams.size() > 1 || streamRoutes.containsEntry(streamId, streamId)) {
+                    cycles.add(streams);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,127 @@
+/**
+ * This file is part of Graylog Pipeline Processor.
+ *
+ * Graylog Pipeline Processor is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Graylog Pipeline Processor is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Graylog Pipeline Processor.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.graylog.plugins.pipelineprocessor.rest;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.primitives.Ints;
+import io.swagger.annotations.Api;
+import io.swagger.annotations.ApiOperation;
+import org.apache.shiro.authz.annotation.RequiresAuthentication;
+import org.apache.shiro.authz.annotation.RequiresPermissions;
+import org.graylog.plugins.pipelineprocessor.ast.Pipeline;
+import org.graylog.plugins.pipelineprocessor.ast.Rule;
+import org.graylog.plugins.pipelineprocessor.ast.RuleAstBaseListener;
+import org.graylog.plugins.pipelineprocessor.ast.RuleAstWalker;
+import org.graylog.plugins.pipelineprocessor.ast.Stage;
+import org.graylog.plugins.pipelineprocessor.ast.expressions.AdaptiveOperandOrder;
+import org.graylog.plugins.pipelineprocessor.ast.expressions.AndExpression;
+import org.graylog.plugins.pipelineprocessor.ast.expressions.Expression;
+import org.graylog.plugins.pipelineprocessor.ast.expressions.LogicalChainExpression;
+import org.graylog.plugins.pipelineprocessor.ast.expressions.OrExpression;
+import org.graylog.plugins.pipelineprocessor.processors.ConfigurationStateUpdater;
+import org.graylog2.plugin.rest.PluginRestResource;
+import org.graylog2.shared.rest.resources.RestResource;
+
+import javax.annotation.Nullable;
+import javax.inject.Inject;
+import javax.ws.rs.GET;
+import javax.ws.rs.Path;
+import javax.ws.rs.Produces;
+import javax.ws.rs.core.MediaType;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+@Api(value = "Pipelines/OperandOrder", description = "Evaluation order of rule conditions")
+@Path("/system/pipelines/operand_order")
+@Produces(MediaType.APPLICATION_JSON)
+@RequiresAuthentication
+public class OperandOrderResource extends RestResource implements PluginRestResource {
+    private final ConfigurationStateUpdater pipelineStateUpdater;
+
+    @Inject
+    public OperandOrderResource(ConfigurationStateUpdater pipelineStateUpdater) {
+        this.pipelineStateUpdater = pipelineStateUpdater;
+    }
+
+    @ApiOperation(value = "Get the operand order chosen for the AND and OR conditions of all connected rules")
+    @GET
+    @RequiresPermissions(PipelineRestPermissions.PIPELINE_RULE_READ)
+    public Collection<OperandOrderSummary> operandOrders() {
+        final List<OperandOrderSummary> summaries = new ArrayList<>();
+        final Set<String> seenRuleIds = new HashSet<>();
+        final RuleAstWalker walker = new RuleAstWalker();
+        for (Pipeline pipeline : pipelineStateUpdater.getLatestState().getCurrentPipelines().values()) {
+            for (Stage stage : pipeline.stages()) {
+                if (stage.getRules() == null) {
+                    continue;
+                }
+                for (Rule rule : stage.getRules()) {
+                    // all copies of a rule share their condition
+                    if (rule == null || rule.id() == null || !seenRuleIds.add(rule.id())) {
+                        continue;
+                    }
+                    walker.walk(new RuleAstBaseListener() {
+                        @Override
+                        public void enterAnd(AndExpression expr) {
+                            addSummary("AND", ImmutableList.of(expr.left(), expr.right()), expr.operandOrder());
+                        }
+
+                        @Override
+                        public void enterOr(OrExpression expr) {
+                            addSummary("OR", ImmutableList.of(expr.left(), expr.right()), expr.operandOrder());
+                        }
+
+                        @Override
+                        public void enterLogicalChain(LogicalChainExpression expr) {
+                            addSummary(expr.isAnd() ? "AND" : "OR", expr.operands(), expr.operandOrder());
+                        }
+
+                        private void addSummary(String operator, List<Expression> operands, @Nullable AdaptiveOperandOrder order) {
+                            if (order != null) {
+                                summaries.add(summarize(rule, operator, operands, order));
+                            }
+                        }
+                    }, rule);
+                }
+            }
+        }
+        return summaries;
+    }
+
+    private static OperandOrderSummary summarize(Rule rule, String operator, List<Expression> operands, AdaptiveOperandOrder order) {
+        final List<OperandOrderSummary.Operand> operandSummaries = new ArrayList<>(operands.size());
+        for (int i = 0; i < operands.size(); i++) {
+            operandSummaries.add(operand(operands.get(i).toString(), order.statistics(i)));
+        }
+        return OperandOrderSummary.create(rule.id(),
+                                          rule.name(),
+                                          operator,
+                                          order.isReordered(),
+                                          Ints.asList(order.order()),
+                                          operandSummaries);
+    }
+
+    private static OperandOrderSummary.Operand operand(String expression, AdaptiveOperandOrder.OperandStatistics statistics) {
+        return OperandOrderSummary.Operand.create(expression,
+                                                  statistics.samples(),
+                                                  statistics.trueRatio(),
+                                                  statistics.averageNanos());
+    }
+}
@@ -0,0 +1,80 @@
+/**
+ * This file is part of Graylog Pipeline Processor.
+ *
+ * Graylog Pipeline Processor is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Graylog Pipeline Processor is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Graylog Pipeline Processor.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.graylog.plugins.pipelineprocessor.rest;
+
+import com.fasterxml.jackson.annotation.JsonAutoDetect;
+import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonProperty;
+import com.google.auto.value.AutoValue;
+
+import java.util.List;
+
+@AutoValue
+@JsonAutoDetect
+public abstract class OperandOrderSummary {
+    @JsonProperty
+    public abstract String ruleId();
+
+    @JsonProperty
+    public abstract String ruleName();
+
+    @JsonProperty
+    public abstract String operator();
+
+    @JsonProperty
+    public abstract boolean reordered();
+
+    @JsonProperty
+    public abstract List<Integer> evaluationOrder();
+
+    @JsonProperty
+    public abstract List<Operand> operands();
+
+    @JsonCreator
+    public static OperandOrderSummary create(@JsonProperty("rule_id") String ruleId,
+                                             @JsonProperty("rule_name") String ruleName,
+                                             @JsonProperty("operator") String operator,
+                                             @JsonProperty("reordered") boolean reordered,
+                                             @JsonProperty("evaluation_order") List<Integer> evaluationOrder,
+                                             @JsonProperty("operands") List<Operand> operands) {
+        return new AutoValue_OperandOrderSummary(ruleId, ruleName, operator, reordered, evaluationOrder, operands);
+    }
+
+    @AutoValue
+    @JsonAutoDetect
+    public abstract static class Operand {
+        @JsonProperty
+        public abstract String expression();
+
+        @JsonProperty
+        public abstract long samples();
+
+        @JsonProperty
+        public abstract double trueRatio();
+
+        @JsonProperty
+        public abstract double averageNanos();
+
+        @JsonCreator
+        public static Operand create(@JsonProperty("expression") String expression,
+                                     @JsonProperty("samples") long samples,
+                                     @JsonProperty("true_ratio") double trueRatio,
+                                     @JsonProperty("average_nanos") double averageNanos) {
+            return new AutoValue_OperandOrderSummary_Operand(expression, samples, trueRatio, averageNanos);
+        }
+    }
+}
@@ -30,6 +30,7 @@ import org.graylog.plugins.pipelineprocessor.db.PipelineService;
 import org.graylog.plugins.pipelineprocessor.events.PipelinesChangedEvent;
 import org.graylog.plugins.pipelineprocessor.parser.ParseException;
 import org.graylog.plugins.pipelineprocessor.parser.PipelineRuleParser;
+import org.graylog.plugins.pipelineprocessor.processors.ConfigurationStateUpdater;
 import org.graylog2.audit.jersey.AuditEvent;
 import org.graylog2.audit.jersey.NoAuditEvent;
 import org.graylog2.database.NotFoundException;
@@ -55,6 +56,7 @@ import javax.ws.rs.core.MediaType;
 import javax.ws.rs.core.Response;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.List;
 
 @Api(value = "Pipelines/Pipelines", description = "Pipelines for the pipeline message processor")
 @Path("/system/pipelines/pipeline")
@@ -68,14 +70,17 @@ public class PipelineResource extends RestResource implements PluginRestResource
     private final PipelineService pipelineService;
     private final PipelineRuleParser pipelineRuleParser;
     private final EventBus clusterBus;
+    private final ConfigurationStateUpdater configurationStateUpdater;
 
     @Inject
     public PipelineResource(PipelineService pipelineService,
                         PipelineRuleParser pipelineRuleParser,
-                        ClusterEventBus clusterBus) {
+                        ClusterEventBus clusterBus,
+                        ConfigurationStateUpdater configurationStateUpdater) {
         this.pipelineService = pipelineService;
         this.pipelineRuleParser = pipelineRuleParser;
         this.clusterBus = clusterBus;
+        this.configurationStateUpdater = configurationStateUpdater;
     }
 
     @ApiOperation(value = "Create a processing pipeline from source", notes = "")
@@ -129,7 +134,7 @@ public class PipelineResource extends RestResource implements PluginRestResource
         final ArrayList<PipelineSource> results = Lists.newArrayList();
         for (PipelineDao dao : daos) {
             if (isPermitted(PipelineRestPermissions.PIPELINE_READ, dao.id())) {
-                results.add(PipelineSource.fromDao(pipelineRuleParser, dao));
+                results.add(withPrunedElements(PipelineSource.fromDao(pipelineRuleParser, dao)));
             }
         }
 
@@ -142,7 +147,7 @@ public class PipelineResource extends RestResource implements PluginRestResource
     public PipelineSource get(@ApiParam(name = "id") @PathParam("id") String id) throws NotFoundException {
         checkPermission(PipelineRestPermissions.PIPELINE_READ, id);
         final PipelineDao dao = pipelineService.load(id);
-        return PipelineSource.fromDao(pipelineRuleParser, dao);
+        return withPrunedElements(PipelineSource.fromDao(pipelineRuleParser, dao));
     }
 
     @ApiOperation(value = "Modify a processing pipeline", notes = "It can take up to a second until the change is applied")
@@ -184,4 +189,12 @@ public class PipelineResource extends RestResource implements PluginRestResource
         clusterBus.post(PipelinesChangedEvent.deletedPipelineId(id));
     }
 
+    private PipelineSource withPrunedElements(PipelineSource pipelineSource) {
+        // the processing state is loaded asynchronously, it reflects the last pipeline version that has been loaded
+        final List<PrunedElement> pruned = configurationStateUpdater.getPrunedElements(pipelineSource.id());
+        if (pruned.isEmpty()) {
+            return pipelineSource;
+        }
+        return pipelineSource.toBuilder().pruned(pruned).build();
+    }
 }
@@ -71,6 +71,10 @@ public abstract class PipelineSource {
     @Nullable
     public abstract Set<ParseError> errors();
 
+    @JsonProperty("pruned")
+    @Nullable
+    public abstract List<PrunedElement> pruned();
+
     public static Builder builder() {
         return new AutoValue_PipelineSource.Builder();
     }
@@ -144,5 +148,7 @@ public abstract class PipelineSource {
         public abstract Builder stages(List<StageSource> stages);
 
         public abstract Builder errors(Set<ParseError> errors);
+
+        public abstract Builder pruned(List<PrunedElement> pruned);
     }
 }
@@ -0,0 +1,61 @@
+/**
+ * This file is part of Graylog Pipeline Processor.
+ *
+ * Graylog Pipeline Processor is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Graylog Pipeline Processor is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Graylog Pipeline Processor.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.graylog.plugins.pipelineprocessor.rest;
+
+import com.fasterxml.jackson.annotation.JsonAutoDetect;
+import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonProperty;
+import com.google.auto.value.AutoValue;
+
+import javax.annotation.Nullable;
+
+/**
+ * A rule or a whole stage which has been removed from a pipeline when the processing state was built,
+ * because it could never influence the processing result.
+ */
+@AutoValue
+@JsonAutoDetect
+public abstract class PrunedElement {
+
+    @JsonProperty("stage")
+    public abstract int stage();
+
+    /**
+     * @return the name of the pruned rule, or {@code null} if the entire stage was pruned
+     */
+    @JsonProperty("rule")
+    @Nullable
+    public abstract String rule();
+
+    @JsonProperty("reason")
+    public abstract String reason();
+
+    @JsonCreator
+    public static PrunedElement create(@JsonProperty("stage") int stage,
+                                       @JsonProperty("rule") @Nullable String rule,
+                                       @JsonProperty("reason") String reason) {
+        return new AutoValue_PrunedElement(stage, rule, reason);
+    }
+
+    public static PrunedElement rule(int stage, String rule, String reason) {
+        return create(stage, rule, reason);
+    }
+
+    public static PrunedElement stage(int stage, String reason) {
+        return create(stage, null, reason);
+    }
+}
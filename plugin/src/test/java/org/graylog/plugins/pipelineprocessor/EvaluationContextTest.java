@@ -0,0 +1,99 @@
+/**
+ * This file is part of Graylog Pipeline Processor.
+ *
+ * Graylog Pipeline Processor is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Graylog Pipeline Processor is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Graylog Pipeline Processor.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.graylog.plugins.pipelineprocessor;
+
+import org.graylog2.plugin.Message;
+import org.graylog2.plugin.Tools;
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+public class EvaluationContextTest {
+
+    @Test
+    public void definesAndRedefinesVariables() {
+        final EvaluationContext context = new EvaluationContext(message("first"));
+
+        for (int i = 0; i < 20; i++) {
+            context.define("var" + i, Long.class, (long) i);
+        }
+        context.define("var3", String.class, "redefined");
+
+        assertThat(context.get("var0").getValue()).isEqualTo(0L);
+        assertThat(context.get("var19").getValue()).isEqualTo(19L);
+        assertThat(context.get("var3").getType()).isEqualTo(String.class);
+        assertThat(context.get("var3").getValue()).isEqualTo("redefined");
+        assertThat(context.get("unknown")).isNull();
+    }
+
+    @Test
+    public void resetClearsEvaluationState() {
+        final Message first = message("first");
+        final Message second = message("second");
+        final EvaluationContext context = new EvaluationContext(first);
+
+        context.define("x", String.class, "value");
+        context.addCreatedMessage(message("created"));
+        context.addEvaluationError(1, 1, null, new RuntimeException("error"));
+        assertThat(context.hasCreatedMessages()).isTrue();
+        assertThat(context.hasEvaluationErrors()).isTrue();
+
+        context.reset(second);
+
+        assertThat(context.currentMessage()).isSameAs(second);
+        assertThat(context.hasCreatedMessages()).isFalse();
+        assertThat(context.createdMessages()).isEmpty();
+        assertThat(context.hasEvaluationErrors()).isFalse();
+        assertThat(context.evaluationErrors()).isEmpty();
+        assertThatThrownBy(() -> context.get("x")).isInstanceOf(IllegalStateException.class);
+
+        context.define("y", Long.class, 1L);
+        assertThat(context.get("x")).isNull();
+        assertThat(context.get("y").getValue()).isEqualTo(1L);
+    }
+
+    @Test
+    public void variableValuesAreNotOverwrittenByLaterDefinitions() {
+        final EvaluationContext context = new EvaluationContext(message("first"));
+        context.define("x", String.class, "first");
+        final EvaluationContext.TypedValue first = context.get("x");
+
+        context.define("x", Long.class, 2L);
+        context.reset(message("second"));
+        context.define("x", String.class, "second");
+
+        assertThat(first.getType()).isEqualTo(String.class);
+        assertThat(first.getValue()).isEqualTo("first");
+    }
+
+    @Test
+    public void releaseDropsMessage() {
+        final Message processed = message("processed");
+        final EvaluationContext context = new EvaluationContext(processed);
+        context.define("x", String.class, "value");
+
+        context.release();
+
+        assertThat(context.currentMessage()).isNotSameAs(processed);
+        assertThatThrownBy(() -> context.get("x")).isInstanceOf(IllegalStateException.class);
+    }
+
+    private static Message message(String text) {
+        return new Message(text, "test", Tools.nowUTC());
+    }
+}
@@ -0,0 +1,167 @@
+/**
+ * This file is part of Graylog Pipeline Processor.
+ *
+ * Graylog Pipeline Processor is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Graylog Pipeline Processor is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Graylog Pipeline Processor.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.graylog.plugins.pipelineprocessor.ast.expressions;
+
+import com.google.common.collect.ImmutableList;
+import org.graylog.plugins.pipelineprocessor.EvaluationContext;
+import org.graylog.plugins.pipelineprocessor.ast.functions.AbstractFunction;
+import org.graylog.plugins.pipelineprocessor.ast.functions.Function;
+import org.graylog.plugins.pipelineprocessor.ast.functions.FunctionArgs;
+import org.graylog.plugins.pipelineprocessor.ast.functions.FunctionDescriptor;
+import org.graylog2.plugin.Message;
+import org.joda.time.DateTime;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class AdaptiveOperandOrderTest {
+
+    private EvaluationContext context;
+
+    @Before
+    public void setup() {
+        context = new EvaluationContext(new Message("test message", "test", DateTime.parse("2010-07-30T16:03:25Z")));
+    }
+
+    @Test
+    public void cheapDecidingOperandIsMovedFirst() {
+        final AtomicInteger expensiveCalls = new AtomicInteger();
+        final LogicalExpression expensiveTrue = operand(true, TimeUnit.MICROSECONDS.toNanos(200), expensiveCalls);
+        final LogicalExpression cheapFalse = operand(false, 0, new AtomicInteger());
+        final AdaptiveOperandOrder order = AdaptiveOperandOrder.forOperands(ImmutableList.of(expensiveTrue, cheapFalse), true);
+        assertThat(order).isNotNull();
+
+        evaluateUntilDecided(order);
+        assertThat(order.isReordered()).isTrue();
+
+        expensiveCalls.set(0);
+        for (int i = 0; i < AdaptiveOperandOrder.SAMPLE_INTERVAL - 1; i++) {
+            assertThat(order.evaluate(context)).isFalse();
+        }
+        assertThat(expensiveCalls.get()).isZero();
+    }
+
+    @Test
+    public void writtenOrderIsKeptIfItIsCheaper() {
+        final LogicalExpression cheapTrue = operand(true, 0, new AtomicInteger());
+        final LogicalExpression expensiveFalse = operand(false, TimeUnit.MICROSECONDS.toNanos(200), new AtomicInteger());
+        final AdaptiveOperandOrder order = AdaptiveOperandOrder.forOperands(ImmutableList.of(cheapTrue, expensiveFalse), false);
+        assertThat(order).isNotNull();
+
+        evaluateUntilDecided(order);
+        assertThat(order.isReordered()).isFalse();
+    }
+
+    @Test
+    public void failingOperandFallsBackToWrittenOrder() {
+        final AtomicInteger failing = new AtomicInteger();
+        final LogicalExpression guard = operand(false, TimeUnit.MICROSECONDS.toNanos(200), new AtomicInteger());
+        final LogicalExpression guarded = mock(LogicalExpression.class);
+        when(guarded.children()).thenReturn(Collections.emptyList());
+        when(guarded.evaluateBool(any())).thenAnswer(invocation -> {
+            if (failing.get() > 0) {
+                final EvaluationContext ctx = invocation.getArgument(0);
+                ctx.addEvaluationError(1, 1, null, new IllegalStateException("missing field"));
+            }
+            return false;
+        });
+        final AdaptiveOperandOrder order = AdaptiveOperandOrder.forOperands(ImmutableList.of(guard, guarded), true);
+        assertThat(order).isNotNull();
+        evaluateUntilDecided(order);
+        assertThat(order.isReordered()).isTrue();
+
+        failing.set(1);
+        assertThat(order.evaluate(context)).isFalse();
+        assertThat(context.hasEvaluationErrors()).isFalse();
+    }
+
+    @Test
+    public void chainIsOrderedByCostPerDecision() {
+        final long micros = TimeUnit.MICROSECONDS.toNanos(1);
+        final LogicalExpression slowNeverDeciding = operand(false, 100 * micros, new AtomicInteger());
+        final LogicalExpression slowDeciding = operand(true, 100 * micros, new AtomicInteger());
+        final LogicalExpression fastNeverDeciding = operand(false, 0, new AtomicInteger());
+        final AdaptiveOperandOrder order = AdaptiveOperandOrder.forOperands(
+                ImmutableList.of(slowNeverDeciding, fastNeverDeciding, slowDeciding), false);
+        assertThat(order).isNotNull();
+
+        evaluateUntilDecided(order);
+
+        assertThat(order.isReordered()).isTrue();
+        assertThat(order.order()).startsWith(2);
+        assertThat(order.evaluate(context)).isTrue();
+    }
+
+    @Test
+    public void onlyPureNonBlockingCallsAreReordered() {
+        final LogicalExpression operand = operand(true, 0, new AtomicInteger());
+
+        assertThat(AdaptiveOperandOrder.forOperands(ImmutableList.of(operand, call(true, false)), true)).isNotNull();
+        assertThat(AdaptiveOperandOrder.forOperands(ImmutableList.of(operand, call(false, false)), true)).isNull();
+        assertThat(AdaptiveOperandOrder.forOperands(ImmutableList.of(operand, call(true, true)), true)).isNull();
+    }
+
+    private void evaluateUntilDecided(AdaptiveOperandOrder order) {
+        for (int i = 0; i < AdaptiveOperandOrder.SAMPLE_INTERVAL * AdaptiveOperandOrder.SAMPLES_PER_DECISION; i++) {
+            order.evaluate(context);
+        }
+    }
+
+    private static LogicalExpression call(boolean pure, boolean blocking) {
+        final Function<Boolean> function = new AbstractFunction<Boolean>() {
+            @Override
+            public Boolean evaluate(FunctionArgs args, EvaluationContext context) {
+                return true;
+            }
+
+            @Override
+            public FunctionDescriptor<Boolean> descriptor() {
+                return FunctionDescriptor.<Boolean>builder()
+                        .name("test")
+                        .pure(pure)
+                        .blocking(blocking)
+                        .params(ImmutableList.of())
+                        .returnType(Boolean.class)
+                        .build();
+            }
+        };
+        return new BooleanValuedFunctionWrapper(null,
+                new FunctionExpression(null, new FunctionArgs(function, Collections.emptyMap())));
+    }
+
+    private static LogicalExpression operand(boolean value, long costNanos, AtomicInteger calls) {
+        final LogicalExpression expr = mock(LogicalExpression.class);
+        when(expr.children()).thenReturn(Collections.emptyList());
+        when(expr.evaluateBool(any())).thenAnswer(invocation -> {
+            calls.incrementAndGet();
+            final long end = System.nanoTime() + costNanos;
+            while (System.nanoTime() < end) {
+                // simulate an expensive operand
+            }
+            return value;
+        });
+        return expr;
+    }
+}
@@ -0,0 +1,220 @@
+/**
+ * This file is part of Graylog Pipeline Processor.
+ *
+ * Graylog Pipeline Processor is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Graylog Pipeline Processor is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Graylog Pipeline Processor.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.graylog.plugins.pipelineprocessor.codegen;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import org.antlr.v4.runtime.CommonToken;
+import org.graylog.plugins.pipelineprocessor.EvaluationContext;
+import org.graylog.plugins.pipelineprocessor.ast.Rule;
+import org.graylog.plugins.pipelineprocessor.ast.expressions.BooleanExpression;
+import org.graylog.plugins.pipelineprocessor.ast.functions.AbstractFunction;
+import org.graylog.plugins.pipelineprocessor.ast.functions.FunctionArgs;
+import org.graylog.plugins.pipelineprocessor.ast.functions.FunctionDescriptor;
+import org.graylog.plugins.pipelineprocessor.ast.functions.ParameterDescriptor;
+import org.graylog.plugins.pipelineprocessor.ast.statements.Statement;
+import org.graylog.plugins.pipelineprocessor.functions.conversion.LongConversion;
+import org.graylog.plugins.pipelineprocessor.functions.conversion.StringConversion;
+import org.graylog.plugins.pipelineprocessor.functions.messages.HasField;
+import org.graylog.plugins.pipelineprocessor.functions.messages.SetField;
+import org.graylog.plugins.pipelineprocessor.parser.FunctionRegistry;
+import org.graylog.plugins.pipelineprocessor.parser.PipelineRuleParser;
+import org.graylog2.plugin.Message;
+import org.graylog2.plugin.Tools;
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class ClosureCompilerTest {
+
+    private final FunctionRegistry functionRegistry = new FunctionRegistry(ImmutableMap.of(
+            HasField.NAME, new HasField(),
+            SetField.NAME, new SetField(),
+            StringConversion.NAME, new StringConversion(),
+            LongConversion.NAME, new LongConversion(),
+            "fail", new AbstractFunction<Void>() {
+                private final ParameterDescriptor<String, String> reasonParam = ParameterDescriptor.string("reason").build();
+
+                @Override
+                public Void evaluate(FunctionArgs args, EvaluationContext context) {
+                    throw new IllegalArgumentException(reasonParam.required(args, context));
+                }
+
+                @Override
+                public FunctionDescriptor<Void> descriptor() {
+                    return FunctionDescriptor.<Void>builder()
+                            .name("fail")
+                            .params(reasonParam)
+                            .returnType(Void.class)
+                            .build();
+                }
+            }));
+    private final PipelineRuleParser parser = new PipelineRuleParser(functionRegistry, new CodeGenerator());
+
+    @Test
+    public void compiledConditionMatchesTheInterpreter() throws Exception {
+        final String[] conditions = {
+                "true",
+                "!true || false",
+                "has_field(\"a\") && (has_field(\"b\") || !has_field(\"c\"))",
+                "has_field(\"a\") || has_field(\"b\") || has_field(\"c\")",
+                "!(has_field(\"a\") && has_field(\"b\") && has_field(\"c\"))",
+        };
+        for (String condition : conditions) {
+            final Rule rule = parser.parseRule("rule \"closures\" when " + condition + " then end", true);
+            final GeneratedRule compiled = ClosureCompiler.compile(rule);
+            for (String fields : new String[]{"", "a", "b", "c", "ab", "ac", "bc", "abc"}) {
+                final Message message = new Message("message", "source", Tools.nowUTC());
+                for (char field : fields.toCharArray()) {
+                    message.addField(String.valueOf(field), true);
+                }
+                assertThat(compiled.when(new EvaluationContext(message)))
+                        .as("%s with fields %s", condition, fields)
+                        .isEqualTo(rule.when().evaluateBool(new EvaluationContext(message)));
+            }
+        }
+    }
+
+    @Test
+    public void compiledOperandsMatchTheInterpreter() throws Exception {
+        final String[] conditions = {
+                "to_long($message.n) > 3",
+                "to_long($message.n) <= 3 && $message.s == \"x\"",
+                "to_string($message.s) != \"y\"",
+                "to_long($message.n, 0) >= 5 || $message.s == \"y\" || $message.missing == \"x\"",
+        };
+        for (String condition : conditions) {
+            final Rule rule = parser.parseRule("rule \"operands\" when " + condition + " then end", true);
+            final GeneratedRule compiled = ClosureCompiler.compile(rule);
+            for (long n : new long[]{1, 5}) {
+                for (String s : new String[]{"x", "y"}) {
+                    final Message message = new Message("message", "source", Tools.nowUTC());
+                    message.addField("n", n);
+                    message.addField("s", s);
+                    assertThat(compiled.when(new EvaluationContext(message)))
+                            .as("%s with n=%s and s=%s", condition, n, s)
+                            .isEqualTo(rule.when().evaluateBool(new EvaluationContext(message)));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void reorderedOperandsAreCompiled() throws Exception {
+        final Rule rule = parser.parseRule("rule \"reordered\"\n" +
+                "when has_field(\"a\") && (to_string($message.b) == \"x\" || !has_field(\"c\"))\n" +
+                "then end", true);
+        final GeneratedRule compiled = ClosureCompiler.compile(rule);
+
+        // enough messages for the operand order to be sampled and changed in between
+        for (int i = 0; i < 5000; i++) {
+            final Message message = new Message("message", "source", Tools.nowUTC());
+            if (i % 4 != 0) {
+                message.addField("a", true);
+            }
+            if (i % 3 == 0) {
+                message.addField("b", "x");
+            }
+            if (i % 2 == 0) {
+                message.addField("c", true);
+            }
+            assertThat(compiled.when(new EvaluationContext(message)))
+                    .as("message %s", i)
+                    .isEqualTo(rule.when().evaluateBool(new EvaluationContext(message)));
+        }
+    }
+
+    @Test
+    public void compiledStatementsAssignVariablesAndCallFunctions() throws Exception {
+        final Rule rule = parser.parseRule("rule1", "rule \"statements\" when true then\n" +
+                "let value = to_string($message.s);\n" +
+                "set_field(\"copy\", value);\n" +
+                "end", true);
+        final GeneratedRule compiled = ClosureCompiler.compile(rule);
+
+        final Message message = new Message("message", "source", Tools.nowUTC());
+        message.addField("s", "value");
+        final EvaluationContext context = new EvaluationContext(message);
+        compiled.then(context);
+        assertThat(message.getField("copy")).isEqualTo("value");
+        assertThat(context.hasEvaluationErrors()).isFalse();
+    }
+
+    @Test
+    public void compiledCallsReportErrorsLikeTheInterpreter() throws Exception {
+        final Rule rule = parser.parseRule("rule1", "rule \"failing\" when true then\n" +
+                "fail(\"broken\");\n" +
+                "end", true);
+        final GeneratedRule compiled = ClosureCompiler.compile(rule);
+
+        final EvaluationContext context = new EvaluationContext(new Message("message", "source", Tools.nowUTC()));
+        assertThatThrownBy(() -> compiled.then(context)).isInstanceOf(IllegalStateException.class);
+
+        final EvaluationContext interpreted = new EvaluationContext(new Message("message", "source", Tools.nowUTC()));
+        rule.then().forEach(statement -> statement.evaluate(interpreted));
+        assertThat(context.evaluationErrors()).hasSize(1);
+        assertThat(context.evaluationErrors().get(0).toString())
+                .contains("broken")
+                .isEqualTo(interpreted.evaluationErrors().get(0).toString());
+    }
+
+    @Test
+    public void actionsStopAtFirstError() {
+        final Statement first = mock(Statement.class);
+        final Statement failing = mock(Statement.class);
+        when(failing.evaluate(any())).thenAnswer(invocation -> {
+            invocation.<EvaluationContext>getArgument(0).addEvaluationError(1, 1, null, new IllegalArgumentException("failed"));
+            return null;
+        });
+        final Statement skipped = mock(Statement.class);
+        final GeneratedRule compiled = ClosureCompiler.compile(Rule.builder()
+                .name("failing")
+                .when(new BooleanExpression(new CommonToken(-1), true))
+                .then(ImmutableList.of(first, failing, skipped))
+                .build());
+
+        final EvaluationContext context = new EvaluationContext(new Message("message", "source", Tools.nowUTC()));
+        assertThat(compiled.name()).isEqualTo("failing");
+        assertThat(compiled.when(context)).isTrue();
+        assertThatThrownBy(() -> compiled.then(context)).isInstanceOf(IllegalStateException.class);
+        verify(first).evaluate(context);
+        verify(skipped, never()).evaluate(any());
+    }
+
+    @Test
+    public void invokableCopyWithoutGeneratedClassUsesClosures() throws Exception {
+        final Rule rule = parser.parseRule("rule1", "rule \"copy\" when true then set_field(\"copied\", true); end", true);
+        assertThat(rule.generatedRule()).isNull();
+
+        final GeneratedRule compiled = rule.invokableCopy(functionRegistry).generatedRule();
+        assertThat(compiled).isNotNull();
+        // the closures are stateless, all copies share them
+        assertThat(rule.invokableCopy(functionRegistry).generatedRule()).isSameAs(compiled);
+
+        final Message message = new Message("message", "source", Tools.nowUTC());
+        final EvaluationContext context = new EvaluationContext(message);
+        assertThat(compiled.when(context)).isTrue();
+        compiled.then(context);
+        assertThat(message.getField("copied")).isEqualTo(true);
+    }
+}
@@ -0,0 +1,216 @@
+/**
+ * This file is part of Graylog Pipeline Processor.
+ *
+ * Graylog Pipeline Processor is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Graylog Pipeline Processor is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Graylog Pipeline Processor.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.graylog.plugins.pipelineprocessor.codegen;
+
+import com.google.common.collect.ImmutableMap;
+import org.graylog.plugins.pipelineprocessor.EvaluationContext;
+import org.graylog.plugins.pipelineprocessor.ast.Rule;
+import org.graylog.plugins.pipelineprocessor.ast.functions.AbstractFunction;
+import org.graylog.plugins.pipelineprocessor.ast.functions.Function;
+import org.graylog.plugins.pipelineprocessor.ast.functions.FunctionArgs;
+import org.graylog.plugins.pipelineprocessor.ast.functions.FunctionDescriptor;
+import org.graylog.plugins.pipelineprocessor.ast.functions.ParameterDescriptor;
+import org.graylog.plugins.pipelineprocessor.functions.conversion.DoubleConversion;
+import org.graylog.plugins.pipelineprocessor.functions.conversion.LongConversion;
+import org.graylog.plugins.pipelineprocessor.functions.conversion.StringConversion;
+import org.graylog.plugins.pipelineprocessor.functions.messages.HasField;
+import org.graylog.plugins.pipelineprocessor.functions.messages.SetField;
+import org.graylog.plugins.pipelineprocessor.parser.FunctionRegistry;
+import org.graylog.plugins.pipelineprocessor.parser.PipelineRuleParser;
+import org.graylog2.plugin.Message;
+import org.graylog2.plugin.Tools;
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+public class CodeGeneratorTest {
+
+    private final FunctionRegistry functionRegistry = new FunctionRegistry(ImmutableMap.<String, Function<?>>builder()
+            .put(HasField.NAME, new HasField())
+            .put(SetField.NAME, new SetField())
+            .put(StringConversion.NAME, new StringConversion())
+            .put(LongConversion.NAME, new LongConversion())
+            .put(DoubleConversion.NAME, new DoubleConversion())
+            .put("fail", new AbstractFunction<Void>() {
+                private final ParameterDescriptor<String, String> reasonParam = ParameterDescriptor.string("reason").build();
+
+                @Override
+                public Void evaluate(FunctionArgs args, EvaluationContext context) {
+                    throw new IllegalArgumentException(reasonParam.required(args, context));
+                }
+
+                @Override
+                public FunctionDescriptor<Void> descriptor() {
+                    return FunctionDescriptor.<Void>builder()
+                            .name("fail")
+                            .params(reasonParam)
+                            .returnType(Void.class)
+                            .build();
+                }
+            })
+            .build());
+    private final CodeGenerator codeGenerator = new CodeGenerator();
+    private final PipelineRuleParser parser = new PipelineRuleParser(functionRegistry, codeGenerator);
+
+    @Test
+    public void generatedRuleBehavesLikeTheInterpreter() throws Exception {
+        final Rule rule = parser.parseRule("rule1", "rule \"generated\"\n" +
+                "when has_field(\"a\") && (has_field(\"b\") || !has_field(\"c\"))\n" +
+                "then set_field(\"matched\", true);\n" +
+                "end", true);
+        final GeneratedRule generatedRule = generate(rule);
+
+        assertThat(generatedRule.name()).isEqualTo("generated");
+        for (String fields : new String[]{"", "a", "b", "c", "ab", "ac", "bc", "abc"}) {
+            final Message message = new Message("message", "source", Tools.nowUTC());
+            for (char field : fields.toCharArray()) {
+                message.addField(String.valueOf(field), true);
+            }
+            final EvaluationContext context = new EvaluationContext(message);
+            assertThat(generatedRule.when(context))
+                    .as("fields %s", fields)
+                    .isEqualTo(rule.when().evaluateBool(new EvaluationContext(message)));
+        }
+
+        final Message message = new Message("message", "source", Tools.nowUTC());
+        generatedRule.then(new EvaluationContext(message));
+        assertThat(message.getField("matched")).isEqualTo(true);
+    }
+
+    @Test
+    public void generatedOperandsMatchTheInterpreter() throws Exception {
+        final String[] conditions = {
+                "to_long($message.n) > 3",
+                "to_long($message.n) <= 3 && $message.s == \"x\"",
+                "to_double($message.n) < 2.5 || to_double($message.n) >= 5.0",
+                "to_string($message.s) != \"y\"",
+                "$message.s == $message.missing || $message.missing == \"x\"",
+                "to_long($message.n, 0) >= 5 || $message.s == \"y\" || !has_field(\"s\")",
+        };
+        for (String condition : conditions) {
+            final Rule rule = parser.parseRule("rule \"operands\" when " + condition + " then end", true);
+            final GeneratedRule generatedRule = generate(rule);
+            for (long n : new long[]{1, 5}) {
+                for (String s : new String[]{"x", "y"}) {
+                    final Message message = new Message("message", "source", Tools.nowUTC());
+                    message.addField("n", n);
+                    message.addField("s", s);
+                    assertThat(generatedRule.when(new EvaluationContext(message)))
+                            .as("%s with n=%s and s=%s", condition, n, s)
+                            .isEqualTo(rule.when().evaluateBool(new EvaluationContext(message)));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void reorderedOperandsAreGenerated() throws Exception {
+        final Rule rule = parser.parseRule("rule6", "rule \"reordered\"\n" +
+                "when has_field(\"a\") && (to_string($message.b) == \"x\" || !has_field(\"c\"))\n" +
+                "then end", true);
+        final GeneratedRule generatedRule = generate(rule);
+
+        assertThat(generatedRule).isInstanceOf(CompiledConditions.class);
+        // enough messages for the operand order to be sampled and changed in between
+        for (int i = 0; i < 5000; i++) {
+            final Message message = new Message("message", "source", Tools.nowUTC());
+            if (i % 4 != 0) {
+                message.addField("a", true);
+            }
+            if (i % 3 == 0) {
+                message.addField("b", "x");
+            }
+            if (i % 2 == 0) {
+                message.addField("c", true);
+            }
+            assertThat(generatedRule.when(new EvaluationContext(message)))
+                    .as("message %s", i)
+                    .isEqualTo(rule.when().evaluateBool(new EvaluationContext(message)));
+        }
+    }
+
+    @Test
+    public void generatedStatementsAssignVariablesAndCallFunctions() throws Exception {
+        final Rule rule = parser.parseRule("rule4", "rule \"statements\" when true then\n" +
+                "let value = to_string($message.s);\n" +
+                "set_field(\"copy\", value);\n" +
+                "set_field(\"number\", to_long($message.n) > 3);\n" +
+                "end", true);
+        final GeneratedRule generatedRule = generate(rule);
+
+        final Message message = new Message("message", "source", Tools.nowUTC());
+        message.addField("s", "value");
+        message.addField("n", 5L);
+        final EvaluationContext context = new EvaluationContext(message);
+        generatedRule.then(context);
+        assertThat(message.getField("copy")).isEqualTo("value");
+        assertThat(message.getField("number")).isEqualTo(true);
+        assertThat(context.hasEvaluationErrors()).isFalse();
+    }
+
+    @Test
+    public void generatedCallsReportErrorsLikeTheInterpreter() throws Exception {
+        final Rule rule = parser.parseRule("rule5", "rule \"failing\" when true then\n" +
+                "fail(\"broken\");\n" +
+                "set_field(\"skipped\", true);\n" +
+                "end", true);
+        final GeneratedRule generatedRule = generate(rule);
+
+        final Message message = new Message("message", "source", Tools.nowUTC());
+        final EvaluationContext context = new EvaluationContext(message);
+        assertThatThrownBy(() -> generatedRule.then(context)).isInstanceOf(IllegalStateException.class);
+        assertThat(message.hasField("skipped")).isFalse();
+
+        final EvaluationContext interpreted = new EvaluationContext(new Message("message", "source", Tools.nowUTC()));
+        rule.then().iterator().next().evaluate(interpreted);
+        assertThat(context.evaluationErrors()).hasSize(1);
+        assertThat(context.evaluationErrors().get(0).toString())
+                .contains("broken")
+                .isEqualTo(interpreted.evaluationErrors().get(0).toString());
+    }
+
+    @Test
+    public void constantConditions() throws Exception {
+        final Message message = new Message("message", "source", Tools.nowUTC());
+
+        assertThat(generate(parser.parseRule("rule2", "rule \"t\" when true then end", true))
+                .when(new EvaluationContext(message))).isTrue();
+        assertThat(generate(parser.parseRule("rule3", "rule \"f\" when !true || false then end", true))
+                .when(new EvaluationContext(message))).isFalse();
+    }
+
+    @Test
+    public void generatedClassesAreDefinedInTheGivenClassloader() {
+        final PipelineClassloader classloader = new PipelineClassloader();
+        final Class<? extends GeneratedRule> ruleClass = codeGenerator.generateCompiledRule(
+                Rule.alwaysFalse("no id").withId("some-id"), classloader);
+
+        assertThat(ruleClass).isNotNull();
+        assertThat(ruleClass.getClassLoader()).isSameAs(classloader);
+    }
+
+    private GeneratedRule generate(Rule rule) {
+        final Class<? extends GeneratedRule> ruleClass = codeGenerator.generateCompiledRule(rule, new PipelineClassloader());
+        assertThat(ruleClass).isNotNull();
+        final GeneratedRule generatedRule = rule.toBuilder().generatedRuleClass(ruleClass).build()
+                .invokableCopy(functionRegistry)
+                .generatedRule();
+        assertThat(generatedRule).isNotNull();
+        return generatedRule;
+    }
+}
@@ -0,0 +1,74 @@
+/**
+ * This file is part of Graylog Pipeline Processor.
+ *
+ * Graylog Pipeline Processor is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Graylog Pipeline Processor is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Graylog Pipeline Processor.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.graylog.plugins.pipelineprocessor.functions.lookup;
+
+import org.graylog2.lookup.LookupTableService;
+import org.graylog2.plugin.lookup.LookupResult;
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class BatchLookupCacheTest {
+
+    @Test
+    public void resolvesEachKeyOnce() {
+        final LookupTableService.Function table = mock(LookupTableService.Function.class);
+        final LookupResult result = LookupResult.single("value");
+        when(table.lookup("key")).thenReturn(result);
+
+        final BatchLookupCache cache = new BatchLookupCache();
+        assertThat(cache.lookup(table, "key")).isSameAs(result);
+        assertThat(cache.lookup(table, "key")).isSameAs(result);
+
+        verify(table, times(1)).lookup("key");
+        assertThat(cache.resolvedKeys()).isEqualTo(1);
+        assertThat(cache.hits()).isEqualTo(1L);
+    }
+
+    @Test
+    public void cachesMissingResults() {
+        final LookupTableService.Function table = mock(LookupTableService.Function.class);
+
+        final BatchLookupCache cache = new BatchLookupCache();
+        assertThat(cache.lookup(table, "missing")).isNull();
+        assertThat(cache.lookup(table, "missing")).isNull();
+
+        verify(table, times(1)).lookup("missing");
+    }
+
+    @Test
+    public void prefetchedKeysAreNotResolvedAgain() {
+        final LookupTableService.Function table = mock(LookupTableService.Function.class);
+        final LookupTableService.Function otherTable = mock(LookupTableService.Function.class);
+        when(table.lookup("key")).thenReturn(LookupResult.single("value"));
+        when(otherTable.lookup("key")).thenReturn(LookupResult.single("other"));
+
+        final BatchLookupCache cache = new BatchLookupCache();
+        cache.prefetch(BatchLookupCache.key(table, "key"));
+        cache.prefetch(BatchLookupCache.key(table, "key"));
+
+        assertThat(cache.lookup(table, "key").singleValue()).isEqualTo("value");
+        assertThat(cache.lookup(otherTable, "key").singleValue()).isEqualTo("other");
+        verify(table, times(1)).lookup("key");
+        verify(otherTable, times(1)).lookup("key");
+        assertThat(cache.resolvedKeys()).isEqualTo(2);
+    }
+}
@@ -30,6 +30,8 @@ import org.graylog.plugins.pipelineprocessor.ast.functions.Function;
 import org.graylog.plugins.pipelineprocessor.ast.functions.FunctionArgs;
 import org.graylog.plugins.pipelineprocessor.ast.functions.FunctionDescriptor;
 import org.graylog.plugins.pipelineprocessor.ast.functions.ParameterDescriptor;
+import org.graylog.plugins.pipelineprocessor.ast.statements.Statement;
+import org.graylog.plugins.pipelineprocessor.ast.statements.VarAssignStatement;
 import org.graylog.plugins.pipelineprocessor.codegen.PipelineClassloader;
 import org.graylog.plugins.pipelineprocessor.functions.conversion.LongConversion;
 import org.graylog.plugins.pipelineprocessor.functions.conversion.StringConversion;
@@ -206,6 +208,23 @@ public class PipelineRuleParserTest extends BaseParserTest {
         }
     }
 
+    @Test
+    public void variableSlots() throws Exception {
+        final Rule rule = parseRuleWithOptionalCodegen();
+
+        final List<Statement> statements = ImmutableList.copyOf(rule.then());
+        final VarAssignStatement first = (VarAssignStatement) statements.get(0);
+        final VarAssignStatement second = (VarAssignStatement) statements.get(1);
+        final VarAssignStatement redefinedFirst = (VarAssignStatement) statements.get(2);
+        assertEquals(0, first.getSlot());
+        assertEquals(1, second.getSlot());
+        assertEquals("redefining a variable reuses its slot", 0, redefinedFirst.getSlot());
+
+        final Message message = evaluateRule(rule);
+        assertNotNull(message);
+        assertEquals("onetwothree", message.getField("result"));
+    }
+
     @Test
     public void invalidArgType() throws Exception {
         try {
@@ -27,7 +27,6 @@ import org.graylog.plugins.pipelineprocessor.ast.expressions.NotExpression;
 import org.graylog.plugins.pipelineprocessor.ast.expressions.OrExpression;
 import org.graylog.plugins.pipelineprocessor.ast.functions.Function;
 import org.graylog.plugins.pipelineprocessor.codegen.CodeGenerator;
-import org.graylog.plugins.pipelineprocessor.codegen.compiler.JavaCompiler;
 import org.graylog.plugins.pipelineprocessor.functions.conversion.StringConversion;
 import org.graylog2.plugin.Message;
 import org.graylog2.plugin.Tools;
@@ -128,7 +127,8 @@ public class PrecedenceTest extends BaseParserTest {
     }
 
     private static Rule parseRule(String rule) {
-        final PipelineRuleParser parser = new PipelineRuleParser(functionRegistry, new CodeGenerator(JavaCompiler::new));
+        // precedence is only visible in the syntax tree as written, the optimizer would fold these constant conditions
+        final PipelineRuleParser parser = new PipelineRuleParser(functionRegistry, new CodeGenerator(), false);
         return parser.parseRule(rule, true);
     }
 }
@@ -0,0 +1,199 @@
+/**
+ * This file is part of Graylog Pipeline Processor.
+ *
+ * Graylog Pipeline Processor is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Graylog Pipeline Processor is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Graylog Pipeline Processor.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.graylog.plugins.pipelineprocessor.parser;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import org.graylog.plugins.pipelineprocessor.EvaluationContext;
+import org.antlr.v4.runtime.CommonToken;
+import org.antlr.v4.runtime.Token;
+import org.graylog.plugins.pipelineprocessor.ast.Rule;
+import org.graylog.plugins.pipelineprocessor.ast.expressions.AdditionExpression;
+import org.graylog.plugins.pipelineprocessor.ast.expressions.AndExpression;
+import org.graylog.plugins.pipelineprocessor.ast.expressions.BooleanExpression;
+import org.graylog.plugins.pipelineprocessor.ast.expressions.BooleanValuedFunctionWrapper;
+import org.graylog.plugins.pipelineprocessor.ast.expressions.ComparisonExpression;
+import org.graylog.plugins.pipelineprocessor.ast.expressions.EqualityExpression;
+import org.graylog.plugins.pipelineprocessor.ast.expressions.Expression;
+import org.graylog.plugins.pipelineprocessor.ast.expressions.FieldRefExpression;
+import org.graylog.plugins.pipelineprocessor.ast.expressions.FunctionExpression;
+import org.graylog.plugins.pipelineprocessor.ast.expressions.LogicalChainExpression;
+import org.graylog.plugins.pipelineprocessor.ast.expressions.LongExpression;
+import org.graylog.plugins.pipelineprocessor.ast.expressions.MessageRefExpression;
+import org.graylog.plugins.pipelineprocessor.ast.expressions.OrExpression;
+import org.graylog.plugins.pipelineprocessor.ast.statements.FunctionStatement;
+import org.graylog.plugins.pipelineprocessor.ast.statements.Statement;
+import org.graylog.plugins.pipelineprocessor.ast.statements.VarAssignStatement;
+import org.graylog.plugins.pipelineprocessor.codegen.CodeGenerator;
+import org.graylog.plugins.pipelineprocessor.functions.conversion.StringConversion;
+import org.graylog.plugins.pipelineprocessor.functions.messages.HasField;
+import org.graylog.plugins.pipelineprocessor.functions.messages.SetField;
+import org.graylog2.plugin.Message;
+import org.graylog2.plugin.Tools;
+import org.junit.Test;
+
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class RuleOptimizerTest {
+
+    private final PipelineRuleParser parser = new PipelineRuleParser(
+            new FunctionRegistry(ImmutableMap.of(
+                    HasField.NAME, new HasField(),
+                    SetField.NAME, new SetField(),
+                    StringConversion.NAME, new StringConversion())),
+            new CodeGenerator());
+
+    @Test
+    public void foldsConstantOperators() {
+        final Rule rule = rule("1 + 2 * 3 > 6 && !(1.5d < 1.0d)", "");
+
+        assertThat(rule.when()).isInstanceOf(BooleanExpression.class);
+        assertThat(rule.when().evaluateBool(null)).isTrue();
+    }
+
+    @Test
+    public void removesNeutralOperands() {
+        final Rule rule = rule("true && has_field(\"a\") || false", "");
+
+        assertThat(rule.when()).isInstanceOf(BooleanValuedFunctionWrapper.class);
+    }
+
+    @Test
+    public void removesOperandsWhichAreNeverEvaluated() {
+        final Rule rule = rule("false && has_field(\"a\") || true", "");
+
+        assertThat(rule.when()).isInstanceOf(BooleanExpression.class);
+        assertThat(rule.when().evaluateBool(null)).isTrue();
+    }
+
+    @Test
+    public void keepsOperandsWhichAreEvaluated() {
+        final Rule rule = rule("has_field(\"a\") && false", "");
+
+        assertThat(rule.when()).isInstanceOf(AndExpression.class);
+    }
+
+    @Test
+    public void rebuildsLogicalOperatorsWithOptimizedOperands() {
+        final Rule rule = rule("has_field(\"a\") && to_string(1 + 2) == \"3\"", "");
+
+        assertThat(rule.when()).isInstanceOf(AndExpression.class);
+        final EqualityExpression right = (EqualityExpression) ((AndExpression) rule.when()).right();
+        final FunctionExpression call = (FunctionExpression) right.left();
+        assertThat(call.getArgs().expression("value")).isInstanceOf(LongExpression.class);
+
+        final Message message = new Message("hello", "test", Tools.nowUTC());
+        assertThat(rule.when().evaluateBool(new EvaluationContext(message))).isFalse();
+        message.addField("a", "present");
+        assertThat(rule.when().evaluateBool(new EvaluationContext(message))).isTrue();
+    }
+
+    @Test
+    public void leavesTheOriginalTreeUntouched() {
+        final Token start = new CommonToken(-1);
+        final AdditionExpression sum = new AdditionExpression(start, new LongExpression(start, 1), new LongExpression(start, 2), true);
+        sum.setType(Long.class);
+        final MessageRefExpression field = new MessageRefExpression(start, new FieldRefExpression(start, "a", null));
+        final EqualityExpression equality = new EqualityExpression(start, field, sum, true);
+
+        final Expression optimized = new RuleOptimizer().optimize(equality);
+
+        assertThat(optimized).isNotSameAs(equality).isInstanceOf(EqualityExpression.class);
+        assertThat(((EqualityExpression) optimized).right()).isInstanceOf(LongExpression.class);
+        assertThat(((EqualityExpression) optimized).left()).isSameAs(field);
+        assertThat(equality.right()).isSameAs(sum);
+    }
+
+    @Test
+    public void dropsActionsOfRulesWhichNeverMatch() {
+        final Rule rule = rule("1 > 2 && has_field(\"a\")", "set_field(\"b\", 1);");
+
+        assertThat(rule.when()).isInstanceOf(BooleanExpression.class);
+        assertThat(rule.when().evaluateBool(null)).isFalse();
+        assertThat(rule.then()).isEmpty();
+    }
+
+    @Test
+    public void foldsAssignedValues() {
+        final Rule rule = rule("true", "let answer = 6 * 7;\nset_field(\"answer\", answer);");
+
+        final List<Statement> statements = ImmutableList.copyOf(rule.then());
+        assertThat(statements).hasSize(2);
+        final VarAssignStatement assignment = (VarAssignStatement) statements.get(0);
+        assertThat(assignment.getValueExpression()).isInstanceOf(LongExpression.class);
+        assertThat(assignment.getValueExpression().evaluateUnsafe()).isEqualTo(42L);
+        assertThat(assignment.getSlot()).isEqualTo(0);
+    }
+
+    @Test
+    public void foldsFunctionArguments() {
+        final Rule rule = rule("to_string(1 + 2) == \"3\"", "set_field(\"sum\", to_string(1 + 2));");
+
+        assertThat(rule.when()).isInstanceOf(EqualityExpression.class);
+        final FunctionExpression condition = (FunctionExpression) ((EqualityExpression) rule.when()).left();
+        assertThat(condition.getArgs().expression("value")).isInstanceOf(LongExpression.class);
+        assertThat(condition.getArgs().expression("value").evaluateUnsafe()).isEqualTo(3L);
+
+        final FunctionExpression action = (FunctionExpression) ((FunctionStatement) rule.then().iterator().next()).getFunctionExpression();
+        final FunctionExpression value = (FunctionExpression) action.getArgs().expression("value");
+        assertThat(value.getArgs().expression("value")).isInstanceOf(LongExpression.class);
+
+        final Message message = new Message("hello", "test", Tools.nowUTC());
+        final EvaluationContext context = new EvaluationContext(message);
+        assertThat(rule.when().evaluateBool(context)).isTrue();
+        rule.then().forEach(statement -> statement.evaluate(context));
+        assertThat(message.getField("sum")).isEqualTo("3");
+    }
+
+    @Test
+    public void leavesFailingExpressionsToTheEvaluation() {
+        final Rule rule = rule("1 / 0 > 0", "");
+
+        assertThat(rule.when()).isInstanceOf(ComparisonExpression.class);
+    }
+
+    @Test
+    public void flattensLogicalChains() {
+        final Rule rule = rule("has_field(\"a\") || has_field(\"b\") || (has_field(\"c\") || has_field(\"d\"))", "");
+
+        assertThat(rule.when()).isInstanceOf(LogicalChainExpression.class);
+        final LogicalChainExpression chain = (LogicalChainExpression) rule.when();
+        assertThat(chain.isAnd()).isFalse();
+        assertThat(chain.operands()).hasSize(4);
+
+        final Message message = new Message("hello", "test", Tools.nowUTC());
+        assertThat(chain.evaluateBool(new EvaluationContext(message))).isFalse();
+        message.addField("c", "present");
+        assertThat(chain.evaluateBool(new EvaluationContext(message))).isTrue();
+    }
+
+    @Test
+    public void keepsMixedOperatorsNested() {
+        final Rule rule = rule("has_field(\"a\") && has_field(\"b\") || has_field(\"c\") && has_field(\"d\")", "");
+
+        assertThat(rule.when()).isInstanceOf(OrExpression.class);
+        final OrExpression or = (OrExpression) rule.when();
+        assertThat(or.left()).isInstanceOf(AndExpression.class);
+        assertThat(or.right()).isInstanceOf(AndExpression.class);
+    }
+
+    private Rule rule(String condition, String actions) {
+        return parser.parseRule("rule \"optimized\"\nwhen " + condition + "\nthen\n" + actions + "\nend", true);
+    }
+}
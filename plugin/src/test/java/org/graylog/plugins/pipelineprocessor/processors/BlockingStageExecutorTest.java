@@ -0,0 +1,76 @@
+/**
+ * This file is part of Graylog Pipeline Processor.
+ *
+ * Graylog Pipeline Processor is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Graylog Pipeline Processor is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Graylog Pipeline Processor.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.graylog.plugins.pipelineprocessor.processors;
+
+import com.codahale.metrics.MetricRegistry;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+import org.junit.Test;
+
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+public class BlockingStageExecutorTest {
+
+    @Test
+    public void disabledExecutorRunsOnCallingThreadInOrder() {
+        final BlockingStageExecutor executor = BlockingStageExecutor.disabled();
+        assertThat(executor.isEnabled()).isFalse();
+
+        final Thread caller = Thread.currentThread();
+        final List<Integer> seen = Lists.newArrayList();
+        executor.forEach(ImmutableList.of(1, 2, 3), item -> {
+            assertThat(Thread.currentThread()).isSameAs(caller);
+            seen.add(item);
+        });
+        assertThat(seen).containsExactly(1, 2, 3);
+    }
+
+    @Test
+    public void enabledExecutorRunsTasksOnPool() {
+        final BlockingStageExecutor executor = new BlockingStageExecutor(2, new MetricRegistry());
+        assertThat(executor.isEnabled()).isTrue();
+
+        final Set<Integer> seen = Sets.newConcurrentHashSet();
+        final Set<String> threads = Sets.newConcurrentHashSet();
+        executor.forEach(ImmutableList.of(1, 2, 3, 4), item -> {
+            seen.add(item);
+            threads.add(Thread.currentThread().getName());
+        });
+        assertThat(seen).containsExactlyInAnyOrder(1, 2, 3, 4);
+        assertThat(threads).allMatch(name -> name.startsWith("pipeline-blocking-worker-"));
+    }
+
+    @Test
+    public void waitsForAllTasksBeforeRethrowing() {
+        final BlockingStageExecutor executor = new BlockingStageExecutor(2, new MetricRegistry());
+        final AtomicInteger completed = new AtomicInteger();
+
+        assertThatThrownBy(() -> executor.forEach(ImmutableList.of(1, 2, 3, 4), item -> {
+            if (item == 1) {
+                throw new IllegalStateException("boom");
+            }
+            completed.incrementAndGet();
+        })).isInstanceOf(IllegalStateException.class).hasMessage("boom");
+        assertThat(completed).hasValue(3);
+    }
+}
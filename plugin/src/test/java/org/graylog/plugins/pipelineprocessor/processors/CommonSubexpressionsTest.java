@@ -0,0 +1,173 @@
+/**
+ * This file is part of Graylog Pipeline Processor.
+ *
+ * Graylog Pipeline Processor is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Graylog Pipeline Processor is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Graylog Pipeline Processor.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.graylog.plugins.pipelineprocessor.processors;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import org.graylog.plugins.pipelineprocessor.EvaluationContext;
+import org.graylog.plugins.pipelineprocessor.ast.Rule;
+import org.graylog.plugins.pipelineprocessor.ast.RuleAstBaseListener;
+import org.graylog.plugins.pipelineprocessor.ast.RuleAstWalker;
+import org.graylog.plugins.pipelineprocessor.ast.expressions.FunctionExpression;
+import org.graylog.plugins.pipelineprocessor.ast.functions.AbstractFunction;
+import org.graylog.plugins.pipelineprocessor.ast.functions.FunctionArgs;
+import org.graylog.plugins.pipelineprocessor.ast.functions.FunctionDescriptor;
+import org.graylog.plugins.pipelineprocessor.ast.functions.ParameterDescriptor;
+import org.graylog.plugins.pipelineprocessor.functions.conversion.StringConversion;
+import org.graylog.plugins.pipelineprocessor.parser.PipelineRuleParser;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.graylog.plugins.pipelineprocessor.processors.RuleFixtures.message;
+import static org.graylog.plugins.pipelineprocessor.processors.RuleFixtures.parser;
+
+public class CommonSubexpressionsTest {
+
+    private final AtomicInteger classifications = new AtomicInteger();
+
+    private final PipelineRuleParser parser = parser(ImmutableMap.of(
+            StringConversion.NAME, new StringConversion(),
+            "classify", new Classify(),
+            "tag", new Tag()));
+
+    @Test
+    public void assignsSlotsToRepeatedCalls() {
+        final Rule first = rule("first", "classify(to_string($message.device)) == \"firewall\"");
+        final Rule second = rule("second", "classify(to_string($message.device)) == \"router\"");
+        final Rule other = rule("other", "classify(to_string($message.other)) == \"router\"");
+
+        final CommonSubexpressions cse = CommonSubexpressions.analyze(ImmutableList.of(first, second, other));
+        assertThat(cse).isNotNull();
+        // classify and to_string of the device field
+        assertThat(cse.size()).isEqualTo(2);
+
+        final FunctionExpression firstCall = calls(first, "classify").get(0);
+        final FunctionExpression secondCall = calls(second, "classify").get(0);
+        assertThat(cse.slotOf(firstCall)).isGreaterThanOrEqualTo(0).isEqualTo(cse.slotOf(secondCall));
+        assertThat(cse.slotOf(calls(first, StringConversion.NAME).get(0)))
+                .isEqualTo(cse.slotOf(calls(second, StringConversion.NAME).get(0)))
+                .isNotEqualTo(cse.slotOf(firstCall));
+        assertThat(cse.slotOf(calls(other, "classify").get(0))).isEqualTo(-1);
+    }
+
+    @Test
+    public void noSlotsWithoutRepeatedCalls() {
+        final List<Rule> rules = ImmutableList.of(
+                rule("first", "classify(to_string($message.device)) == \"firewall\""),
+                rule("second", "classify(\"device\") == \"firewall\""));
+
+        assertThat(CommonSubexpressions.analyze(rules)).isNull();
+    }
+
+    @Test
+    public void noSlotsIfConditionCallsImpureFunction() {
+        // tag changes the message although it returns a value, a later call must not reuse an earlier value
+        final List<Rule> rules = ImmutableList.of(
+                rule("first", "classify(to_string($message.device)) == \"firewall\""),
+                rule("tagging", "tag(\"device\")"),
+                rule("second", "classify(to_string($message.device)) == \"router\""));
+
+        assertThat(CommonSubexpressions.analyze(rules)).isNull();
+    }
+
+    @Test
+    public void evaluatesSharedCallsOncePerMessage() {
+        final Rule first = rule("first", "classify(to_string($message.device)) == \"firewall\"");
+        final Rule second = rule("second", "classify(to_string($message.device)) == \"router\"");
+        final CommonSubexpressions cse = CommonSubexpressions.analyze(ImmutableList.of(first, second));
+
+        final EvaluationContext context = new EvaluationContext(message("device", "fw01"));
+        context.setCommonSubexpressions(cse);
+        assertThat(first.when().evaluateBool(context)).isTrue();
+        assertThat(second.when().evaluateBool(context)).isFalse();
+        assertThat(classifications.get()).isEqualTo(1);
+
+        context.reset(message("device", "rt01"));
+        context.setCommonSubexpressions(cse);
+        assertThat(first.when().evaluateBool(context)).isFalse();
+        assertThat(second.when().evaluateBool(context)).isTrue();
+        assertThat(classifications.get()).isEqualTo(2);
+
+        // without the shared values every call is evaluated
+        context.setCommonSubexpressions(null);
+        first.when().evaluateBool(context);
+        second.when().evaluateBool(context);
+        assertThat(classifications.get()).isEqualTo(4);
+    }
+
+    private Rule rule(String name, String condition) {
+        return RuleFixtures.rule(parser, name, condition);
+    }
+
+    private static List<FunctionExpression> calls(Rule rule, String name) {
+        final List<FunctionExpression> calls = new ArrayList<>();
+        new RuleAstWalker().walk(new RuleAstBaseListener() {
+            @Override
+            public void enterFunctionCall(FunctionExpression expr) {
+                if (expr.getFunction().descriptor().name().equals(name)) {
+                    calls.add(expr);
+                }
+            }
+        }, rule);
+        return calls;
+    }
+
+    private class Classify extends AbstractFunction<String> {
+        private final ParameterDescriptor<String, String> valueParam = ParameterDescriptor.string("value").build();
+
+        @Override
+        public String evaluate(FunctionArgs args, EvaluationContext context) {
+            classifications.incrementAndGet();
+            final String value = valueParam.required(args, context);
+            return value != null && value.startsWith("fw") ? "firewall" : "router";
+        }
+
+        @Override
+        public FunctionDescriptor<String> descriptor() {
+            return FunctionDescriptor.<String>builder()
+                    .name("classify")
+                    .pure(true)
+                    .params(valueParam)
+                    .returnType(String.class)
+                    .build();
+        }
+    }
+
+    private static class Tag extends AbstractFunction<Boolean> {
+        private final ParameterDescriptor<String, String> fieldParam = ParameterDescriptor.string("field").build();
+
+        @Override
+        public Boolean evaluate(FunctionArgs args, EvaluationContext context) {
+            context.currentMessage().addField(fieldParam.required(args, context), "tagged");
+            return true;
+        }
+
+        @Override
+        public FunctionDescriptor<Boolean> descriptor() {
+            return FunctionDescriptor.<Boolean>builder()
+                    .name("tag")
+                    .pure(false)
+                    .params(fieldParam)
+                    .returnType(Boolean.class)
+                    .build();
+        }
+    }
+}
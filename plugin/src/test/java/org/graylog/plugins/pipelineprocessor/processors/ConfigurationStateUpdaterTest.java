@@ -74,6 +74,8 @@ public class ConfigurationStateUpdaterTest {
                 new SchedulerBindings(),
                 binder -> binder.install(new FactoryModuleBuilder().build(PipelineInterpreter.State.Factory.class)),
                 binder -> binder.bindConstant().annotatedWith(Names.named("generate_native_code")).to(true),
+                binder -> binder.bindConstant().annotatedWith(Names.named("pipeline_rule_compilation_threshold")).to(10000),
+                binder -> binder.bindConstant().annotatedWith(Names.named("pipeline_reload_parallelism")).to(4),
                 binder -> binder.bindConstant().annotatedWith(Names.named("cached_stageiterators")).to(true),
                 binder -> binder.bindConstant().annotatedWith(Names.named("processbuffer_processors")).to(1),
                 binder -> binder.bind(StreamService.class).to(DummyStreamService.class),
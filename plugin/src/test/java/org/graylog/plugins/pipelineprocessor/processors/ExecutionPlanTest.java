@@ -0,0 +1,100 @@
+/**
+ * This file is part of Graylog Pipeline Processor.
+ *
+ * Graylog Pipeline Processor is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Graylog Pipeline Processor is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Graylog Pipeline Processor.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.graylog.plugins.pipelineprocessor.processors;
+
+import com.codahale.metrics.MetricRegistry;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.ImmutableSetMultimap;
+import com.google.common.collect.ImmutableSortedSet;
+import org.graylog.plugins.pipelineprocessor.ast.Pipeline;
+import org.graylog.plugins.pipelineprocessor.ast.Stage;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class ExecutionPlanTest {
+
+    @Test
+    public void flattensStagesOrderedByStageNumber() {
+        final Pipeline first = pipeline("first", 0, 10);
+        final Pipeline second = pipeline("second", 5, 10);
+
+        final ExecutionPlan plan = new ExecutionPlan(ImmutableSet.of("s1"), ImmutableSet.of(first, second));
+        final ExecutionPlan.StageSlice[] slices = plan.stageSlices();
+
+        assertThat(slices).hasSize(4);
+        assertThat(slices).extracting(slice -> slice.stage().stage()).containsExactly(0, 5, 10, 10);
+        assertThat(slices).extracting(ExecutionPlan.StageSlice::pipeline).containsExactly(first, second, first, second);
+        assertThat(slices).extracting(ExecutionPlan.StageSlice::pipelineIndex).containsExactly(0, 1, 0, 1);
+        assertThat(plan.streamIds()).containsExactly("s1");
+    }
+
+    @Test
+    public void emptyPlan() {
+        final ExecutionPlan plan = new ExecutionPlan(ImmutableSet.of(), ImmutableSet.of(Pipeline.empty("empty")));
+
+        assertThat(plan.isEmpty()).isFalse();
+        assertThat(plan.stageSlices()).isEmpty();
+        assertThat(ExecutionPlan.empty().isEmpty()).isTrue();
+    }
+
+    @Test
+    public void stateCachesPlansPerStreamSignature() {
+        final Pipeline p1 = pipeline("p1", 0);
+        final Pipeline p2 = pipeline("p2", 0);
+        final PipelineInterpreter.State state = new PipelineInterpreter.State(
+                ImmutableMap.of("p1", p1, "p2", p2),
+                ImmutableSetMultimap.of("s1", p1, "s2", p2),
+                new MetricRegistry(), 1, true);
+
+        final BitSet both = new BitSet();
+        both.set(state.getStreamOrdinal("s1"));
+        both.set(state.getStreamOrdinal("s2"));
+        final BitSet sameStreams = (BitSet) both.clone();
+        final BitSet onlyFirst = new BitSet();
+        onlyFirst.set(state.getStreamOrdinal("s1"));
+
+        final ExecutionPlan plan = state.getExecutionPlan(both);
+        assertThat(plan.pipelines()).containsExactlyInAnyOrder(p1, p2);
+        assertThat(plan.streamIds()).containsExactlyInAnyOrder("s1", "s2");
+        assertThat(state.getExecutionPlan(sameStreams)).isSameAs(plan);
+        assertThat(state.getExecutionPlan(onlyFirst).pipelines()).containsExactly(p1);
+        assertThat(state.getExecutionPlan(new BitSet()).isEmpty()).isTrue();
+    }
+
+    private static Pipeline pipeline(String name, int... stageNumbers) {
+        final List<Stage> stages = new ArrayList<>();
+        for (int stageNumber : stageNumbers) {
+            stages.add(Stage.builder()
+                    .stage(stageNumber)
+                    .matchAll(true)
+                    .ruleReferences(Collections.emptyList())
+                    .build());
+        }
+        return Pipeline.builder()
+                .name(name)
+                .stages(ImmutableSortedSet.copyOf(stages))
+                .build()
+                .withId(name);
+    }
+}
@@ -0,0 +1,81 @@
+/**
+ * This file is part of Graylog Pipeline Processor.
+ *
+ * Graylog Pipeline Processor is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Graylog Pipeline Processor is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Graylog Pipeline Processor.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.graylog.plugins.pipelineprocessor.processors;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import org.graylog.plugins.pipelineprocessor.ast.Rule;
+import org.graylog.plugins.pipelineprocessor.functions.messages.HasField;
+import org.graylog.plugins.pipelineprocessor.parser.PipelineRuleParser;
+import org.graylog2.plugin.Message;
+import org.graylog2.plugin.Tools;
+import org.junit.Test;
+
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.graylog.plugins.pipelineprocessor.processors.RuleFixtures.bits;
+import static org.graylog.plugins.pipelineprocessor.processors.RuleFixtures.parser;
+
+public class FieldPresenceFilterTest {
+
+    private final PipelineRuleParser parser = parser(ImmutableMap.of(HasField.NAME, new HasField()));
+
+    @Test
+    public void derivesRequiredFieldsOfConjuncts() {
+        assertThat(rule("has_field(\"dst_ip\") && $message.action == \"deny\"").requiredFields())
+                .containsExactlyInAnyOrder("dst_ip", "action");
+        assertThat(rule("has_field(\"a\") && has_field(\"b\") && has_field(\"c\")").requiredFields())
+                .containsExactlyInAnyOrder("a", "b", "c");
+    }
+
+    @Test
+    public void ignoresTestsWhichCanBeTrueWithoutTheField() {
+        assertThat(rule("has_field(\"a\") || has_field(\"b\")").requiredFields()).isEmpty();
+        assertThat(rule("!has_field(\"a\")").requiredFields()).isEmpty();
+        assertThat(rule("$message.action != \"deny\"").requiredFields()).isEmpty();
+    }
+
+    @Test
+    public void selectsRulesLackingRequiredFields() {
+        final List<Rule> rules = ImmutableList.of(
+                rule("has_field(\"dst_ip\")"),
+                rule("has_field(\"src_ip\") && $message.action == \"deny\""),
+                rule("true"));
+
+        final FieldPresenceFilter filter = FieldPresenceFilter.build(rules);
+        assertThat(filter).isNotNull();
+        assertThat(filter.fieldCount()).isEqualTo(3);
+
+        final Message message = new Message("message", "source", Tools.nowUTC());
+        assertThat(filter.nonMatchingRules(message)).isEqualTo(bits(0, 1));
+        message.addField("dst_ip", "10.0.0.1");
+        message.addField("src_ip", "10.0.0.2");
+        assertThat(filter.nonMatchingRules(message)).isEqualTo(bits(1));
+        message.addField("action", "deny");
+        assertThat(filter.nonMatchingRules(message)).isEmpty();
+    }
+
+    @Test
+    public void noFilterWithoutRequiredFields() {
+        assertThat(FieldPresenceFilter.build(ImmutableList.of(rule("true")))).isNull();
+    }
+
+    private Rule rule(String condition) {
+        return RuleFixtures.rule(parser, "required fields", condition);
+    }
+}
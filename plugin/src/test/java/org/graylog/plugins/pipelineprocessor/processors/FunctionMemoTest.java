@@ -0,0 +1,140 @@
+/**
+ * This file is part of Graylog Pipeline Processor.
+ *
+ * Graylog Pipeline Processor is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Graylog Pipeline Processor is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Graylog Pipeline Processor.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.graylog.plugins.pipelineprocessor.processors;
+
+import com.codahale.metrics.MetricRegistry;
+import org.joda.time.DateTime;
+import org.junit.Test;
+
+import java.util.Collections;
+
+import static com.codahale.metrics.MetricRegistry.name;
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class FunctionMemoTest {
+
+    private final MetricRegistry metricRegistry = new MetricRegistry();
+    private final FunctionMemo memo = new FunctionMemo(new FunctionMemo.Statistics(metricRegistry));
+
+    @Test
+    public void remembersResultsPerFunctionAndArguments() {
+        assertThat(lookup("to_long", "42")).isNull();
+        remember("to_long", 42L, false, "42");
+        remember("to_long", null, false, "43");
+
+        assertThat(lookup("to_long", "42").value()).isEqualTo(42L);
+        assertThat(lookup("to_long", "43").value()).isNull();
+        assertThat(lookup("to_double", "42")).isNull();
+        assertThat(lookup("to_long", "42", FunctionMemo.absentArgument())).isNull();
+
+        assertThat(metricRegistry.meter(name(PipelineInterpreter.class, "memo", "to_long", "hits")).getCount()).isEqualTo(2L);
+        assertThat(metricRegistry.meter(name(PipelineInterpreter.class, "memo", "to_long", "misses")).getCount()).isEqualTo(2L);
+        assertThat(metricRegistry.meter(name(PipelineInterpreter.class, "memo", "to_double", "misses")).getCount()).isEqualTo(1L);
+    }
+
+    @Test
+    public void onlyTheGivenNumberOfArgumentsIsPartOfTheKey() {
+        final FunctionMemo.Counters counters = memo.counters("to_long");
+        final Object[] arguments = memo.acquireArguments(1);
+        arguments[0] = "42";
+        memo.remember(counters, arguments, 1, 42L, false);
+        memo.releaseArguments(arguments, 1);
+
+        // the remembered arguments are a copy, the storage is reused for the next call
+        final Object[] reused = memo.acquireArguments(1);
+        assertThat(reused).isSameAs(arguments).containsOnlyNulls();
+        reused[0] = "42";
+        assertThat(reused.length).isGreaterThan(1);
+        assertThat(memo.lookup(counters, reused, 1).value()).isEqualTo(42L);
+        memo.releaseArguments(reused, 1);
+    }
+
+    @Test
+    public void nestedCallsGetTheirOwnArguments() {
+        final Object[] outer = memo.acquireArguments(2);
+        final Object[] inner = memo.acquireArguments(8);
+        assertThat(inner).isNotSameAs(outer).hasSize(8);
+        memo.releaseArguments(inner, 8);
+        memo.releaseArguments(outer, 2);
+
+        assertThat(memo.acquireArguments(2)).isSameAs(outer);
+    }
+
+    @Test
+    public void countersAreResolvedOncePerFunction() {
+        final FunctionMemo.Counters counters = memo.counters("to_long");
+
+        assertThat(memo.counters("to_long")).isSameAs(counters);
+        assertThat(counters.belongTo(memo)).isTrue();
+        assertThat(counters.belongTo(new FunctionMemo(new FunctionMemo.Statistics(new MetricRegistry())))).isFalse();
+    }
+
+    @Test
+    public void messageChangesOnlyForgetResultsReadingTheMessage() {
+        remember("has_field", true, true, "a", FunctionMemo.absentArgument());
+        remember("to_long", 42L, false, "42");
+
+        memo.messageChanged();
+
+        assertThat(lookup("has_field", "a", FunctionMemo.absentArgument())).isNull();
+        assertThat(lookup("to_long", "42")).isNotNull();
+    }
+
+    @Test
+    public void clearForgetsEverything() {
+        remember("to_long", 42L, false, "42");
+        memo.messageChanged();
+
+        memo.clear();
+
+        assertThat(memo.size()).isZero();
+        assertThat(memo.epoch()).isZero();
+        assertThat(lookup("to_long", "42")).isNull();
+    }
+
+    @Test
+    public void evictsLeastRecentlyUsedResults() {
+        remember("to_long", 0L, false, "0");
+        for (int i = 1; i <= FunctionMemo.MAX_ENTRIES; i++) {
+            // keep the first result in use
+            lookup("to_long", "0");
+            remember("to_long", (long) i, false, String.valueOf(i));
+        }
+
+        assertThat(memo.size()).isEqualTo(FunctionMemo.MAX_ENTRIES);
+        assertThat(lookup("to_long", "0")).isNotNull();
+        assertThat(lookup("to_long", "1")).isNull();
+    }
+
+    @Test
+    public void onlyImmutableValuesAreKeys() {
+        assertThat(FunctionMemo.isKeyable(null)).isTrue();
+        assertThat(FunctionMemo.isKeyable("string")).isTrue();
+        assertThat(FunctionMemo.isKeyable(1L)).isTrue();
+        assertThat(FunctionMemo.isKeyable(DateTime.now())).isTrue();
+        assertThat(FunctionMemo.isKeyable(Collections.emptyMap())).isFalse();
+        assertThat(FunctionMemo.isKeyable(new StringBuilder())).isFalse();
+    }
+
+    private FunctionMemo.Memoized lookup(String function, Object... arguments) {
+        return memo.lookup(memo.counters(function), arguments, arguments.length);
+    }
+
+    private void remember(String function, Object value, boolean readsMessage, Object... arguments) {
+        memo.remember(memo.counters(function), arguments, arguments.length, value, readsMessage);
+    }
+}
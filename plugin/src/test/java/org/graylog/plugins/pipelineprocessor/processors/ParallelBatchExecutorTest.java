@@ -0,0 +1,91 @@
+/**
+ * This file is part of Graylog Pipeline Processor.
+ *
+ * Graylog Pipeline Processor is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Graylog Pipeline Processor is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Graylog Pipeline Processor.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.graylog.plugins.pipelineprocessor.processors;
+
+import com.codahale.metrics.MetricRegistry;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+import org.junit.Test;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+public class ParallelBatchExecutorTest {
+
+    @Test
+    public void sequentialExecutorNeverSplits() {
+        final ParallelBatchExecutor executor = ParallelBatchExecutor.sequential();
+        assertThat(executor.isEnabled()).isFalse();
+        assertThat(executor.shouldSplit(10_000)).isFalse();
+
+        final List<List<Integer>> chunks = Lists.newArrayList();
+        final List<Integer> result = executor.process(ImmutableList.of(1, 2, 3), chunk -> {
+            chunks.add(chunk);
+            return chunk;
+        });
+        assertThat(result).containsExactly(1, 2, 3);
+        assertThat(chunks).hasSize(1);
+    }
+
+    @Test
+    public void smallBatchesStayOnCallingThread() {
+        final ParallelBatchExecutor executor = new ParallelBatchExecutor(4, 10, new MetricRegistry());
+        assertThat(executor.shouldSplit(9)).isFalse();
+        assertThat(executor.shouldSplit(10)).isTrue();
+
+        final Thread caller = Thread.currentThread();
+        executor.process(ImmutableList.of(1, 2, 3), chunk -> {
+            assertThat(Thread.currentThread()).isSameAs(caller);
+            return chunk;
+        });
+    }
+
+    @Test
+    public void resultsKeepInputOrder() {
+        final ParallelBatchExecutor executor = new ParallelBatchExecutor(4, 2, new MetricRegistry());
+        final List<Integer> input = IntStream.range(0, 1000).boxed().collect(Collectors.toList());
+        final Set<Integer> chunkSizes = Sets.newConcurrentHashSet();
+
+        final List<String> result = executor.process(input, chunk -> {
+            chunkSizes.add(chunk.size());
+            return chunk.stream().map(String::valueOf).collect(Collectors.toList());
+        });
+
+        assertThat(result).containsExactlyElementsOf(input.stream().map(String::valueOf).collect(Collectors.toList()));
+        assertThat(chunkSizes).containsOnly(250);
+    }
+
+    @Test
+    public void chunkExceptionsArePropagated() {
+        final ParallelBatchExecutor executor = new ParallelBatchExecutor(2, 2, new MetricRegistry());
+        final List<Integer> input = IntStream.range(0, 10).boxed().collect(Collectors.toList());
+
+        assertThatThrownBy(() -> executor.process(input, chunk -> {
+            if (chunk.contains(7)) {
+                throw new IllegalStateException("boom");
+            }
+            return Collections.<Integer>emptyList();
+        })).isInstanceOf(IllegalStateException.class).hasMessageContaining("boom");
+    }
+}
@@ -20,14 +20,22 @@ import com.codahale.metrics.Meter;
 import com.codahale.metrics.MetricRegistry;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.ImmutableSetMultimap;
 import com.google.common.collect.Iterables;
+import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
 import com.google.common.eventbus.EventBus;
+import com.google.common.util.concurrent.Uninterruptibles;
+import org.graylog.plugins.pipelineprocessor.EvaluationContext;
 import org.graylog.plugins.pipelineprocessor.ast.Pipeline;
 import org.graylog.plugins.pipelineprocessor.ast.Rule;
+import org.graylog.plugins.pipelineprocessor.ast.functions.AbstractFunction;
 import org.graylog.plugins.pipelineprocessor.ast.functions.Function;
+import org.graylog.plugins.pipelineprocessor.ast.functions.FunctionArgs;
+import org.graylog.plugins.pipelineprocessor.ast.functions.FunctionDescriptor;
+import org.graylog.plugins.pipelineprocessor.ast.functions.ParameterDescriptor;
 import org.graylog.plugins.pipelineprocessor.codegen.CodeGenerator;
-import org.graylog.plugins.pipelineprocessor.codegen.compiler.JavaCompiler;
 import org.graylog.plugins.pipelineprocessor.db.PipelineDao;
 import org.graylog.plugins.pipelineprocessor.db.PipelineService;
 import org.graylog.plugins.pipelineprocessor.db.PipelineStreamConnectionsService;
@@ -40,14 +48,20 @@ import org.graylog.plugins.pipelineprocessor.db.mongodb.MongoDbPipelineService;
 import org.graylog.plugins.pipelineprocessor.db.mongodb.MongoDbPipelineStreamConnectionsService;
 import org.graylog.plugins.pipelineprocessor.db.mongodb.MongoDbRuleService;
 import org.graylog.plugins.pipelineprocessor.functions.conversion.StringConversion;
+import org.graylog.plugins.pipelineprocessor.functions.lookup.LookupValue;
 import org.graylog.plugins.pipelineprocessor.functions.messages.CreateMessage;
+import org.graylog.plugins.pipelineprocessor.functions.messages.DropMessage;
+import org.graylog.plugins.pipelineprocessor.functions.messages.HasField;
 import org.graylog.plugins.pipelineprocessor.functions.messages.SetField;
 import org.graylog.plugins.pipelineprocessor.parser.FunctionRegistry;
 import org.graylog.plugins.pipelineprocessor.parser.PipelineRuleParser;
 import org.graylog.plugins.pipelineprocessor.rest.PipelineConnections;
+import org.graylog2.lookup.LookupTableService;
 import org.graylog2.plugin.Message;
+import org.graylog2.plugin.MessageCollection;
 import org.graylog2.plugin.Messages;
 import org.graylog2.plugin.Tools;
+import org.graylog2.plugin.lookup.LookupResult;
 import org.graylog2.plugin.streams.Stream;
 import org.graylog2.shared.journal.Journal;
 import org.junit.Test;
@@ -56,13 +70,20 @@ import java.util.Collections;
 import java.util.List;
 import java.util.Map;
 import java.util.SortedMap;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static com.codahale.metrics.MetricRegistry.name;
 import static org.assertj.core.api.Assertions.assertThat;
 import static org.graylog2.plugin.streams.Stream.DEFAULT_STREAM_ID;
 import static org.junit.Assert.assertEquals;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.RETURNS_DEEP_STUBS;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 public class PipelineInterpreterTest {
@@ -245,28 +266,720 @@ public class PipelineInterpreterTest {
         assertThat(actualMessage.hasField("foobar")).isFalse();
     }
 
+    @Test
+    public void testBatchKeepsStageResultsPerMessage() {
+        final RuleService ruleService = mock(MongoDbRuleService.class);
+        when(ruleService.loadAll()).thenReturn(ImmutableList.of(RULE_ADD_FOOBAR,
+                RuleDao.create("has_foo", "has_foo", "has_foo",
+                        "rule \"has_foo\"\n" +
+                                "when has_field(\"foo\")\n" +
+                                "then\n" +
+                                "end", null, null)));
+
+        final PipelineService pipelineService = mock(MongoDbPipelineService.class);
+        when(pipelineService.loadAll()).thenReturn(Collections.singleton(
+                PipelineDao.create("p1", "title", "description",
+                        "pipeline \"pipeline\"\n" +
+                                "stage 0 match either\n" +
+                                "    rule \"has_foo\";\n" +
+                                "stage 1 match either\n" +
+                                "    rule \"add_foobar\";\n" +
+                                "end\n",
+                        Tools.nowUTC(),
+                        null)
+        ));
+
+        final Map<String, Function<?>> functions = ImmutableMap.of(
+                SetField.NAME, new SetField(),
+                HasField.NAME, new HasField());
+        final PipelineInterpreter interpreter = createPipelineInterpreter(ruleService, pipelineService, functions);
+
+        final Message first = messageInDefaultStream("first", "test");
+        first.addField("foo", "bar");
+        final Message second = messageInDefaultStream("second", "test");
+        final Message third = messageInDefaultStream("third", "test");
+        third.addField("foo", "bar");
+
+        final Messages processed = interpreter.process(new MessageCollection(ImmutableList.of(first, second, third)));
+
+        final List<Message> messages = ImmutableList.copyOf(processed);
+        assertThat(messages).containsExactly(first, second, third);
+        assertThat(first.getFieldAs(String.class, "foobar")).isEqualTo("covfefe");
+        assertThat(second.hasField("foobar")).isFalse();
+        assertThat(third.getFieldAs(String.class, "foobar")).isEqualTo("covfefe");
+    }
+
+    @Test
+    public void testStateAssignsStreamOrdinals() {
+        final Pipeline p1 = Pipeline.empty("p1").withId("p1");
+        final Pipeline p2 = Pipeline.empty("p2").withId("p2");
+        final PipelineInterpreter.State state = new PipelineInterpreter.State(
+                ImmutableMap.of("p1", p1, "p2", p2),
+                ImmutableSetMultimap.of("s1", p1, "s2", p1, "s2", p2),
+                new MetricRegistry(), 1, true);
+
+        assertThat(state.getConnectedStreamCount()).isEqualTo(2);
+        assertThat(state.getStreamOrdinal("unconnected")).isEqualTo(-1);
+
+        final int s1 = state.getStreamOrdinal("s1");
+        final int s2 = state.getStreamOrdinal("s2");
+        assertThat(s1).isNotEqualTo(s2).isBetween(0, 1);
+        assertThat(state.getStreamId(s2)).isEqualTo("s2");
+        assertThat(state.getPipelinesForStream(s1)).containsExactly(p1);
+        assertThat(state.getPipelinesForStream(s2)).containsExactlyInAnyOrder(p1, p2);
+    }
+
+    @Test
+    public void testMessagesOnUnconnectedStreamsArePassedThrough() {
+        final RuleService ruleService = mock(MongoDbRuleService.class);
+        when(ruleService.loadAll()).thenReturn(ImmutableList.of(RULE_ADD_FOOBAR));
+
+        final PipelineService pipelineService = mock(MongoDbPipelineService.class);
+        when(pipelineService.loadAll()).thenReturn(Collections.singleton(
+                PipelineDao.create("p1", "title", "description",
+                        "pipeline \"pipeline\"\n" +
+                                "stage 0 match either\n" +
+                                "    rule \"add_foobar\";\n" +
+                                "end\n",
+                        Tools.nowUTC(),
+                        null)
+        ));
+
+        final MetricRegistry metricRegistry = new MetricRegistry();
+        final Map<String, Function<?>> functions = ImmutableMap.of(SetField.NAME, new SetField());
+        final PipelineInterpreter interpreter = createPipelineInterpreter(ruleService, pipelineService, functions, metricRegistry);
+
+        final Message unconnected = new Message("unconnected", "test", Tools.nowUTC());
+        final Stream otherStream = mock(Stream.class);
+        when(otherStream.getId()).thenReturn("other-stream");
+        unconnected.addStream(otherStream);
+
+        final Messages onlyUnconnected = new MessageCollection(ImmutableList.of(unconnected));
+        assertThat(interpreter.process(onlyUnconnected)).isSameAs(onlyUnconnected);
+        assertThat(unconnected.hasField("foobar")).isFalse();
+
+        final Message connected = messageInDefaultStream("connected", "test");
+        final List<Message> processed = ImmutableList.copyOf(
+                interpreter.process(new MessageCollection(ImmutableList.of(unconnected, connected))));
+        assertThat(processed).containsExactly(unconnected, connected);
+        assertThat(unconnected.hasField("foobar")).isFalse();
+        assertThat(connected.getFieldAs(String.class, "foobar")).isEqualTo("covfefe");
+
+        assertThat(metricRegistry.meter(name(PipelineInterpreter.class, "passThroughMessages")).getCount()).isEqualTo(2L);
+    }
+
+    @Test
+    public void testParallelBatchKeepsMessageOrder() {
+        final RuleService ruleService = mock(MongoDbRuleService.class);
+        when(ruleService.loadAll()).thenReturn(ImmutableList.of(RULE_ADD_FOOBAR,
+                RuleDao.create("drop_odd", "drop_odd", "drop_odd",
+                        "rule \"drop_odd\"\n" +
+                                "when has_field(\"odd\")\n" +
+                                "then\n" +
+                                "  drop_message();\n" +
+                                "end", null, null)));
+
+        final PipelineService pipelineService = mock(MongoDbPipelineService.class);
+        when(pipelineService.loadAll()).thenReturn(Collections.singleton(
+                PipelineDao.create("p1", "title", "description",
+                        "pipeline \"pipeline\"\n" +
+                                "stage 0 match either\n" +
+                                "    rule \"add_foobar\";\n" +
+                                "    rule \"drop_odd\";\n" +
+                                "end\n",
+                        Tools.nowUTC(),
+                        null)
+        ));
+
+        final Map<String, Function<?>> functions = ImmutableMap.of(
+                SetField.NAME, new SetField(),
+                HasField.NAME, new HasField(),
+                DropMessage.NAME, new DropMessage());
+        final MetricRegistry metricRegistry = new MetricRegistry();
+        final ParallelBatchExecutor batchExecutor = new ParallelBatchExecutor(4, 2, metricRegistry);
+        final PipelineInterpreter interpreter = createPipelineInterpreter(ruleService, pipelineService, functions,
+                metricRegistry, batchExecutor);
+
+        final List<Message> batch = Lists.newArrayList();
+        for (int i = 0; i < 100; i++) {
+            final Message message = messageInDefaultStream("message " + i, "test");
+            if (i % 2 == 1) {
+                message.addField("odd", true);
+            }
+            batch.add(message);
+        }
+
+        final List<Message> processed = ImmutableList.copyOf(interpreter.process(new MessageCollection(batch)));
+
+        assertThat(processed).containsExactlyElementsOf(batch);
+        for (int i = 0; i < processed.size(); i++) {
+            final Message message = processed.get(i);
+            assertThat(message.getFieldAs(String.class, "foobar")).isEqualTo("covfefe");
+            assertThat(message.getFilterOut()).isEqualTo(i % 2 == 1);
+        }
+        assertThat(metricRegistry.meter(name(PipelineInterpreter.class, "parallelBatches")).getCount()).isEqualTo(1L);
+    }
+
+    @Test
+    public void testBlockingStagesEvaluateBatchConcurrently() {
+        final int batchSize = 4;
+        final CountDownLatch allWaiting = new CountDownLatch(batchSize);
+        final Function<String> slowLookup = new AbstractFunction<String>() {
+            private final ParameterDescriptor<String, String> keyParam = ParameterDescriptor.string("key").build();
+
+            @Override
+            public String evaluate(FunctionArgs args, EvaluationContext context) {
+                allWaiting.countDown();
+                // only resolves if the lookups of all messages are in flight at the same time
+                final boolean concurrent = Uninterruptibles.awaitUninterruptibly(allWaiting, 5, TimeUnit.SECONDS);
+                return concurrent ? "resolved " + keyParam.required(args, context) : "timed out";
+            }
+
+            @Override
+            public FunctionDescriptor<String> descriptor() {
+                return FunctionDescriptor.<String>builder()
+                        .name("slow_lookup")
+                        .params(keyParam)
+                        .returnType(String.class)
+                        .blocking(true)
+                        .build();
+            }
+        };
+
+        final RuleService ruleService = mock(MongoDbRuleService.class);
+        when(ruleService.loadAll()).thenReturn(ImmutableList.of(
+                RuleDao.create("enrich", "enrich", "enrich",
+                        "rule \"enrich\"\n" +
+                                "when true\n" +
+                                "then\n" +
+                                "  set_field(\"resolved\", slow_lookup(to_string($message.message)));\n" +
+                                "end", null, null)));
+
+        final PipelineService pipelineService = mock(MongoDbPipelineService.class);
+        when(pipelineService.loadAll()).thenReturn(Collections.singleton(
+                PipelineDao.create("p1", "title", "description",
+                        "pipeline \"pipeline\"\n" +
+                                "stage 0 match either\n" +
+                                "    rule \"enrich\";\n" +
+                                "end\n",
+                        Tools.nowUTC(),
+                        null)
+        ));
+
+        final Map<String, Function<?>> functions = ImmutableMap.of(
+                SetField.NAME, new SetField(),
+                StringConversion.NAME, new StringConversion(),
+                "slow_lookup", slowLookup);
+        final MetricRegistry metricRegistry = new MetricRegistry();
+        final PipelineInterpreter interpreter = createPipelineInterpreter(ruleService, pipelineService, functions,
+                metricRegistry, ParallelBatchExecutor.sequential(), new BlockingStageExecutor(batchSize, metricRegistry));
+
+        final List<Message> batch = Lists.newArrayList();
+        for (int i = 0; i < batchSize; i++) {
+            batch.add(messageInDefaultStream("message " + i, "test"));
+        }
+
+        final List<Message> processed = ImmutableList.copyOf(interpreter.process(new MessageCollection(batch)));
+
+        assertThat(processed).containsExactlyElementsOf(batch);
+        for (Message message : processed) {
+            assertThat(message.getFieldAs(String.class, "resolved")).isEqualTo("resolved " + message.getMessage());
+        }
+        assertThat(metricRegistry.timer(name(PipelineInterpreter.class, "blocking-calls", "slow_lookup")).getCount())
+                .isEqualTo(batchSize);
+    }
+
+    @Test
+    public void testLookupsAreResolvedOncePerBatch() {
+        final LookupTableService lookupTableService = mock(LookupTableService.class, RETURNS_DEEP_STUBS);
+        final LookupTableService.Function owners = mock(LookupTableService.Function.class);
+        when(owners.lookup(any())).thenAnswer(invocation -> LookupResult.single("owner of " + invocation.getArguments()[0]));
+        when(lookupTableService.newBuilder().lookupTable("owners").build()).thenReturn(owners);
+
+        final RuleService ruleService = mock(MongoDbRuleService.class);
+        when(ruleService.loadAll()).thenReturn(ImmutableList.of(
+                RuleDao.create("owner", "owner", "owner",
+                        "rule \"owner\"\n" +
+                                "when has_field(\"host\")\n" +
+                                "then\n" +
+                                "  set_field(\"owner\", lookup_value(\"owners\", $message.host));\n" +
+                                "end", null, null)));
+
+        final PipelineService pipelineService = mock(MongoDbPipelineService.class);
+        when(pipelineService.loadAll()).thenReturn(Collections.singleton(
+                PipelineDao.create("p1", "title", "description",
+                        "pipeline \"pipeline\"\n" +
+                                "stage 0 match either\n" +
+                                "    rule \"owner\";\n" +
+                                "end\n",
+                        Tools.nowUTC(),
+                        null)
+        ));
+
+        final Map<String, Function<?>> functions = ImmutableMap.of(
+                SetField.NAME, new SetField(),
+                HasField.NAME, new HasField(),
+                LookupValue.NAME, new LookupValue(lookupTableService));
+        final MetricRegistry metricRegistry = new MetricRegistry();
+        final PipelineInterpreter interpreter = createPipelineInterpreter(ruleService, pipelineService, functions, metricRegistry);
+
+        final List<Message> batch = Lists.newArrayList();
+        for (String host : ImmutableList.of("a", "b", "a", "b", "a", "c")) {
+            final Message message = messageInDefaultStream("message", "test");
+            message.addField("host", host);
+            batch.add(message);
+        }
+
+        interpreter.process(new MessageCollection(batch));
+
+        for (Message message : batch) {
+            assertThat(message.getField("owner")).isEqualTo("owner of " + message.getField("host"));
+        }
+        verify(owners, times(1)).lookup("a");
+        verify(owners, times(1)).lookup("b");
+        verify(owners, times(1)).lookup("c");
+        assertThat(metricRegistry.meter(name(PipelineInterpreter.class, "batch-lookups", "resolved")).getCount()).isEqualTo(3L);
+        assertThat(metricRegistry.meter(name(PipelineInterpreter.class, "batch-lookups", "cached")).getCount()).isEqualTo(6L);
+    }
+
+    @Test
+    public void testDroppedMessagesSkipRemainingStages() {
+        final RuleService ruleService = mock(MongoDbRuleService.class);
+        when(ruleService.loadAll()).thenReturn(ImmutableList.of(RULE_TRUE, RULE_ADD_FOOBAR,
+                RuleDao.create("drop_debug", "drop_debug", "drop_debug",
+                        "rule \"drop_debug\"\n" +
+                                "when has_field(\"debug\")\n" +
+                                "then\n" +
+                                "  drop_message();\n" +
+                                "end", null, null)));
+
+        final PipelineService pipelineService = mock(MongoDbPipelineService.class);
+        when(pipelineService.loadAll()).thenReturn(Collections.singleton(
+                PipelineDao.create("p1", "title", "description",
+                        "pipeline \"pipeline\"\n" +
+                                "stage 0 match either\n" +
+                                "    rule \"true\";\n" +
+                                "    rule \"drop_debug\";\n" +
+                                "stage 1 match either\n" +
+                                "    rule \"add_foobar\";\n" +
+                                "stage 2 match either\n" +
+                                "    rule \"add_foobar\";\n" +
+                                "end\n",
+                        Tools.nowUTC(),
+                        null)
+        ));
+
+        final Map<String, Function<?>> functions = ImmutableMap.of(
+                SetField.NAME, new SetField(),
+                HasField.NAME, new HasField(),
+                DropMessage.NAME, new DropMessage());
+        final MetricRegistry metricRegistry = new MetricRegistry();
+        final PipelineInterpreter interpreter = createPipelineInterpreter(ruleService, pipelineService, functions, metricRegistry);
+
+        final Message debug = messageInDefaultStream("debug", "test");
+        debug.addField("debug", true);
+        final Message kept = messageInDefaultStream("kept", "test");
+
+        final List<Message> processed = ImmutableList.copyOf(interpreter.process(new MessageCollection(ImmutableList.of(debug, kept))));
+
+        assertThat(processed).containsExactly(debug, kept);
+        assertThat(debug.getFilterOut()).isTrue();
+        assertThat(debug.hasField("foobar")).isFalse();
+        assertThat(kept.getFieldAs(String.class, "foobar")).isEqualTo("covfefe");
+        assertThat(metricRegistry.meter(name(Pipeline.class, "p1", "stages-skipped-due-to-drop")).getCount()).isEqualTo(2L);
+    }
+
+    @Test
+    public void testIndexedRoutingRulesOnlyMatchTheirValue() {
+        final List<RuleDao> rules = Lists.newArrayList();
+        final StringBuilder stage = new StringBuilder("stage 0 match either\n");
+        for (int i = 1; i <= 5; i++) {
+            final String name = "route_fw0" + i;
+            rules.add(RuleDao.create(name, name, name,
+                    "rule \"" + name + "\"\n" +
+                            "when $message.device == \"fw0" + i + "\"\n" +
+                            "then\n" +
+                            "  set_field(\"route\", \"" + name + "\");\n" +
+                            "end", null, null));
+            stage.append("    rule \"").append(name).append("\";\n");
+        }
+        final RuleService ruleService = mock(MongoDbRuleService.class);
+        when(ruleService.loadAll()).thenReturn(rules);
+
+        final PipelineService pipelineService = mock(MongoDbPipelineService.class);
+        when(pipelineService.loadAll()).thenReturn(Collections.singleton(
+                PipelineDao.create("p1", "title", "description",
+                        "pipeline \"pipeline\"\n" + stage + "end\n",
+                        Tools.nowUTC(),
+                        null)
+        ));
+
+        final Map<String, Function<?>> functions = ImmutableMap.of(SetField.NAME, new SetField());
+        final MetricRegistry metricRegistry = new MetricRegistry();
+        final PipelineInterpreter interpreter = createPipelineInterpreter(ruleService, pipelineService, functions, metricRegistry);
+
+        final Message message = messageInDefaultStream("message", "test");
+        message.addField("device", "fw03");
+        interpreter.process(message);
+
+        assertThat(message.getField("route")).isEqualTo("route_fw03");
+        assertThat(metricRegistry.meter(name(Rule.class, "route_fw03", "matched")).getCount()).isEqualTo(1L);
+        assertThat(metricRegistry.meter(name(Rule.class, "route_fw01", "not-matched")).getCount()).isEqualTo(1L);
+        assertThat(metricRegistry.meter(name(Rule.class, "route_fw05", "not-matched")).getCount()).isEqualTo(1L);
+    }
+
+    @Test
+    public void testPureFunctionResultsAreRememberedAcrossStages() {
+        final AtomicInteger classifications = new AtomicInteger();
+        final Function<String> classify = new AbstractFunction<String>() {
+            private final ParameterDescriptor<String, String> valueParam = ParameterDescriptor.string("value").build();
+
+            @Override
+            public String evaluate(FunctionArgs args, EvaluationContext context) {
+                classifications.incrementAndGet();
+                final String value = valueParam.required(args, context);
+                return value != null && value.startsWith("fw") ? "firewall" : "router";
+            }
+
+            @Override
+            public FunctionDescriptor<String> descriptor() {
+                return FunctionDescriptor.<String>builder()
+                        .name("classify")
+                        .pure(true)
+                        .params(valueParam)
+                        .returnType(String.class)
+                        .build();
+            }
+        };
+
+        final RuleService ruleService = mock(MongoDbRuleService.class);
+        when(ruleService.loadAll()).thenReturn(ImmutableList.of(
+                classifyRule("classify_a", "a"),
+                classifyRule("classify_b", "b"),
+                RuleDao.create("change_device", "change_device", "change_device",
+                        "rule \"change_device\"\n" +
+                                "when true\n" +
+                                "then\n" +
+                                "  set_field(\"device\", \"rt01\");\n" +
+                                "end", null, null),
+                classifyRule("classify_c", "c")));
+
+        final PipelineService pipelineService = mock(MongoDbPipelineService.class);
+        when(pipelineService.loadAll()).thenReturn(Collections.singleton(
+                PipelineDao.create("p1", "title", "description",
+                        "pipeline \"pipeline\"\n" +
+                                "stage 0 match either\n" +
+                                "    rule \"classify_a\";\n" +
+                                "stage 1 match either\n" +
+                                "    rule \"classify_b\";\n" +
+                                "stage 2 match either\n" +
+                                "    rule \"change_device\";\n" +
+                                "stage 3 match either\n" +
+                                "    rule \"classify_c\";\n" +
+                                "end\n",
+                        Tools.nowUTC(),
+                        null)
+        ));
+
+        final Map<String, Function<?>> functions = ImmutableMap.of(
+                SetField.NAME, new SetField(),
+                StringConversion.NAME, new StringConversion(),
+                "classify", classify);
+        final MetricRegistry metricRegistry = new MetricRegistry();
+        final PipelineInterpreter interpreter = createPipelineInterpreter(ruleService, pipelineService, functions, metricRegistry);
+
+        final Message message = messageInDefaultStream("message", "test");
+        message.addField("device", "fw01");
+        interpreter.process(message);
+
+        assertThat(message.getField("a")).isEqualTo("firewall");
+        assertThat(message.getField("b")).isEqualTo("firewall");
+        // writing the field changes the argument, which needs a new evaluation
+        assertThat(message.getField("c")).isEqualTo("router");
+        assertThat(classifications.get()).isEqualTo(2);
+        assertThat(metricRegistry.meter(name(PipelineInterpreter.class, "memo", "classify", "hits")).getCount()).isEqualTo(1L);
+        assertThat(metricRegistry.meter(name(PipelineInterpreter.class, "memo", "classify", "misses")).getCount()).isEqualTo(2L);
+        // the evaluated arguments are passed on to classify, it doesn't evaluate (or look up) them again
+        assertThat(metricRegistry.meter(name(PipelineInterpreter.class, "memo", "to_string", "hits")).getCount()).isEqualTo(1L);
+        assertThat(metricRegistry.meter(name(PipelineInterpreter.class, "memo", "to_string", "misses")).getCount()).isEqualTo(2L);
+    }
+
+    @Test
+    public void testSharedRulesAreEvaluatedOncePerStageNumber() {
+        final AtomicInteger actions = new AtomicInteger();
+        final Function<Void> countAction = new AbstractFunction<Void>() {
+            private final ParameterDescriptor<Object, Object> valuesParam = ParameterDescriptor.object("values").build();
+
+            @Override
+            public Void evaluate(FunctionArgs args, EvaluationContext context) {
+                actions.incrementAndGet();
+                return null;
+            }
+
+            @Override
+            public FunctionDescriptor<Void> descriptor() {
+                // doesn't change the message, the list argument keeps the calls from being remembered
+                return FunctionDescriptor.<Void>builder()
+                        .name("count_action")
+                        .pure(true)
+                        .params(valuesParam)
+                        .returnType(Void.class)
+                        .build();
+            }
+        };
+
+        final RuleService ruleService = new InMemoryRuleService();
+        ruleService.save(RuleDao.create("shared", "title", "description",
+                "rule \"shared\"\n" +
+                        "when has_field(\"device\")\n" +
+                        "then\n" +
+                        "  count_action([1]);\n" +
+                        "end",
+                Tools.nowUTC(),
+                null));
+
+        final PipelineService pipelineService = new InMemoryPipelineService();
+        for (String pipelineId : ImmutableList.of("p1", "p2")) {
+            pipelineService.save(PipelineDao.create(pipelineId, "title", "description",
+                    "pipeline \"" + pipelineId + "\"\n" +
+                            "stage 0 match either\n" +
+                            "    rule \"shared\";\n" +
+                            "end\n",
+                    Tools.nowUTC(),
+                    null));
+        }
+        pipelineService.save(PipelineDao.create("p3", "title", "description",
+                "pipeline \"p3\"\n" +
+                        "stage 1 match either\n" +
+                        "    rule \"shared\";\n" +
+                        "end\n",
+                Tools.nowUTC(),
+                null));
+
+        final PipelineStreamConnectionsService pipelineStreamConnectionsService = new InMemoryPipelineStreamConnectionsService();
+        pipelineStreamConnectionsService.save(PipelineConnections.create(null,
+                DEFAULT_STREAM_ID,
+                ImmutableSet.of("p1", "p2", "p3")));
+
+        final FunctionRegistry functionRegistry = new FunctionRegistry(ImmutableMap.of(
+                HasField.NAME, new HasField(),
+                "count_action", countAction));
+        final PipelineRuleParser parser = new PipelineRuleParser(functionRegistry, new CodeGenerator());
+
+        final MetricRegistry metricRegistry = new MetricRegistry();
+        final ConfigurationStateUpdater stateUpdater = new ConfigurationStateUpdater(ruleService,
+                pipelineService,
+                pipelineStreamConnectionsService,
+                parser,
+                metricRegistry,
+                functionRegistry,
+                Executors.newScheduledThreadPool(1),
+                mock(EventBus.class),
+                (currentPipelines, streamPipelineConnections) -> new PipelineInterpreter.State(currentPipelines, streamPipelineConnections, new MetricRegistry(), 1, true),
+                RuleCompiler.disabled(),
+                ReloadExecutor.sequential(),
+                false);
+        final PipelineInterpreter interpreter = new PipelineInterpreter(
+                mock(Journal.class),
+                metricRegistry,
+                stateUpdater,
+                ParallelBatchExecutor.sequential(),
+                BlockingStageExecutor.disabled()
+        );
+
+        final Message message = messageInDefaultStream("message", "test");
+        message.addField("device", "fw01");
+        interpreter.process(message);
+
+        // p2 reuses the outcome of p1 in stage 0, stage 1 of p3 evaluates the rule again
+        assertThat(actions.get()).isEqualTo(2);
+        for (String pipelineId : ImmutableList.of("p1", "p2")) {
+            assertThat(metricRegistry.meter(name(Rule.class, "shared", pipelineId, "0", "matched")).getCount()).isEqualTo(1L);
+            assertThat(metricRegistry.meter(name(Rule.class, "shared", pipelineId, "0", "executed")).getCount()).isEqualTo(1L);
+        }
+        assertThat(metricRegistry.meter(name(Rule.class, "shared", "p3", "1", "executed")).getCount()).isEqualTo(1L);
+        assertThat(metricRegistry.meter(name(Rule.class, "shared", "matched")).getCount()).isEqualTo(3L);
+    }
+
+    @Test
+    public void testSharedRulesChangingTheMessageAreEvaluatedAgain() {
+        final RuleService ruleService = new InMemoryRuleService();
+        ruleService.save(RuleDao.create("tag", "title", "description",
+                "rule \"tag\"\n" +
+                        "when !has_field(\"tagged\")\n" +
+                        "then\n" +
+                        "  set_field(\"tagged\", true);\n" +
+                        "end",
+                Tools.nowUTC(),
+                null));
+
+        final PipelineService pipelineService = new InMemoryPipelineService();
+        for (String pipelineId : ImmutableList.of("p1", "p2")) {
+            pipelineService.save(PipelineDao.create(pipelineId, "title", "description",
+                    "pipeline \"" + pipelineId + "\"\n" +
+                            "stage 0 match either\n" +
+                            "    rule \"tag\";\n" +
+                            "end\n",
+                    Tools.nowUTC(),
+                    null));
+        }
+
+        final PipelineStreamConnectionsService pipelineStreamConnectionsService = new InMemoryPipelineStreamConnectionsService();
+        pipelineStreamConnectionsService.save(PipelineConnections.create(null,
+                DEFAULT_STREAM_ID,
+                ImmutableSet.of("p1", "p2")));
+
+        final FunctionRegistry functionRegistry = new FunctionRegistry(ImmutableMap.of(
+                HasField.NAME, new HasField(),
+                SetField.NAME, new SetField()));
+        final PipelineRuleParser parser = new PipelineRuleParser(functionRegistry, new CodeGenerator());
+
+        final MetricRegistry metricRegistry = new MetricRegistry();
+        final ConfigurationStateUpdater stateUpdater = new ConfigurationStateUpdater(ruleService,
+                pipelineService,
+                pipelineStreamConnectionsService,
+                parser,
+                metricRegistry,
+                functionRegistry,
+                Executors.newScheduledThreadPool(1),
+                mock(EventBus.class),
+                (currentPipelines, streamPipelineConnections) -> new PipelineInterpreter.State(currentPipelines, streamPipelineConnections, new MetricRegistry(), 1, true),
+                RuleCompiler.disabled(),
+                ReloadExecutor.sequential(),
+                false);
+        final PipelineInterpreter interpreter = new PipelineInterpreter(
+                mock(Journal.class),
+                metricRegistry,
+                stateUpdater,
+                ParallelBatchExecutor.sequential(),
+                BlockingStageExecutor.disabled()
+        );
+
+        final Message message = messageInDefaultStream("message", "test");
+        interpreter.process(message);
+
+        // the action invalidates the rule's own condition, the second pipeline must not reuse the outcome
+        assertThat(message.getField("tagged")).isEqualTo(true);
+        assertThat(metricRegistry.meter(name(Rule.class, "tag", "matched")).getCount()).isEqualTo(1L);
+        assertThat(metricRegistry.meter(name(Rule.class, "tag", "not-matched")).getCount()).isEqualTo(1L);
+    }
+
+    @Test
+    public void testReloadOnlyRebuildsChangedRulesAndPipelines() {
+        final RuleService ruleService = new InMemoryRuleService();
+        ruleService.save(RuleDao.create("r1", "r1", "r1", "rule \"r1\" when true then end", Tools.nowUTC(), null));
+        ruleService.save(RuleDao.create("r2", "r2", "r2", "rule \"r2\" when true then end", Tools.nowUTC(), null));
+
+        final PipelineService pipelineService = new InMemoryPipelineService();
+        pipelineService.save(PipelineDao.create("p1", "title", "description",
+                "pipeline \"p1\"\nstage 0 match either\n    rule \"r1\";\nend\n", Tools.nowUTC(), null));
+        pipelineService.save(PipelineDao.create("p2", "title", "description",
+                "pipeline \"p2\"\nstage 0 match either\n    rule \"r2\";\nend\n", Tools.nowUTC(), null));
+
+        final FunctionRegistry functionRegistry = new FunctionRegistry(Collections.emptyMap());
+        final MetricRegistry metricRegistry = new MetricRegistry();
+        final ConfigurationStateUpdater stateUpdater = new ConfigurationStateUpdater(ruleService,
+                pipelineService,
+                new InMemoryPipelineStreamConnectionsService(),
+                new PipelineRuleParser(functionRegistry, new CodeGenerator()),
+                metricRegistry,
+                functionRegistry,
+                Executors.newScheduledThreadPool(1),
+                mock(EventBus.class),
+                (currentPipelines, streamPipelineConnections) -> new PipelineInterpreter.State(currentPipelines, streamPipelineConnections, new MetricRegistry(), 1, true),
+                RuleCompiler.disabled(),
+                ReloadExecutor.sequential(),
+                false);
+        final Meter parsedRules = metricRegistry.meter(name(ConfigurationStateUpdater.class, "reload", "parsed-rules"));
+        final Meter resolvedPipelines = metricRegistry.meter(name(ConfigurationStateUpdater.class, "reload", "resolved-pipelines"));
+        final Map<String, Pipeline> initial = stateUpdater.getLatestState().getCurrentPipelines();
+        assertThat(parsedRules.getCount()).isEqualTo(2L);
+        assertThat(resolvedPipelines.getCount()).isEqualTo(2L);
+
+        // nothing changed, everything is reused
+        final Map<String, Pipeline> unchanged = stateUpdater.reload().getCurrentPipelines();
+        assertThat(unchanged.get("p1")).isSameAs(initial.get("p1"));
+        assertThat(unchanged.get("p2")).isSameAs(initial.get("p2"));
+        assertThat(parsedRules.getCount()).isEqualTo(2L);
+        assertThat(resolvedPipelines.getCount()).isEqualTo(2L);
+
+        // only the pipeline referencing the changed rule is resolved again
+        ruleService.save(RuleDao.create("r1", "r1", "r1", "rule \"r1\" when false then end", Tools.nowUTC(), null));
+        final Map<String, Pipeline> ruleChanged = stateUpdater.reload().getCurrentPipelines();
+        assertThat(ruleChanged.get("p1")).isNotSameAs(initial.get("p1"));
+        assertThat(ruleChanged.get("p2")).isSameAs(initial.get("p2"));
+        assertThat(parsedRules.getCount()).isEqualTo(3L);
+        assertThat(resolvedPipelines.getCount()).isEqualTo(3L);
+
+        // deleting a rule leaves the reference unresolved
+        ruleService.delete("r2");
+        final Map<String, Pipeline> ruleDeleted = stateUpdater.reload().getCurrentPipelines();
+        assertThat(ruleDeleted.get("p1")).isSameAs(ruleChanged.get("p1"));
+        assertThat(ruleDeleted.get("p2")).isNotSameAs(initial.get("p2"));
+        assertThat(stateUpdater.getPrunedElements("p2")).isNotEmpty();
+        assertThat(resolvedPipelines.getCount()).isEqualTo(4L);
+    }
+
+    private static RuleDao classifyRule(String name, String field) {
+        return RuleDao.create(name, name, name,
+                "rule \"" + name + "\"\n" +
+                        "when true\n" +
+                        "then\n" +
+                        "  set_field(\"" + field + "\", classify(to_string($message.device)));\n" +
+                        "end", null, null);
+    }
+
     private PipelineInterpreter createPipelineInterpreter(RuleService ruleService, PipelineService pipelineService, Map<String, Function<?>> functions) {
+        return createPipelineInterpreter(ruleService, pipelineService, functions, new MetricRegistry());
+    }
+
+    private PipelineInterpreter createPipelineInterpreter(RuleService ruleService,
+                                                          PipelineService pipelineService,
+                                                          Map<String, Function<?>> functions,
+                                                          MetricRegistry metricRegistry) {
+        return createPipelineInterpreter(ruleService, pipelineService, functions, metricRegistry, ParallelBatchExecutor.sequential());
+    }
+
+    private PipelineInterpreter createPipelineInterpreter(RuleService ruleService,
+                                                          PipelineService pipelineService,
+                                                          Map<String, Function<?>> functions,
+                                                          MetricRegistry metricRegistry,
+                                                          ParallelBatchExecutor batchExecutor) {
+        return createPipelineInterpreter(ruleService, pipelineService, functions, metricRegistry, batchExecutor,
+                BlockingStageExecutor.disabled());
+    }
+
+    private PipelineInterpreter createPipelineInterpreter(RuleService ruleService,
+                                                          PipelineService pipelineService,
+                                                          Map<String, Function<?>> functions,
+                                                          MetricRegistry metricRegistry,
+                                                          ParallelBatchExecutor batchExecutor,
+                                                          BlockingStageExecutor blockingStageExecutor) {
         final PipelineStreamConnectionsService pipelineStreamConnectionsService = mock(MongoDbPipelineStreamConnectionsService.class);
         final PipelineConnections pipelineConnections = PipelineConnections.create("p1", DEFAULT_STREAM_ID, Collections.singleton("p1"));
         when(pipelineStreamConnectionsService.loadAll()).thenReturn(Collections.singleton(pipelineConnections));
 
         final FunctionRegistry functionRegistry = new FunctionRegistry(functions);
-        final PipelineRuleParser parser = new PipelineRuleParser(functionRegistry, new CodeGenerator(JavaCompiler::new));
+        final PipelineRuleParser parser = new PipelineRuleParser(functionRegistry, new CodeGenerator());
 
         final ConfigurationStateUpdater stateUpdater = new ConfigurationStateUpdater(ruleService,
                 pipelineService,
                 pipelineStreamConnectionsService,
                 parser,
-                new MetricRegistry(),
+                metricRegistry,
                 functionRegistry,
                 Executors.newScheduledThreadPool(1),
                 mock(EventBus.class),
                 (currentPipelines, streamPipelineConnections) -> new PipelineInterpreter.State(currentPipelines, streamPipelineConnections, new MetricRegistry(), 1, true),
+                RuleCompiler.disabled(),
+                ReloadExecutor.sequential(),
                 false);
         return new PipelineInterpreter(
                 mock(Journal.class),
-                new MetricRegistry(),
-                stateUpdater
+                metricRegistry,
+                stateUpdater,
+                batchExecutor,
+                blockingStageExecutor
         );
     }
 
@@ -302,7 +1015,7 @@ public class PipelineInterpreterTest {
                 Collections.singleton("cde")));
 
         final FunctionRegistry functionRegistry = new FunctionRegistry(Collections.emptyMap());
-        final PipelineRuleParser parser = new PipelineRuleParser(functionRegistry, new CodeGenerator(JavaCompiler::new));
+        final PipelineRuleParser parser = new PipelineRuleParser(functionRegistry, new CodeGenerator());
 
         final MetricRegistry metricRegistry = new MetricRegistry();
         final ConfigurationStateUpdater stateUpdater = new ConfigurationStateUpdater(ruleService,
@@ -314,11 +1027,15 @@ public class PipelineInterpreterTest {
                 Executors.newScheduledThreadPool(1),
                 mock(EventBus.class),
                 (currentPipelines, streamPipelineConnections) -> new PipelineInterpreter.State(currentPipelines, streamPipelineConnections, new MetricRegistry(), 1, true),
+                RuleCompiler.disabled(),
+                ReloadExecutor.sequential(),
                 false);
         final PipelineInterpreter interpreter = new PipelineInterpreter(
                 mock(Journal.class),
                 metricRegistry,
-                stateUpdater
+                stateUpdater,
+                ParallelBatchExecutor.sequential(),
+                BlockingStageExecutor.disabled()
         );
 
         interpreter.process(messageInDefaultStream("", ""));
@@ -327,6 +1044,7 @@ public class PipelineInterpreterTest {
 
         assertThat(meters.keySet()).containsExactlyInAnyOrder(
                 name(Pipeline.class, "cde", "executed"),
+                name(Pipeline.class, "cde", "stages-skipped-due-to-drop"),
                 name(Pipeline.class, "cde", "stage", "0", "executed"),
                 name(Pipeline.class, "cde", "stage", "1", "executed"),
                 name(Rule.class, "abc", "executed"),
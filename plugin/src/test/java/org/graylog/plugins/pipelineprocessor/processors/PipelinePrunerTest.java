@@ -0,0 +1,128 @@
+/**
+ * This file is part of Graylog Pipeline Processor.
+ *
+ * Graylog Pipeline Processor is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Graylog Pipeline Processor is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Graylog Pipeline Processor.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.graylog.plugins.pipelineprocessor.processors;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSortedSet;
+import org.antlr.v4.runtime.CommonToken;
+import org.graylog.plugins.pipelineprocessor.ast.Pipeline;
+import org.graylog.plugins.pipelineprocessor.ast.Rule;
+import org.graylog.plugins.pipelineprocessor.ast.Stage;
+import org.graylog.plugins.pipelineprocessor.ast.expressions.BooleanExpression;
+import org.graylog.plugins.pipelineprocessor.rest.PrunedElement;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class PipelinePrunerTest {
+
+    @Test
+    public void keepsPipelineWithoutDeadRules() {
+        final Pipeline pipeline = pipeline(stage(0, true, rule("a")), stage(1, false, rule("b"), rule("c")));
+        final List<PrunedElement> pruned = new ArrayList<>();
+
+        assertThat(PipelinePruner.prune(pipeline, pruned)).isSameAs(pipeline);
+        assertThat(pruned).isEmpty();
+    }
+
+    @Test
+    public void dropsDeadRulesFromMatchEitherStage() {
+        final Stage stage = stage(0, false, rule("a"), Rule.alwaysFalse("Unresolved rule b"));
+        final Stage next = stage(1, true, rule("c"));
+        final List<PrunedElement> pruned = new ArrayList<>();
+
+        final Pipeline result = PipelinePruner.prune(pipeline(stage, next), pruned);
+
+        assertThat(result.stages()).containsExactly(stage, next);
+        assertThat(stage.getRules()).extracting(Rule::name).containsExactly("a");
+        assertThat(pruned).containsExactly(PrunedElement.rule(0, "Unresolved rule b", "Condition is always false"));
+    }
+
+    @Test
+    public void matchAllStageWithDeadRuleMakesLaterStagesUnreachable() {
+        final Stage stage = stage(0, true, rule("a"), Rule.alwaysFalse("Unresolved rule b"));
+        final List<PrunedElement> pruned = new ArrayList<>();
+
+        final Pipeline result = PipelinePruner.prune(pipeline(stage, stage(1, false, rule("c")), stage(2, true)), pruned);
+
+        // the remaining rule still runs its actions, but the stage can never let the message proceed
+        assertThat(result.stages()).containsExactly(stage);
+        assertThat(stage.getRules()).extracting(Rule::name).containsExactly("a");
+        assertThat(pruned).extracting(PrunedElement::stage).containsExactly(0, 1, 2);
+        assertThat(pruned).extracting(PrunedElement::rule).containsExactly("Unresolved rule b", null, null);
+    }
+
+    @Test
+    public void dropsStageWithoutLiveRules() {
+        final Stage first = stage(0, true, rule("a"));
+        final List<PrunedElement> pruned = new ArrayList<>();
+
+        final Pipeline result = PipelinePruner.prune(pipeline(first,
+                stage(1, false, Rule.alwaysFalse("Failed to parse rule: 1")),
+                stage(2, false, rule("c"))), pruned);
+
+        assertThat(result.stages()).containsExactly(first);
+        assertThat(result.id()).isEqualTo("pipeline");
+        assertThat(pruned).containsExactly(
+                PrunedElement.rule(1, "Failed to parse rule: 1", "Condition is always false"),
+                PrunedElement.stage(1, "None of its rules can match"),
+                PrunedElement.stage(2, "Unreachable, an earlier stage never lets messages proceed"));
+    }
+
+    @Test
+    public void keepsStagesWithoutRuleReferences() {
+        final Pipeline pipeline = pipeline(stage(0, true), stage(1, false));
+        final List<PrunedElement> pruned = new ArrayList<>();
+
+        assertThat(PipelinePruner.prune(pipeline, pruned)).isSameAs(pipeline);
+        assertThat(pruned).isEmpty();
+    }
+
+    private static Rule rule(String name) {
+        return Rule.builder()
+                .name(name)
+                .when(new BooleanExpression(new CommonToken(-1), true))
+                .then(Collections.emptyList())
+                .build();
+    }
+
+    private static Stage stage(int number, boolean matchAll, Rule... rules) {
+        final List<String> references = new ArrayList<>();
+        for (Rule rule : rules) {
+            references.add(rule.name());
+        }
+        final Stage stage = Stage.builder()
+                .stage(number)
+                .matchAll(matchAll)
+                .ruleReferences(references)
+                .build();
+        stage.setRules(ImmutableList.copyOf(rules));
+        return stage;
+    }
+
+    private static Pipeline pipeline(Stage... stages) {
+        return Pipeline.builder()
+                .name("pipeline")
+                .stages(ImmutableSortedSet.copyOf(stages))
+                .build()
+                .withId("pipeline");
+    }
+}
@@ -0,0 +1,75 @@
+/**
+ * This file is part of Graylog Pipeline Processor.
+ *
+ * Graylog Pipeline Processor is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Graylog Pipeline Processor is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Graylog Pipeline Processor.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.graylog.plugins.pipelineprocessor.processors;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Sets;
+import org.junit.Test;
+
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+public class ReloadExecutorTest {
+
+    @Test
+    public void sequentialExecutorRunsOnCallingThread() {
+        final ReloadExecutor executor = ReloadExecutor.sequential();
+        assertThat(executor.isEnabled()).isFalse();
+
+        final Thread caller = Thread.currentThread();
+        assertThat(executor.map(ImmutableList.of(1, 2, 3), item -> {
+            assertThat(Thread.currentThread()).isSameAs(caller);
+            return item * 2;
+        })).containsExactly(2, 4, 6);
+    }
+
+    @Test
+    public void parallelExecutorKeepsOrderOfItems() {
+        final ReloadExecutor executor = new ReloadExecutor(4);
+        assertThat(executor.isEnabled()).isTrue();
+
+        final Set<String> threads = Sets.newConcurrentHashSet();
+        final ImmutableList.Builder<Integer> items = ImmutableList.builder();
+        final ImmutableList.Builder<String> expected = ImmutableList.builder();
+        for (int i = 0; i < 100; i++) {
+            items.add(i);
+            expected.add("rule-" + i);
+        }
+        assertThat(executor.map(items.build(), item -> {
+            threads.add(Thread.currentThread().getName());
+            return "rule-" + item;
+        })).containsExactlyElementsOf(expected.build());
+        assertThat(threads).allMatch(name -> name.startsWith("pipeline-reload-worker-"));
+    }
+
+    @Test
+    public void waitsForAllTasksBeforeRethrowing() {
+        final ReloadExecutor executor = new ReloadExecutor(2);
+        final AtomicInteger completed = new AtomicInteger();
+
+        assertThatThrownBy(() -> executor.map(ImmutableList.of(1, 2, 3, 4), item -> {
+            if (item == 1) {
+                throw new IllegalStateException("boom");
+            }
+            return completed.incrementAndGet();
+        })).isInstanceOf(IllegalStateException.class).hasMessage("boom");
+        assertThat(completed).hasValue(3);
+    }
+}
@@ -0,0 +1,195 @@
+/**
+ * This file is part of Graylog Pipeline Processor.
+ *
+ * Graylog Pipeline Processor is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Graylog Pipeline Processor is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Graylog Pipeline Processor.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.graylog.plugins.pipelineprocessor.processors;
+
+import com.codahale.metrics.MetricRegistry;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.hash.HashCode;
+import org.graylog.plugins.pipelineprocessor.ast.Rule;
+import org.graylog.plugins.pipelineprocessor.codegen.CodeGenerator;
+import org.graylog.plugins.pipelineprocessor.codegen.GeneratedRule;
+import org.graylog.plugins.pipelineprocessor.functions.messages.HasField;
+import org.graylog.plugins.pipelineprocessor.parser.FunctionRegistry;
+import org.graylog.plugins.pipelineprocessor.parser.PipelineRuleParser;
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class RuleCompilerTest {
+
+    private final FunctionRegistry functionRegistry = new FunctionRegistry(ImmutableMap.of(HasField.NAME, new HasField()));
+    private final PipelineRuleParser parser = new PipelineRuleParser(functionRegistry, new CodeGenerator());
+    private final HashCode sourceHash = HashCode.fromInt(1);
+
+    @Test
+    public void promotesHotRuleToGeneratedCode() throws Exception {
+        final MetricRegistry metricRegistry = new MetricRegistry();
+        final RuleCompiler compiler = new RuleCompiler(new CodeGenerator(), functionRegistry, true, 2, metricRegistry);
+        final Rule rule = parseRule();
+        final GeneratedRule closure = rule.invokable();
+        compiler.enablePromotion(rule, sourceHash);
+
+        rule.markEvaluation();
+        assertThat(rule.isPromoted()).isFalse();
+        rule.markEvaluation();
+        awaitPromotion(rule);
+
+        assertThat(rule.invokable()).isNotSameAs(closure);
+        assertThat(rule.invokable().getClass().getName()).startsWith("org.graylog.plugins.pipelineprocessor.$dynamic.rules.rule$");
+        assertThat(metricRegistry.meter(MetricRegistry.name(PipelineInterpreter.class, "rule-compilation", "promoted")).getCount())
+                .isEqualTo(1);
+    }
+
+    @Test
+    public void copiesOfRuleShareGeneratedClass() throws Exception {
+        final RuleCompiler compiler = new RuleCompiler(new CodeGenerator(), functionRegistry, true, 1, new MetricRegistry());
+        final Rule parsed = parser.parseRule("rule-id", "rule \"hot\" when has_field(\"a\") then end", false);
+        final Rule first = parsed.invokableCopy(functionRegistry);
+        final Rule second = parsed.invokableCopy(functionRegistry);
+        compiler.enablePromotion(first, sourceHash);
+        compiler.enablePromotion(second, sourceHash);
+
+        first.markEvaluation();
+        second.markEvaluation();
+        awaitPromotion(first);
+        awaitPromotion(second);
+
+        // each copy gets an instance of its own, but the class is only generated once
+        assertThat(first.invokable()).isNotSameAs(second.invokable());
+        assertThat(first.invokable().getClass()).isSameAs(second.invokable().getClass());
+    }
+
+    @Test
+    public void generatedClassIsKeptAcrossReloadsUntilTheSourceChanges() throws Exception {
+        final RuleCompiler compiler = new RuleCompiler(new CodeGenerator(), functionRegistry, true, 1, new MetricRegistry());
+        final Rule first = parseRule();
+        compiler.enablePromotion(first, sourceHash);
+        first.markEvaluation();
+        awaitPromotion(first);
+
+        // a reload which keeps the rule's source reuses its class
+        compiler.retainRules(ImmutableMap.of("rule-id", sourceHash));
+        final Rule reloaded = parseRule();
+        compiler.enablePromotion(reloaded, sourceHash);
+        reloaded.markEvaluation();
+        awaitPromotion(reloaded);
+        assertThat(reloaded.invokable().getClass()).isSameAs(first.invokable().getClass());
+
+        // a changed source gets a class of its own
+        final HashCode changedHash = HashCode.fromInt(2);
+        compiler.retainRules(ImmutableMap.of("rule-id", changedHash));
+        final Rule changed = parseRule();
+        compiler.enablePromotion(changed, changedHash);
+        changed.markEvaluation();
+        awaitPromotion(changed);
+        assertThat(changed.invokable().getClass()).isNotSameAs(first.invokable().getClass());
+        assertThat(changed.invokable().getClass().getClassLoader()).isNotSameAs(first.invokable().getClass().getClassLoader());
+    }
+
+    @Test
+    public void ruleWithoutSourceHashKeepsClosure() throws Exception {
+        final RuleCompiler compiler = new RuleCompiler(new CodeGenerator(), functionRegistry, true, 1, new MetricRegistry());
+        final Rule rule = parseRule();
+        final GeneratedRule closure = rule.invokable();
+        compiler.enablePromotion(rule, null);
+
+        rule.markEvaluation();
+
+        assertThat(rule.isPromoted()).isFalse();
+        assertThat(rule.invokable()).isSameAs(closure);
+    }
+
+    @Test
+    public void disabledCompilerKeepsClosures() throws Exception {
+        final Rule rule = parseRule();
+        final GeneratedRule closure = rule.invokable();
+        RuleCompiler.disabled().enablePromotion(rule, sourceHash);
+
+        for (int i = 0; i < 100; i++) {
+            rule.markEvaluation();
+        }
+
+        assertThat(rule.isPromoted()).isFalse();
+        assertThat(rule.invokable()).isSameAs(closure);
+    }
+
+    @Test
+    public void concurrentEvaluationsRequestPromotionOnce() throws Exception {
+        final Rule rule = parseRule();
+        final AtomicInteger promotions = new AtomicInteger();
+        rule.enablePromotion(100, hot -> promotions.incrementAndGet());
+
+        final int threads = 8;
+        final ExecutorService executor = Executors.newFixedThreadPool(threads);
+        final CountDownLatch start = new CountDownLatch(1);
+        try {
+            for (int i = 0; i < threads; i++) {
+                executor.execute(() -> {
+                    try {
+                        start.await();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        return;
+                    }
+                    for (int j = 0; j < 1000; j++) {
+                        rule.markEvaluation();
+                    }
+                });
+            }
+            start.countDown();
+        } finally {
+            executor.shutdown();
+        }
+        assertThat(executor.awaitTermination(10, TimeUnit.SECONDS)).isTrue();
+
+        assertThat(promotions.get()).isEqualTo(1);
+    }
+
+    @Test
+    public void stoppedCompilerKeepsClosures() throws Exception {
+        final RuleCompiler compiler = new RuleCompiler(new CodeGenerator(), functionRegistry, true, 1, new MetricRegistry());
+        compiler.startAsync().awaitRunning();
+        compiler.stopAsync().awaitTerminated();
+        final Rule rule = parseRule();
+        final GeneratedRule closure = rule.invokable();
+        compiler.enablePromotion(rule, sourceHash);
+
+        rule.markEvaluation();
+
+        assertThat(rule.isPromoted()).isFalse();
+        assertThat(rule.invokable()).isSameAs(closure);
+    }
+
+    private Rule parseRule() throws Exception {
+        return parser.parseRule("rule-id", "rule \"hot\" when has_field(\"a\") then end", false)
+                .invokableCopy(functionRegistry);
+    }
+
+    private static void awaitPromotion(Rule rule) throws InterruptedException {
+        final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (!rule.isPromoted() && System.nanoTime() < deadline) {
+            Thread.sleep(10);
+        }
+        assertThat(rule.isPromoted()).isTrue();
+    }
+}
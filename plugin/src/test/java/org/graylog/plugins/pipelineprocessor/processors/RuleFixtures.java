@@ -0,0 +1,63 @@
+/**
+ * This file is part of Graylog Pipeline Processor.
+ *
+ * Graylog Pipeline Processor is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Graylog Pipeline Processor is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Graylog Pipeline Processor.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.graylog.plugins.pipelineprocessor.processors;
+
+import org.graylog.plugins.pipelineprocessor.ast.Rule;
+import org.graylog.plugins.pipelineprocessor.ast.functions.Function;
+import org.graylog.plugins.pipelineprocessor.codegen.CodeGenerator;
+import org.graylog.plugins.pipelineprocessor.parser.FunctionRegistry;
+import org.graylog.plugins.pipelineprocessor.parser.PipelineRuleParser;
+import org.graylog2.plugin.Message;
+import org.graylog2.plugin.Tools;
+
+import java.util.BitSet;
+import java.util.Map;
+
+/**
+ * Parses rules and builds messages for the tests of the execution plan's parts.
+ */
+final class RuleFixtures {
+
+    private RuleFixtures() {
+    }
+
+    static PipelineRuleParser parser(Map<String, Function<?>> functions) {
+        return new PipelineRuleParser(new FunctionRegistry(functions), new CodeGenerator());
+    }
+
+    static Rule rule(PipelineRuleParser parser, String name, String condition) {
+        return rule(parser, name, condition, "");
+    }
+
+    static Rule rule(PipelineRuleParser parser, String name, String condition, String actions) {
+        return parser.parseRule("rule \"" + name + "\"\nwhen " + condition + "\nthen\n" + actions + "\nend", true);
+    }
+
+    static Message message(String field, Object value) {
+        final Message message = new Message("message", "source", Tools.nowUTC());
+        message.addField(field, value);
+        return message;
+    }
+
+    static BitSet bits(int... indices) {
+        final BitSet bits = new BitSet();
+        for (int index : indices) {
+            bits.set(index);
+        }
+        return bits;
+    }
+}
@@ -0,0 +1,73 @@
+/**
+ * This file is part of Graylog Pipeline Processor.
+ *
+ * Graylog Pipeline Processor is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Graylog Pipeline Processor is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Graylog Pipeline Processor.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.graylog.plugins.pipelineprocessor.processors;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import org.graylog.plugins.pipelineprocessor.ast.Rule;
+import org.graylog.plugins.pipelineprocessor.functions.messages.HasField;
+import org.graylog.plugins.pipelineprocessor.parser.PipelineRuleParser;
+import org.graylog2.plugin.Message;
+import org.graylog2.plugin.Tools;
+import org.junit.Test;
+
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.graylog.plugins.pipelineprocessor.processors.RuleFixtures.bits;
+import static org.graylog.plugins.pipelineprocessor.processors.RuleFixtures.message;
+import static org.graylog.plugins.pipelineprocessor.processors.RuleFixtures.parser;
+
+public class StageConditionIndexTest {
+
+    private final PipelineRuleParser parser = parser(ImmutableMap.of(HasField.NAME, new HasField()));
+
+    @Test
+    public void selectsCandidateRulesByFieldValue() {
+        final List<Rule> rules = ImmutableList.of(
+                rule("fw01", "$message.device == \"fw01\""),
+                rule("fw02", "$message.device == \"fw02\""),
+                rule("fw02_tagged", "true && $message.device == \"fw02\" && has_field(\"tag\")"),
+                rule("fw03", "$message.device == \"fw03\""),
+                rule("unindexed", "has_field(\"device\")"),
+                rule("fw04", "$message.device == \"fw04\""));
+
+        final StageConditionIndex index = StageConditionIndex.build(rules);
+        assertThat(index).isNotNull();
+        assertThat(index.indexedFieldCount()).isEqualTo(1);
+
+        assertThat(index.nonMatchingRules(message("device", "fw02"))).isEqualTo(bits(0, 3, 5));
+        assertThat(index.nonMatchingRules(message("device", "unknown"))).isEqualTo(bits(0, 1, 2, 3, 5));
+        assertThat(index.nonMatchingRules(new Message("no device field", "source", Tools.nowUTC()))).isEqualTo(bits(0, 1, 2, 3, 5));
+    }
+
+    @Test
+    public void onlyIndexesConjunctiveEqualityTests() {
+        final List<Rule> rules = ImmutableList.of(
+                rule("b", "$message.device != \"b\""),
+                rule("c", "$message.device == \"c\" || $message.device == \"d\""),
+                rule("e", "$message.device == \"e\""),
+                rule("f", "$message.device == \"f\""));
+
+        // only two rules qualify, which isn't worth an index
+        assertThat(StageConditionIndex.build(rules)).isNull();
+    }
+
+    private Rule rule(String name, String condition) {
+        return RuleFixtures.rule(parser, name, condition);
+    }
+}
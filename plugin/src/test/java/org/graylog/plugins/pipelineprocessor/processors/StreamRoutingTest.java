@@ -0,0 +1,111 @@
+/**
+ * This file is part of Graylog Pipeline Processor.
+ *
+ * Graylog Pipeline Processor is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Graylog Pipeline Processor is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Graylog Pipeline Processor.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.graylog.plugins.pipelineprocessor.processors;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.ImmutableSetMultimap;
+import com.google.common.collect.ImmutableSortedSet;
+import org.graylog.plugins.pipelineprocessor.ast.Pipeline;
+import org.graylog.plugins.pipelineprocessor.ast.Stage;
+import org.graylog.plugins.pipelineprocessor.functions.messages.RouteToStream;
+import org.graylog.plugins.pipelineprocessor.functions.messages.StreamCacheService;
+import org.graylog.plugins.pipelineprocessor.parser.PipelineRuleParser;
+import org.graylog2.plugin.streams.Stream;
+import org.junit.Test;
+
+import java.util.Collections;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.graylog.plugins.pipelineprocessor.processors.RuleFixtures.parser;
+import static org.graylog.plugins.pipelineprocessor.processors.RuleFixtures.rule;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class StreamRoutingTest {
+
+    private final StreamCacheService streamCacheService = mock(StreamCacheService.class);
+    private final PipelineRuleParser parser = parser(
+            ImmutableMap.of(RouteToStream.NAME, new RouteToStream(streamCacheService, () -> null)));
+
+    @Test
+    public void detectsRoutingCycles() {
+        final Pipeline toB = pipeline("to_b", "route_to_stream(id: \"b\");");
+        final Pipeline toA = pipeline("to_a", "route_to_stream(id: \"a\");");
+        final Pipeline toItself = pipeline("to_c", "route_to_stream(id: \"c\");");
+        final Pipeline noRoutes = pipeline("none", "");
+
+        final StreamRouting routing = StreamRouting.analyze(ImmutableSetMultimap.of(
+                "a", toB,
+                "b", toA,
+                "c", toItself,
+                "d", noRoutes));
+
+        assertThat(routing.cycles()).containsExactlyInAnyOrder(ImmutableSet.of("a", "b"), ImmutableSet.of("c"));
+    }
+
+    @Test
+    public void resolvesConstantStreamNamesForCycles() {
+        final Stream named = mock(Stream.class);
+        when(named.getId()).thenReturn("b");
+        when(streamCacheService.getByName("B")).thenReturn(Collections.singleton(named));
+
+        final StreamRouting routing = StreamRouting.analyze(ImmutableSetMultimap.of(
+                "a", pipeline("by_name", "route_to_stream(name: \"B\");"),
+                "b", pipeline("to_a", "route_to_stream(id: \"a\");")));
+
+        assertThat(routing.cycles()).containsExactly(ImmutableSet.of("a", "b"));
+    }
+
+    @Test
+    public void knowsPipelinesWhichCannotRouteToConnectedStreams() {
+        final Stream named = mock(Stream.class);
+        when(named.getId()).thenReturn("b");
+        when(streamCacheService.getByName("B")).thenReturn(Collections.singleton(named));
+
+        final Pipeline toOutputStream = pipeline("to_x", "route_to_stream(id: \"x\");");
+        final Pipeline toConnectedStream = pipeline("to_b", "route_to_stream(id: \"b\");");
+        final Pipeline byName = pipeline("by_name", "route_to_stream(name: \"B\");");
+        final Pipeline noRoutes = pipeline("none", "");
+
+        final StreamRouting routing = StreamRouting.analyze(ImmutableSetMultimap.of(
+                "a", toOutputStream,
+                "a", noRoutes,
+                "b", toConnectedStream,
+                "c", byName));
+
+        assertThat(routing.mayRouteToConnectedStreams(ImmutableList.of(toOutputStream, noRoutes))).isFalse();
+        assertThat(routing.mayRouteToConnectedStreams(ImmutableList.of(toConnectedStream))).isTrue();
+        // names are only resolved when routing
+        assertThat(routing.mayRouteToConnectedStreams(ImmutableList.of(byName))).isTrue();
+    }
+
+    private Pipeline pipeline(String name, String actions) {
+        final Stage stage = Stage.builder()
+                .stage(0)
+                .matchAll(true)
+                .ruleReferences(ImmutableList.of(name))
+                .build();
+        stage.setRules(ImmutableList.of(rule(parser, name, "true", actions)));
+        return Pipeline.builder()
+                .name(name)
+                .stages(ImmutableSortedSet.of(stage))
+                .build()
+                .withId(name);
+    }
+}